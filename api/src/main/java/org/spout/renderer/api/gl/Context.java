@@ -218,6 +218,35 @@ public abstract class Context extends Creatable implements GLVersioned {
      */
     public abstract void setViewPort(Rectangle viewPort);
 
+    /**
+     * Sets the scissor rectangle, in the same coordinates as the view port. When the scissor test is enabled with {@link #enableCapability(org.spout.renderer.api.gl.Context.Capability)}, nothing
+     * outside of it is drawn or cleared.
+     *
+     * @param scissor The scissor rectangle
+     */
+    public abstract void setScissor(Rectangle scissor);
+
+    /**
+     * Sets which faces of polygons are culled, when culling is enabled with {@link #enableCapability(org.spout.renderer.api.gl.Context.Capability)}. Defaults to the back faces.
+     *
+     * @param face The faces to cull
+     */
+    public abstract void setCullFace(CullFace face);
+
+    /**
+     * Sets the winding order of the front faces of polygons, in window coordinates. Defaults to counter clockwise.
+     *
+     * @param face The front face winding order
+     */
+    public abstract void setFrontFace(FrontFace face);
+
+    /**
+     * Sets the diameter in pixels of rasterized points. Must be greater than zero. Defaults to one.
+     *
+     * @param size The point size
+     */
+    public abstract void setPointSize(float size);
+
     /**
      * Reads the current frame pixels and returns it as a byte buffer of the desired format. The size of the returned image data is the same as the current window dimensions.
      *
@@ -290,7 +319,8 @@ public abstract class Context extends Creatable implements GLVersioned {
         BLEND(0xBE2), // GL11.GL_BLEND
         CULL_FACE(0xB44), // GL11.GL_CULL_FACE
         DEPTH_CLAMP(0x864F), // GL32.GL_DEPTH_CLAMP
-        DEPTH_TEST(0xB71); // GL11.GL_DEPTH_TEST
+        DEPTH_TEST(0xB71), // GL11.GL_DEPTH_TEST
+        SCISSOR_TEST(0xC11); // GL11.GL_SCISSOR_TEST
         private final int glConstant;
 
         private Capability(int glConstant) {
@@ -345,4 +375,49 @@ public abstract class Context extends Creatable implements GLVersioned {
             return glConstant;
         }
     }
+
+    /**
+     * An enum of the polygon faces which can be culled.
+     */
+    public static enum CullFace {
+        FRONT(0x404), // GL11.GL_FRONT
+        BACK(0x405), // GL11.GL_BACK
+        FRONT_AND_BACK(0x408); // GL11.GL_FRONT_AND_BACK
+        private final int glConstant;
+
+        private CullFace(int glConstant) {
+            this.glConstant = glConstant;
+        }
+
+        /**
+         * Returns the OpenGL constant associated to the cull face.
+         *
+         * @return The OpenGL constant
+         */
+        public int getGLConstant() {
+            return glConstant;
+        }
+    }
+
+    /**
+     * An enum of the polygon winding orders.
+     */
+    public static enum FrontFace {
+        CLOCKWISE(0x900), // GL11.GL_CW
+        COUNTER_CLOCKWISE(0x901); // GL11.GL_CCW
+        private final int glConstant;
+
+        private FrontFace(int glConstant) {
+            this.glConstant = glConstant;
+        }
+
+        /**
+         * Returns the OpenGL constant associated to the winding order.
+         *
+         * @return The OpenGL constant
+         */
+        public int getGLConstant() {
+            return glConstant;
+        }
+    }
 }
@@ -308,6 +308,7 @@ public abstract class Texture extends Creatable implements GLVersioned {
         DEPTH_COMPONENT16(0x81A5, Format.DEPTH, DataType.UNSIGNED_SHORT), // GL14.GL_DEPTH_COMPONENT16
         DEPTH_COMPONENT24(0x81A6, Format.DEPTH, DataType.UNSIGNED_INT), // GL14.GL_DEPTH_COMPONENT24
         DEPTH_COMPONENT32(0x81A7, Format.DEPTH, DataType.UNSIGNED_INT), // GL14.GL_DEPTH_COMPONENT32
+        DEPTH_COMPONENT32F(0x8CAC, Format.DEPTH, DataType.FLOAT), // GL30.GL_DEPTH_COMPONENT32F
         R8(0x8229, Format.RED, DataType.UNSIGNED_BYTE), // GL30.GL_R8
         R16(0x822A, Format.RED, DataType.UNSIGNED_SHORT), // GL30.GL_R16
         RG8(0x822B, Format.RG, DataType.UNSIGNED_BYTE), // GL30.GL_RG8
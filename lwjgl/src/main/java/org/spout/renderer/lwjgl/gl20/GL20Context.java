@@ -214,6 +214,38 @@ public class GL20Context extends Context {
         LWJGLUtil.checkForGLError();
     }
 
+    @Override
+    public void setScissor(Rectangle scissor) {
+        checkCreated();
+        GL11.glScissor(scissor.getX(), scissor.getY(), scissor.getWidth(), scissor.getHeight());
+        // Check for errors
+        LWJGLUtil.checkForGLError();
+    }
+
+    @Override
+    public void setCullFace(CullFace face) {
+        checkCreated();
+        GL11.glCullFace(face.getGLConstant());
+        // Check for errors
+        LWJGLUtil.checkForGLError();
+    }
+
+    @Override
+    public void setFrontFace(FrontFace face) {
+        checkCreated();
+        GL11.glFrontFace(face.getGLConstant());
+        // Check for errors
+        LWJGLUtil.checkForGLError();
+    }
+
+    @Override
+    public void setPointSize(float size) {
+        checkCreated();
+        GL11.glPointSize(size);
+        // Check for errors
+        LWJGLUtil.checkForGLError();
+    }
+
     @Override
     public ByteBuffer readFrame(Rectangle size, InternalFormat format) {
         checkCreated();
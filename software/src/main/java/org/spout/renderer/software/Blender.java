@@ -0,0 +1,198 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import org.spout.renderer.api.gl.Context.BlendFunction;
+
+/**
+ * Blends the colors of fragments with the colors already in the render target, both packed as ARGB ints. Blenders are selected once for each pair of blending functions, with specialized
+ * implementations for the common ones. The constant color can't be set, so it's always transparent black, which is the OpenGL default.
+ */
+abstract class Blender {
+    abstract int blend(int source, int destination);
+
+    /**
+     * Returns the blender for the source and destination blending functions, or null if the source color is written unchanged.
+     *
+     * @param source The source blending function
+     * @param destination The destination blending function
+     * @return The blender, or null for no blending
+     * @throws UnsupportedOperationException If one of the functions uses a second source color
+     */
+    static Blender get(BlendFunction source, BlendFunction destination) {
+        checkSupported(source);
+        checkSupported(destination);
+        if (source == BlendFunction.GL_ONE && destination == BlendFunction.GL_ZERO) {
+            return null;
+        }
+        if (source == BlendFunction.GL_SRC_ALPHA && destination == BlendFunction.GL_ONE_MINUS_SRC_ALPHA) {
+            return new AlphaBlender();
+        }
+        if (source == BlendFunction.GL_ONE && destination == BlendFunction.GL_ONE_MINUS_SRC_ALPHA) {
+            return new PremultipliedAlphaBlender();
+        }
+        if (source == BlendFunction.GL_ONE && destination == BlendFunction.GL_ONE) {
+            return new AdditiveBlender();
+        }
+        if (source == BlendFunction.GL_SRC_ALPHA && destination == BlendFunction.GL_ONE) {
+            return new AlphaAdditiveBlender();
+        }
+        return new FunctionBlender(source, destination);
+    }
+
+    private static void checkSupported(BlendFunction function) {
+        switch (function) {
+            case GL_SRC1_COLOR:
+            case GL_ONE_MINUS_SRC1_COLOR:
+            case GL_SRC1_ALPHA:
+            case GL_ONE_MINUS_SRC1_ALPHA:
+                throw new UnsupportedOperationException("Dual source blending isn't supported by the software renderer: " + function);
+        }
+    }
+
+    // Multiplies two components in [0, 255] as if they were in [0, 1], with rounding
+    private static int multiply(int a, int b) {
+        final int t = a * b + 128;
+        return t + (t >>> 8) >>> 8;
+    }
+
+    private static class AlphaBlender extends Blender {
+        @Override
+        int blend(int source, int destination) {
+            final int alpha = source >>> 24;
+            if (alpha == 255) {
+                return source;
+            }
+            if (alpha == 0) {
+                return destination;
+            }
+            final int inverse = 255 - alpha;
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                result |= multiply(source >>> shift & 0xFF, alpha) + multiply(destination >>> shift & 0xFF, inverse) << shift;
+            }
+            return result;
+        }
+    }
+
+    private static class PremultipliedAlphaBlender extends Blender {
+        @Override
+        int blend(int source, int destination) {
+            final int inverse = 255 - (source >>> 24);
+            if (inverse == 0) {
+                return source;
+            }
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                result |= Math.min((source >>> shift & 0xFF) + multiply(destination >>> shift & 0xFF, inverse), 255) << shift;
+            }
+            return result;
+        }
+    }
+
+    private static class AdditiveBlender extends Blender {
+        @Override
+        int blend(int source, int destination) {
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                result |= Math.min((source >>> shift & 0xFF) + (destination >>> shift & 0xFF), 255) << shift;
+            }
+            return result;
+        }
+    }
+
+    private static class AlphaAdditiveBlender extends Blender {
+        @Override
+        int blend(int source, int destination) {
+            final int alpha = source >>> 24;
+            if (alpha == 0) {
+                return destination;
+            }
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                result |= Math.min(multiply(source >>> shift & 0xFF, alpha) + (destination >>> shift & 0xFF), 255) << shift;
+            }
+            return result;
+        }
+    }
+
+    // Evaluates the blending functions for each component
+    private static class FunctionBlender extends Blender {
+        private final BlendFunction sourceFunction;
+        private final BlendFunction destinationFunction;
+
+        private FunctionBlender(BlendFunction sourceFunction, BlendFunction destinationFunction) {
+            this.sourceFunction = sourceFunction;
+            this.destinationFunction = destinationFunction;
+        }
+
+        @Override
+        int blend(int source, int destination) {
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                final int sourceFactor = factor(sourceFunction, source, destination, shift);
+                final int destinationFactor = factor(destinationFunction, source, destination, shift);
+                result |= Math.min(multiply(source >>> shift & 0xFF, sourceFactor) + multiply(destination >>> shift & 0xFF, destinationFactor), 255) << shift;
+            }
+            return result;
+        }
+
+        private static int factor(BlendFunction function, int source, int destination, int shift) {
+            switch (function) {
+                case GL_ZERO:
+                case GL_CONSTANT_COLOR:
+                case GL_CONSTANT_ALPHA:
+                    return 0;
+                case GL_ONE:
+                case GL_ONE_MINUS_CONSTANT_COLOR:
+                case GL_ONE_MINUS_CONSTANT_ALPHA:
+                    return 255;
+                case GL_SRC_COLOR:
+                    return source >>> shift & 0xFF;
+                case GL_ONE_MINUS_SRC_COLOR:
+                    return 255 - (source >>> shift & 0xFF);
+                case GL_DST_COLOR:
+                    return destination >>> shift & 0xFF;
+                case GL_ONE_MINUS_DST_COLOR:
+                    return 255 - (destination >>> shift & 0xFF);
+                case GL_SRC_ALPHA:
+                    return source >>> 24;
+                case GL_ONE_MINUS_SRC_ALPHA:
+                    return 255 - (source >>> 24);
+                case GL_DST_ALPHA:
+                    return destination >>> 24;
+                case GL_ONE_MINUS_DST_ALPHA:
+                    return 255 - (destination >>> 24);
+                case GL_SRC_ALPHA_SATURATE:
+                    // The alpha factor is one
+                    return shift == 24 ? 255 : Math.min(source >>> 24, 255 - (destination >>> 24));
+                default:
+                    throw new UnsupportedOperationException("Unsupported blending function: " + function);
+            }
+        }
+    }
+}
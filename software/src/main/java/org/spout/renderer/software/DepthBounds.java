@@ -0,0 +1,104 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.Arrays;
+
+/**
+ * A coarse depth buffer, which holds the farthest depth of each block of 8 by 8 pixels of a depth buffer, as a key of the buffer. Since depths can only get nearer when the depth test is passed,
+ * the stored key stays an upper bound as fragments are written, and is recomputed from the depths when a block is entirely redrawn. Triangles which are farther than the farthest depth over a whole
+ * block can't pass the depth test in it, and are rejected without being rasterized.
+ */
+class DepthBounds {
+    static final int BLOCK_SHIFT = 3;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    // Absorbs the rounding errors of the depth interpolation, relative to the greatest depth of the triangle
+    static final float DEPTH_EPSILON = 1e-6f;
+    // Marks blocks which need to be computed from the depths
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    private final DepthBuffer depths;
+    private final int width, height;
+    private final int blocksX;
+    private final int[] maxima;
+
+    DepthBounds(DepthBuffer depths, int width, int height) {
+        this.depths = depths;
+        this.width = width;
+        this.height = height;
+        blocksX = (width + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        maxima = new int[blocksX * ((height + BLOCK_SIZE - 1) >> BLOCK_SHIFT)];
+        invalidate();
+    }
+
+    boolean isFor(DepthBuffer depths) {
+        return this.depths == depths;
+    }
+
+    boolean isReversed() {
+        return depths.isReversed();
+    }
+
+    // Called when the depths were changed in some unknown way
+    void invalidate() {
+        Arrays.fill(maxima, UNKNOWN);
+    }
+
+    // Called when the depths were cleared to the far plane
+    void clear() {
+        Arrays.fill(maxima, depths.getKey(depths.getFarDepth()));
+    }
+
+    /**
+     * Returns true if no fragment at the given depth or farther can pass the depth test in the block.
+     *
+     * @param blockX The x coordinate of the block, in blocks
+     * @param blockY The y coordinate of the block, in blocks
+     * @param depth The nearest depth of the fragments
+     * @param error The greatest error in the depth, which is moved nearer by it
+     * @return Whether or not all the fragments are hidden
+     */
+    boolean isHidden(int blockX, int blockY, float depth, float error) {
+        final int block = blockX + blockY * blocksX;
+        int maximum = maxima[block];
+        if (maximum == UNKNOWN) {
+            maximum = compute(blockX, blockY);
+            maxima[block] = maximum;
+        }
+        return depths.getKey(depths.isReversed() ? depth + error : depth - error) >= maximum;
+    }
+
+    // Called when the block was entirely drawn, which usually brings its farthest depth nearer
+    void update(int blockX, int blockY) {
+        maxima[blockX + blockY * blocksX] = compute(blockX, blockY);
+    }
+
+    private int compute(int blockX, int blockY) {
+        final int minX = blockX << BLOCK_SHIFT;
+        final int minY = blockY << BLOCK_SHIFT;
+        return depths.getMaximumKey(width, minX, minY, Math.min(minX + BLOCK_SIZE, width), Math.min(minY + BLOCK_SIZE, height));
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.Arrays;
+
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
+
+/**
+ * A depth buffer, storing depths in the precision of one of the depth formats: 16 bit shorts, 24 bit ints or 32 bit floats. Depths are normalized from 0 to 1, and rounded to the nearest for the
+ * integer formats. Each format has its own implementations of the depth test, which convert the fragment depth once and compare it to the stored depth without converting that. Normally fragments
+ * pass the test when they're less than the stored depth. When the depths are reversed, the near plane is at 1 and the far plane at 0, and fragments pass when they're greater instead. Each
+ * direction has its own test, which is selected once per draw call.
+ */
+abstract class DepthBuffer {
+    private final InternalFormat format;
+    private final int size;
+    private boolean reversed = false;
+
+    private DepthBuffer(InternalFormat format, int size) {
+        this.format = format;
+        this.size = size;
+    }
+
+    /**
+     * Creates a depth buffer for the depth format. The 24 and 32 bit integer formats are both stored in 24 bits, which is all the precision of the interpolated depths.
+     *
+     * @param format The depth format
+     * @param size The number of depths
+     * @return The new depth buffer
+     */
+    static DepthBuffer create(InternalFormat format, int size) {
+        switch (getStorageFormat(format)) {
+            case DEPTH_COMPONENT16:
+                return new ShortDepthBuffer(size);
+            case DEPTH_COMPONENT24:
+                return new IntDepthBuffer(size);
+            default:
+                return new FloatDepthBuffer(size);
+        }
+    }
+
+    static InternalFormat getStorageFormat(InternalFormat format) {
+        switch (format) {
+            case DEPTH_COMPONENT16:
+                return InternalFormat.DEPTH_COMPONENT16;
+            case DEPTH_COMPONENT24:
+            case DEPTH_COMPONENT32:
+                return InternalFormat.DEPTH_COMPONENT24;
+            case DEPTH_COMPONENT32F:
+                return InternalFormat.DEPTH_COMPONENT32F;
+            default:
+                throw new IllegalArgumentException("Not a depth format: " + format);
+        }
+    }
+
+    InternalFormat getFormat() {
+        return format;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isReversed() {
+        return reversed;
+    }
+
+    void setReversed(boolean reversed) {
+        this.reversed = reversed;
+    }
+
+    // The depth of the far plane, which the buffer is cleared to
+    float getFarDepth() {
+        return reversed ? 0 : 1;
+    }
+
+    void clear() {
+        clear(0, size);
+    }
+
+    // Clears the depths from the first index, inclusive, to the last, exclusive
+    abstract void clear(int from, int to);
+
+    abstract float get(int i);
+
+    abstract void set(int i, float depth);
+
+    /**
+     * Returns the depth test for the direction of the depths, which passes fragments less than the stored depth, or greater when reversed. The test must be selected again if the direction changes.
+     *
+     * @return The depth test
+     */
+    abstract DepthTest getTest();
+
+    /**
+     * Converts the depth into a key, in the precision of the stored depths. Keys are smaller for nearer depths, so a depth passes the test if its key is less than the key of the stored depth.
+     *
+     * @param depth The depth to convert
+     * @return The key of the depth
+     */
+    abstract int getKey(float depth);
+
+    /**
+     * Returns the greatest key of the stored depths in the rectangle.
+     *
+     * @param width The width of the rows of depths
+     * @param minX The minimum x coordinate, inclusive
+     * @param minY The minimum y coordinate, inclusive
+     * @param maxX The maximum x coordinate, exclusive
+     * @param maxY The maximum y coordinate, exclusive
+     * @return The greatest key in the rectangle
+     */
+    abstract int getMaximumKey(int width, int minX, int minY, int maxX, int maxY);
+
+    /**
+     * Reads consecutive depths, converted to normalized unsigned shorts.
+     *
+     * @param start The index of the first depth
+     * @param destination The array to fill with the depths
+     */
+    void readUnsignedShorts(int start, short[] destination) {
+        for (int i = 0; i < destination.length; i++) {
+            destination[i] = (short) (int) (get(start + i) * 0xFFFF + 0.5f);
+        }
+    }
+
+    /**
+     * A depth test against the depths of a buffer, in one direction.
+     */
+    abstract static class DepthTest {
+        /**
+         * Returns true if the depth passes the depth test against the stored depth.
+         *
+         * @param i The index of the stored depth
+         * @param depth The depth to test
+         * @return Whether or not the test passes
+         */
+        abstract boolean test(int i, float depth);
+
+        /**
+         * Returns true if the depth passes the depth test against the stored depth, in which case it also replaces the stored depth, if writing is enabled.
+         *
+         * @param i The index of the stored depth
+         * @param depth The depth to test
+         * @param write Whether or not to write the depth when it passes
+         * @return Whether or not the test passes
+         */
+        abstract boolean test(int i, float depth, boolean write);
+    }
+
+    private static final class ShortDepthBuffer extends DepthBuffer {
+        // The depths are offset by the minimum short value, so that the full range is used
+        private final short[] depths;
+        private final DepthTest less = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return SoftwareUtil.denormalizeToShort(depth) < depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final short z = SoftwareUtil.denormalizeToShort(depth);
+                if (z < depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        private final DepthTest greater = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return SoftwareUtil.denormalizeToShort(depth) > depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final short z = SoftwareUtil.denormalizeToShort(depth);
+                if (z > depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private ShortDepthBuffer(int size) {
+            super(InternalFormat.DEPTH_COMPONENT16, size);
+            depths = new short[size];
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(depths, from, to, SoftwareUtil.denormalizeToShort(getFarDepth()));
+        }
+
+        @Override
+        float get(int i) {
+            return SoftwareUtil.toFloat(DataType.SHORT, depths[i], true);
+        }
+
+        @Override
+        void set(int i, float depth) {
+            depths[i] = SoftwareUtil.denormalizeToShort(depth);
+        }
+
+        @Override
+        DepthTest getTest() {
+            return isReversed() ? greater : less;
+        }
+
+        @Override
+        int getKey(float depth) {
+            final short z = SoftwareUtil.denormalizeToShort(SoftwareUtil.clamp(depth, 0, 1));
+            return isReversed() ? -z : z;
+        }
+
+        @Override
+        int getMaximumKey(int width, int minX, int minY, int maxX, int maxY) {
+            // The greatest key is the greatest depth, or the smallest when reversed
+            int maximum = Short.MIN_VALUE, minimum = Short.MAX_VALUE;
+            for (int y = minY; y < maxY; y++) {
+                final int row = y * width;
+                for (int x = minX; x < maxX; x++) {
+                    final short z = depths[row + x];
+                    maximum = Math.max(maximum, z);
+                    minimum = Math.min(minimum, z);
+                }
+            }
+            return isReversed() ? -minimum : maximum;
+        }
+
+        @Override
+        void readUnsignedShorts(int start, short[] destination) {
+            // Flipping the sign bit removes the offset
+            for (int i = 0; i < destination.length; i++) {
+                destination[i] = (short) (depths[start + i] ^ Short.MIN_VALUE);
+            }
+        }
+    }
+
+    private static final class IntDepthBuffer extends DepthBuffer {
+        private static final int MAX_DEPTH = 0xFFFFFF;
+        private final int[] depths;
+        private final DepthTest less = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return toInt(depth) < depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final int z = toInt(depth);
+                if (z < depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        private final DepthTest greater = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return toInt(depth) > depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final int z = toInt(depth);
+                if (z > depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private IntDepthBuffer(int size) {
+            super(InternalFormat.DEPTH_COMPONENT24, size);
+            depths = new int[size];
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(depths, from, to, toInt(getFarDepth()));
+        }
+
+        @Override
+        float get(int i) {
+            return depths[i] / (float) MAX_DEPTH;
+        }
+
+        @Override
+        void set(int i, float depth) {
+            depths[i] = toInt(depth);
+        }
+
+        @Override
+        DepthTest getTest() {
+            return isReversed() ? greater : less;
+        }
+
+        @Override
+        int getKey(float depth) {
+            final int z = toInt(depth);
+            return isReversed() ? -z : z;
+        }
+
+        @Override
+        int getMaximumKey(int width, int minX, int minY, int maxX, int maxY) {
+            int maximum = 0, minimum = MAX_DEPTH;
+            for (int y = minY; y < maxY; y++) {
+                final int row = y * width;
+                for (int x = minX; x < maxX; x++) {
+                    final int z = depths[row + x];
+                    maximum = Math.max(maximum, z);
+                    minimum = Math.min(minimum, z);
+                }
+            }
+            return isReversed() ? -minimum : maximum;
+        }
+
+        private static int toInt(float depth) {
+            // Scaling in double keeps all 24 bits of the depth, which is rounded to the nearest like OpenGL does
+            return (int) (SoftwareUtil.clamp(depth, 0, 1) * (double) MAX_DEPTH + 0.5);
+        }
+    }
+
+    private static final class FloatDepthBuffer extends DepthBuffer {
+        private final float[] depths;
+        private final DepthTest less = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return toFloat(depth) < depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final float z = toFloat(depth);
+                if (z < depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        private final DepthTest greater = new DepthTest() {
+            @Override
+            boolean test(int i, float depth) {
+                return toFloat(depth) > depths[i];
+            }
+
+            @Override
+            boolean test(int i, float depth, boolean write) {
+                final float z = toFloat(depth);
+                if (z > depths[i]) {
+                    if (write) {
+                        depths[i] = z;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private FloatDepthBuffer(int size) {
+            super(InternalFormat.DEPTH_COMPONENT32F, size);
+            depths = new float[size];
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(depths, from, to, getFarDepth());
+        }
+
+        @Override
+        float get(int i) {
+            return depths[i];
+        }
+
+        @Override
+        void set(int i, float depth) {
+            depths[i] = toFloat(depth);
+        }
+
+        @Override
+        DepthTest getTest() {
+            return isReversed() ? greater : less;
+        }
+
+        @Override
+        int getKey(float depth) {
+            // The bits of positive floats are ordered like the floats
+            final int z = Float.floatToRawIntBits(toFloat(depth));
+            return isReversed() ? -z : z;
+        }
+
+        @Override
+        int getMaximumKey(int width, int minX, int minY, int maxX, int maxY) {
+            float maximum = 0, minimum = 1;
+            for (int y = minY; y < maxY; y++) {
+                final int row = y * width;
+                for (int x = minX; x < maxX; x++) {
+                    final float z = depths[row + x];
+                    maximum = Math.max(maximum, z);
+                    minimum = Math.min(minimum, z);
+                }
+            }
+            return isReversed() ? -Float.floatToRawIntBits(minimum) : Float.floatToRawIntBits(maximum);
+        }
+
+        private static float toFloat(float depth) {
+            // Also replaces negative zero, which would break the ordering of the keys
+            return depth <= 0 ? 0 : depth >= 1 ? 1 : depth;
+        }
+    }
+}
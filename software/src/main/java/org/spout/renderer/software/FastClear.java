@@ -0,0 +1,159 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.Arrays;
+
+/**
+ * Defers clearing a render target, one tile at a time. Clearing only marks the tiles, and each tile is filled with the clear color and the far depth when it's first rasterized to, or when the whole
+ * target is read. Tiles which are still cleared from the last clear to the same color don't need to be filled again, so the parts of the target that nothing is drawn to are only cleared once.
+ * <p/>
+ * The tiles are those of tiled rendering, so each rendering thread only fills its own tiles, in parallel.
+ */
+class FastClear {
+    private static final int TILE_SHIFT = TriangleRasterizer.TILE_SHIFT;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    // Tiles which were drawn to, or changed in some unknown way
+    private static final byte DIRTY = 0;
+    // Tiles which were cleared, but not filled yet
+    private static final byte PENDING = 1;
+    // Tiles which hold the clear color and the far depth
+    private static final byte CLEARED = 2;
+    private final int[] pixels;
+    private final DepthBuffer depths;
+    private final int width, height;
+    private final int tilesX, tilesY;
+    private final byte[] states;
+    private int color;
+    // Whether or not some tiles are pending
+    private boolean pending = false;
+
+    FastClear(int[] pixels, DepthBuffer depths, int width, int height) {
+        this.pixels = pixels;
+        this.depths = depths;
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        states = new byte[tilesX * tilesY];
+    }
+
+    /**
+     * Clears the whole target, to the color and to the far depth, by marking the tiles.
+     *
+     * @param color The clear color, packed as ARGB
+     */
+    void clear(int color) {
+        // Tiles cleared to another color need to be filled again
+        final boolean keepCleared = pixels == null || color == this.color;
+        for (int i = 0; i < states.length; i++) {
+            if (!keepCleared || states[i] != CLEARED) {
+                states[i] = PENDING;
+            }
+        }
+        this.color = color;
+        pending = true;
+    }
+
+    /**
+     * Fills the pending tiles overlapping the rectangle, and marks them as drawn to. Must be called before rasterizing to the pixels of the rectangle. Different threads can call this at the same
+     * time, as long as their rectangles don't overlap the same tiles.
+     *
+     * @param minX The minimum x coordinate, inclusive
+     * @param minY The minimum y coordinate, inclusive
+     * @param maxX The maximum x coordinate, inclusive
+     * @param maxY The maximum y coordinate, inclusive
+     */
+    void touch(int minX, int minY, int maxX, int maxY) {
+        for (int tileY = minY >> TILE_SHIFT; tileY <= maxY >> TILE_SHIFT; tileY++) {
+            for (int tileX = minX >> TILE_SHIFT; tileX <= maxX >> TILE_SHIFT; tileX++) {
+                final int tile = tileX + tileY * tilesX;
+                final byte state = states[tile];
+                if (state == PENDING) {
+                    fill(tileX, tileY);
+                }
+                if (state != DIRTY) {
+                    states[tile] = DIRTY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills all the pending tiles, so that the whole target can be read.
+     */
+    void resolve() {
+        if (!pending) {
+            return;
+        }
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                final int tile = tileX + tileY * tilesX;
+                if (states[tile] == PENDING) {
+                    fill(tileX, tileY);
+                    states[tile] = CLEARED;
+                }
+            }
+        }
+        pending = false;
+    }
+
+    /**
+     * Forgets which tiles are cleared where another target sharing the depths of this one wasn't left cleared. Used when swapping between the color buffers of the frame.
+     *
+     * @param other The other target
+     */
+    void followDepths(FastClear other) {
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == CLEARED && other.states[i] != CLEARED) {
+                states[i] = DIRTY;
+            }
+        }
+    }
+
+    /**
+     * Fills all the pending tiles and forgets which are cleared. Must be called before the target is changed outside of rendering.
+     */
+    void invalidate() {
+        resolve();
+        Arrays.fill(states, DIRTY);
+    }
+
+    private void fill(int tileX, int tileY) {
+        final int minX = tileX << TILE_SHIFT, maxX = Math.min(minX + TILE_SIZE, width);
+        final int minY = tileY << TILE_SHIFT, maxY = Math.min(minY + TILE_SIZE, height);
+        for (int y = minY; y < maxY; y++) {
+            final int row = y * width;
+            if (pixels != null) {
+                Arrays.fill(pixels, row + minX, row + maxX, color);
+            }
+            if (depths != null) {
+                depths.clear(row + minX, row + maxX);
+            }
+        }
+    }
+}
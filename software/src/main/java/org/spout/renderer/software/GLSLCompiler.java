@@ -0,0 +1,1368 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.list.TFloatList;
+import gnu.trove.list.array.TFloatArrayList;
+
+import org.spout.renderer.api.gl.Shader.ShaderType;
+import org.spout.renderer.software.GLSLExpression.Arithmetic;
+import org.spout.renderer.software.GLSLExpression.Compare;
+import org.spout.renderer.software.GLSLExpression.Componentwise;
+import org.spout.renderer.software.GLSLExpression.Geometric;
+import org.spout.renderer.software.GLSLExpression.Logical;
+import org.spout.renderer.software.GLSLExpression.Swizzle;
+import org.spout.renderer.software.GLSLExpression.Variable;
+import org.spout.renderer.software.GLSLLexer.Token;
+
+/**
+ * Compiles a practical subset of GLSL 1.20 and 1.30 into trees of expressions and statements, which are evaluated on an array of registers. Shaders can declare attributes, varyings, uniforms and
+ * functions, and use the scalar, vector and matrix types, 2D samplers, uniform and local arrays, the operators, the control flow statements and most of the built-in functions. Structures, bitwise
+ * operators and cube or 3D samplers aren't supported. The derivatives are only available for the inputs of fragment shaders, which is also where the texture coordinates must come from for
+ * lookups to select a mipmap level.
+ * <p/>
+ * This is an interpreted fallback, so that the same sources can be used with the OpenGL renderers: no bytecode is generated, and the trees are evaluated for each vertex and fragment, which is
+ * slower than Java shaders. The most recently compiled programs are cached by a hash of their source, so compiling the same source again is free.
+ */
+class GLSLCompiler {
+    // The compiled programs by type and SHA-256 of the source, keeping only the most recently used ones
+    private static final int CACHE_SIZE = 64;
+    private static final Map<String, GLSLProgram> CACHE = new LinkedHashMap<String, GLSLProgram>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GLSLProgram> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private static final int NONE = -1;
+    private static final int CONST = 0;
+    private static final int ATTRIBUTE = 1;
+    private static final int VARYING = 2;
+    private static final int UNIFORM = 3;
+    private static final int IN = 4;
+    private static final int OUT = 5;
+    private static final List<String> STORAGE_QUALIFIERS = Arrays.asList("const", "attribute", "varying", "uniform", "in", "out");
+    private static final Set<String> IGNORED_QUALIFIERS = new HashSet<>(Arrays.asList("centroid", "flat", "smooth", "noperspective", "invariant", "highp", "mediump", "lowp"));
+    private static final String[] SWIZZLE_SETS = {"xyzw", "rgba", "stpq"};
+    private final ShaderType shaderType;
+    private final List<Token> tokens;
+    private int position = 0;
+    // The initial value of each register
+    private final TFloatList registers = new TFloatArrayList();
+    private final Deque<Map<String, GLSLVariable>> scopes = new ArrayDeque<>();
+    private final Map<String, List<GLSLFunction>> functions = new HashMap<>();
+    private final Set<GLSLFunction> calledFunctions = new LinkedHashSet<>();
+    private final List<GLSLVariable> uniforms = new ArrayList<>();
+    private final List<GLSLVariable> inputs = new ArrayList<>();
+    private final List<GLSLVariable> outputs = new ArrayList<>();
+    private int samplerCount = 0;
+    private final List<GLSLStatement> initializers = new ArrayList<>();
+    private GLSLVariable fragmentColor;
+    // The function being compiled, and the depth of the loops in it
+    private GLSLFunction function;
+    private int loopDepth = 0;
+
+    private GLSLCompiler(String source, ShaderType shaderType) {
+        this.shaderType = shaderType;
+        tokens = GLSLLexer.tokenize(source);
+    }
+
+    /**
+     * Compiles the GLSL source of a shader of the type, or returns the cached program if the source was already compiled.
+     *
+     * @param source The GLSL source
+     * @param type The type of shader
+     * @return The compiled shader
+     * @throws IllegalArgumentException If the source doesn't compile
+     */
+    static GLSLProgram compile(String source, ShaderType type) {
+        if (type != ShaderType.VERTEX && type != ShaderType.FRAGMENT) {
+            throw new IllegalArgumentException("Only vertex and fragment shaders are supported, not: " + type);
+        }
+        final String key = type.name() + ':' + hash(source);
+        GLSLProgram program;
+        synchronized (CACHE) {
+            program = CACHE.get(key);
+        }
+        if (program == null) {
+            // Compile outside of the lock, as two threads compiling the same source only waste some time
+            program = new GLSLCompiler(source, type).compile();
+            synchronized (CACHE) {
+                CACHE.put(key, program);
+            }
+        }
+        return program;
+    }
+
+    private static String hash(String source) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        final StringBuilder hash = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hash.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hash.toString();
+    }
+
+    private GLSLProgram compile() {
+        scopes.push(new HashMap<String, GLSLVariable>());
+        declareBuiltIns();
+        while (peek().kind != GLSLLexer.END) {
+            external();
+        }
+        final GLSLFunction main = findFunction("main", new GLSLType[0]);
+        if (main == null || main.getBody() == null) {
+            throw error(peek(), "Missing main function");
+        }
+        for (GLSLFunction called : calledFunctions) {
+            if (called.getBody() == null) {
+                throw error(peek(), "Function declared but never defined: " + called.getName());
+            }
+        }
+        if (shaderType == ShaderType.FRAGMENT) {
+            // The color is the first output, or the one at location zero, or the built-in if none were declared
+            GLSLVariable color = fragmentColor;
+            if (!outputs.isEmpty()) {
+                color = outputs.get(0);
+                for (GLSLVariable output : outputs) {
+                    if (output.getLocation() == 0) {
+                        color = output;
+                    }
+                }
+            }
+            if (color.getType() != GLSLType.VEC4) {
+                throw error(peek(), "The fragment shader output must be a vec4");
+            }
+            outputs.clear();
+            outputs.add(color);
+        }
+        initializers.add(main.getBody());
+        return new GLSLProgram(shaderType, registers.toArray(), new GLSLStatement.Block(initializers.toArray(new GLSLStatement[initializers.size()])), uniforms, inputs, outputs, samplerCount);
+    }
+
+    private void declareBuiltIns() {
+        if (shaderType == ShaderType.VERTEX) {
+            // The position is always the first vertex shader output
+            declare("gl_Position", GLSLType.VEC4, 0, GLSLVariable.OUTPUT, false);
+            declare("gl_PointSize", GLSLType.FLOAT, 0, GLSLVariable.GLOBAL, false);
+        } else {
+            // The window coordinates are always the first fragment shader input
+            declare("gl_FragCoord", GLSLType.VEC4, 0, GLSLVariable.INPUT, false);
+            fragmentColor = declare("gl_FragColor", GLSLType.VEC4, 0, GLSLVariable.GLOBAL, false);
+            // Back faces are culled before shading
+            final GLSLVariable frontFacing = declare("gl_FrontFacing", GLSLType.BOOL, 0, GLSLVariable.GLOBAL, true);
+            registers.set(frontFacing.getRegister(), 1);
+        }
+    }
+
+    private void external() {
+        if (accept(";")) {
+            return;
+        }
+        if (accept("precision")) {
+            while (!accept(";")) {
+                next();
+            }
+            return;
+        }
+        final Qualifiers qualifiers = qualifiers();
+        final GLSLType type = type();
+        final int arrayLength = arraySuffix();
+        final Token name = identifier();
+        if (peek().is("(")) {
+            if (qualifiers.storage != NONE || arrayLength != 0) {
+                throw error(name, "Invalid function declaration");
+            }
+            function(type, name);
+            return;
+        }
+        initializers.addAll(declarations(qualifiers, type, arrayLength, name, true));
+    }
+
+    private Qualifiers qualifiers() {
+        final Qualifiers qualifiers = new Qualifiers();
+        while (true) {
+            final Token token = peek();
+            if (accept("layout")) {
+                expect("(");
+                do {
+                    final Token name = identifier();
+                    int value = -1;
+                    if (accept("=")) {
+                        value = intLiteral();
+                    }
+                    if (name.text.equals("location")) {
+                        qualifiers.location = value;
+                    }
+                } while (accept(","));
+                expect(")");
+            } else if (token.kind == GLSLLexer.IDENTIFIER && STORAGE_QUALIFIERS.contains(token.text)) {
+                if (qualifiers.storage != NONE) {
+                    throw error(token, "Too many storage qualifiers");
+                }
+                qualifiers.storage = STORAGE_QUALIFIERS.indexOf(token.text);
+                next();
+            } else if (token.kind == GLSLLexer.IDENTIFIER && IGNORED_QUALIFIERS.contains(token.text)) {
+                next();
+            } else {
+                return qualifiers;
+            }
+        }
+    }
+
+    private GLSLType type() {
+        final Token token = next();
+        if (token.is("struct")) {
+            throw error(token, "Structures are not supported");
+        }
+        final GLSLType type = token.kind == GLSLLexer.IDENTIFIER ? GLSLType.forName(token.text) : null;
+        if (type == null) {
+            throw error(token, "Unknown type: " + token.text);
+        }
+        return type;
+    }
+
+    private int arraySuffix() {
+        if (!accept("[")) {
+            return 0;
+        }
+        final Token token = peek();
+        final int length = intLiteral();
+        if (length <= 0) {
+            throw error(token, "Array length must be greater than zero");
+        }
+        expect("]");
+        return length;
+    }
+
+    private int intLiteral() {
+        final Token token = next();
+        if (token.kind != GLSLLexer.INT) {
+            throw error(token, "Expected an integer literal");
+        }
+        return Integer.parseInt(token.text);
+    }
+
+    private List<GLSLStatement> declarations(Qualifiers qualifiers, GLSLType type, int typeArrayLength, Token name, boolean global) {
+        final List<GLSLStatement> statements = new ArrayList<>();
+        while (true) {
+            int arrayLength = typeArrayLength;
+            final int suffix = arraySuffix();
+            if (suffix != 0) {
+                if (arrayLength != 0) {
+                    throw error(name, "Arrays of arrays are not supported");
+                }
+                arrayLength = suffix;
+            }
+            final GLSLVariable variable = declareVariable(qualifiers, type, arrayLength, name, global);
+            if (accept("=")) {
+                if (variable.getKind() != GLSLVariable.LOCAL && variable.getKind() != GLSLVariable.GLOBAL) {
+                    throw error(name, "Only local and global variables can be initialized");
+                }
+                final GLSLExpression target = new Variable(variable);
+                final GLSLExpression value = assignment();
+                checkAssignment(name, target, value);
+                statements.add(new GLSLStatement.Evaluate(new GLSLExpression.Assign(target, value)));
+            } else if (qualifiers.storage == CONST) {
+                throw error(name, "Constants must be initialized");
+            }
+            if (!accept(",")) {
+                break;
+            }
+            name = identifier();
+        }
+        expect(";");
+        return statements;
+    }
+
+    private GLSLVariable declareVariable(Qualifiers qualifiers, GLSLType type, int arrayLength, Token name, boolean global) {
+        if (type == GLSLType.VOID) {
+            throw error(name, "Variables can't be void");
+        }
+        if (name.text.startsWith("gl_")) {
+            throw error(name, "Reserved name: " + name.text);
+        }
+        final int kind;
+        switch (qualifiers.storage) {
+            case UNIFORM:
+                kind = GLSLVariable.UNIFORM;
+                break;
+            case ATTRIBUTE:
+                if (shaderType != ShaderType.VERTEX) {
+                    throw error(name, "Attributes can only be declared in vertex shaders");
+                }
+                kind = GLSLVariable.INPUT;
+                break;
+            case VARYING:
+                kind = shaderType == ShaderType.VERTEX ? GLSLVariable.OUTPUT : GLSLVariable.INPUT;
+                break;
+            case IN:
+                kind = GLSLVariable.INPUT;
+                break;
+            case OUT:
+                kind = GLSLVariable.OUTPUT;
+                break;
+            default:
+                kind = global ? GLSLVariable.GLOBAL : GLSLVariable.LOCAL;
+        }
+        if (!global && kind != GLSLVariable.LOCAL) {
+            throw error(name, "Only constants can be qualified in functions");
+        }
+        if (type == GLSLType.SAMPLER2D && kind != GLSLVariable.UNIFORM) {
+            throw error(name, "Samplers must be uniforms");
+        }
+        if ((kind == GLSLVariable.INPUT || kind == GLSLVariable.OUTPUT) && (arrayLength != 0 || type.isMatrix() || type.isBool())) {
+            throw error(name, "Unsupported type for a shader input or output: " + type.getName());
+        }
+        if (kind == GLSLVariable.UNIFORM && (arrayLength != 0 ? type != GLSLType.FLOAT && type != GLSLType.VEC2 && type != GLSLType.VEC3 : type.isVector() && !type.isFloat())) {
+            throw error(name, "Unsupported uniform type: " + type.getName() + (arrayLength != 0 ? "[]" : ""));
+        }
+        final GLSLVariable variable = declare(name.text, type, arrayLength, kind, qualifiers.storage == CONST);
+        if (variable == null) {
+            throw error(name, "Variable already declared: " + name.text);
+        }
+        variable.setLocation(qualifiers.location);
+        return variable;
+    }
+
+    // Returns null if the name is already declared in the scope
+    private GLSLVariable declare(String name, GLSLType type, int arrayLength, int kind, boolean constant) {
+        final Map<String, GLSLVariable> scope = scopes.peek();
+        if (scope.containsKey(name)) {
+            return null;
+        }
+        final GLSLVariable variable = new GLSLVariable(name, type, arrayLength, kind, constant, allocate(type.getSize() * Math.max(arrayLength, 1)));
+        scope.put(name, variable);
+        switch (kind) {
+            case GLSLVariable.UNIFORM:
+                if (type == GLSLType.SAMPLER2D) {
+                    variable.setIndex(samplerCount++);
+                }
+                uniforms.add(variable);
+                break;
+            case GLSLVariable.INPUT:
+                variable.setIndex(inputs.size());
+                inputs.add(variable);
+                break;
+            case GLSLVariable.OUTPUT:
+                variable.setIndex(outputs.size());
+                outputs.add(variable);
+                break;
+        }
+        return variable;
+    }
+
+    private GLSLVariable find(String name) {
+        for (Map<String, GLSLVariable> scope : scopes) {
+            final GLSLVariable variable = scope.get(name);
+            if (variable != null) {
+                return variable;
+            }
+        }
+        return null;
+    }
+
+    private int allocate(int size) {
+        final int register = registers.size();
+        for (int i = 0; i < size; i++) {
+            registers.add(0);
+        }
+        return register;
+    }
+
+    private GLSLExpression constant(GLSLType type, float... values) {
+        final int register = allocate(values.length);
+        for (int i = 0; i < values.length; i++) {
+            registers.set(register + i, values[i]);
+        }
+        return new GLSLExpression.Constant(type, register);
+    }
+
+    // Evaluates the expression when compiling if all its operands are constants
+    private GLSLExpression fold(GLSLExpression expression, GLSLExpression... operands) {
+        for (GLSLExpression operand : operands) {
+            if (!(operand instanceof GLSLExpression.Constant)) {
+                return expression;
+            }
+        }
+        final float[] values = registers.toArray();
+        expression.evaluate(new GLSLFrame(values, null, null));
+        for (int i = 0; i < expression.type.getSize(); i++) {
+            registers.set(expression.register + i, values[expression.register + i]);
+        }
+        return new GLSLExpression.Constant(expression.type, expression.register);
+    }
+
+    private void function(GLSLType returnType, Token name) {
+        expect("(");
+        final List<Token> names = new ArrayList<>();
+        final List<GLSLType> types = new ArrayList<>();
+        final List<Integer> qualifiers = new ArrayList<>();
+        final List<Boolean> constants = new ArrayList<>();
+        if (peek().is("void") && peek(1).is(")")) {
+            next();
+        }
+        if (!accept(")")) {
+            do {
+                constants.add(accept("const"));
+                int qualifier = GLSLFunction.IN;
+                if (accept("out")) {
+                    qualifier = GLSLFunction.OUT;
+                } else if (accept("inout")) {
+                    qualifier = GLSLFunction.IN_OUT;
+                } else {
+                    accept("in");
+                }
+                while (peek().kind == GLSLLexer.IDENTIFIER && IGNORED_QUALIFIERS.contains(peek().text)) {
+                    next();
+                }
+                final Token typeToken = peek();
+                final GLSLType type = type();
+                if (!type.isNumeric()) {
+                    throw error(typeToken, "Unsupported parameter type: " + type.getName());
+                }
+                names.add(peek().kind == GLSLLexer.IDENTIFIER ? next() : null);
+                if (arraySuffix() != 0) {
+                    throw error(typeToken, "Array parameters are not supported");
+                }
+                types.add(type);
+                qualifiers.add(qualifier);
+            } while (accept(","));
+            expect(")");
+        }
+        final GLSLType[] parameterTypes = types.toArray(new GLSLType[types.size()]);
+        GLSLFunction function = findFunction(name.text, parameterTypes);
+        if (function == null) {
+            final GLSLVariable[] parameters = new GLSLVariable[parameterTypes.length];
+            final int[] parameterQualifiers = new int[parameterTypes.length];
+            for (int i = 0; i < parameters.length; i++) {
+                final Token parameterName = names.get(i);
+                final GLSLType type = parameterTypes[i];
+                parameters[i] = new GLSLVariable(parameterName != null ? parameterName.text : "", type, 0, GLSLVariable.LOCAL, constants.get(i), allocate(type.getSize()));
+                parameterQualifiers[i] = qualifiers.get(i);
+            }
+            function = new GLSLFunction(name.text, returnType, parameters, parameterQualifiers, allocate(returnType.getSize()));
+            List<GLSLFunction> overloads = functions.get(name.text);
+            if (overloads == null) {
+                overloads = new ArrayList<>();
+                functions.put(name.text, overloads);
+            }
+            overloads.add(function);
+        } else if (function.getReturnType() != returnType) {
+            throw error(name, "Function redeclared with a different return type: " + name.text);
+        }
+        if (accept(";")) {
+            // Only a prototype
+            return;
+        }
+        if (function.getBody() != null) {
+            throw error(name, "Function already defined: " + name.text);
+        }
+        // The parameters of a prototype are used, under the names of the definition
+        final Map<String, GLSLVariable> scope = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i) != null) {
+                scope.put(names.get(i).text, function.getParameters()[i]);
+            }
+        }
+        scopes.push(scope);
+        this.function = function;
+        expect("{");
+        function.setBody(statements());
+        this.function = null;
+        scopes.pop();
+    }
+
+    private GLSLFunction findFunction(String name, GLSLType[] types) {
+        final List<GLSLFunction> overloads = functions.get(name);
+        if (overloads != null) {
+            for (GLSLFunction function : overloads) {
+                if (function.hasParameters(types)) {
+                    return function;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Compiles the statements up to the closing brace of a block, in the current scope
+    private GLSLStatement statements() {
+        final List<GLSLStatement> statements = new ArrayList<>();
+        while (!accept("}")) {
+            if (peek().kind == GLSLLexer.END) {
+                throw error(peek(), "Missing }");
+            }
+            statements.add(statement());
+        }
+        return new GLSLStatement.Block(statements.toArray(new GLSLStatement[statements.size()]));
+    }
+
+    private GLSLStatement statement() {
+        final Token token = peek();
+        if (accept("{")) {
+            scopes.push(new HashMap<String, GLSLVariable>());
+            final GLSLStatement block = statements();
+            scopes.pop();
+            return block;
+        }
+        if (accept("if")) {
+            expect("(");
+            final GLSLExpression condition = condition();
+            expect(")");
+            final GLSLStatement then = statement();
+            return new GLSLStatement.If(condition, then, accept("else") ? statement() : null);
+        }
+        if (accept("for")) {
+            expect("(");
+            scopes.push(new HashMap<String, GLSLVariable>());
+            final GLSLStatement initialization = simpleStatement();
+            final GLSLExpression condition = peek().is(";") ? null : condition();
+            expect(";");
+            final GLSLExpression step = peek().is(")") ? null : expression();
+            expect(")");
+            final GLSLStatement loop = new GLSLStatement.Loop(condition, step, loopBody(), false);
+            scopes.pop();
+            return new GLSLStatement.Block(new GLSLStatement[]{initialization, loop});
+        }
+        if (accept("while")) {
+            expect("(");
+            final GLSLExpression condition = condition();
+            expect(")");
+            return new GLSLStatement.Loop(condition, null, loopBody(), false);
+        }
+        if (accept("do")) {
+            final GLSLStatement body = loopBody();
+            expect("while");
+            expect("(");
+            final GLSLExpression condition = condition();
+            expect(")");
+            expect(";");
+            return new GLSLStatement.Loop(condition, null, body, true);
+        }
+        if (accept("return")) {
+            final GLSLType returnType = function.getReturnType();
+            GLSLExpression value = null;
+            if (!accept(";")) {
+                value = expression();
+                expect(";");
+            }
+            if (value == null ? returnType != GLSLType.VOID : !returnType.accepts(value.type) || value.getArrayLength() != 0) {
+                throw error(token, "Return value doesn't match the return type: " + returnType.getName());
+            }
+            return new GLSLStatement.Return(value, function.getReturnRegister());
+        }
+        if (accept("break") || accept("continue")) {
+            if (loopDepth <= 0) {
+                throw error(token, token.text + " outside of a loop");
+            }
+            expect(";");
+            return new GLSLStatement.Jump(token.is("break") ? GLSLStatement.BREAK : GLSLStatement.CONTINUE);
+        }
+        if (accept("discard")) {
+            if (shaderType != ShaderType.FRAGMENT) {
+                throw error(token, "Discard can only be used in fragment shaders");
+            }
+            expect(";");
+            return new GLSLStatement.Jump(GLSLStatement.DISCARD);
+        }
+        return simpleStatement();
+    }
+
+    private GLSLStatement loopBody() {
+        loopDepth++;
+        final GLSLStatement body = statement();
+        loopDepth--;
+        return body;
+    }
+
+    // A declaration or an expression, followed by a semicolon
+    private GLSLStatement simpleStatement() {
+        if (accept(";")) {
+            return new GLSLStatement.Block(new GLSLStatement[0]);
+        }
+        final Token token = peek();
+        if (token.is("const") || IGNORED_QUALIFIERS.contains(token.text)
+                || token.kind == GLSLLexer.IDENTIFIER && GLSLType.forName(token.text) != null && (peek(1).kind == GLSLLexer.IDENTIFIER || peek(1).is("["))) {
+            final Qualifiers qualifiers = qualifiers();
+            final GLSLType type = type();
+            final int arrayLength = arraySuffix();
+            final List<GLSLStatement> statements = declarations(qualifiers, type, arrayLength, identifier(), false);
+            return new GLSLStatement.Block(statements.toArray(new GLSLStatement[statements.size()]));
+        }
+        final GLSLExpression expression = expression();
+        expect(";");
+        return new GLSLStatement.Evaluate(expression);
+    }
+
+    private GLSLExpression condition() {
+        final Token token = peek();
+        final GLSLExpression condition = expression();
+        checkBool(token, condition);
+        return condition;
+    }
+
+    private GLSLExpression expression() {
+        return assignment();
+    }
+
+    private GLSLExpression assignment() {
+        final GLSLExpression target = conditional();
+        final Token token = peek();
+        final int operation;
+        switch (token.kind == GLSLLexer.SYMBOL ? token.text : "") {
+            case "=":
+                operation = -1;
+                break;
+            case "+=":
+                operation = Arithmetic.ADD;
+                break;
+            case "-=":
+                operation = Arithmetic.SUBTRACT;
+                break;
+            case "*=":
+                operation = Arithmetic.MULTIPLY;
+                break;
+            case "/=":
+                operation = Arithmetic.DIVIDE;
+                break;
+            case "%=":
+                operation = Arithmetic.MODULO;
+                break;
+            default:
+                return target;
+        }
+        next();
+        if (!target.isAssignable()) {
+            throw error(token, "Can't assign to the expression");
+        }
+        GLSLExpression value = assignment();
+        if (operation >= 0) {
+            value = arithmetic(token, operation, target, value);
+        }
+        checkAssignment(token, target, value);
+        if (value instanceof Variable && !(target instanceof Variable)) {
+            // Copy the value first, as assigning to the components of a variable might overwrite it before it's all read
+            value = new GLSLExpression.Construct(value.type, new GLSLExpression[]{value}, allocate(value.type.getSize()));
+        }
+        return new GLSLExpression.Assign(target, value);
+    }
+
+    private void checkAssignment(Token token, GLSLExpression target, GLSLExpression value) {
+        if (!target.type.accepts(value.type) || target.getArrayLength() != value.getArrayLength()) {
+            throw error(token, "Can't assign a value of type " + value.type.getName() + " to a variable of type " + target.type.getName());
+        }
+    }
+
+    private GLSLExpression conditional() {
+        final Token token = peek();
+        final GLSLExpression condition = logicalOr();
+        if (!accept("?")) {
+            return condition;
+        }
+        checkBool(token, condition);
+        final GLSLExpression then = assignment();
+        expect(":");
+        final GLSLExpression otherwise = assignment();
+        final GLSLType type;
+        if (then.type.accepts(otherwise.type)) {
+            type = then.type;
+        } else if (otherwise.type.accepts(then.type)) {
+            type = otherwise.type;
+        } else {
+            throw error(token, "The values of a conditional must be of the same type");
+        }
+        if (then.getArrayLength() != 0 || otherwise.getArrayLength() != 0 || !type.isNumeric()) {
+            throw error(token, "Unsupported type for a conditional: " + type.getName());
+        }
+        return new GLSLExpression.Select(condition, then, otherwise, type, allocate(type.getSize()));
+    }
+
+    private GLSLExpression logicalOr() {
+        GLSLExpression left = logicalXor();
+        while (peek().is("||")) {
+            left = logical(next(), Logical.OR, left, logicalXor());
+        }
+        return left;
+    }
+
+    private GLSLExpression logicalXor() {
+        GLSLExpression left = logicalAnd();
+        while (peek().is("^^")) {
+            left = logical(next(), Logical.XOR, left, logicalAnd());
+        }
+        return left;
+    }
+
+    private GLSLExpression logicalAnd() {
+        GLSLExpression left = equality();
+        while (peek().is("&&")) {
+            left = logical(next(), Logical.AND, left, equality());
+        }
+        return left;
+    }
+
+    private GLSLExpression logical(Token token, int operation, GLSLExpression left, GLSLExpression right) {
+        checkBool(token, left);
+        checkBool(token, right);
+        return fold(new Logical(operation, left, right, allocate(1)), left, right);
+    }
+
+    private GLSLExpression equality() {
+        GLSLExpression left = relational();
+        while (peek().is("==") || peek().is("!=")) {
+            final Token token = next();
+            final GLSLExpression right = relational();
+            if (!(left.type.accepts(right.type) || right.type.accepts(left.type)) || !left.type.isNumeric() || left.getArrayLength() != right.getArrayLength()) {
+                throw error(token, "Can't compare " + left.type.getName() + " and " + right.type.getName());
+            }
+            left = fold(new Compare(token.is("==") ? Compare.EQUAL : Compare.NOT_EQUAL, left, right, allocate(1)), left, right);
+        }
+        return left;
+    }
+
+    private GLSLExpression relational() {
+        GLSLExpression left = additive();
+        while (peek().is("<") || peek().is(">") || peek().is("<=") || peek().is(">=")) {
+            final Token token = next();
+            final GLSLExpression right = additive();
+            for (GLSLExpression operand : new GLSLExpression[]{left, right}) {
+                if (!operand.type.isScalar() || operand.type.isBool() || operand.getArrayLength() != 0) {
+                    throw error(token, "Only int and float scalars can be compared with " + token.text);
+                }
+            }
+            final int operation = token.is("<") ? Compare.LESS : token.is(">") ? Compare.GREATER : token.is("<=") ? Compare.LESS_EQUAL : Compare.GREATER_EQUAL;
+            left = fold(new Compare(operation, left, right, allocate(1)), left, right);
+        }
+        return left;
+    }
+
+    private GLSLExpression additive() {
+        GLSLExpression left = multiplicative();
+        while (peek().is("+") || peek().is("-")) {
+            final Token token = next();
+            left = arithmetic(token, token.is("+") ? Arithmetic.ADD : Arithmetic.SUBTRACT, left, multiplicative());
+        }
+        return left;
+    }
+
+    private GLSLExpression multiplicative() {
+        GLSLExpression left = unary();
+        while (peek().is("*") || peek().is("/") || peek().is("%")) {
+            final Token token = next();
+            left = arithmetic(token, token.is("*") ? Arithmetic.MULTIPLY : token.is("/") ? Arithmetic.DIVIDE : Arithmetic.MODULO, left, unary());
+        }
+        return left;
+    }
+
+    private GLSLExpression arithmetic(Token token, int operation, GLSLExpression left, GLSLExpression right) {
+        final GLSLType leftType = left.type;
+        final GLSLType rightType = right.type;
+        for (GLSLExpression operand : new GLSLExpression[]{left, right}) {
+            if (!operand.type.isNumeric() || operand.type.isBool() || operand.getArrayLength() != 0) {
+                throw error(token, "Invalid operand for " + token.text + ": " + operand.type.getName());
+            }
+        }
+        final boolean isFloat = leftType.isFloat() || rightType.isFloat();
+        if (operation == Arithmetic.MODULO && isFloat) {
+            throw error(token, "The % operator only applies to integers, use mod instead");
+        }
+        if (operation == Arithmetic.MULTIPLY && (leftType.isMatrix() && !rightType.isScalar() || rightType.isMatrix() && !leftType.isScalar())) {
+            // The linear algebra product
+            final GLSLType type;
+            if (leftType.isMatrix() && rightType.isMatrix()) {
+                type = leftType == rightType ? leftType : null;
+            } else if (leftType.isMatrix()) {
+                type = rightType.getSize() == leftType.getColumns() ? leftType.getColumnType() : null;
+            } else {
+                type = leftType.getSize() == rightType.getColumns() ? rightType.getColumnType() : null;
+            }
+            if (type == null) {
+                throw error(token, "Can't multiply " + leftType.getName() + " and " + rightType.getName());
+            }
+            return fold(new GLSLExpression.Product(left, right, type, allocate(type.getSize())), left, right);
+        }
+        GLSLType type;
+        if (leftType.getSize() == 1) {
+            type = rightType;
+        } else if (rightType.getSize() == 1 || leftType.getSize() == rightType.getSize() && leftType.isMatrix() == rightType.isMatrix()) {
+            type = leftType;
+        } else {
+            throw error(token, "Can't apply " + token.text + " to " + leftType.getName() + " and " + rightType.getName());
+        }
+        if (isFloat && !type.isFloat()) {
+            type = GLSLType.vector(GLSLType.FLOAT, type.getSize());
+        }
+        return fold(new Arithmetic(operation, left, right, type, allocate(type.getSize())), left, right);
+    }
+
+    private GLSLExpression unary() {
+        final Token token = peek();
+        if (accept("++") || accept("--")) {
+            final GLSLExpression target = unary();
+            checkIncrement(token, target);
+            return new GLSLExpression.Increment(target, token.is("++") ? 1 : -1, true, allocate(target.type.getSize()));
+        }
+        if (accept("+") || accept("-")) {
+            final GLSLExpression value = unary();
+            if (!value.type.isNumeric() || value.type.isBool() || value.getArrayLength() != 0) {
+                throw error(token, "Invalid operand for " + token.text + ": " + value.type.getName());
+            }
+            return token.is("+") ? value : fold(new GLSLExpression.Negate(value, allocate(value.type.getSize())), value);
+        }
+        if (accept("!")) {
+            final GLSLExpression value = unary();
+            checkBool(token, value);
+            return fold(new GLSLExpression.Not(value, allocate(1)), value);
+        }
+        return postfix();
+    }
+
+    private void checkIncrement(Token token, GLSLExpression target) {
+        if (!target.isAssignable() || !target.type.isNumeric() || target.type.isBool() || target.getArrayLength() != 0) {
+            throw error(token, "Invalid operand for " + token.text);
+        }
+    }
+
+    private void checkBool(Token token, GLSLExpression value) {
+        if (value.type != GLSLType.BOOL || value.getArrayLength() != 0) {
+            throw error(token, "Expected a bool, not: " + value.type.getName());
+        }
+    }
+
+    private GLSLExpression postfix() {
+        GLSLExpression value = primary();
+        while (true) {
+            final Token token = peek();
+            if (accept("[")) {
+                final GLSLExpression index = expression();
+                expect("]");
+                value = index(token, value, index);
+            } else if (accept(".")) {
+                final Token field = identifier();
+                if (field.is("length") && peek().is("(")) {
+                    expect("(");
+                    expect(")");
+                    if (value.getArrayLength() == 0) {
+                        throw error(field, "Only arrays have a length");
+                    }
+                    value = constant(GLSLType.INT, value.getArrayLength());
+                } else {
+                    value = swizzle(field, value);
+                }
+            } else if (accept("++") || accept("--")) {
+                checkIncrement(token, value);
+                value = new GLSLExpression.Increment(value, token.is("++") ? 1 : -1, false, allocate(value.type.getSize()));
+            } else {
+                return value;
+            }
+        }
+    }
+
+    private GLSLExpression index(Token token, GLSLExpression value, GLSLExpression index) {
+        if (index.type != GLSLType.INT || index.getArrayLength() != 0) {
+            throw error(token, "Indices must be ints");
+        }
+        final GLSLType type;
+        final int count;
+        if (value.getArrayLength() > 0) {
+            type = value.type;
+            count = value.getArrayLength();
+        } else if (value.type.isMatrix()) {
+            type = value.type.getColumnType();
+            count = value.type.getColumns();
+        } else if (value.type.isVector()) {
+            type = value.type.getComponentType();
+            count = value.type.getSize();
+        } else {
+            throw error(token, "Can't index a " + value.type.getName());
+        }
+        if (index instanceof GLSLExpression.Constant) {
+            final float constant = registers.get(index.register);
+            if (constant < 0 || constant >= count) {
+                throw error(token, "Index out of range: " + (int) constant);
+            }
+        }
+        return fold(new GLSLExpression.Index(value, index, type, count, allocate(type.getSize())), value, index);
+    }
+
+    private GLSLExpression swizzle(Token field, GLSLExpression value) {
+        if (!value.type.isVector() || value.getArrayLength() != 0) {
+            throw error(field, "Can't select components of a " + value.type.getName());
+        }
+        final String text = field.text;
+        String set = null;
+        for (String candidate : SWIZZLE_SETS) {
+            if (candidate.indexOf(text.charAt(0)) >= 0) {
+                set = candidate;
+            }
+        }
+        if (set == null || text.length() > 4) {
+            throw error(field, "Invalid component selection: " + text);
+        }
+        final int[] components = new int[text.length()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = set.indexOf(text.charAt(i));
+            if (components[i] < 0 || components[i] >= value.type.getSize()) {
+                throw error(field, "Invalid component selection: " + text);
+            }
+        }
+        return fold(new Swizzle(value, components, allocate(components.length)), value);
+    }
+
+    private GLSLExpression primary() {
+        final Token token = next();
+        switch (token.kind) {
+            case GLSLLexer.INT:
+                return constant(GLSLType.INT, Long.parseLong(token.text));
+            case GLSLLexer.FLOAT:
+                return constant(GLSLType.FLOAT, Float.parseFloat(token.text));
+            case GLSLLexer.IDENTIFIER: {
+                if (token.is("true") || token.is("false")) {
+                    return constant(GLSLType.BOOL, token.is("true") ? 1 : 0);
+                }
+                final GLSLType type = GLSLType.forName(token.text);
+                if (type != null) {
+                    expect("(");
+                    return construct(token, type, arguments());
+                }
+                if (accept("(")) {
+                    return call(token, arguments());
+                }
+                final GLSLVariable variable = find(token.text);
+                if (variable == null) {
+                    throw error(token, "Unknown identifier: " + token.text);
+                }
+                variable.setUsed();
+                return new Variable(variable);
+            }
+            case GLSLLexer.SYMBOL:
+                if (token.is("(")) {
+                    final GLSLExpression expression = expression();
+                    expect(")");
+                    return expression;
+                }
+        }
+        throw error(token, "Unexpected " + token.text);
+    }
+
+    // Compiles the arguments of a call, after the opening parenthesis
+    private GLSLExpression[] arguments() {
+        final List<GLSLExpression> arguments = new ArrayList<>();
+        if (peek().is("void") && peek(1).is(")")) {
+            next();
+        }
+        if (!accept(")")) {
+            do {
+                arguments.add(assignment());
+            } while (accept(","));
+            expect(")");
+        }
+        return arguments.toArray(new GLSLExpression[arguments.size()]);
+    }
+
+    private GLSLExpression construct(Token token, GLSLType type, GLSLExpression[] arguments) {
+        if (!type.isNumeric() || arguments.length == 0) {
+            throw error(token, "Invalid constructor: " + type.getName());
+        }
+        int components = 0;
+        boolean matrices = false;
+        for (GLSLExpression argument : arguments) {
+            if (!argument.type.isNumeric() || argument.getArrayLength() != 0) {
+                throw error(token, "Invalid argument for constructor: " + argument.type.getName());
+            }
+            components += argument.type.getSize();
+            matrices |= argument.type.isMatrix();
+        }
+        if (arguments.length == 1 && (arguments[0].type.isScalar() || type.isMatrix() && arguments[0].type.isMatrix())) {
+            return fold(new GLSLExpression.Construct(type, arguments, allocate(type.getSize())), arguments);
+        }
+        if (components < type.getSize() || type.isMatrix() && matrices) {
+            throw error(token, "Invalid arguments for constructor: " + type.getName());
+        }
+        return fold(new GLSLExpression.Construct(type, arguments, allocate(type.getSize())), arguments);
+    }
+
+    private GLSLExpression call(Token token, GLSLExpression[] arguments) {
+        final List<GLSLFunction> overloads = functions.get(token.text);
+        if (overloads != null) {
+            final GLSLType[] types = new GLSLType[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i].getArrayLength() != 0) {
+                    throw error(token, "Arrays can't be passed to functions");
+                }
+                types[i] = arguments[i].type;
+            }
+            GLSLFunction function = findFunction(token.text, types);
+            if (function == null) {
+                // Look for an overload with implicit conversions
+                for (GLSLFunction overload : overloads) {
+                    final GLSLVariable[] parameters = overload.getParameters();
+                    boolean matches = parameters.length == arguments.length;
+                    for (int i = 0; matches && i < parameters.length; i++) {
+                        matches = parameters[i].getType().accepts(types[i]) && (overload.getQualifiers()[i] == GLSLFunction.IN || parameters[i].getType() == types[i]);
+                    }
+                    if (matches) {
+                        function = overload;
+                        break;
+                    }
+                }
+            }
+            if (function == null) {
+                throw error(token, "No overload of " + token.text + " matches the arguments");
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                if (function.getQualifiers()[i] != GLSLFunction.IN && !arguments[i].isAssignable()) {
+                    throw error(token, "Out parameters need assignable arguments");
+                }
+            }
+            calledFunctions.add(function);
+            return new GLSLExpression.Call(function, arguments, allocate(function.getReturnType().getSize()));
+        }
+        return builtIn(token, arguments);
+    }
+
+    private GLSLExpression builtIn(Token token, GLSLExpression[] arguments) {
+        switch (token.text) {
+            case "radians":
+                return componentwise(token, Componentwise.RADIANS, arguments, 1, false);
+            case "degrees":
+                return componentwise(token, Componentwise.DEGREES, arguments, 1, false);
+            case "sin":
+                return componentwise(token, Componentwise.SIN, arguments, 1, false);
+            case "cos":
+                return componentwise(token, Componentwise.COS, arguments, 1, false);
+            case "tan":
+                return componentwise(token, Componentwise.TAN, arguments, 1, false);
+            case "asin":
+                return componentwise(token, Componentwise.ASIN, arguments, 1, false);
+            case "acos":
+                return componentwise(token, Componentwise.ACOS, arguments, 1, false);
+            case "atan":
+                return arguments.length == 2 ? componentwise(token, Componentwise.ATAN2, arguments, 2, false) : componentwise(token, Componentwise.ATAN, arguments, 1, false);
+            case "pow":
+                return componentwise(token, Componentwise.POW, arguments, 2, false);
+            case "exp":
+                return componentwise(token, Componentwise.EXP, arguments, 1, false);
+            case "log":
+                return componentwise(token, Componentwise.LOG, arguments, 1, false);
+            case "exp2":
+                return componentwise(token, Componentwise.EXP2, arguments, 1, false);
+            case "log2":
+                return componentwise(token, Componentwise.LOG2, arguments, 1, false);
+            case "sqrt":
+                return componentwise(token, Componentwise.SQRT, arguments, 1, false);
+            case "inversesqrt":
+                return componentwise(token, Componentwise.INVERSE_SQRT, arguments, 1, false);
+            case "abs":
+                return componentwise(token, Componentwise.ABS, arguments, 1, true);
+            case "sign":
+                return componentwise(token, Componentwise.SIGN, arguments, 1, true);
+            case "floor":
+                return componentwise(token, Componentwise.FLOOR, arguments, 1, false);
+            case "ceil":
+                return componentwise(token, Componentwise.CEIL, arguments, 1, false);
+            case "fract":
+                return componentwise(token, Componentwise.FRACT, arguments, 1, false);
+            case "trunc":
+                return componentwise(token, Componentwise.TRUNC, arguments, 1, false);
+            case "round":
+            case "roundEven":
+                return componentwise(token, Componentwise.ROUND, arguments, 1, false);
+            case "mod":
+                return componentwise(token, Componentwise.MOD, arguments, 2, false);
+            case "min":
+                return componentwise(token, Componentwise.MIN, arguments, 2, true);
+            case "max":
+                return componentwise(token, Componentwise.MAX, arguments, 2, true);
+            case "clamp":
+                return componentwise(token, Componentwise.CLAMP, arguments, 3, true);
+            case "mix":
+                return componentwise(token, Componentwise.MIX, arguments, 3, false);
+            case "step":
+                return componentwise(token, Componentwise.STEP, arguments, 2, false);
+            case "smoothstep":
+                return componentwise(token, Componentwise.SMOOTH_STEP, arguments, 3, false);
+            case "lessThan":
+                return relational(token, Componentwise.LESS_THAN, arguments, false);
+            case "lessThanEqual":
+                return relational(token, Componentwise.LESS_THAN_EQUAL, arguments, false);
+            case "greaterThan":
+                return relational(token, Componentwise.GREATER_THAN, arguments, false);
+            case "greaterThanEqual":
+                return relational(token, Componentwise.GREATER_THAN_EQUAL, arguments, false);
+            case "equal":
+                return relational(token, Componentwise.EQUAL, arguments, true);
+            case "notEqual":
+                return relational(token, Componentwise.NOT_EQUAL, arguments, true);
+            case "not":
+                checkArguments(token, arguments, 1);
+                if (!arguments[0].type.isVector() || !arguments[0].type.isBool()) {
+                    throw error(token, "Invalid argument for not: " + arguments[0].type.getName());
+                }
+                return fold(new Componentwise(Componentwise.NOT, arguments, arguments[0].type, allocate(arguments[0].type.getSize())), arguments);
+            case "any":
+            case "all":
+                checkArguments(token, arguments, 1);
+                if (!arguments[0].type.isVector() || !arguments[0].type.isBool()) {
+                    throw error(token, "Invalid argument for " + token.text + ": " + arguments[0].type.getName());
+                }
+                return geometric(token.is("any") ? Geometric.ANY : Geometric.ALL, arguments, GLSLType.BOOL);
+            case "length":
+                return geometric(token, Geometric.LENGTH, arguments, 1, GLSLType.FLOAT);
+            case "distance":
+                return geometric(token, Geometric.DISTANCE, arguments, 2, GLSLType.FLOAT);
+            case "dot":
+                return geometric(token, Geometric.DOT, arguments, 2, GLSLType.FLOAT);
+            case "cross":
+                if (arguments.length == 2 && arguments[0].type.getSize() != 3) {
+                    throw error(token, "Invalid arguments for cross");
+                }
+                return geometric(token, Geometric.CROSS, arguments, 2, GLSLType.VEC3);
+            case "normalize":
+                return geometric(token, Geometric.NORMALIZE, arguments, 1, null);
+            case "faceforward":
+                return geometric(token, Geometric.FACE_FORWARD, arguments, 3, null);
+            case "reflect":
+                return geometric(token, Geometric.REFLECT, arguments, 2, null);
+            case "refract":
+                checkArguments(token, arguments, 3);
+                if (!arguments[2].type.isScalar() || arguments[2].type.isBool()) {
+                    throw error(token, "Invalid arguments for refract");
+                }
+                return geometric(token, Geometric.REFRACT, new GLSLExpression[]{arguments[0], arguments[1]}, 2, null, arguments[2]);
+            case "matrixCompMult":
+                checkArguments(token, arguments, 2);
+                if (!arguments[0].type.isMatrix() || arguments[0].type != arguments[1].type) {
+                    throw error(token, "Invalid arguments for matrixCompMult");
+                }
+                return fold(new Arithmetic(Arithmetic.MULTIPLY, arguments[0], arguments[1], arguments[0].type, allocate(arguments[0].type.getSize())), arguments);
+            case "transpose":
+                checkArguments(token, arguments, 1);
+                if (!arguments[0].type.isMatrix()) {
+                    throw error(token, "Invalid argument for transpose");
+                }
+                return geometric(Geometric.TRANSPOSE, arguments, arguments[0].type);
+            case "texture2D":
+            case "texture":
+                return texture(token, arguments, false);
+            case "texture2DLod":
+            case "textureLod":
+                return texture(token, arguments, true);
+            case "dFdx":
+                return derivative(token, GLSLExpression.Derivative.X, arguments);
+            case "dFdy":
+                return derivative(token, GLSLExpression.Derivative.Y, arguments);
+            case "fwidth":
+                return derivative(token, GLSLExpression.Derivative.WIDTH, arguments);
+            default:
+                throw error(token, "Unknown function: " + token.text);
+        }
+    }
+
+    private void checkArguments(Token token, GLSLExpression[] arguments, int count) {
+        if (arguments.length != count) {
+            throw error(token, token.text + " takes " + count + " argument" + (count == 1 ? "" : "s"));
+        }
+        for (GLSLExpression argument : arguments) {
+            if (!argument.type.isNumeric() || argument.getArrayLength() != 0) {
+                throw error(token, "Invalid argument for " + token.text + ": " + argument.type.getName());
+            }
+        }
+    }
+
+    // A function of int or float scalars or vectors, applied to each component, with scalar arguments applied to all of them
+    private GLSLExpression componentwise(Token token, int operation, GLSLExpression[] arguments, int count, boolean integers) {
+        checkArguments(token, arguments, count);
+        int size = 1;
+        boolean allInts = true;
+        for (GLSLExpression argument : arguments) {
+            if (argument.type.isMatrix() || argument.type.isBool()) {
+                throw error(token, "Invalid argument for " + token.text + ": " + argument.type.getName());
+            }
+            size = Math.max(size, argument.type.getSize());
+            allInts &= argument.type.isInt();
+        }
+        for (GLSLExpression argument : arguments) {
+            if (argument.type.getSize() != 1 && argument.type.getSize() != size) {
+                throw error(token, "Mismatched argument sizes for " + token.text);
+            }
+        }
+        final GLSLType type = GLSLType.vector(integers && allInts ? GLSLType.INT : GLSLType.FLOAT, size);
+        return fold(new Componentwise(operation, arguments, type, allocate(size)), arguments);
+    }
+
+    private GLSLExpression relational(Token token, int operation, GLSLExpression[] arguments, boolean bools) {
+        checkArguments(token, arguments, 2);
+        final GLSLType type = arguments[0].type;
+        if (!type.isVector() || type.isBool() && !bools || !(type.accepts(arguments[1].type) || arguments[1].type.accepts(type))) {
+            throw error(token, "Invalid arguments for " + token.text);
+        }
+        return fold(new Componentwise(operation, arguments, GLSLType.vector(GLSLType.BOOL, type.getSize()), allocate(type.getSize())), arguments);
+    }
+
+    // A function of float scalars or vectors of the same size, which returns the type, or the type of the first argument if null
+    private GLSLExpression geometric(Token token, int operation, GLSLExpression[] arguments, int count, GLSLType type, GLSLExpression... extra) {
+        checkArguments(token, arguments, count);
+        final int size = arguments[0].type.getSize();
+        for (GLSLExpression argument : arguments) {
+            if (argument.type.isMatrix() || argument.type.isBool() || argument.type.getSize() != size) {
+                throw error(token, "Invalid arguments for " + token.text);
+            }
+        }
+        if (extra.length > 0) {
+            final GLSLExpression[] all = Arrays.copyOf(arguments, arguments.length + extra.length);
+            System.arraycopy(extra, 0, all, arguments.length, extra.length);
+            arguments = all;
+        }
+        return geometric(operation, arguments, type != null ? type : GLSLType.vector(GLSLType.FLOAT, size));
+    }
+
+    private GLSLExpression geometric(int operation, GLSLExpression[] arguments, GLSLType type) {
+        return fold(new Geometric(operation, arguments, type, allocate(type.getSize())), arguments);
+    }
+
+    private GLSLExpression texture(Token token, GLSLExpression[] arguments, boolean explicitLevel) {
+        if (arguments.length != 3 && (explicitLevel || arguments.length != 2)) {
+            throw error(token, "Invalid number of arguments for " + token.text);
+        }
+        final GLSLExpression sampler = arguments[0];
+        if (!(sampler instanceof Variable) || sampler.type != GLSLType.SAMPLER2D) {
+            throw error(token, "The first argument of " + token.text + " must be a sampler2D uniform");
+        }
+        final GLSLExpression coordinates = arguments[1];
+        if (coordinates.type != GLSLType.VEC2) {
+            throw error(token, "The coordinates of " + token.text + " must be a vec2");
+        }
+        final GLSLExpression level = arguments.length > 2 ? arguments[2] : null;
+        if (level != null && (!level.type.isScalar() || level.type.isBool())) {
+            throw error(token, "The level of detail of " + token.text + " must be a float");
+        }
+        // Coordinates read from a fragment shader input have derivatives, to select the level of detail
+        final GLSLVariable input = findInput(coordinates);
+        final int[] components = input != null ? inputComponents(coordinates) : null;
+        return new GLSLExpression.Texture(((Variable) sampler).getVariable().getIndex(), coordinates, level, explicitLevel, input, components, allocate(4));
+    }
+
+    private GLSLExpression derivative(Token token, int operation, GLSLExpression[] arguments) {
+        checkArguments(token, arguments, 1);
+        final GLSLVariable input = findInput(arguments[0]);
+        if (input == null || !arguments[0].type.isFloat()) {
+            throw error(token, token.text + " is only supported on the float inputs of fragment shaders, and their components");
+        }
+        return new GLSLExpression.Derivative(operation, input, inputComponents(arguments[0]), allocate(arguments[0].type.getSize()));
+    }
+
+    // Returns the fragment shader input the value is read from, directly or through a component selection, or null
+    private GLSLVariable findInput(GLSLExpression value) {
+        if (value instanceof Swizzle) {
+            value = ((Swizzle) value).getValue();
+        }
+        if (shaderType == ShaderType.FRAGMENT && value instanceof Variable && ((Variable) value).getVariable().getKind() == GLSLVariable.INPUT) {
+            return ((Variable) value).getVariable();
+        }
+        return null;
+    }
+
+    private static int[] inputComponents(GLSLExpression value) {
+        if (value instanceof Swizzle) {
+            return ((Swizzle) value).getComponents();
+        }
+        final int[] components = new int[value.type.getSize()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = i;
+        }
+        return components;
+    }
+
+    private Token peek() {
+        return peek(0);
+    }
+
+    private Token peek(int offset) {
+        return tokens.get(Math.min(position + offset, tokens.size() - 1));
+    }
+
+    private Token next() {
+        final Token token = peek();
+        if (token.kind == GLSLLexer.END) {
+            throw error(token, "Unexpected end of source");
+        }
+        position++;
+        return token;
+    }
+
+    private boolean accept(String text) {
+        if (peek().is(text)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String text) {
+        if (!accept(text)) {
+            throw error(peek(), "Expected " + text + " but found " + peek().text);
+        }
+    }
+
+    private Token identifier() {
+        final Token token = next();
+        if (token.kind != GLSLLexer.IDENTIFIER || GLSLType.forName(token.text) != null) {
+            throw error(token, "Expected a name but found " + token.text);
+        }
+        return token;
+    }
+
+    private static IllegalArgumentException error(Token token, String message) {
+        return GLSLLexer.error(token.line, message);
+    }
+
+    private static class Qualifiers {
+        private int storage = NONE;
+        private int location = -1;
+    }
+}
@@ -0,0 +1,998 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * An expression of a compiled GLSL shader. Evaluating an expression leaves its value in the registers of the frame, starting at the register of the expression. Variables and constants are
+ * already in their registers, and aren't evaluated.
+ */
+abstract class GLSLExpression {
+    final GLSLType type;
+    final int register;
+
+    GLSLExpression(GLSLType type, int register) {
+        this.type = type;
+        this.register = register;
+    }
+
+    abstract void evaluate(GLSLFrame frame);
+
+    // The number of elements if the value is an array, zero otherwise
+    int getArrayLength() {
+        return 0;
+    }
+
+    boolean isAssignable() {
+        return false;
+    }
+
+    // Evaluates the expressions which select the components of an assignable expression, before they're addressed
+    void prepare(GLSLFrame frame) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Returns the register of a component of an assignable expression, once prepared
+    int address(GLSLFrame frame, int component) {
+        throw new UnsupportedOperationException();
+    }
+
+    private static float convert(GLSLType component, float value) {
+        switch (component) {
+            case INT:
+                return (int) value;
+            case BOOL:
+                return value != 0 ? 1 : 0;
+            default:
+                return value;
+        }
+    }
+
+    static class Constant extends GLSLExpression {
+        Constant(GLSLType type, int register) {
+            super(type, register);
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+        }
+    }
+
+    static class Variable extends GLSLExpression {
+        private final GLSLVariable variable;
+
+        Variable(GLSLVariable variable) {
+            super(variable.getType(), variable.getRegister());
+            this.variable = variable;
+        }
+
+        GLSLVariable getVariable() {
+            return variable;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+        }
+
+        @Override
+        int getArrayLength() {
+            return variable.getArrayLength();
+        }
+
+        @Override
+        boolean isAssignable() {
+            return variable.isAssignable();
+        }
+
+        @Override
+        void prepare(GLSLFrame frame) {
+        }
+
+        @Override
+        int address(GLSLFrame frame, int component) {
+            return register + component;
+        }
+    }
+
+    static class Swizzle extends GLSLExpression {
+        private final GLSLExpression value;
+        private final int[] components;
+
+        Swizzle(GLSLExpression value, int[] components, int register) {
+            super(GLSLType.vector(value.type.getComponentType(), components.length), register);
+            this.value = value;
+            this.components = components;
+        }
+
+        GLSLExpression getValue() {
+            return value;
+        }
+
+        int[] getComponents() {
+            return components;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            value.evaluate(frame);
+            final float[] registers = frame.registers;
+            for (int i = 0; i < components.length; i++) {
+                registers[register + i] = registers[value.register + components[i]];
+            }
+        }
+
+        @Override
+        boolean isAssignable() {
+            if (!value.isAssignable()) {
+                return false;
+            }
+            // Like in GLSL, a component can only be assigned once
+            for (int i = 0; i < components.length; i++) {
+                for (int ii = i + 1; ii < components.length; ii++) {
+                    if (components[i] == components[ii]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void prepare(GLSLFrame frame) {
+            value.prepare(frame);
+        }
+
+        @Override
+        int address(GLSLFrame frame, int component) {
+            return value.address(frame, components[component]);
+        }
+    }
+
+    static class Index extends GLSLExpression {
+        private final GLSLExpression value;
+        private final GLSLExpression index;
+        private final int count;
+
+        // Selects an element of an array, a column of a matrix, or a component of a vector
+        Index(GLSLExpression value, GLSLExpression index, GLSLType type, int count, int register) {
+            super(type, register);
+            this.value = value;
+            this.index = index;
+            this.count = count;
+        }
+
+        private int getIndex(GLSLFrame frame) {
+            // Out of bounds indices are clamped instead of failing
+            return Math.max(0, Math.min((int) frame.registers[index.register], count - 1)) * type.getSize();
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            value.evaluate(frame);
+            index.evaluate(frame);
+            System.arraycopy(frame.registers, value.register + getIndex(frame), frame.registers, register, type.getSize());
+        }
+
+        @Override
+        boolean isAssignable() {
+            return value.isAssignable();
+        }
+
+        @Override
+        void prepare(GLSLFrame frame) {
+            value.prepare(frame);
+            index.evaluate(frame);
+        }
+
+        @Override
+        int address(GLSLFrame frame, int component) {
+            return value.address(frame, getIndex(frame) + component);
+        }
+    }
+
+    static class Construct extends GLSLExpression {
+        private static final int COMPONENTS = 0;
+        private static final int SCALAR = 1;
+        private static final int DIAGONAL = 2;
+        private static final int MATRIX = 3;
+        private final GLSLExpression[] arguments;
+        private final int mode;
+
+        Construct(GLSLType type, GLSLExpression[] arguments, int register) {
+            super(type, register);
+            this.arguments = arguments;
+            if (arguments.length == 1 && arguments[0].type.isScalar()) {
+                mode = type.isMatrix() ? DIAGONAL : SCALAR;
+            } else if (arguments.length == 1 && type.isMatrix() && arguments[0].type.isMatrix()) {
+                mode = MATRIX;
+            } else {
+                mode = COMPONENTS;
+            }
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            for (GLSLExpression argument : arguments) {
+                argument.evaluate(frame);
+            }
+            final float[] registers = frame.registers;
+            final GLSLType component = type.getComponentType();
+            final int size = type.getSize();
+            switch (mode) {
+                case SCALAR: {
+                    final float value = convert(component, registers[arguments[0].register]);
+                    for (int i = 0; i < size; i++) {
+                        registers[register + i] = value;
+                    }
+                    break;
+                }
+                case DIAGONAL: {
+                    final float value = registers[arguments[0].register];
+                    final int step = type.getColumns() + 1;
+                    for (int i = 0; i < size; i++) {
+                        registers[register + i] = i % step == 0 ? value : 0;
+                    }
+                    break;
+                }
+                case MATRIX: {
+                    // Copy the overlapping part of the matrix, and fill the rest with the identity
+                    final int columns = type.getColumns();
+                    final int from = arguments[0].type.getColumns();
+                    for (int column = 0; column < columns; column++) {
+                        for (int row = 0; row < columns; row++) {
+                            registers[register + column * columns + row] = column < from && row < from ? registers[arguments[0].register + column * from + row] : column == row ? 1 : 0;
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    // Take the components of the arguments in order
+                    int i = 0;
+                    for (GLSLExpression argument : arguments) {
+                        final int count = Math.min(argument.type.getSize(), size - i);
+                        for (int ii = 0; ii < count; ii++) {
+                            registers[register + i++] = convert(component, registers[argument.register + ii]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static class Negate extends GLSLExpression {
+        private final GLSLExpression value;
+
+        Negate(GLSLExpression value, int register) {
+            super(value.type, register);
+            this.value = value;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            value.evaluate(frame);
+            final float[] registers = frame.registers;
+            for (int i = 0; i < type.getSize(); i++) {
+                registers[register + i] = -registers[value.register + i];
+            }
+        }
+    }
+
+    static class Not extends GLSLExpression {
+        private final GLSLExpression value;
+
+        Not(GLSLExpression value, int register) {
+            super(value.type, register);
+            this.value = value;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            value.evaluate(frame);
+            final float[] registers = frame.registers;
+            for (int i = 0; i < type.getSize(); i++) {
+                registers[register + i] = registers[value.register + i] != 0 ? 0 : 1;
+            }
+        }
+    }
+
+    static class Increment extends GLSLExpression {
+        private final GLSLExpression target;
+        private final float delta;
+        private final boolean prefix;
+
+        Increment(GLSLExpression target, float delta, boolean prefix, int register) {
+            super(target.type, register);
+            this.target = target;
+            this.delta = delta;
+            this.prefix = prefix;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            target.prepare(frame);
+            final float[] registers = frame.registers;
+            for (int i = 0; i < type.getSize(); i++) {
+                final int address = target.address(frame, i);
+                final float old = registers[address];
+                registers[address] = old + delta;
+                registers[register + i] = prefix ? old + delta : old;
+            }
+        }
+    }
+
+    static class Arithmetic extends GLSLExpression {
+        static final int ADD = 0;
+        static final int SUBTRACT = 1;
+        static final int MULTIPLY = 2;
+        static final int DIVIDE = 3;
+        static final int MODULO = 4;
+        private final int operation;
+        private final GLSLExpression left;
+        private final GLSLExpression right;
+        // Scalars are applied to every component of the other operand
+        private final int leftStep;
+        private final int rightStep;
+
+        // Applies the operation to each component
+        Arithmetic(int operation, GLSLExpression left, GLSLExpression right, GLSLType type, int register) {
+            super(type, register);
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+            leftStep = left.type.getSize() == 1 ? 0 : 1;
+            rightStep = right.type.getSize() == 1 ? 0 : 1;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            left.evaluate(frame);
+            right.evaluate(frame);
+            final float[] registers = frame.registers;
+            final int size = type.getSize();
+            int a = left.register;
+            int b = right.register;
+            switch (operation) {
+                case ADD:
+                    for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                        registers[register + i] = registers[a] + registers[b];
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                        registers[register + i] = registers[a] - registers[b];
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                        registers[register + i] = registers[a] * registers[b];
+                    }
+                    break;
+                case DIVIDE:
+                    if (type.isInt()) {
+                        for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                            final int divisor = (int) registers[b];
+                            registers[register + i] = divisor == 0 ? 0 : (int) registers[a] / divisor;
+                        }
+                    } else {
+                        for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                            registers[register + i] = registers[a] / registers[b];
+                        }
+                    }
+                    break;
+                case MODULO:
+                    for (int i = 0; i < size; i++, a += leftStep, b += rightStep) {
+                        final int divisor = (int) registers[b];
+                        registers[register + i] = divisor == 0 ? 0 : (int) registers[a] % divisor;
+                    }
+                    break;
+            }
+        }
+    }
+
+    static class Product extends GLSLExpression {
+        private final GLSLExpression left;
+        private final GLSLExpression right;
+        private final int size;
+
+        // The linear algebra product of a matrix and a vector, a vector and a matrix, or two matrices
+        Product(GLSLExpression left, GLSLExpression right, GLSLType type, int register) {
+            super(type, register);
+            this.left = left;
+            this.right = right;
+            size = left.type.isMatrix() ? left.type.getColumns() : right.type.getColumns();
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            left.evaluate(frame);
+            right.evaluate(frame);
+            final float[] registers = frame.registers;
+            final int a = left.register;
+            final int b = right.register;
+            if (!left.type.isMatrix()) {
+                // Each component is the dot product of the vector and a column
+                for (int column = 0; column < size; column++) {
+                    float sum = 0;
+                    for (int i = 0; i < size; i++) {
+                        sum += registers[a + i] * registers[b + column * size + i];
+                    }
+                    registers[register + column] = sum;
+                }
+                return;
+            }
+            // A vector is multiplied like a matrix with a single column
+            final int columns = right.type.isMatrix() ? size : 1;
+            for (int column = 0; column < columns; column++) {
+                for (int row = 0; row < size; row++) {
+                    float sum = 0;
+                    for (int i = 0; i < size; i++) {
+                        sum += registers[a + i * size + row] * registers[b + column * size + i];
+                    }
+                    registers[register + column * size + row] = sum;
+                }
+            }
+        }
+    }
+
+    static class Compare extends GLSLExpression {
+        static final int LESS = 0;
+        static final int GREATER = 1;
+        static final int LESS_EQUAL = 2;
+        static final int GREATER_EQUAL = 3;
+        static final int EQUAL = 4;
+        static final int NOT_EQUAL = 5;
+        private final int operation;
+        private final GLSLExpression left;
+        private final GLSLExpression right;
+
+        // Compares scalars, or the equality of all the components of any value
+        Compare(int operation, GLSLExpression left, GLSLExpression right, int register) {
+            super(GLSLType.BOOL, register);
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            left.evaluate(frame);
+            right.evaluate(frame);
+            final float[] registers = frame.registers;
+            final float a = registers[left.register];
+            final float b = registers[right.register];
+            final boolean result;
+            switch (operation) {
+                case LESS:
+                    result = a < b;
+                    break;
+                case GREATER:
+                    result = a > b;
+                    break;
+                case LESS_EQUAL:
+                    result = a <= b;
+                    break;
+                case GREATER_EQUAL:
+                    result = a >= b;
+                    break;
+                default:
+                    boolean equal = true;
+                    for (int i = 0; i < left.type.getSize() * Math.max(left.getArrayLength(), 1); i++) {
+                        equal &= registers[left.register + i] == registers[right.register + i];
+                    }
+                    result = equal == (operation == EQUAL);
+            }
+            registers[register] = result ? 1 : 0;
+        }
+    }
+
+    static class Logical extends GLSLExpression {
+        static final int AND = 0;
+        static final int OR = 1;
+        static final int XOR = 2;
+        private final int operation;
+        private final GLSLExpression left;
+        private final GLSLExpression right;
+
+        Logical(int operation, GLSLExpression left, GLSLExpression right, int register) {
+            super(GLSLType.BOOL, register);
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            left.evaluate(frame);
+            final float[] registers = frame.registers;
+            final boolean a = registers[left.register] != 0;
+            // Like in GLSL, the right operand is only evaluated when needed
+            final boolean result;
+            if (operation == AND && !a || operation == OR && a) {
+                result = a;
+            } else {
+                right.evaluate(frame);
+                final boolean b = registers[right.register] != 0;
+                result = operation == XOR ? a != b : b;
+            }
+            registers[register] = result ? 1 : 0;
+        }
+    }
+
+    static class Select extends GLSLExpression {
+        private final GLSLExpression condition;
+        private final GLSLExpression then;
+        private final GLSLExpression otherwise;
+
+        Select(GLSLExpression condition, GLSLExpression then, GLSLExpression otherwise, GLSLType type, int register) {
+            super(type, register);
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            condition.evaluate(frame);
+            final GLSLExpression value = frame.registers[condition.register] != 0 ? then : otherwise;
+            value.evaluate(frame);
+            System.arraycopy(frame.registers, value.register, frame.registers, register, type.getSize());
+        }
+    }
+
+    static class Assign extends GLSLExpression {
+        private final GLSLExpression target;
+        private final GLSLExpression value;
+        private final int size;
+        // Whether the target is a whole variable, whose registers are contiguous
+        private final boolean contiguous;
+
+        // The value of the assignment is the assigned value, so it uses the same registers
+        Assign(GLSLExpression target, GLSLExpression value) {
+            super(target.type, value.register);
+            this.target = target;
+            this.value = value;
+            size = target.type.getSize() * Math.max(target.getArrayLength(), 1);
+            contiguous = target instanceof Variable;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            value.evaluate(frame);
+            final float[] registers = frame.registers;
+            if (contiguous) {
+                System.arraycopy(registers, register, registers, target.register, size);
+                return;
+            }
+            target.prepare(frame);
+            for (int i = 0; i < size; i++) {
+                registers[target.address(frame, i)] = registers[register + i];
+            }
+        }
+    }
+
+    static class Call extends GLSLExpression {
+        private final GLSLFunction function;
+        private final GLSLExpression[] arguments;
+
+        Call(GLSLFunction function, GLSLExpression[] arguments, int register) {
+            super(function.getReturnType(), register);
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            final float[] registers = frame.registers;
+            final GLSLVariable[] parameters = function.getParameters();
+            final int[] qualifiers = function.getQualifiers();
+            // The arguments might call the same function, so they're all evaluated before the parameters are set
+            for (int i = 0; i < arguments.length; i++) {
+                if (qualifiers[i] != GLSLFunction.OUT) {
+                    arguments[i].evaluate(frame);
+                }
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                if (qualifiers[i] != GLSLFunction.OUT) {
+                    System.arraycopy(registers, arguments[i].register, registers, parameters[i].getRegister(), parameters[i].getSize());
+                }
+            }
+            if (function.getBody().execute(frame) == GLSLStatement.DISCARD) {
+                return;
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                if (qualifiers[i] != GLSLFunction.IN) {
+                    final GLSLExpression argument = arguments[i];
+                    argument.prepare(frame);
+                    for (int ii = 0; ii < parameters[i].getSize(); ii++) {
+                        registers[argument.address(frame, ii)] = registers[parameters[i].getRegister() + ii];
+                    }
+                }
+            }
+            if (type != GLSLType.VOID) {
+                System.arraycopy(registers, function.getReturnRegister(), registers, register, type.getSize());
+            }
+        }
+    }
+
+    static class Componentwise extends GLSLExpression {
+        static final int RADIANS = 0;
+        static final int DEGREES = 1;
+        static final int SIN = 2;
+        static final int COS = 3;
+        static final int TAN = 4;
+        static final int ASIN = 5;
+        static final int ACOS = 6;
+        static final int ATAN = 7;
+        static final int ATAN2 = 8;
+        static final int POW = 9;
+        static final int EXP = 10;
+        static final int LOG = 11;
+        static final int EXP2 = 12;
+        static final int LOG2 = 13;
+        static final int SQRT = 14;
+        static final int INVERSE_SQRT = 15;
+        static final int ABS = 16;
+        static final int SIGN = 17;
+        static final int FLOOR = 18;
+        static final int CEIL = 19;
+        static final int FRACT = 20;
+        static final int TRUNC = 21;
+        static final int ROUND = 22;
+        static final int MOD = 23;
+        static final int MIN = 24;
+        static final int MAX = 25;
+        static final int CLAMP = 26;
+        static final int MIX = 27;
+        static final int STEP = 28;
+        static final int SMOOTH_STEP = 29;
+        static final int LESS_THAN = 30;
+        static final int LESS_THAN_EQUAL = 31;
+        static final int GREATER_THAN = 32;
+        static final int GREATER_THAN_EQUAL = 33;
+        static final int EQUAL = 34;
+        static final int NOT_EQUAL = 35;
+        static final int NOT = 36;
+        private static final float LOG_2 = (float) Math.log(2);
+        private final int operation;
+        private final GLSLExpression[] arguments;
+
+        // Applies a built-in function to each component, with scalar arguments applied to every component
+        Componentwise(int operation, GLSLExpression[] arguments, GLSLType type, int register) {
+            super(type, register);
+            this.operation = operation;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            for (GLSLExpression argument : arguments) {
+                argument.evaluate(frame);
+            }
+            final float[] registers = frame.registers;
+            final GLSLExpression first = arguments[0];
+            final GLSLExpression second = arguments.length > 1 ? arguments[1] : first;
+            final GLSLExpression third = arguments.length > 2 ? arguments[2] : first;
+            final int firstStep = first.type.getSize() == 1 ? 0 : 1;
+            final int secondStep = second.type.getSize() == 1 ? 0 : 1;
+            final int thirdStep = third.type.getSize() == 1 ? 0 : 1;
+            for (int i = 0; i < type.getSize(); i++) {
+                registers[register + i] = apply(registers[first.register + i * firstStep], registers[second.register + i * secondStep], registers[third.register + i * thirdStep]);
+            }
+        }
+
+        private float apply(float a, float b, float c) {
+            switch (operation) {
+                case RADIANS:
+                    return (float) Math.toRadians(a);
+                case DEGREES:
+                    return (float) Math.toDegrees(a);
+                case SIN:
+                    return (float) Math.sin(a);
+                case COS:
+                    return (float) Math.cos(a);
+                case TAN:
+                    return (float) Math.tan(a);
+                case ASIN:
+                    return (float) Math.asin(a);
+                case ACOS:
+                    return (float) Math.acos(a);
+                case ATAN:
+                    return (float) Math.atan(a);
+                case ATAN2:
+                    return (float) Math.atan2(a, b);
+                case POW:
+                    return (float) Math.pow(a, b);
+                case EXP:
+                    return (float) Math.exp(a);
+                case LOG:
+                    return (float) Math.log(a);
+                case EXP2:
+                    return (float) Math.pow(2, a);
+                case LOG2:
+                    return (float) Math.log(a) / LOG_2;
+                case SQRT:
+                    return (float) Math.sqrt(a);
+                case INVERSE_SQRT:
+                    return (float) (1 / Math.sqrt(a));
+                case ABS:
+                    return Math.abs(a);
+                case SIGN:
+                    return Math.signum(a);
+                case FLOOR:
+                    return (float) Math.floor(a);
+                case CEIL:
+                    return (float) Math.ceil(a);
+                case FRACT:
+                    return a - (float) Math.floor(a);
+                case TRUNC:
+                    return a < 0 ? (float) Math.ceil(a) : (float) Math.floor(a);
+                case ROUND:
+                    return Math.round(a);
+                case MOD:
+                    return a - b * (float) Math.floor(a / b);
+                case MIN:
+                    return Math.min(a, b);
+                case MAX:
+                    return Math.max(a, b);
+                case CLAMP:
+                    return Math.min(Math.max(a, b), c);
+                case MIX:
+                    return a + (b - a) * c;
+                case STEP:
+                    return b < a ? 0 : 1;
+                case SMOOTH_STEP: {
+                    final float t = Math.min(Math.max((c - a) / (b - a), 0), 1);
+                    return t * t * (3 - 2 * t);
+                }
+                case LESS_THAN:
+                    return a < b ? 1 : 0;
+                case LESS_THAN_EQUAL:
+                    return a <= b ? 1 : 0;
+                case GREATER_THAN:
+                    return a > b ? 1 : 0;
+                case GREATER_THAN_EQUAL:
+                    return a >= b ? 1 : 0;
+                case EQUAL:
+                    return a == b ? 1 : 0;
+                case NOT_EQUAL:
+                    return a != b ? 1 : 0;
+                case NOT:
+                    return a != 0 ? 0 : 1;
+                default:
+                    throw new IllegalStateException("Unknown operation: " + operation);
+            }
+        }
+    }
+
+    static class Geometric extends GLSLExpression {
+        static final int LENGTH = 0;
+        static final int DISTANCE = 1;
+        static final int DOT = 2;
+        static final int CROSS = 3;
+        static final int NORMALIZE = 4;
+        static final int FACE_FORWARD = 5;
+        static final int REFLECT = 6;
+        static final int REFRACT = 7;
+        static final int TRANSPOSE = 8;
+        static final int ANY = 9;
+        static final int ALL = 10;
+        private final int operation;
+        private final GLSLExpression[] arguments;
+
+        // Applies a built-in function to whole vectors or matrices
+        Geometric(int operation, GLSLExpression[] arguments, GLSLType type, int register) {
+            super(type, register);
+            this.operation = operation;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            for (GLSLExpression argument : arguments) {
+                argument.evaluate(frame);
+            }
+            final float[] r = frame.registers;
+            final int size = arguments[0].type.getSize();
+            final int a = arguments[0].register;
+            final int b = arguments.length > 1 ? arguments[1].register : a;
+            switch (operation) {
+                case LENGTH:
+                    r[register] = (float) Math.sqrt(dot(r, a, a, size));
+                    break;
+                case DISTANCE: {
+                    float sum = 0;
+                    for (int i = 0; i < size; i++) {
+                        final float d = r[a + i] - r[b + i];
+                        sum += d * d;
+                    }
+                    r[register] = (float) Math.sqrt(sum);
+                    break;
+                }
+                case DOT:
+                    r[register] = dot(r, a, b, size);
+                    break;
+                case CROSS:
+                    r[register] = r[a + 1] * r[b + 2] - r[a + 2] * r[b + 1];
+                    r[register + 1] = r[a + 2] * r[b] - r[a] * r[b + 2];
+                    r[register + 2] = r[a] * r[b + 1] - r[a + 1] * r[b];
+                    break;
+                case NORMALIZE: {
+                    final float scale = (float) (1 / Math.sqrt(dot(r, a, a, size)));
+                    for (int i = 0; i < size; i++) {
+                        r[register + i] = r[a + i] * scale;
+                    }
+                    break;
+                }
+                case FACE_FORWARD: {
+                    final float sign = dot(r, arguments[2].register, b, size) < 0 ? 1 : -1;
+                    for (int i = 0; i < size; i++) {
+                        r[register + i] = r[a + i] * sign;
+                    }
+                    break;
+                }
+                case REFLECT: {
+                    final float scale = 2 * dot(r, a, b, size);
+                    for (int i = 0; i < size; i++) {
+                        r[register + i] = r[a + i] - scale * r[b + i];
+                    }
+                    break;
+                }
+                case REFRACT: {
+                    final float eta = r[arguments[2].register];
+                    final float d = dot(r, a, b, size);
+                    final float k = 1 - eta * eta * (1 - d * d);
+                    final float scale = k < 0 ? 0 : eta * d + (float) Math.sqrt(k);
+                    for (int i = 0; i < size; i++) {
+                        r[register + i] = k < 0 ? 0 : eta * r[a + i] - scale * r[b + i];
+                    }
+                    break;
+                }
+                case TRANSPOSE: {
+                    final int columns = arguments[0].type.getColumns();
+                    for (int column = 0; column < columns; column++) {
+                        for (int row = 0; row < columns; row++) {
+                            r[register + column * columns + row] = r[a + row * columns + column];
+                        }
+                    }
+                    break;
+                }
+                case ANY:
+                case ALL: {
+                    boolean any = false;
+                    boolean all = true;
+                    for (int i = 0; i < size; i++) {
+                        any |= r[a + i] != 0;
+                        all &= r[a + i] != 0;
+                    }
+                    r[register] = (operation == ANY ? any : all) ? 1 : 0;
+                    break;
+                }
+            }
+        }
+
+        private static float dot(float[] registers, int a, int b, int size) {
+            float sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += registers[a + i] * registers[b + i];
+            }
+            return sum;
+        }
+    }
+
+    static class Texture extends GLSLExpression {
+        private final int sampler;
+        private final GLSLExpression coordinates;
+        // The level of detail bias, or the level itself when explicit, or null
+        private final GLSLExpression level;
+        private final boolean explicitLevel;
+        // The fragment shader input the coordinates were read from, and its components, for the derivatives used to select the level of detail
+        private final GLSLVariable input;
+        private final int[] inputComponents;
+
+        Texture(int sampler, GLSLExpression coordinates, GLSLExpression level, boolean explicitLevel, GLSLVariable input, int[] inputComponents, int register) {
+            super(GLSLType.VEC4, register);
+            this.sampler = sampler;
+            this.coordinates = coordinates;
+            this.level = level;
+            this.explicitLevel = explicitLevel;
+            this.input = input;
+            this.inputComponents = inputComponents;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            coordinates.evaluate(frame);
+            if (level != null) {
+                level.evaluate(frame);
+            }
+            final float[] registers = frame.registers;
+            final Sampler sampler = frame.samplers[this.sampler];
+            if (sampler == null) {
+                registers[register] = 0;
+                registers[register + 1] = 0;
+                registers[register + 2] = 0;
+                registers[register + 3] = 1;
+                return;
+            }
+            float levelOfDetail = 0;
+            if (explicitLevel) {
+                levelOfDetail = registers[level.register];
+            } else {
+                final int slot = input != null && frame.in != null ? frame.inputSlots[input.getIndex()] : -1;
+                if (slot >= 0) {
+                    final InBuffer in = frame.in;
+                    final int s = inputComponents[0];
+                    final int t = inputComponents[1];
+                    levelOfDetail = sampler.getLevelOfDetail(in.dFdx(slot, s), in.dFdx(slot, t), in.dFdy(slot, s), in.dFdy(slot, t));
+                }
+                if (level != null) {
+                    levelOfDetail += registers[level.register];
+                }
+            }
+            sampler.sample(registers[coordinates.register], registers[coordinates.register + 1], levelOfDetail, registers, register);
+        }
+    }
+
+    static class Derivative extends GLSLExpression {
+        static final int X = 0;
+        static final int Y = 1;
+        static final int WIDTH = 2;
+        private final int operation;
+        private final GLSLVariable input;
+        private final int[] components;
+
+        // The derivatives of components of a fragment shader input with respect to the window coordinates
+        Derivative(int operation, GLSLVariable input, int[] components, int register) {
+            super(GLSLType.vector(GLSLType.FLOAT, components.length), register);
+            this.operation = operation;
+            this.input = input;
+            this.components = components;
+        }
+
+        @Override
+        void evaluate(GLSLFrame frame) {
+            final float[] registers = frame.registers;
+            final int slot = frame.in != null ? frame.inputSlots[input.getIndex()] : -1;
+            for (int i = 0; i < components.length; i++) {
+                if (slot < 0) {
+                    registers[register + i] = 0;
+                    continue;
+                }
+                final int component = components[i];
+                switch (operation) {
+                    case X:
+                        registers[register + i] = frame.in.dFdx(slot, component);
+                        break;
+                    case Y:
+                        registers[register + i] = frame.in.dFdy(slot, component);
+                        break;
+                    default:
+                        registers[register + i] = Math.abs(frame.in.dFdx(slot, component)) + Math.abs(frame.in.dFdy(slot, component));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * A function declared in a compiled GLSL shader. Like in GLSL, functions can't be recursive, so the parameters and the return value have fixed registers.
+ */
+class GLSLFunction {
+    static final int IN = 0;
+    static final int OUT = 1;
+    static final int IN_OUT = 2;
+    private final String name;
+    private final GLSLType returnType;
+    private final GLSLVariable[] parameters;
+    private final int[] qualifiers;
+    private final int returnRegister;
+    // Null until the function is defined, if it was first declared by a prototype
+    private GLSLStatement body;
+
+    GLSLFunction(String name, GLSLType returnType, GLSLVariable[] parameters, int[] qualifiers, int returnRegister) {
+        this.name = name;
+        this.returnType = returnType;
+        this.parameters = parameters;
+        this.qualifiers = qualifiers;
+        this.returnRegister = returnRegister;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    GLSLType getReturnType() {
+        return returnType;
+    }
+
+    GLSLVariable[] getParameters() {
+        return parameters;
+    }
+
+    int[] getQualifiers() {
+        return qualifiers;
+    }
+
+    int getReturnRegister() {
+        return returnRegister;
+    }
+
+    GLSLStatement getBody() {
+        return body;
+    }
+
+    void setBody(GLSLStatement body) {
+        this.body = body;
+    }
+
+    // Whether or not the function has exactly the parameter types
+    boolean hasParameters(GLSLType[] types) {
+        if (types.length != parameters.length) {
+            return false;
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (parameters[i].getType() != types[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits GLSL source into tokens. Comments are removed, and the preprocessor directives are applied: object-like macros, and conditionals on whether or not a macro is defined. The version,
+ * extension and pragma directives are ignored.
+ */
+class GLSLLexer {
+    static final int IDENTIFIER = 0;
+    static final int INT = 1;
+    static final int FLOAT = 2;
+    static final int SYMBOL = 3;
+    static final int END = 4;
+    // Longest first, so that the longest symbol matches
+    private static final String[] SYMBOLS = {
+            "<<=", ">>=", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "==", "!=", "<=", ">=", "&&", "||", "^^", "<<", ">>",
+            "+", "-", "*", "/", "%", "=", "<", ">", "!", "~", "&", "|", "^", "?", ":", ";", ",", ".", "(", ")", "[", "]", "{", "}"
+    };
+    private static final int MAX_MACRO_DEPTH = 32;
+    private final Map<String, List<Token>> macros = new HashMap<>();
+    private final List<Token> tokens = new ArrayList<>();
+
+    private GLSLLexer() {
+        macros.put("__VERSION__", Collections.singletonList(new Token(INT, "120", 0)));
+    }
+
+    static List<Token> tokenize(String source) {
+        final GLSLLexer lexer = new GLSLLexer();
+        lexer.process(removeComments(source));
+        lexer.tokens.add(new Token(END, "end of source", source.split("\n", -1).length));
+        return lexer.tokens;
+    }
+
+    private static String removeComments(String source) {
+        // Comments are replaced by a space, keeping the line breaks so that the line numbers stay the same
+        final StringBuilder builder = new StringBuilder(source.length());
+        for (int i = 0; i < source.length(); i++) {
+            final char c = source.charAt(i);
+            if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '/') {
+                while (i < source.length() && source.charAt(i) != '\n') {
+                    i++;
+                }
+                builder.append(' ');
+                if (i < source.length()) {
+                    builder.append('\n');
+                }
+            } else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                i += 2;
+                while (i < source.length() && !(source.charAt(i) == '*' && i + 1 < source.length() && source.charAt(i + 1) == '/')) {
+                    if (source.charAt(i) == '\n') {
+                        builder.append('\n');
+                    }
+                    i++;
+                }
+                i++;
+                builder.append(' ');
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void process(String source) {
+        final String[] lines = source.split("\n", -1);
+        // Whether or not the lines are kept, for each nested conditional directive
+        final Deque<Boolean> conditions = new ArrayDeque<>();
+        boolean active = true;
+        for (int i = 0; i < lines.length; i++) {
+            final int line = i + 1;
+            final String text = lines[i].trim();
+            if (!text.startsWith("#")) {
+                if (active) {
+                    tokenize(text, line, tokens, 0, true);
+                }
+                continue;
+            }
+            final String[] directive = text.substring(1).trim().split("\\s+", 3);
+            final String argument = directive.length > 1 ? directive[1] : "";
+            switch (directive[0]) {
+                case "ifdef":
+                case "ifndef":
+                    conditions.push(active);
+                    active &= macros.containsKey(argument) == directive[0].equals("ifdef");
+                    break;
+                case "if":
+                    conditions.push(active);
+                    try {
+                        active &= Integer.parseInt(argument) != 0;
+                    } catch (NumberFormatException ex) {
+                        throw error(line, "Only integer literals are supported as #if conditions");
+                    }
+                    break;
+                case "else":
+                    if (conditions.isEmpty()) {
+                        throw error(line, "#else without #if");
+                    }
+                    active = conditions.peek() && !active;
+                    break;
+                case "endif":
+                    if (conditions.isEmpty()) {
+                        throw error(line, "#endif without #if");
+                    }
+                    active = conditions.pop();
+                    break;
+                default:
+                    if (active) {
+                        directive(directive, line);
+                    }
+            }
+        }
+        if (!conditions.isEmpty()) {
+            throw error(lines.length, "Missing #endif");
+        }
+    }
+
+    private void directive(String[] directive, int line) {
+        switch (directive[0]) {
+            case "":
+            case "version":
+            case "extension":
+            case "pragma":
+            case "line":
+                break;
+            case "define": {
+                if (directive.length < 2) {
+                    throw error(line, "Missing macro name");
+                }
+                if (directive[1].contains("(")) {
+                    throw error(line, "Function-like macros are not supported");
+                }
+                final List<Token> replacement = new ArrayList<>();
+                if (directive.length > 2) {
+                    tokenize(directive[2], line, replacement, 0, false);
+                }
+                macros.put(directive[1], replacement);
+                break;
+            }
+            case "undef":
+                if (directive.length > 1) {
+                    macros.remove(directive[1]);
+                }
+                break;
+            case "error":
+                throw error(line, directive.length > 1 ? directive[1] + (directive.length > 2 ? " " + directive[2] : "") : "#error");
+            default:
+                throw error(line, "Unsupported preprocessor directive: #" + directive[0]);
+        }
+    }
+
+    private void tokenize(String text, int line, List<Token> tokens, int depth, boolean expand) {
+        int i = 0;
+        while (i < text.length()) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (Character.isLetter(c) || c == '_') {
+                final int start = i;
+                while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+                    i++;
+                }
+                final String identifier = text.substring(start, i);
+                final List<Token> replacement = expand ? macros.get(identifier) : null;
+                if (replacement == null) {
+                    tokens.add(new Token(IDENTIFIER, identifier, line));
+                } else if (depth < MAX_MACRO_DEPTH) {
+                    // Macro definitions are tokenized when defined, but the macros they use are expanded when they're used
+                    for (Token token : replacement) {
+                        if (token.kind == IDENTIFIER) {
+                            tokenize(token.text, line, tokens, depth + 1, true);
+                        } else {
+                            tokens.add(new Token(token.kind, token.text, line));
+                        }
+                    }
+                } else {
+                    throw error(line, "Recursive macro: " + identifier);
+                }
+            } else if (Character.isDigit(c) || c == '.' && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1))) {
+                i = number(text, i, line, tokens);
+            } else {
+                String symbol = null;
+                for (String candidate : SYMBOLS) {
+                    if (text.startsWith(candidate, i)) {
+                        symbol = candidate;
+                        break;
+                    }
+                }
+                if (symbol == null) {
+                    throw error(line, "Unexpected character: " + c);
+                }
+                tokens.add(new Token(SYMBOL, symbol, line));
+                i += symbol.length();
+            }
+        }
+    }
+
+    private static int number(String text, int i, int line, List<Token> tokens) {
+        final int start = i;
+        if (text.startsWith("0x", i) || text.startsWith("0X", i)) {
+            i += 2;
+            while (i < text.length() && Character.digit(text.charAt(i), 16) >= 0) {
+                i++;
+            }
+            final String digits = text.substring(start + 2, i);
+            if (i < text.length() && (text.charAt(i) == 'u' || text.charAt(i) == 'U')) {
+                i++;
+            }
+            tokens.add(new Token(INT, Long.toString(Long.parseLong(digits, 16)), line));
+            return i;
+        }
+        boolean isFloat = false;
+        while (i < text.length() && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i < text.length() && text.charAt(i) == '.') {
+            isFloat = true;
+            i++;
+            while (i < text.length() && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+        }
+        if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            isFloat = true;
+            i++;
+            if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            while (i < text.length() && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+        }
+        final String number = text.substring(start, i);
+        if (i < text.length() && (text.charAt(i) == 'f' || text.charAt(i) == 'F')) {
+            isFloat = true;
+            i++;
+        } else if (i < text.length() && (text.charAt(i) == 'u' || text.charAt(i) == 'U')) {
+            i++;
+        }
+        try {
+            if (isFloat) {
+                tokens.add(new Token(FLOAT, Float.toString(Float.parseFloat(number)), line));
+            } else {
+                // Like in C, integers starting with a zero are octal
+                final int radix = number.length() > 1 && number.charAt(0) == '0' ? 8 : 10;
+                tokens.add(new Token(INT, Long.toString(Long.parseLong(number, radix)), line));
+            }
+        } catch (NumberFormatException ex) {
+            throw error(line, "Invalid number: " + number);
+        }
+        return i;
+    }
+
+    static IllegalArgumentException error(int line, String message) {
+        return new IllegalArgumentException("GLSL error at line " + line + ": " + message);
+    }
+
+    static class Token {
+        final int kind;
+        final String text;
+        final int line;
+
+        Token(int kind, String text, int line) {
+            this.kind = kind;
+            this.text = text;
+            this.line = line;
+        }
+
+        boolean is(String symbol) {
+            return kind == SYMBOL && text.equals(symbol) || kind == IDENTIFIER && text.equals(symbol);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.gl.Shader.ShaderType;
+
+/**
+ * A compiled GLSL shader. It holds no state of its own, so it's shared by all the shader implementations compiled from the same source.
+ */
+class GLSLProgram {
+    private final ShaderType type;
+    private final float[] registers;
+    private final GLSLStatement body;
+    private final Map<String, GLSLVariable> uniforms = new LinkedHashMap<>();
+    private final List<GLSLVariable> inputs;
+    private final List<GLSLVariable> outputs;
+    private final int samplerCount;
+    private final DataFormat[] outputFormat;
+
+    GLSLProgram(ShaderType type, float[] registers, GLSLStatement body, List<GLSLVariable> uniforms, List<GLSLVariable> inputs, List<GLSLVariable> outputs, int samplerCount) {
+        this.type = type;
+        this.registers = registers;
+        this.body = body;
+        for (GLSLVariable uniform : uniforms) {
+            this.uniforms.put(uniform.getName(), uniform);
+        }
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.samplerCount = samplerCount;
+        outputFormat = new DataFormat[outputs.size()];
+        for (int i = 0; i < outputFormat.length; i++) {
+            final GLSLType outputType = outputs.get(i).getType();
+            outputFormat[i] = new DataFormat(outputType.isInt() ? DataType.INT : DataType.FLOAT, outputType.getSize());
+        }
+    }
+
+    ShaderType getType() {
+        return type;
+    }
+
+    // The initial values of the registers, with the constants set
+    float[] getRegisters() {
+        return registers;
+    }
+
+    // The initialization of the global variables, followed by the main function
+    GLSLStatement getBody() {
+        return body;
+    }
+
+    Set<String> getUniformNames() {
+        return Collections.unmodifiableSet(uniforms.keySet());
+    }
+
+    GLSLVariable getUniform(String name) {
+        return uniforms.get(name);
+    }
+
+    Iterable<GLSLVariable> getUniforms() {
+        return uniforms.values();
+    }
+
+    // The attributes of vertex shaders, or the varyings of fragment shaders, preceded by the window coordinates
+    List<GLSLVariable> getInputs() {
+        return inputs;
+    }
+
+    // The position and varyings of vertex shaders, or the color of fragment shaders
+    List<GLSLVariable> getOutputs() {
+        return outputs;
+    }
+
+    int getSamplerCount() {
+        return samplerCount;
+    }
+
+    DataFormat[] getOutputFormat() {
+        return outputFormat;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.flowpowered.math.matrix.Matrix2f;
+import com.flowpowered.math.matrix.Matrix3f;
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.math.vector.Vector4f;
+
+import gnu.trove.map.TObjectIntMap;
+
+import org.spout.renderer.api.gl.Shader.ShaderType;
+
+/**
+ * A shader implementation which runs a compiled GLSL shader, by interpreting its trees of expressions and statements on a frame of registers for each thread. The vertex shader inputs are mapped
+ * to the attributes by the attribute layouts, and the fragment shader inputs to the vertex shader outputs by name, once linked.
+ */
+class GLSLShader extends ShaderImplementation {
+    private final GLSLProgram program;
+    private final UniformValues uniforms;
+    // The input variable read from each slot of the input buffer, or null if the slot isn't read, and the slot of each input variable, or -1 if unmapped
+    private final GLSLVariable[] slotInputs;
+    private final int[] inputSlots;
+    // The registers and sizes of the outputs, in order
+    private final int[] outputRegisters;
+    private final int[] outputSizes;
+    private final ThreadLocal<GLSLFrame> frames = new ThreadLocal<GLSLFrame>() {
+        @Override
+        protected GLSLFrame initialValue() {
+            return createFrame();
+        }
+    };
+
+    GLSLShader(GLSLProgram program, TObjectIntMap<String> attributeLayouts) {
+        this(program, new UniformValues(program), attributeLayouts, null);
+    }
+
+    private GLSLShader(GLSLProgram program, UniformValues uniforms, TObjectIntMap<String> attributeLayouts, ShaderImplementation vertexShader) {
+        super(program.getType(), program.getOutputFormat());
+        this.program = program;
+        this.uniforms = uniforms;
+        final List<GLSLVariable> inputs = program.getInputs();
+        inputSlots = new int[inputs.size()];
+        if (program.getType() == ShaderType.VERTEX) {
+            mapAttributes(attributeLayouts);
+        } else if (vertexShader instanceof GLSLShader) {
+            mapVaryings(((GLSLShader) vertexShader).program.getOutputs());
+        } else {
+            // The window coordinates, followed by the varyings in the order they're declared
+            for (int i = 0; i < inputSlots.length; i++) {
+                inputSlots[i] = i;
+            }
+        }
+        int slotCount = 0;
+        for (int slot : inputSlots) {
+            slotCount = Math.max(slotCount, slot + 1);
+        }
+        slotInputs = new GLSLVariable[slotCount];
+        for (int i = 0; i < inputSlots.length; i++) {
+            if (inputSlots[i] >= 0) {
+                slotInputs[inputSlots[i]] = inputs.get(i);
+            }
+        }
+        final List<GLSLVariable> outputs = program.getOutputs();
+        outputRegisters = new int[outputs.size()];
+        outputSizes = new int[outputs.size()];
+        for (int i = 0; i < outputRegisters.length; i++) {
+            outputRegisters[i] = outputs.get(i).getRegister();
+            outputSizes[i] = outputs.get(i).getType().getSize();
+        }
+    }
+
+    private void mapAttributes(TObjectIntMap<String> attributeLayouts) {
+        final List<GLSLVariable> inputs = program.getInputs();
+        boolean[] used = new boolean[inputs.size()];
+        // Use the attribute layouts first, then the layout qualifiers, then the free slots in the order the attributes are declared
+        for (int i = 0; i < inputSlots.length; i++) {
+            final GLSLVariable input = inputs.get(i);
+            int slot = attributeLayouts.containsKey(input.getName()) ? attributeLayouts.get(input.getName()) : input.getLocation();
+            if (slot >= used.length) {
+                used = Arrays.copyOf(used, slot + 1);
+            }
+            if (slot >= 0 && used[slot]) {
+                throw new IllegalStateException("Attribute \"" + input.getName() + "\" has the same location as another: " + slot);
+            }
+            if (slot >= 0) {
+                used[slot] = true;
+            }
+            inputSlots[i] = slot;
+        }
+        int free = 0;
+        for (int i = 0; i < inputSlots.length; i++) {
+            if (inputSlots[i] < 0) {
+                while (free < used.length && used[free]) {
+                    free++;
+                }
+                inputSlots[i] = free++;
+            }
+        }
+    }
+
+    private void mapVaryings(List<GLSLVariable> vertexOutputs) {
+        final List<GLSLVariable> inputs = program.getInputs();
+        // The window coordinates replace the position
+        inputSlots[0] = 0;
+        for (int i = 1; i < inputSlots.length; i++) {
+            final GLSLVariable input = inputs.get(i);
+            int slot = -1;
+            for (int j = 1; j < vertexOutputs.size(); j++) {
+                final GLSLVariable output = vertexOutputs.get(j);
+                if (output.getName().equals(input.getName())) {
+                    if (output.getType() != input.getType()) {
+                        throw new IllegalStateException("Varying \"" + input.getName() + "\" has different types in the vertex and fragment shaders");
+                    }
+                    slot = j;
+                }
+            }
+            if (slot < 0 && input.isUsed()) {
+                throw new IllegalStateException("Fragment shader input \"" + input.getName() + "\" isn't written by the vertex shader");
+            }
+            inputSlots[i] = slot;
+        }
+    }
+
+    private GLSLFrame createFrame() {
+        final float[] registers = program.getRegisters().clone();
+        // Inputs missing from the buffers default to (0, 0, 0, 1)
+        for (GLSLVariable input : program.getInputs()) {
+            if (input.getType().getSize() == 4) {
+                registers[input.getRegister() + 3] = 1;
+            }
+        }
+        return new GLSLFrame(registers, new Sampler[program.getSamplerCount()], inputSlots);
+    }
+
+    @Override
+    ShaderImplementation link(SoftwareShader vertexShader, SoftwareShader fragmentShader) {
+        if (program.getType() == ShaderType.VERTEX) {
+            return new GLSLShader(program, uniforms, vertexShader.getAttributeLayouts(), null);
+        }
+        return new GLSLShader(program, uniforms, null, vertexShader.getImplementation());
+    }
+
+    @Override
+    public void main(InBuffer in, OutBuffer out) {
+        final GLSLFrame frame = frames.get();
+        final float[] registers = frame.registers;
+        final UniformValues uniforms = this.uniforms;
+        if (frame.uniformVersion != uniforms.version) {
+            frame.uniformVersion = uniforms.version;
+            for (GLSLVariable uniform : program.getUniforms()) {
+                if (uniform.getType() == GLSLType.SAMPLER2D) {
+                    frame.samplers[uniform.getIndex()] = uniforms.samplers[uniform.getIndex()];
+                } else {
+                    System.arraycopy(uniforms.values, uniform.getRegister(), registers, uniform.getRegister(), uniform.getSize());
+                }
+            }
+        }
+        // Read the inputs into their registers, completing the missing components with the defaults
+        final ShaderBuffer buffer = (ShaderBuffer) in;
+        final GLSLVariable[] slotInputs = this.slotInputs;
+        final int slotCount = buffer.getFormat().length;
+        for (int slot = 0; slot < slotInputs.length; slot++) {
+            final GLSLVariable input = slotInputs[slot];
+            if (input == null) {
+                if (slot < slotCount) {
+                    buffer.skip();
+                }
+                continue;
+            }
+            final int register = input.getRegister();
+            final int size = input.getType().getSize();
+            final int read = slot < slotCount ? buffer.readFloats(registers, register, size) : 0;
+            for (int i = read; i < size; i++) {
+                registers[register + i] = i == 3 ? 1 : 0;
+            }
+        }
+        frame.in = in;
+        frame.discarded = false;
+        program.getBody().execute(frame);
+        frame.in = null;
+        if (frame.discarded) {
+            out.discard();
+            return;
+        }
+        final int[] outputRegisters = this.outputRegisters;
+        final int[] outputSizes = this.outputSizes;
+        for (int i = 0; i < outputRegisters.length; i++) {
+            out.writeFloats(registers, outputRegisters[i], outputSizes[i]);
+        }
+    }
+
+    @Override
+    public ShaderType getType() {
+        return program.getType();
+    }
+
+    @Override
+    Set<String> getUniformNames() {
+        return program.getUniformNames();
+    }
+
+    @Override
+    MethodHandle getUniformSetter(String name) {
+        final GLSLVariable uniform = program.getUniform(name);
+        if (uniform == null) {
+            return null;
+        }
+        final GLSLType type = uniform.getType();
+        final int register = uniform.getRegister();
+        try {
+            if (uniform.getArrayLength() > 0) {
+                final Class<?> valueType = type == GLSLType.FLOAT ? float[].class : type == GLSLType.VEC2 ? Vector2f[].class : Vector3f[].class;
+                final String setter = type == GLSLType.FLOAT ? "setFloats" : type == GLSLType.VEC2 ? "setVector2s" : "setVector3s";
+                return bindSetter(setter, valueType, register, uniform.getArrayLength());
+            }
+            switch (type) {
+                case BOOL:
+                    return bindSetter("setBoolean", boolean.class, register);
+                case INT:
+                    return bindSetter("setInt", int.class, register);
+                case FLOAT:
+                    return bindSetter("setFloat", float.class, register);
+                case VEC2:
+                    return bindSetter("setVector2", Vector2f.class, register);
+                case VEC3:
+                    return bindSetter("setVector3", Vector3f.class, register);
+                case VEC4:
+                    return bindSetter("setVector4", Vector4f.class, register);
+                case MAT2:
+                    return bindSetter("setMatrix2", Matrix2f.class, register);
+                case MAT3:
+                    return bindSetter("setMatrix3", Matrix3f.class, register);
+                case MAT4:
+                    return bindSetter("setMatrix4", Matrix4f.class, register);
+                case SAMPLER2D:
+                    return bindSetter("setSampler", Sampler.class, uniform.getIndex());
+                default:
+                    throw new IllegalStateException("Unsupported uniform type: " + type.getName());
+            }
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new IllegalStateException("Could not access uniform setter in shader", ex);
+        }
+    }
+
+    // Binds a setter to this shader and its leading int arguments, leaving only the value as a parameter
+    private MethodHandle bindSetter(String name, Class<?> valueType, int... arguments) throws NoSuchMethodException, IllegalAccessException {
+        final Class<?>[] parameters = new Class<?>[arguments.length + 1];
+        Arrays.fill(parameters, int.class);
+        parameters[arguments.length] = valueType;
+        final MethodHandle setter = MethodHandles.lookup().findVirtual(GLSLShader.class, name, MethodType.methodType(void.class, parameters));
+        final Object[] bound = new Object[arguments.length + 1];
+        bound[0] = this;
+        for (int i = 0; i < arguments.length; i++) {
+            bound[i + 1] = arguments[i];
+        }
+        return MethodHandles.insertArguments(setter, 0, bound);
+    }
+
+    private void setBoolean(int register, boolean b) {
+        uniforms.values[register] = b ? 1 : 0;
+        uniforms.update();
+    }
+
+    private void setInt(int register, int i) {
+        uniforms.values[register] = i;
+        uniforms.update();
+    }
+
+    private void setFloat(int register, float f) {
+        uniforms.values[register] = f;
+        uniforms.update();
+    }
+
+    private void setFloats(int register, int length, float[] fs) {
+        System.arraycopy(fs, 0, uniforms.values, register, Math.min(fs.length, length));
+        uniforms.update();
+    }
+
+    private void setVector2(int register, Vector2f v) {
+        final float[] values = uniforms.values;
+        values[register] = v.getX();
+        values[register + 1] = v.getY();
+        uniforms.update();
+    }
+
+    private void setVector2s(int register, int length, Vector2f[] vs) {
+        final float[] values = uniforms.values;
+        for (int i = 0; i < Math.min(vs.length, length); i++) {
+            values[register + i * 2] = vs[i].getX();
+            values[register + i * 2 + 1] = vs[i].getY();
+        }
+        uniforms.update();
+    }
+
+    private void setVector3(int register, Vector3f v) {
+        final float[] values = uniforms.values;
+        values[register] = v.getX();
+        values[register + 1] = v.getY();
+        values[register + 2] = v.getZ();
+        uniforms.update();
+    }
+
+    private void setVector3s(int register, int length, Vector3f[] vs) {
+        final float[] values = uniforms.values;
+        for (int i = 0; i < Math.min(vs.length, length); i++) {
+            values[register + i * 3] = vs[i].getX();
+            values[register + i * 3 + 1] = vs[i].getY();
+            values[register + i * 3 + 2] = vs[i].getZ();
+        }
+        uniforms.update();
+    }
+
+    private void setVector4(int register, Vector4f v) {
+        final float[] values = uniforms.values;
+        values[register] = v.getX();
+        values[register + 1] = v.getY();
+        values[register + 2] = v.getZ();
+        values[register + 3] = v.getW();
+        uniforms.update();
+    }
+
+    // Matrices are stored by column, like in OpenGL
+    private void setMatrix2(int register, Matrix2f m) {
+        final float[] values = uniforms.values;
+        for (int column = 0; column < 2; column++) {
+            for (int row = 0; row < 2; row++) {
+                values[register + column * 2 + row] = m.get(row, column);
+            }
+        }
+        uniforms.update();
+    }
+
+    private void setMatrix3(int register, Matrix3f m) {
+        final float[] values = uniforms.values;
+        for (int column = 0; column < 3; column++) {
+            for (int row = 0; row < 3; row++) {
+                values[register + column * 3 + row] = m.get(row, column);
+            }
+        }
+        uniforms.update();
+    }
+
+    private void setMatrix4(int register, Matrix4f m) {
+        final float[] values = uniforms.values;
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                values[register + column * 4 + row] = m.get(row, column);
+            }
+        }
+        uniforms.update();
+    }
+
+    private void setSampler(int index, Sampler sampler) {
+        uniforms.samplers[index] = sampler;
+        uniforms.update();
+    }
+
+    // The uniform values, shared by the shaders linked from the same compiled shader, and copied into the registers of each thread when updated
+    private static class UniformValues {
+        private final float[] values;
+        private final Sampler[] samplers;
+        private volatile int version = 0;
+
+        private UniformValues(GLSLProgram program) {
+            values = program.getRegisters().clone();
+            samplers = new Sampler[program.getSamplerCount()];
+        }
+
+        private void update() {
+            version++;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * A statement of a compiled GLSL shader. Executing a statement returns how the control flow continues.
+ */
+abstract class GLSLStatement {
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
+    static final int RETURN = 3;
+    static final int DISCARD = 4;
+
+    abstract int execute(GLSLFrame frame);
+
+    static class Block extends GLSLStatement {
+        private final GLSLStatement[] statements;
+
+        Block(GLSLStatement[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            for (GLSLStatement statement : statements) {
+                final int result = statement.execute(frame);
+                if (result != NORMAL) {
+                    return result;
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Evaluate extends GLSLStatement {
+        private final GLSLExpression expression;
+
+        Evaluate(GLSLExpression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            expression.evaluate(frame);
+            // A called function might have discarded the fragment
+            return frame.discarded ? DISCARD : NORMAL;
+        }
+    }
+
+    static class If extends GLSLStatement {
+        private final GLSLExpression condition;
+        private final GLSLStatement then;
+        private final GLSLStatement otherwise;
+
+        If(GLSLExpression condition, GLSLStatement then, GLSLStatement otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            condition.evaluate(frame);
+            if (frame.discarded) {
+                return DISCARD;
+            }
+            if (frame.registers[condition.register] != 0) {
+                return then.execute(frame);
+            }
+            return otherwise != null ? otherwise.execute(frame) : NORMAL;
+        }
+    }
+
+    static class Loop extends GLSLStatement {
+        private final GLSLExpression condition;
+        private final GLSLExpression step;
+        private final GLSLStatement body;
+        // Whether or not the condition is tested after the body, for do-while loops
+        private final boolean testAfter;
+
+        Loop(GLSLExpression condition, GLSLExpression step, GLSLStatement body, boolean testAfter) {
+            this.condition = condition;
+            this.step = step;
+            this.body = body;
+            this.testAfter = testAfter;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            boolean first = testAfter;
+            while (true) {
+                if (!first && condition != null) {
+                    condition.evaluate(frame);
+                    if (frame.discarded) {
+                        return DISCARD;
+                    }
+                    if (frame.registers[condition.register] == 0) {
+                        return NORMAL;
+                    }
+                }
+                first = false;
+                final int result = body.execute(frame);
+                if (result == BREAK) {
+                    return NORMAL;
+                }
+                if (result == RETURN || result == DISCARD) {
+                    return result;
+                }
+                if (step != null) {
+                    step.evaluate(frame);
+                    if (frame.discarded) {
+                        return DISCARD;
+                    }
+                }
+            }
+        }
+    }
+
+    static class Jump extends GLSLStatement {
+        private final int result;
+
+        Jump(int result) {
+            this.result = result;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            if (result == DISCARD) {
+                frame.discarded = true;
+            }
+            return result;
+        }
+    }
+
+    static class Return extends GLSLStatement {
+        private final GLSLExpression value;
+        private final int register;
+
+        Return(GLSLExpression value, int register) {
+            this.value = value;
+            this.register = register;
+        }
+
+        @Override
+        int execute(GLSLFrame frame) {
+            if (value != null) {
+                value.evaluate(frame);
+                if (frame.discarded) {
+                    return DISCARD;
+                }
+                System.arraycopy(frame.registers, value.register, frame.registers, register, value.type.getSize());
+            }
+            return RETURN;
+        }
+    }
+}
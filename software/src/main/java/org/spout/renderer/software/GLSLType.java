@@ -0,0 +1,157 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The types of the GLSL subset compiled by {@link org.spout.renderer.software.GLSLCompiler}. All values are stored as floats, with booleans as zero or one, and matrices in column major order.
+ */
+enum GLSLType {
+    VOID("void", null, 0, 0),
+    BOOL("bool", null, 1, 0),
+    INT("int", null, 1, 0),
+    FLOAT("float", null, 1, 0),
+    BVEC2("bvec2", BOOL, 2, 0),
+    BVEC3("bvec3", BOOL, 3, 0),
+    BVEC4("bvec4", BOOL, 4, 0),
+    IVEC2("ivec2", INT, 2, 0),
+    IVEC3("ivec3", INT, 3, 0),
+    IVEC4("ivec4", INT, 4, 0),
+    VEC2("vec2", FLOAT, 2, 0),
+    VEC3("vec3", FLOAT, 3, 0),
+    VEC4("vec4", FLOAT, 4, 0),
+    MAT2("mat2", FLOAT, 4, 2),
+    MAT3("mat3", FLOAT, 9, 3),
+    MAT4("mat4", FLOAT, 16, 4),
+    SAMPLER2D("sampler2D", null, 1, 0);
+    private static final Map<String, GLSLType> NAMES = new HashMap<>();
+    private final String name;
+    private final GLSLType component;
+    private final int size;
+    private final int columns;
+
+    static {
+        for (GLSLType type : values()) {
+            NAMES.put(type.name, type);
+        }
+    }
+
+    private GLSLType(String name, GLSLType component, int size, int columns) {
+        this.name = name;
+        this.component = component;
+        this.size = size;
+        this.columns = columns;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // The scalar type of the components, which is the type itself for scalars
+    GLSLType getComponentType() {
+        return component != null ? component : this;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    GLSLType getColumnType() {
+        return vector(FLOAT, columns);
+    }
+
+    boolean isNumeric() {
+        return this != VOID && this != SAMPLER2D;
+    }
+
+    boolean isScalar() {
+        return size == 1 && isNumeric();
+    }
+
+    boolean isVector() {
+        return size > 1 && columns == 0;
+    }
+
+    boolean isMatrix() {
+        return columns > 0;
+    }
+
+    boolean isFloat() {
+        return getComponentType() == FLOAT;
+    }
+
+    boolean isInt() {
+        return getComponentType() == INT;
+    }
+
+    boolean isBool() {
+        return getComponentType() == BOOL;
+    }
+
+    // Whether or not a value of the type can be used where this type is expected, with the implicit int to float conversions
+    boolean accepts(GLSLType type) {
+        return type == this || isFloat() && !isMatrix() && type.isInt() && type.size == size;
+    }
+
+    static GLSLType vector(GLSLType component, int size) {
+        switch (size) {
+            case 1:
+                return component;
+            case 2:
+                return component == BOOL ? BVEC2 : component == INT ? IVEC2 : VEC2;
+            case 3:
+                return component == BOOL ? BVEC3 : component == INT ? IVEC3 : VEC3;
+            case 4:
+                return component == BOOL ? BVEC4 : component == INT ? IVEC4 : VEC4;
+            default:
+                throw new IllegalArgumentException("No vector of size " + size);
+        }
+    }
+
+    static GLSLType matrix(int columns) {
+        switch (columns) {
+            case 2:
+                return MAT2;
+            case 3:
+                return MAT3;
+            case 4:
+                return MAT4;
+            default:
+                throw new IllegalArgumentException("No matrix of size " + columns);
+        }
+    }
+
+    static GLSLType forName(String name) {
+        return NAMES.get(name);
+    }
+}
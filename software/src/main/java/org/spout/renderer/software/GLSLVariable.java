@@ -0,0 +1,112 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * A variable of a compiled GLSL shader, stored in registers from its first one.
+ */
+class GLSLVariable {
+    static final int LOCAL = 0;
+    static final int GLOBAL = 1;
+    static final int UNIFORM = 2;
+    static final int INPUT = 3;
+    static final int OUTPUT = 4;
+    private final String name;
+    private final GLSLType type;
+    private final int arrayLength;
+    private final int kind;
+    private final boolean constant;
+    private final int register;
+    // The layout location, or -1 if none was declared
+    private int location = -1;
+    // The index among the variables of the same kind, used for inputs, outputs and samplers
+    private int index = -1;
+    private boolean used = false;
+
+    GLSLVariable(String name, GLSLType type, int arrayLength, int kind, boolean constant, int register) {
+        this.name = name;
+        this.type = type;
+        this.arrayLength = arrayLength;
+        this.kind = kind;
+        this.constant = constant;
+        this.register = register;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    GLSLType getType() {
+        return type;
+    }
+
+    // The number of elements if the variable is an array, zero otherwise
+    int getArrayLength() {
+        return arrayLength;
+    }
+
+    int getKind() {
+        return kind;
+    }
+
+    int getRegister() {
+        return register;
+    }
+
+    // The number of registers used by the variable
+    int getSize() {
+        return type.getSize() * Math.max(arrayLength, 1);
+    }
+
+    boolean isAssignable() {
+        return !constant && kind != UNIFORM && kind != INPUT;
+    }
+
+    int getLocation() {
+        return location;
+    }
+
+    void setLocation(int location) {
+        this.location = location;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    boolean isUsed() {
+        return used;
+    }
+
+    void setUsed() {
+        used = true;
+    }
+}
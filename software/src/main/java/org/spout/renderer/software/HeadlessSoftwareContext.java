@@ -0,0 +1,41 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * A software context without any window. Frames are rendered into memory only, and can be retrieved with {@link #readFrame(org.spout.renderer.api.util.Rectangle,
+ * org.spout.renderer.api.gl.Texture.InternalFormat)}. This context doesn't depend on AWT, and can be used on headless machines. Updating the display does nothing, and closing the window is never
+ * requested.
+ */
+public class HeadlessSoftwareContext extends SoftwareContext {
+    /**
+     * Constructs a new headless software context.
+     */
+    public HeadlessSoftwareContext() {
+        super(true);
+    }
+}
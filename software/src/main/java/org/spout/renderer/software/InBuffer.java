@@ -54,4 +54,57 @@ public interface InBuffer {
     Vector4f readVector4f();
 
     void skip();
+
+    /**
+     * Returns a component of the current input without advancing to the next one. Components missing from the input are zero.
+     *
+     * @param component The component of the input
+     * @return The component as an int
+     */
+    int getInt(int component);
+
+    /**
+     * Returns a component of the current input without advancing to the next one. Components missing from the input are zero.
+     *
+     * @param component The component of the input
+     * @return The component as a float
+     */
+    float getFloat(int component);
+
+    /**
+     * Reads the remaining components of the current input into the array, then advances to the next input.
+     *
+     * @param destination The array to read into
+     * @param offset The index in the array of the first component
+     * @return The number of components read
+     */
+    int readInts(int[] destination, int offset);
+
+    /**
+     * Reads the remaining components of the current input into the array, then advances to the next input.
+     *
+     * @param destination The array to read into
+     * @param offset The index in the array of the first component
+     * @return The number of components read
+     */
+    int readFloats(float[] destination, int offset);
+
+    /**
+     * Returns the derivative of a fragment shader input with respect to the window x coordinate. Returns zero for integer inputs, vertex shader inputs and primitives other than triangles.
+     *
+     * @param slot The index of the input in the format
+     * @param component The component of the input
+     * @return The derivative in x
+     */
+    float dFdx(int slot, int component);
+
+    /**
+     * Returns the derivative of a fragment shader input with respect to the window y coordinate, which increases downwards. Returns zero for integer inputs, vertex shader inputs and primitives
+     * other than triangles.
+     *
+     * @param slot The index of the input in the format
+     * @param component The component of the input
+     * @return The derivative in y
+     */
+    float dFdy(int slot, int component);
 }
@@ -0,0 +1,284 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+/**
+ * Clips lines in homogeneous coordinates, then rasterizes them with a DDA: the major axis advances one pixel at a time, while the minor coordinate is stepped in fixed point. The depth, 1/w and the
+ * vertex shader outputs divided by w are linear along the line in window coordinates, so they are stepped by forward differences instead of being interpolated for each fragment, and the outputs are
+ * divided by the interpolated 1/w to be perspective correct. Points are drawn as squares of the point size. Like for triangles, the view port edges are on pixel edges and pixels are sampled at their
+ * centers: lines cover the pixels whose centers they cross along the major axis, and points the pixels whose centers are in their square.
+ * <p/>
+ * Fragments outside of the view port, the scissor rectangle or the render target are skipped, and the others are depth tested before their inputs are written.
+ */
+class LineRasterizer {
+    // The minor coordinate of lines is stepped with 32 fractional bits
+    private static final int FIXED_SHIFT = 32;
+    private static final double FIXED_SCALE = 1L << FIXED_SHIFT;
+    private final RasterState state;
+    private final ShaderPipeline pipeline;
+    private final ShaderImplementation fragmentShader;
+    private final boolean clampDepth;
+    // Whether clip space z is mapped from 0 to w to the depths, instead of from -w to w
+    private final boolean reversedDepth;
+    // View port transform
+    private final float viewPortX, viewPortY, viewPortWidth, viewPortHeight;
+    // Rasterization bounds (inclusive), the view port restricted to the render target and the scissor rectangle
+    private final int minX, minY, maxX, maxY;
+    // The width of the points in pixels
+    private final int pointSize;
+    private final ShaderBuffer fragmentIn;
+    private final ShaderBuffer fragmentOut;
+    // The vertex shader outputs excluding the position, divided by w for lines: their values at the current fragment and their change from one fragment to the next
+    private final int outputsSize;
+    private final float[] outputs;
+    private final float[] outputSteps;
+    // The visible fraction of the line being clipped, from its start to its end
+    private final float[] clip = new float[2];
+
+    LineRasterizer(RasterState state, ShaderPipeline pipeline) {
+        this.state = state;
+        this.pipeline = pipeline;
+        fragmentShader = pipeline.getFragmentShader();
+        clampDepth = state.isClampDepth();
+        reversedDepth = state.isReversedDepth();
+        viewPortX = state.getViewPortX();
+        viewPortY = state.getViewPortY();
+        viewPortWidth = state.getViewPortWidth();
+        viewPortHeight = state.getViewPortHeight();
+        minX = state.getMinX();
+        minY = state.getMinY();
+        maxX = state.getMaxX();
+        maxY = state.getMaxY();
+        // Like OpenGL, the size of aliased points is rounded to the nearest integer
+        pointSize = Math.max(Math.round(state.getPointSize()), 1);
+        final DataFormat[] vertexOutputFormat = pipeline.getVertexOutputFormat();
+        fragmentIn = new ShaderBuffer(vertexOutputFormat);
+        fragmentOut = new ShaderBuffer(SoftwareRenderer.FRAGMENT_OUTPUT);
+        outputsSize = pipeline.getOutputsSize();
+        outputs = new float[outputsSize];
+        outputSteps = new float[outputsSize];
+    }
+
+    /**
+     * Draws a point as a square centered on the vertex, if the vertex is inside of the view volume. All the fragments of the point use the vertex shader outputs of the vertex.
+     *
+     * @param vertex The shaded vertex, read from the start
+     */
+    void drawPoint(ShaderBuffer vertex) {
+        final int[] data = vertex.array();
+        float x = Float.intBitsToFloat(data[0]);
+        float y = Float.intBitsToFloat(data[1]);
+        float z = Float.intBitsToFloat(data[2]);
+        final float w = Float.intBitsToFloat(data[3]);
+        // Perform clipping, ignoring z clipping when depth clamping is active
+        if (w == 0 || x < -w || x > w || y < -w || y > w || !clampDepth && (z < (reversedDepth ? 0 : -w) || z > w)) {
+            return;
+        }
+        // Compute the window coordinates, storing 1/w in w so that the fragment position vector is the same as in OpenGL
+        final float wInverse = 1 / w;
+        x = toWindowX(x * wInverse);
+        y = toWindowY(y * wInverse);
+        z = toWindowZ(z * wInverse);
+        // The square of pixels with their centers in the point, restricted to the rasterization bounds
+        final int pointX = (int) Math.floor(x - pointSize * 0.5f + 0.5f), pointY = (int) Math.floor(y - pointSize * 0.5f + 0.5f);
+        final int startX = Math.max(pointX, minX);
+        final int startY = Math.max(pointY, minY);
+        final int endX = Math.min(pointX + pointSize - 1, maxX);
+        final int endY = Math.min(pointY + pointSize - 1, maxY);
+        if (startX > endX || startY > endY) {
+            return;
+        }
+        state.touch(startX, startY, endX, endY);
+        for (int i = 0; i < outputsSize; i++) {
+            outputs[i] = pipeline.isFloatOutput(i) ? Float.intBitsToFloat(data[4 + i]) : data[4 + i];
+        }
+        for (int yy = startY; yy <= endY; yy++) {
+            for (int xx = startX; xx <= endX; xx++) {
+                writeFragment(xx, yy, z, wInverse, 1);
+            }
+        }
+    }
+
+    /**
+     * Draws a line between the two vertices, after clipping it to the view volume.
+     *
+     * @param vertex1 The first shaded vertex, read from the start
+     * @param vertex2 The second shaded vertex, read from the start
+     */
+    void drawLine(ShaderBuffer vertex1, ShaderBuffer vertex2) {
+        final int[] data1 = vertex1.array();
+        final int[] data2 = vertex2.array();
+        final float x1 = Float.intBitsToFloat(data1[0]), y1 = Float.intBitsToFloat(data1[1]), z1 = Float.intBitsToFloat(data1[2]), w1 = Float.intBitsToFloat(data1[3]);
+        final float x2 = Float.intBitsToFloat(data2[0]), y2 = Float.intBitsToFloat(data2[1]), z2 = Float.intBitsToFloat(data2[2]), w2 = Float.intBitsToFloat(data2[3]);
+        final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
+        // Clip the line parametrically: the visible part goes from start to end, as fractions of the line from the first vertex to the second
+        clip[0] = 0;
+        clip[1] = 1;
+        if (!clip(w1 + x1, dw + dx) || !clip(w1 - x1, dw - dx) || !clip(w1 + y1, dw + dy) || !clip(w1 - y1, dw - dy)) {
+            return;
+        }
+        // The near clipping plane is z = -w, or z = 0 when the depth is reversed, and we ignore z clipping when depth clamping is active
+        if (!clampDepth && (!clip(reversedDepth ? z1 : w1 + z1, reversedDepth ? dz : dw + dz) || !clip(w1 - z1, dw - dz))) {
+            return;
+        }
+        final float start = clip[0], end = clip[1];
+        final float startW = w1 + start * dw, endW = w1 + end * dw;
+        if (startW <= 0 || endW <= 0) {
+            return;
+        }
+        // Compute the window coordinates of the ends, storing 1/w in w so that the fragment position vector is the same as in OpenGL
+        final float startWInverse = 1 / startW, endWInverse = 1 / endW;
+        final float startX = toWindowX((x1 + start * dx) * startWInverse), startY = toWindowY((y1 + start * dy) * startWInverse);
+        final float startZ = toWindowZ((z1 + start * dz) * startWInverse);
+        final float endX = toWindowX((x1 + end * dx) * endWInverse), endY = toWindowY((y1 + end * dy) * endWInverse);
+        final float endZ = toWindowZ((z1 + end * dz) * endWInverse);
+        final float xDiff = endX - startX, yDiff = endY - startY;
+        // Step along the axis with the largest difference, from the smallest coordinate
+        final boolean xMajor = Math.abs(xDiff) > Math.abs(yDiff);
+        final float majorStart = xMajor ? startX : startY, majorDiff = xMajor ? xDiff : yDiff;
+        // The first pixel, the fraction of the window space line at its center, and the increment of the fraction per pixel
+        int major;
+        final float first, step;
+        final int length;
+        if (majorDiff == 0) {
+            // If the two ends of the line are at the same position, use the closest
+            major = (int) Math.floor(majorStart);
+            first = (reversedDepth ? startZ > endZ : startZ < endZ) ? 0 : 1;
+            step = 0;
+            length = 1;
+        } else {
+            // The pixels with their centers from the smallest end, included, to the largest, excluded
+            final float majorMin = Math.min(majorStart, majorStart + majorDiff), majorMax = Math.max(majorStart, majorStart + majorDiff);
+            major = (int) Math.ceil(majorMin - 0.5f);
+            length = (int) Math.ceil(majorMax - 0.5f) - major;
+            if (length <= 0) {
+                return;
+            }
+            first = (major + 0.5f - majorStart) / majorDiff;
+            step = 1 / majorDiff;
+        }
+        // Set up the fixed point minor coordinate and the forward differences
+        long minor = (long) Math.floor((xMajor ? startY + first * yDiff : startX + first * xDiff) * FIXED_SCALE);
+        final long minorStep = majorDiff == 0 ? 0 : (long) ((xMajor ? yDiff : xDiff) / majorDiff * FIXED_SCALE);
+        float z = startZ + first * (endZ - startZ);
+        final float zStep = step * (endZ - startZ);
+        float w = startWInverse + first * (endWInverse - startWInverse);
+        final float wStep = step * (endWInverse - startWInverse);
+        // The outputs at the ends are interpolated between the original vertices, then divided by w for the window space steps
+        for (int i = 0; i < outputsSize; i++) {
+            final float output1, output2;
+            if (pipeline.isFloatOutput(i)) {
+                output1 = Float.intBitsToFloat(data1[4 + i]);
+                output2 = Float.intBitsToFloat(data2[4 + i]);
+            } else {
+                output1 = data1[4 + i];
+                output2 = data2[4 + i];
+            }
+            final float startOutput = (output1 + start * (output2 - output1)) * startWInverse;
+            final float endOutput = (output1 + end * (output2 - output1)) * endWInverse;
+            outputs[i] = startOutput + first * (endOutput - startOutput);
+            outputSteps[i] = step * (endOutput - startOutput);
+        }
+        // Finish clearing the pixels around the line, with a margin for the rounding of the ends
+        final int touchMinX = Math.max((int) Math.min(startX, endX) - 1, minX), touchMaxX = Math.min((int) Math.max(startX, endX) + 1, maxX);
+        final int touchMinY = Math.max((int) Math.min(startY, endY) - 1, minY), touchMaxY = Math.min((int) Math.max(startY, endY) + 1, maxY);
+        if (touchMinX > touchMaxX || touchMinY > touchMaxY) {
+            return;
+        }
+        state.touch(touchMinX, touchMinY, touchMaxX, touchMaxY);
+        for (int i = 0; i < length; i++) {
+            final int x, y;
+            if (xMajor) {
+                x = major;
+                y = (int) (minor >> FIXED_SHIFT);
+            } else {
+                x = (int) (minor >> FIXED_SHIFT);
+                y = major;
+            }
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                writeFragment(x, y, z, w, 1 / w);
+            }
+            major++;
+            minor += minorStep;
+            z += zStep;
+            w += wStep;
+            for (int ii = 0; ii < outputsSize; ii++) {
+                outputs[ii] += outputSteps[ii];
+            }
+        }
+    }
+
+    private void writeFragment(int x, int y, float z, float w, float outputsScale) {
+        // Fragment shaders can't change the depth, so occluded fragments are rejected before writing their inputs
+        if (!state.testDepth(x, y, z)) {
+            return;
+        }
+        // Clear the fragment in, write the fragment position (the pixel center)
+        fragmentIn.clear();
+        fragmentIn.writeRaw(Float.floatToIntBits(x + 0.5f));
+        fragmentIn.writeRaw(Float.floatToIntBits(y + 0.5f));
+        fragmentIn.writeRaw(Float.floatToIntBits(z));
+        fragmentIn.writeRaw(Float.floatToIntBits(w));
+        // Write the current vertex shader outputs, undoing the division by w of lines, and rounding the integers like for triangles
+        for (int i = 0; i < outputsSize; i++) {
+            final float output = outputs[i] * outputsScale;
+            fragmentIn.writeRaw(pipeline.isFloatOutput(i) ? Float.floatToRawIntBits(output) : Math.round(output));
+        }
+        // Flip the buffer for reading
+        fragmentIn.flip();
+        // Shade and write the fragment
+        state.writeFragment(fragmentShader, fragmentIn, fragmentOut, x, y, z);
+    }
+
+    private float toWindowX(float x) {
+        // Like for triangles, the view port edges are on pixel edges
+        return (x + 1) / 2 * viewPortWidth + viewPortX;
+    }
+
+    private float toWindowY(float y) {
+        // Window rows go down
+        return (1 - y) / 2 * viewPortHeight + viewPortY;
+    }
+
+    private float toWindowZ(float z) {
+        return SoftwareUtil.clamp(reversedDepth ? z : (z + 1) / 2, 0, 1);
+    }
+
+    // Restricts the visible fraction of the line to where the clip plane distance, which changes linearly along the line, is positive, returning false if nothing is left
+    private boolean clip(float distance, float distanceChange) {
+        if (distanceChange == 0) {
+            return distance >= 0;
+        }
+        final float t = -distance / distanceChange;
+        if (distanceChange > 0) {
+            clip[0] = Math.max(clip[0], t);
+        } else {
+            clip[1] = Math.min(clip[1], t);
+        }
+        return clip[0] <= clip[1];
+    }
+}
@@ -52,4 +52,39 @@ public interface OutBuffer {
     void writeVector3f(Vector3f v);
 
     void writeVector4f(Vector4f v);
+
+    void writeVector2i(int x, int y);
+
+    void writeVector3i(int x, int y, int z);
+
+    void writeVector4i(int x, int y, int z, int w);
+
+    void writeVector2f(float x, float y);
+
+    void writeVector3f(float x, float y, float z);
+
+    void writeVector4f(float x, float y, float z, float w);
+
+    /**
+     * Writes the components of the current output from the array, then advances to the next output. Components beyond the size of the output are ignored.
+     *
+     * @param source The array to write from
+     * @param offset The index in the array of the first component
+     * @param length The number of components to write
+     */
+    void writeInts(int[] source, int offset, int length);
+
+    /**
+     * Writes the components of the current output from the array, then advances to the next output. Components beyond the size of the output are ignored.
+     *
+     * @param source The array to write from
+     * @param offset The index in the array of the first component
+     * @param length The number of components to write
+     */
+    void writeFloats(float[] source, int offset, int length);
+
+    /**
+     * Discards the fragment being shaded, so that nothing is written for it. Has no effect in vertex shaders.
+     */
+    void discard();
 }
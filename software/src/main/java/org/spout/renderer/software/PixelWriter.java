@@ -0,0 +1,179 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import org.spout.renderer.software.DepthBuffer.DepthTest;
+
+/**
+ * Writes the colors of fragments to the render target, after testing and writing their depths. Writers are selected once for each draw call from the render target and the depth and blending
+ * state, along with the depth test for the direction of the depths, so that they don't need to check what is enabled for each pixel. Pixels are given by their index in the target, which must be valid.
+ */
+abstract class PixelWriter {
+    /**
+     * Returns true if a fragment at the pixel and depth would pass the depth test, without writing anything.
+     *
+     * @param i The index of the pixel
+     * @param z The depth, from 0 to 1
+     * @return Whether or not the fragment would be written
+     */
+    abstract boolean test(int i, float z);
+
+    /**
+     * Depth tests the fragment, and if it passes writes its depth, when depth writing is enabled, and its color.
+     *
+     * @param i The index of the pixel
+     * @param z The depth, from 0 to 1
+     * @param color The color, packed as ARGB
+     */
+    abstract void write(int i, float z, int color);
+
+    /**
+     * Returns the writer for the buffers of the render target and the state.
+     *
+     * @param pixels The colors of the target, or null if it has none
+     * @param depths The depths of the target, or null if it has none or depth testing is disabled
+     * @param depthWriting Whether or not the depths of the fragments passing the test are written
+     * @param blender The blender, or null if colors are written unchanged
+     * @return The writer
+     */
+    static PixelWriter get(int[] pixels, DepthBuffer depths, boolean depthWriting, Blender blender) {
+        if (depths == null) {
+            // Without a depth buffer, the depth test always passes
+            if (pixels == null) {
+                return new NullWriter();
+            }
+            return blender != null ? new BlendWriter(pixels, blender) : new ColorWriter(pixels);
+        }
+        if (pixels == null) {
+            return new DepthWriter(depths, depthWriting);
+        }
+        return blender != null ? new DepthBlendWriter(depths, depthWriting, pixels, blender) : new DepthColorWriter(depths, depthWriting, pixels);
+    }
+
+    private static class NullWriter extends PixelWriter {
+        @Override
+        boolean test(int i, float z) {
+            return true;
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+        }
+    }
+
+    private static class ColorWriter extends PixelWriter {
+        private final int[] pixels;
+
+        private ColorWriter(int[] pixels) {
+            this.pixels = pixels;
+        }
+
+        @Override
+        boolean test(int i, float z) {
+            return true;
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+            pixels[i] = color;
+        }
+    }
+
+    private static class BlendWriter extends PixelWriter {
+        private final int[] pixels;
+        private final Blender blender;
+
+        private BlendWriter(int[] pixels, Blender blender) {
+            this.pixels = pixels;
+            this.blender = blender;
+        }
+
+        @Override
+        boolean test(int i, float z) {
+            return true;
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+            pixels[i] = blender.blend(color, pixels[i]);
+        }
+    }
+
+    private static class DepthWriter extends PixelWriter {
+        final DepthTest depthTest;
+        final boolean depthWriting;
+
+        private DepthWriter(DepthBuffer depths, boolean depthWriting) {
+            this.depthTest = depths.getTest();
+            this.depthWriting = depthWriting;
+        }
+
+        @Override
+        boolean test(int i, float z) {
+            return depthTest.test(i, z);
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+            depthTest.test(i, z, depthWriting);
+        }
+    }
+
+    private static class DepthColorWriter extends DepthWriter {
+        private final int[] pixels;
+
+        private DepthColorWriter(DepthBuffer depths, boolean depthWriting, int[] pixels) {
+            super(depths, depthWriting);
+            this.pixels = pixels;
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+            if (depthTest.test(i, z, depthWriting)) {
+                pixels[i] = color;
+            }
+        }
+    }
+
+    private static class DepthBlendWriter extends DepthWriter {
+        private final int[] pixels;
+        private final Blender blender;
+
+        private DepthBlendWriter(DepthBuffer depths, boolean depthWriting, int[] pixels, Blender blender) {
+            super(depths, depthWriting);
+            this.pixels = pixels;
+            this.blender = blender;
+        }
+
+        @Override
+        void write(int i, float z, int color) {
+            if (depthTest.test(i, z, depthWriting)) {
+                pixels[i] = blender.blend(color, pixels[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.spout.renderer.api.gl.Context.Capability;
+import org.spout.renderer.api.gl.Context.CullFace;
+import org.spout.renderer.api.gl.Context.FrontFace;
+import org.spout.renderer.api.util.Rectangle;
+
+/**
+ * The state of the renderer used by the rasterizers, taken when a draw call starts. Nothing in it changes during the draw, so the rasterizers never read the renderer's state for each fragment. The
+ * depth and color writes go through a {@link PixelWriter} selected for the state, and the rasterization bounds guarantee that the fragments are within the render target. Rasterizers must
+ * {@link #touch(int, int, int, int)} the pixels before writing to them, to finish any deferred clear.
+ */
+class RasterState {
+    private final int targetWidth, targetHeight;
+    // View port transform
+    private final int viewPortX, viewPortY, viewPortWidth, viewPortHeight;
+    // Rasterization bounds (inclusive), the view port restricted to the render target and the scissor rectangle
+    private final int minX, minY, maxX, maxY;
+    private final boolean clampDepth;
+    // Whether clip space z is mapped from 0 to w to the depths, instead of from -w to w
+    private final boolean reversedDepth;
+    // Which windings are culled, counter clockwise being the positive area in normalized device coordinates
+    private final boolean cullCounterClockwise, cullClockwise;
+    private final float pointSize;
+    // The coarse depths of the render target, or null when not depth testing
+    private final DepthBounds depthBounds;
+    // The pool for rendering tiles, or null if not using tiled rendering
+    private final ForkJoinPool renderPool;
+    private final PixelWriter writer;
+    // The deferred clears of the render target
+    private final FastClear clear;
+
+    RasterState(SoftwareRenderer renderer) {
+        targetWidth = renderer.getTargetWidth();
+        targetHeight = renderer.getTargetHeight();
+        final Rectangle viewPort = renderer.getViewPort();
+        viewPortX = viewPort.getX();
+        viewPortY = viewPort.getY();
+        viewPortWidth = viewPort.getWidth();
+        viewPortHeight = viewPort.getHeight();
+        final Rectangle scissor = renderer.getScissor();
+        if (scissor != null) {
+            minX = Math.max(Math.max(viewPortX, scissor.getX()), 0);
+            minY = Math.max(Math.max(viewPortY, scissor.getY()), 0);
+            maxX = Math.min(Math.min(viewPortX + viewPortWidth, scissor.getX() + scissor.getWidth()), targetWidth) - 1;
+            maxY = Math.min(Math.min(viewPortY + viewPortHeight, scissor.getY() + scissor.getHeight()), targetHeight) - 1;
+        } else {
+            minX = Math.max(viewPortX, 0);
+            minY = Math.max(viewPortY, 0);
+            maxX = Math.min(viewPortX + viewPortWidth, targetWidth) - 1;
+            maxY = Math.min(viewPortY + viewPortHeight, targetHeight) - 1;
+        }
+        clampDepth = renderer.isEnabled(Capability.DEPTH_CLAMP);
+        reversedDepth = renderer.isReversedDepth();
+        if (renderer.isEnabled(Capability.CULL_FACE)) {
+            final CullFace cullFace = renderer.getCullFace();
+            final boolean cullFront = cullFace != CullFace.BACK, cullBack = cullFace != CullFace.FRONT;
+            final boolean frontCounterClockwise = renderer.getFrontFace() == FrontFace.COUNTER_CLOCKWISE;
+            cullCounterClockwise = frontCounterClockwise ? cullFront : cullBack;
+            cullClockwise = frontCounterClockwise ? cullBack : cullFront;
+        } else {
+            cullCounterClockwise = false;
+            cullClockwise = false;
+        }
+        pointSize = renderer.getPointSize();
+        depthBounds = renderer.getDepthBounds();
+        renderPool = renderer.isTiledRendering() ? renderer.getRenderPool() : null;
+        final DepthBuffer depths = renderer.isEnabled(Capability.DEPTH_TEST) ? renderer.getTargetDepths() : null;
+        clear = renderer.getTargetClear();
+        writer = PixelWriter.get(renderer.getTargetPixels(), depths, renderer.isDepthWriting(), renderer.getBlender());
+    }
+
+    int getTargetWidth() {
+        return targetWidth;
+    }
+
+    int getTargetHeight() {
+        return targetHeight;
+    }
+
+    int getViewPortX() {
+        return viewPortX;
+    }
+
+    int getViewPortY() {
+        return viewPortY;
+    }
+
+    int getViewPortWidth() {
+        return viewPortWidth;
+    }
+
+    int getViewPortHeight() {
+        return viewPortHeight;
+    }
+
+    int getMinX() {
+        return minX;
+    }
+
+    int getMinY() {
+        return minY;
+    }
+
+    int getMaxX() {
+        return maxX;
+    }
+
+    int getMaxY() {
+        return maxY;
+    }
+
+    boolean isClampDepth() {
+        return clampDepth;
+    }
+
+    boolean isReversedDepth() {
+        return reversedDepth;
+    }
+
+    boolean isCullCounterClockwise() {
+        return cullCounterClockwise;
+    }
+
+    boolean isCullClockwise() {
+        return cullClockwise;
+    }
+
+    float getPointSize() {
+        return pointSize;
+    }
+
+    DepthBounds getDepthBounds() {
+        return depthBounds;
+    }
+
+    ForkJoinPool getRenderPool() {
+        return renderPool;
+    }
+
+    /**
+     * Finishes clearing the tiles overlapping the rectangle, which must be called before rasterizing in it. The rectangle must be within the rasterization bounds.
+     *
+     * @param minX The minimum x coordinate, inclusive
+     * @param minY The minimum y coordinate, inclusive
+     * @param maxX The maximum x coordinate, inclusive
+     * @param maxY The maximum y coordinate, inclusive
+     */
+    void touch(int minX, int minY, int maxX, int maxY) {
+        clear.touch(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Returns true if a fragment at the coordinates and depth would pass the depth test. The coordinates must be within the rasterization bounds.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param z The depth, from 0 to 1
+     * @return Whether or not the fragment would be written
+     */
+    boolean testDepth(int x, int y, float z) {
+        return writer.test(x + y * targetWidth, z);
+    }
+
+    void writePixel(int x, int y, float z, int color) {
+        writer.write(x + y * targetWidth, z, color);
+    }
+
+    /**
+     * Shades the fragment and writes its color. The coordinates must be within the rasterization bounds, and the fragment should have passed {@link #testDepth(int, int, float)}, since shading is
+     * wasted otherwise.
+     *
+     * @param shader The fragment shader
+     * @param in The fragment shader inputs
+     * @param out The buffer for the fragment shader outputs
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param z The depth, from 0 to 1
+     */
+    void writeFragment(ShaderImplementation shader, ShaderBuffer in, ShaderBuffer out, int x, int y, float z) {
+        // Clear the out buffer and run the fragment shader
+        out.clear();
+        shader.main(in, out);
+        if (out.isDiscarded()) {
+            return;
+        }
+        // Retrieve the fragment color vector, which is always the first four values
+        final int[] color = out.array();
+        final float r = Float.intBitsToFloat(color[0]);
+        final float g = Float.intBitsToFloat(color[1]);
+        final float b = Float.intBitsToFloat(color[2]);
+        final float a = Float.intBitsToFloat(color[3]);
+        // Write at the fragment coordinates and depth the output color packed into an int
+        writer.write(x + y * targetWidth, z, SoftwareUtil.pack(r, g, b, a));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.math.vector.Vector4f;
+
+/**
+ * Samples the texture bound to a texture unit, using the filters and wraps of the texture. Declare a field of this type with the {@link org.spout.renderer.software.Uniform} annotation in a
+ * shader, and bind it to a unit with {@link org.spout.renderer.api.gl.Program#bindSampler(int)} or by setting the uniform to the unit. Like in OpenGL, sampling reads from whichever texture is
+ * bound to the unit at that time. Texture coordinates have their origin at the bottom left of the image.
+ */
+public class Sampler {
+    // Returned when no texture with image data is bound, like OpenGL does for incomplete textures
+    private static final int MISSING_COLOR = 0xFF000000;
+    private SoftwareTexture texture;
+
+    Sampler() {
+    }
+
+    SoftwareTexture getTexture() {
+        return texture;
+    }
+
+    void setTexture(SoftwareTexture texture) {
+        this.texture = texture;
+    }
+
+    /**
+     * Samples the base level of the texture at the coordinates. The components are normalized, and depth textures return the depth in the red, green and blue components.
+     *
+     * @param coordinates The texture coordinates
+     * @return The sampled color
+     */
+    public Vector4f sample(Vector2f coordinates) {
+        return sample(coordinates.getX(), coordinates.getY());
+    }
+
+    /**
+     * Samples the texture at the coordinates, which are read from the fragment shader input in the slot. The level of detail is selected from the derivatives of the input, so mipmaps are used
+     * when the texture is minified.
+     *
+     * @param coordinates The texture coordinates
+     * @param in The fragment shader input
+     * @param slot The slot of the texture coordinates in the input
+     * @return The sampled color
+     */
+    public Vector4f sample(Vector2f coordinates, InBuffer in, int slot) {
+        return sample(coordinates.getX(), coordinates.getY(), in.dFdx(slot, 0), in.dFdx(slot, 1), in.dFdy(slot, 0), in.dFdy(slot, 1));
+    }
+
+    /**
+     * Samples the base level of the texture at the coordinates. The components are normalized, and depth textures return the depth in the red, green and blue components.
+     *
+     * @param s The horizontal texture coordinate
+     * @param t The vertical texture coordinate
+     * @return The sampled color
+     */
+    public Vector4f sample(float s, float t) {
+        return sample(s, t, 0, 0, 0, 0);
+    }
+
+    /**
+     * Samples the texture at the coordinates, selecting the level of detail from their derivatives with respect to the window coordinates. The components are normalized, and depth textures
+     * return the depth in the red, green and blue components.
+     *
+     * @param s The horizontal texture coordinate
+     * @param t The vertical texture coordinate
+     * @param dsdx The derivative of s in x
+     * @param dtdx The derivative of t in x
+     * @param dsdy The derivative of s in y
+     * @param dtdy The derivative of t in y
+     * @return The sampled color
+     */
+    public Vector4f sample(float s, float t, float dsdx, float dtdx, float dsdy, float dtdy) {
+        final SoftwareTexture texture = this.texture;
+        if (texture != null && texture.isDepth()) {
+            final float depth = texture.sampleDepth(s, t);
+            return new Vector4f(depth, depth, depth, 1);
+        }
+        final int color = sampleARGB(s, t, dsdx, dtdx, dsdy, dtdy);
+        return new Vector4f((color >> 16 & 0xFF) / 255f, (color >> 8 & 0xFF) / 255f, (color & 0xFF) / 255f, (color >>> 24) / 255f);
+    }
+
+    /**
+     * Samples the base level of the texture at the coordinates, and returns the color packed as an ARGB int with 8 bits per component. This doesn't create any object, and is the fastest way to
+     * sample color textures.
+     *
+     * @param s The horizontal texture coordinate
+     * @param t The vertical texture coordinate
+     * @return The sampled color, packed as ARGB
+     */
+    public int sampleARGB(float s, float t) {
+        return sampleARGB(s, t, 0, 0, 0, 0);
+    }
+
+    /**
+     * Samples the texture at the coordinates, selecting the level of detail from their derivatives with respect to the window coordinates, and returns the color packed as an ARGB int with 8
+     * bits per component.
+     *
+     * @param s The horizontal texture coordinate
+     * @param t The vertical texture coordinate
+     * @param dsdx The derivative of s in x
+     * @param dtdx The derivative of t in x
+     * @param dsdy The derivative of s in y
+     * @param dtdy The derivative of t in y
+     * @return The sampled color, packed as ARGB
+     */
+    public int sampleARGB(float s, float t, float dsdx, float dtdx, float dsdy, float dtdy) {
+        final SoftwareTexture texture = this.texture;
+        if (texture == null || !texture.hasImage()) {
+            return MISSING_COLOR;
+        }
+        if (texture.isDepth()) {
+            final float depth = texture.sampleDepth(s, t);
+            return SoftwareUtil.pack(depth, depth, depth, 1);
+        }
+        return texture.sampleColor(s, t, texture.getLevelOfDetail(dsdx, dtdx, dsdy, dtdy));
+    }
+
+    float getLevelOfDetail(float dsdx, float dtdx, float dsdy, float dtdy) {
+        final SoftwareTexture texture = this.texture;
+        return texture != null && texture.hasImage() ? texture.getLevelOfDetail(dsdx, dtdx, dsdy, dtdy) : 0;
+    }
+
+    // Samples the texture at the level of detail, and writes the normalized red, green, blue and alpha components to the array, without creating any object
+    void sample(float s, float t, float levelOfDetail, float[] destination, int offset) {
+        final SoftwareTexture texture = this.texture;
+        if (texture != null && texture.isDepth()) {
+            final float depth = texture.sampleDepth(s, t);
+            destination[offset] = depth;
+            destination[offset + 1] = depth;
+            destination[offset + 2] = depth;
+            destination[offset + 3] = 1;
+            return;
+        }
+        final int color = texture == null || !texture.hasImage() ? MISSING_COLOR : texture.sampleColor(s, t, levelOfDetail);
+        destination[offset] = (color >> 16 & 0xFF) / 255f;
+        destination[offset + 1] = (color >> 8 & 0xFF) / 255f;
+        destination[offset + 2] = (color & 0xFF) / 255f;
+        destination[offset + 3] = (color >>> 24) / 255f;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.Arrays;
+
+import com.flowpowered.math.matrix.Matrix4f;
+
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+
+/**
+ * The inputs or outputs of a batch of shader invocations, stored as one array of lanes per component. Lane i of every component belongs to the i-th invocation, which lets shaders process whole
+ * batches in simple loops that the JIT can vectorize.
+ */
+public class ShaderBatch {
+    private final DataFormat[] formats;
+    // The index of the first component of each slot
+    private final int[] offsets;
+    // The lanes of each component, with only one of the two arrays non-null depending on the slot type
+    private final float[][] floatLanes;
+    private final int[][] intLanes;
+    private final int capacity;
+    private int size;
+    // The lanes of the fragments discarded by the shader, only used for outputs
+    private final boolean[] discarded;
+    private Derivatives derivatives;
+    // Holds a single lane when shading the batch an invocation at a time, created when first needed
+    private ShaderBuffer laneBuffer;
+
+    ShaderBatch(DataFormat[] formats, int capacity) {
+        this.formats = formats;
+        this.capacity = capacity;
+        offsets = new int[formats.length];
+        int components = 0;
+        for (int i = 0; i < formats.length; i++) {
+            offsets[i] = components;
+            components += formats[i].getCount();
+        }
+        floatLanes = new float[components][];
+        intLanes = new int[components][];
+        discarded = new boolean[capacity];
+        for (int i = 0; i < formats.length; i++) {
+            final DataFormat format = formats[i];
+            for (int ii = 0; ii < format.getCount(); ii++) {
+                if (format.getType() == DataType.FLOAT) {
+                    floatLanes[offsets[i] + ii] = new float[capacity];
+                } else {
+                    intLanes[offsets[i] + ii] = new int[capacity];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of invocations in the batch. Only the lanes below this index are used.
+     *
+     * @return The batch size
+     */
+    public int size() {
+        return size;
+    }
+
+    void setSize(int size) {
+        if (size < 0 || size > capacity) {
+            throw new IllegalArgumentException("Batch size must be between 0 and " + capacity);
+        }
+        this.size = size;
+        // A new batch starts with no discarded fragments
+        Arrays.fill(discarded, false);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void setDerivatives(Derivatives derivatives) {
+        this.derivatives = derivatives;
+    }
+
+    /**
+     * Returns the derivative of a fragment shader input with respect to the window x coordinate, for the invocation of the lane. Perspective correct inputs have different derivatives for each
+     * fragment, so they're computed for each lane. Returns zero for integer inputs, vertex shader inputs and primitives other than triangles.
+     *
+     * @param slot The index of the input in the format
+     * @param component The component of the input
+     * @param lane The lane of the invocation
+     * @return The derivative in x
+     */
+    public float dFdx(int slot, int component, int lane) {
+        final int index = getComponentIndex(slot, component);
+        if (derivatives == null || floatLanes[index] == null) {
+            return 0;
+        }
+        return derivatives.dFdx(index, checkLane(lane));
+    }
+
+    /**
+     * Returns the derivative of a fragment shader input with respect to the window y coordinate, which increases downwards, for the invocation of the lane. Returns zero for integer inputs, vertex
+     * shader inputs and primitives other than triangles.
+     *
+     * @param slot The index of the input in the format
+     * @param component The component of the input
+     * @param lane The lane of the invocation
+     * @return The derivative in y
+     */
+    public float dFdy(int slot, int component, int lane) {
+        final int index = getComponentIndex(slot, component);
+        if (derivatives == null || floatLanes[index] == null) {
+            return 0;
+        }
+        return derivatives.dFdy(index, checkLane(lane));
+    }
+
+    /**
+     * Discards the fragment of the lane, so that nothing is written for it. Must be called on the output batch. Has no effect in vertex shaders.
+     *
+     * @param lane The lane of the fragment to discard
+     */
+    public void discard(int lane) {
+        discarded[checkLane(lane)] = true;
+    }
+
+    /**
+     * Returns the lanes of a component of a float input or output.
+     *
+     * @param slot The index of the input or output in the format
+     * @param component The component of the input or output
+     * @return The lanes, of a length of at least the batch size
+     */
+    public float[] getFloats(int slot, int component) {
+        final float[] lanes = floatLanes[getComponentIndex(slot, component)];
+        if (lanes == null) {
+            throw new IllegalArgumentException("Slot " + slot + " is not of float type");
+        }
+        return lanes;
+    }
+
+    /**
+     * Returns the lanes of a component of an integer input or output.
+     *
+     * @param slot The index of the input or output in the format
+     * @param component The component of the input or output
+     * @return The lanes, of a length of at least the batch size
+     */
+    public int[] getInts(int slot, int component) {
+        final int[] lanes = intLanes[getComponentIndex(slot, component)];
+        if (lanes == null) {
+            throw new IllegalArgumentException("Slot " + slot + " is not of integer type");
+        }
+        return lanes;
+    }
+
+    /**
+     * Transforms a float vector input by the matrix for every invocation, writing the result to a four component float output. Vectors of three components or less are extended with a w of one.
+     *
+     * @param matrix The transformation matrix
+     * @param slot The index of the vector in this batch's format
+     * @param destination The batch to write the transformed vectors to
+     * @param destinationSlot The index of the output in the destination's format
+     */
+    public void transform(Matrix4f matrix, int slot, ShaderBatch destination, int destinationSlot) {
+        final int count = formats[slot].getCount();
+        final float[] x = getFloats(slot, 0);
+        final float[] y = count > 1 ? getFloats(slot, 1) : null;
+        final float[] z = count > 2 ? getFloats(slot, 2) : null;
+        final float[] w = count > 3 ? getFloats(slot, 3) : null;
+        final float[] outX = destination.getFloats(destinationSlot, 0);
+        final float[] outY = destination.getFloats(destinationSlot, 1);
+        final float[] outZ = destination.getFloats(destinationSlot, 2);
+        final float[] outW = destination.getFloats(destinationSlot, 3);
+        // Read the matrix once, then transform a component at a time for all the lanes
+        final float m00 = matrix.get(0, 0), m01 = matrix.get(0, 1), m02 = matrix.get(0, 2), m03 = matrix.get(0, 3);
+        final float m10 = matrix.get(1, 0), m11 = matrix.get(1, 1), m12 = matrix.get(1, 2), m13 = matrix.get(1, 3);
+        final float m20 = matrix.get(2, 0), m21 = matrix.get(2, 1), m22 = matrix.get(2, 2), m23 = matrix.get(2, 3);
+        final float m30 = matrix.get(3, 0), m31 = matrix.get(3, 1), m32 = matrix.get(3, 2), m33 = matrix.get(3, 3);
+        for (int i = 0; i < size; i++) {
+            final float vx = x[i];
+            final float vy = y != null ? y[i] : 0;
+            final float vz = z != null ? z[i] : 0;
+            final float vw = w != null ? w[i] : 1;
+            outX[i] = m00 * vx + m01 * vy + m02 * vz + m03 * vw;
+            outY[i] = m10 * vx + m11 * vy + m12 * vz + m13 * vw;
+            outZ[i] = m20 * vx + m21 * vy + m22 * vz + m23 * vw;
+            outW[i] = m30 * vx + m31 * vy + m32 * vz + m33 * vw;
+        }
+    }
+
+    /**
+     * Runs the shader for each invocation of this batch, using its single invocation main method, and writes the results to the output batch.
+     *
+     * @param shader The shader to run
+     * @param out The batch to write the outputs to
+     */
+    void shadeLanes(ShaderImplementation shader, ShaderBatch out) {
+        if (laneBuffer == null) {
+            laneBuffer = new ShaderBuffer(formats);
+        }
+        if (out.laneBuffer == null) {
+            out.laneBuffer = new ShaderBuffer(out.formats);
+        }
+        final ShaderBuffer laneIn = laneBuffer, laneOut = out.laneBuffer;
+        final int inComponents = getComponentCount(), outComponents = out.getComponentCount();
+        for (int lane = 0; lane < size; lane++) {
+            // Copy the lane to the input buffer, then flip it for reading
+            laneIn.clear();
+            for (int c = 0; c < inComponents; c++) {
+                final float[] floats = floatLanes[c];
+                laneIn.writeRaw(floats != null ? Float.floatToRawIntBits(floats[lane]) : intLanes[c][lane]);
+            }
+            laneIn.flip();
+            laneIn.setDerivatives(derivatives, lane);
+            laneOut.clear();
+            shader.main(laneIn, laneOut);
+            if (laneOut.isDiscarded()) {
+                out.discarded[lane] = true;
+                continue;
+            }
+            // Copy the outputs back to the lane
+            for (int c = 0; c < outComponents; c++) {
+                final float[] floats = out.floatLanes[c];
+                if (floats != null) {
+                    floats[lane] = Float.intBitsToFloat(laneOut.readRaw(c));
+                } else {
+                    out.intLanes[c][lane] = laneOut.readRaw(c);
+                }
+            }
+        }
+    }
+
+    private int checkLane(int lane) {
+        if (lane < 0 || lane >= size) {
+            throw new IllegalArgumentException("Lane must be between 0 and " + (size - 1));
+        }
+        return lane;
+    }
+
+    private int getComponentIndex(int slot, int component) {
+        if (slot < 0 || slot >= formats.length) {
+            throw new IllegalArgumentException("Slot must be between 0 and " + (formats.length - 1));
+        }
+        final int count = formats[slot].getCount();
+        if (component < 0 || component >= count) {
+            throw new IllegalArgumentException("Component must be between 0 and " + (count - 1));
+        }
+        return offsets[slot] + component;
+    }
+
+    int getComponentCount() {
+        return floatLanes.length;
+    }
+
+    boolean[] getDiscardedLanes() {
+        return discarded;
+    }
+
+    float[] getFloatLanes(int component) {
+        return floatLanes[component];
+    }
+
+    int[] getIntLanes(int component) {
+        return intLanes[component];
+    }
+}
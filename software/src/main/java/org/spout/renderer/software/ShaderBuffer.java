@@ -26,7 +26,8 @@
  */
 package org.spout.renderer.software;
 
-import java.nio.IntBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 
 import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
@@ -36,71 +37,162 @@ import com.flowpowered.math.vector.Vector4f;
 import com.flowpowered.math.vector.Vector4i;
 
 import org.spout.renderer.api.data.VertexAttribute.DataType;
-import org.spout.renderer.api.util.CausticUtil;
 
 /**
  *
  */
 class ShaderBuffer implements InBuffer, OutBuffer {
-    private final IntBuffer buffer;
+    // The raw values, read and written from the index up to the limit
+    private final int[] data;
+    private int index = 0;
+    private int limit;
     private final DataFormat[] formats;
+    // The raw index of the first component of each slot, and whether or not the slot holds floats
+    private final int[] offsets;
+    private final boolean[] floatSlots;
     private int position = 0;
     private int count = 0;
+    private Derivatives derivatives;
+    // The lane of the batch this buffer holds, if any, for the derivatives
+    private int derivativesLane = 0;
+    private boolean discarded = false;
 
     ShaderBuffer(DataFormat[] formats) {
         this.formats = new DataFormat[formats.length];
+        offsets = new int[formats.length];
+        floatSlots = new boolean[formats.length];
         int capacity = 0;
         for (int i = 0; i < formats.length; i++) {
             final DataFormat format = formats[i];
+            final DataType type = format.getType();
             final int count = format.getCount();
-            this.formats[i] = format.getType().isInteger() ? new DataFormat(DataType.INT, count) : format;
+            if (type.isInteger()) {
+                this.formats[i] = new DataFormat(DataType.INT, count);
+            } else if (type == DataType.FLOAT) {
+                this.formats[i] = format;
+                floatSlots[i] = true;
+            } else {
+                throw new IllegalArgumentException("Unsupported type in shader buffer: " + type);
+            }
+            offsets[i] = capacity;
             capacity += count;
         }
-        buffer = CausticUtil.createIntBuffer(capacity);
+        data = new int[capacity];
+        limit = capacity;
     }
 
     DataFormat[] getFormat() {
         return formats;
     }
 
+    void setDerivatives(Derivatives derivatives) {
+        setDerivatives(derivatives, 0);
+    }
+
+    void setDerivatives(Derivatives derivatives, int lane) {
+        this.derivatives = derivatives;
+        derivativesLane = lane;
+    }
+
+    @Override
+    public float dFdx(int slot, int component) {
+        if (derivatives == null || !floatSlots[slot]) {
+            return 0;
+        }
+        return derivatives.dFdx(offsets[slot] + component, derivativesLane);
+    }
+
+    @Override
+    public float dFdy(int slot, int component) {
+        if (derivatives == null || !floatSlots[slot]) {
+            return 0;
+        }
+        return derivatives.dFdy(offsets[slot] + component, derivativesLane);
+    }
+
     void clear() {
-        buffer.clear();
+        index = 0;
+        limit = data.length;
         position = 0;
+        count = 0;
+        discarded = false;
     }
 
     void flip() {
-        buffer.flip();
+        limit = index;
+        index = 0;
         position = 0;
+        count = 0;
     }
 
     void rewind() {
-        buffer.rewind();
+        index = 0;
     }
 
     int position() {
-        return buffer.position();
+        return index;
     }
 
     void position(int position) {
-        buffer.position(position);
+        if (position < 0 || position > limit) {
+            throw new IllegalArgumentException("Position must be between 0 and " + limit);
+        }
+        index = position;
     }
 
     int remaining() {
-        return buffer.remaining();
+        return limit - index;
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    int[] array() {
+        return data;
     }
 
     int readRaw() {
-        return buffer.get();
+        if (index >= limit) {
+            throw new BufferUnderflowException();
+        }
+        return data[index++];
+    }
+
+    int readRaw(int index) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException();
+        }
+        return data[index];
+    }
+
+    void readRaw(int[] destination, int offset, int length) {
+        if (length > limit - index) {
+            throw new BufferUnderflowException();
+        }
+        System.arraycopy(data, index, destination, offset, length);
+        index += length;
     }
 
     void writeRaw(int value) {
-        buffer.put(value);
+        if (index >= limit) {
+            throw new BufferOverflowException();
+        }
+        data[index++] = value;
     }
 
-    void writeRaw(ShaderBuffer buffer) {
-        while (buffer.remaining() > 0) {
-            writeRaw(buffer.readRaw());
+    void writeRaw(int[] source, int offset, int length) {
+        if (length > limit - index) {
+            throw new BufferOverflowException();
         }
+        System.arraycopy(source, offset, data, index, length);
+        index += length;
+    }
+
+    void writeRaw(ShaderBuffer buffer) {
+        final int length = buffer.remaining();
+        writeRaw(buffer.data, buffer.index, length);
+        buffer.index += length;
     }
 
     @Override
@@ -164,6 +256,64 @@ class ShaderBuffer implements InBuffer, OutBuffer {
         advance();
     }
 
+    @Override
+    public int getInt(int component) {
+        final DataFormat format = formats[position];
+        if (component < 0 || component >= format.getCount()) {
+            return 0;
+        }
+        final int i = data[offsets[position] + component];
+        return floatSlots[position] ? (int) Float.intBitsToFloat(i) : i;
+    }
+
+    @Override
+    public float getFloat(int component) {
+        final DataFormat format = formats[position];
+        if (component < 0 || component >= format.getCount()) {
+            return 0;
+        }
+        final int i = data[offsets[position] + component];
+        return floatSlots[position] ? Float.intBitsToFloat(i) : i;
+    }
+
+    @Override
+    public int readInts(int[] destination, int offset) {
+        final int n = formats[position].getCount() - count;
+        for (int i = 0; i < n; i++) {
+            destination[offset + i] = readInt0();
+        }
+        advance();
+        return n;
+    }
+
+    @Override
+    public int readFloats(float[] destination, int offset) {
+        final int n = formats[position].getCount() - count;
+        for (int i = 0; i < n; i++) {
+            destination[offset + i] = readFloat0();
+        }
+        advance();
+        return n;
+    }
+
+    // Reads at most the given number of components of the current slot, then advances to the next slot, and returns the number of components read
+    int readFloats(float[] destination, int offset, int length) {
+        final int n = Math.min(formats[position].getCount() - count, length);
+        if (floatSlots[position]) {
+            for (int i = 0; i < n; i++) {
+                destination[offset + i] = Float.intBitsToFloat(data[index + i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                destination[offset + i] = data[index + i];
+            }
+        }
+        index += n;
+        count += n;
+        advance();
+        return n;
+    }
+
     @Override
     public void writeInt(int i) {
         writeInt0(i);
@@ -224,76 +374,123 @@ class ShaderBuffer implements InBuffer, OutBuffer {
         advance();
     }
 
+    @Override
+    public void writeVector2i(int x, int y) {
+        writeInt0(x);
+        writeInt0(y);
+        advance();
+    }
+
+    @Override
+    public void writeVector3i(int x, int y, int z) {
+        writeInt0(x);
+        writeInt0(y);
+        writeInt0(z);
+        advance();
+    }
+
+    @Override
+    public void writeVector4i(int x, int y, int z, int w) {
+        writeInt0(x);
+        writeInt0(y);
+        writeInt0(z);
+        writeInt0(w);
+        advance();
+    }
+
+    @Override
+    public void writeVector2f(float x, float y) {
+        writeFloat0(x);
+        writeFloat0(y);
+        advance();
+    }
+
+    @Override
+    public void writeVector3f(float x, float y, float z) {
+        writeFloat0(x);
+        writeFloat0(y);
+        writeFloat0(z);
+        advance();
+    }
+
+    @Override
+    public void writeVector4f(float x, float y, float z, float w) {
+        writeFloat0(x);
+        writeFloat0(y);
+        writeFloat0(z);
+        writeFloat0(w);
+        advance();
+    }
+
+    @Override
+    public void writeInts(int[] source, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            writeInt0(source[offset + i]);
+        }
+        advance();
+    }
+
+    @Override
+    public void writeFloats(float[] source, int offset, int length) {
+        // Components past the end of the slot are dropped
+        final int n = Math.min(formats[position].getCount() - count, length);
+        if (floatSlots[position]) {
+            for (int i = 0; i < n; i++) {
+                data[index + i] = Float.floatToRawIntBits(source[offset + i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                data[index + i] = (int) source[offset + i];
+            }
+        }
+        index += n;
+        count += n;
+        advance();
+    }
+
+    @Override
+    public void discard() {
+        discarded = true;
+    }
+
+    boolean isDiscarded() {
+        return discarded;
+    }
+
     private int readInt0() {
-        final DataFormat format = formats[position];
-        if (++count > format.getCount()) {
+        if (++count > formats[position].getCount()) {
             return 0;
         }
-        final int i = buffer.get();
-        switch (format.getType()) {
-            case INT:
-                return i;
-            case FLOAT:
-                return (int) Float.intBitsToFloat(i);
-            default:
-                throw new IllegalStateException("Unsupported type in input buffer: " + format.getType());
-        }
+        final int i = data[index++];
+        return floatSlots[position] ? (int) Float.intBitsToFloat(i) : i;
     }
 
     private float readFloat0() {
-        final DataFormat format = formats[position];
-        if (++count > format.getCount()) {
+        if (++count > formats[position].getCount()) {
             return 0;
         }
-        final int i = buffer.get();
-        switch (format.getType()) {
-            case INT:
-                return (float) i;
-            case FLOAT:
-                return Float.intBitsToFloat(i);
-            default:
-                throw new IllegalStateException("Unsupported type in input buffer: " + format.getType());
-        }
+        final int i = data[index++];
+        return floatSlots[position] ? Float.intBitsToFloat(i) : i;
     }
 
     private void writeInt0(int i) {
-        final DataFormat format = formats[position];
-        if (++count > format.getCount()) {
+        if (++count > formats[position].getCount()) {
             return;
         }
-        switch (format.getType()) {
-            case INT:
-                buffer.put(i);
-                break;
-            case FLOAT:
-                buffer.put(Float.floatToIntBits((float) i));
-                break;
-            default:
-                throw new IllegalStateException("Unsupported type in output buffer: " + format.getType());
-        }
+        data[index++] = floatSlots[position] ? Float.floatToRawIntBits(i) : i;
     }
 
     private void writeFloat0(float f) {
-        final DataFormat format = formats[position];
-        if (++count > format.getCount()) {
+        if (++count > formats[position].getCount()) {
             return;
         }
-        switch (format.getType()) {
-            case INT:
-                buffer.put((int) f);
-                break;
-            case FLOAT:
-                buffer.put(Float.floatToIntBits(f));
-                break;
-            default:
-                throw new IllegalStateException("Unsupported type in output buffer: " + format.getType());
-        }
+        data[index++] = floatSlots[position] ? Float.floatToRawIntBits(f) : (int) f;
     }
 
     private void advance() {
         final DataFormat format = formats[position];
         int n = Math.max(format.getCount() - count, 0);
-        buffer.position(buffer.position() + n);
+        index += n;
         position++;
         count = 0;
     }
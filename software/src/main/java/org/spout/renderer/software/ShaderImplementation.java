@@ -26,6 +26,8 @@
  */
 package org.spout.renderer.software;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,19 +42,26 @@ import org.spout.renderer.api.gl.Shader.ShaderType;
 public abstract class ShaderImplementation {
     private final DataFormat[] outputFormat;
     private final Map<String, Field> uniforms = new HashMap<>();
+    private final boolean batched;
 
     protected ShaderImplementation() {
         this(null);
     }
 
     protected ShaderImplementation(DataFormat[] outputFormat) {
-        if (getType() == ShaderType.VERTEX) {
+        this(null, outputFormat);
+    }
+
+    // For shaders which only know their type once constructed, and can't return it from getType() during the super constructor call
+    ShaderImplementation(ShaderType type, DataFormat[] outputFormat) {
+        if ((type != null ? type : getType()) == ShaderType.VERTEX) {
             if (outputFormat == null || outputFormat.length <= 0 || outputFormat[0].getCount() != 4 || outputFormat[0].getType() != DataType.FLOAT) {
                 throw new IllegalArgumentException("Vertex shader output format must have 4 floats as the first output type in the declared format");
             }
         }
         this.outputFormat = outputFormat;
         findUniforms();
+        batched = overridesBatchMain();
     }
 
     private void findUniforms() {
@@ -64,24 +73,75 @@ public abstract class ShaderImplementation {
         }
     }
 
+    // The renderer only batches shaders which override the batch main, as the default one is slower than shading the invocations directly
+    private boolean overridesBatchMain() {
+        try {
+            return getClass().getMethod("main", ShaderBatch.class, ShaderBatch.class).getDeclaringClass() != ShaderImplementation.class;
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException("Could not find the batch main method", ex);
+        }
+    }
+
+    /**
+     * Runs the shader for a single vertex or fragment, reading its inputs and writing its outputs. When tiled rendering is enabled on the context, the renderer calls this on the same instance from
+     * several rendering threads at once, to shade vertices and rasterize tiles in parallel. Implementations must then be thread-safe: they can read their uniforms, which are only set between draw
+     * calls, but must keep any other state of the invocation in local variables, not in fields. Shaders which can't be shared between threads must only be drawn with tiled rendering disabled.
+     *
+     * @param in The inputs of the invocation
+     * @param out The outputs of the invocation
+     */
     public abstract void main(InBuffer in, OutBuffer out);
 
+    /**
+     * Runs the shader for every invocation in the batch. By default, this calls {@link #main(InBuffer, OutBuffer)} for each invocation. Shaders can override this to process the vertices or
+     * fragments a component at a time, in which case the renderer shades whole batches instead of single invocations. The batch inputs and outputs use the same formats as the buffers. Fragment
+     * batches hold the covered pixels of a small block of a single triangle, and can discard any of them with {@link ShaderBatch#discard(int)}. Like {@link #main(InBuffer, OutBuffer)}, this is called from several threads at once
+     * during tiled rendering, each with its own batches.
+     *
+     * @param in The inputs of the batch
+     * @param out The outputs of the batch, of the same size as the inputs
+     */
+    public void main(ShaderBatch in, ShaderBatch out) {
+        in.shadeLanes(this, out);
+    }
+
+    boolean isBatched() {
+        return batched;
+    }
+
     public abstract ShaderType getType();
 
     DataFormat[] getOutputFormat() {
         return outputFormat;
     }
 
-    void setUniform(String name, Object o) {
+    /**
+     * Returns the implementation to use when this shader is linked in a program with the vertex and fragment shaders. Shaders which resolve their inputs by name return a copy bound to the other
+     * shader, which shares the uniforms with this one. By default this shader is returned.
+     *
+     * @param vertexShader The vertex shader of the program
+     * @param fragmentShader The fragment shader of the program
+     * @return The implementation to draw with
+     */
+    ShaderImplementation link(SoftwareShader vertexShader, SoftwareShader fragmentShader) {
+        return this;
+    }
+
+    /**
+     * Returns a method handle which sets the uniform field of this shader, taking the new value as its only parameter, of the field's type.
+     *
+     * @param name The name of the uniform
+     * @return The setter handle, or null if the shader doesn't declare the uniform
+     */
+    MethodHandle getUniformSetter(String name) {
         final Field field = uniforms.get(name);
-        if (field != null) {
-            try {
-                field.set(this, o);
-            } catch (IllegalAccessException ex) {
-                throw new IllegalStateException("Could not set uniform in shader", ex);
-            } catch (IllegalArgumentException ex) {
-                throw new IllegalStateException("Uniform \"" + name + "\" is not of type \"" + o.getClass().getCanonicalName() + "\"", ex);
-            }
+        if (field == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).bindTo(this);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Could not access uniform in shader", ex);
         }
     }
 
@@ -0,0 +1,93 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.gl.Shader.ShaderType;
+
+/**
+ * The vertex and fragment shaders of a linked program, with the layout of the values passed between them resolved once: the normalized vertex output format, and whether each output component is
+ * a float. The rasterizers interpolate the vertex shader outputs with these flags, instead of looking up the data format of each component. No code is generated for the pipeline, the shaders are
+ * still called through {@link ShaderImplementation}.
+ */
+class ShaderPipeline {
+    private final ShaderImplementation vertexShader;
+    private final ShaderImplementation fragmentShader;
+    // The vertex shader output format, with integer types normalized like in the shader buffers
+    private final DataFormat[] vertexOutputFormat;
+    // The number of raw output values after the position, and whether each of them is a float
+    private final int outputsSize;
+    private final boolean[] floatOutputs;
+
+    ShaderPipeline(SoftwareShader vertexShader, SoftwareShader fragmentShader) {
+        if (vertexShader == null || fragmentShader == null) {
+            throw new IllegalStateException("A program needs both a vertex and a fragment shader to draw");
+        }
+        final ShaderImplementation vertexImplementation = vertexShader.getImplementation();
+        final ShaderImplementation fragmentImplementation = fragmentShader.getImplementation();
+        if (vertexImplementation == null || fragmentImplementation == null
+                || vertexImplementation.getType() != ShaderType.VERTEX || fragmentImplementation.getType() != ShaderType.FRAGMENT) {
+            throw new IllegalStateException("The program shaders haven't been compiled");
+        }
+        this.vertexShader = vertexImplementation.link(vertexShader, fragmentShader);
+        this.fragmentShader = fragmentImplementation.link(vertexShader, fragmentShader);
+        vertexOutputFormat = new ShaderBuffer(this.vertexShader.getOutputFormat()).getFormat();
+        int outputsSize = 0;
+        for (int i = 1; i < vertexOutputFormat.length; i++) {
+            outputsSize += vertexOutputFormat[i].getCount();
+        }
+        this.outputsSize = outputsSize;
+        floatOutputs = new boolean[outputsSize];
+        for (int i = 1, component = 0; i < vertexOutputFormat.length; i++) {
+            final DataFormat format = vertexOutputFormat[i];
+            final boolean isFloat = format.getType() == DataType.FLOAT;
+            for (int ii = 0; ii < format.getCount(); ii++) {
+                floatOutputs[component++] = isFloat;
+            }
+        }
+    }
+
+    ShaderImplementation getVertexShader() {
+        return vertexShader;
+    }
+
+    ShaderImplementation getFragmentShader() {
+        return fragmentShader;
+    }
+
+    DataFormat[] getVertexOutputFormat() {
+        return vertexOutputFormat;
+    }
+
+    int getOutputsSize() {
+        return outputsSize;
+    }
+
+    boolean isFloatOutput(int component) {
+        return floatOutputs[component];
+    }
+}
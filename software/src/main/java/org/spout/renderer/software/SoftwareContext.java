@@ -42,10 +42,23 @@ import org.spout.renderer.api.gl.VertexArray;
 import org.spout.renderer.api.util.Rectangle;
 
 /**
+ * A context which renders on the CPU. Frames are displayed in an AWT window, unless the context is headless.
  *
+ * @see org.spout.renderer.software.HeadlessSoftwareContext
  */
 public class SoftwareContext extends Context {
-    private final SoftwareRenderer renderer = new SoftwareRenderer();
+    private final SoftwareRenderer renderer;
+
+    /**
+     * Constructs a new software context which displays its frames in a window.
+     */
+    public SoftwareContext() {
+        this(false);
+    }
+
+    SoftwareContext(boolean headless) {
+        renderer = new SoftwareRenderer(headless);
+    }
 
     @Override
     public void create() {
@@ -61,7 +74,7 @@ public class SoftwareContext extends Context {
 
     @Override
     public FrameBuffer newFrameBuffer() {
-        return new SoftwareFrameBuffer();
+        return new SoftwareFrameBuffer(renderer);
     }
 
     @Override
@@ -81,7 +94,7 @@ public class SoftwareContext extends Context {
 
     @Override
     public Texture newTexture() {
-        return new SoftwareTexture();
+        return new SoftwareTexture(renderer);
     }
 
     @Override
@@ -146,7 +159,8 @@ public class SoftwareContext extends Context {
 
     @Override
     public void setBlendingFunctions(int bufferIndex, BlendFunction source, BlendFunction destination) {
-
+        // There's only one color buffer
+        renderer.setBlendingFunctions(source, destination);
     }
 
     @Override
@@ -154,9 +168,101 @@ public class SoftwareContext extends Context {
         renderer.setViewPort(viewPort);
     }
 
+    @Override
+    public void setScissor(Rectangle scissor) {
+        renderer.setScissor(scissor);
+    }
+
+    @Override
+    public void setCullFace(CullFace face) {
+        renderer.setCullFace(face);
+    }
+
+    @Override
+    public void setFrontFace(FrontFace face) {
+        renderer.setFrontFace(face);
+    }
+
+    @Override
+    public void setPointSize(float size) {
+        renderer.setPointSize(size);
+    }
+
+    /**
+     * Sets the format of the depth buffer of the frame: {@link InternalFormat#DEPTH_COMPONENT16}, {@link InternalFormat#DEPTH_COMPONENT24} or {@link InternalFormat#DEPTH_COMPONENT32}, which are
+     * stored in 24 bits, or {@link InternalFormat#DEPTH_COMPONENT32F}. Defaults to 16 bits. Changing the format replaces the frame buffers. Depth textures attached to frame buffers use their own
+     * internal format.
+     *
+     * @param format The depth format
+     */
+    public void setDepthFormat(InternalFormat format) {
+        renderer.setDepthFormat(format);
+    }
+
+    /**
+     * Enables or disables reversed depth. When enabled, the clip space z coordinate is mapped from 0 to w to depths from 0 to 1, instead of from -w to w, fragments pass the depth test when they're
+     * greater than the stored depth, and depth buffers are cleared to 0. Used with a projection which maps the near plane to 1 and the far plane to 0, and a floating point depth format, this keeps
+     * the depth precision nearly constant over the whole view distance.
+     *
+     * @param enabled Whether or not to reverse the depth
+     */
+    public void setReversedDepth(boolean enabled) {
+        renderer.setReversedDepth(enabled);
+    }
+
+    /**
+     * Enables or disables tiled rendering. When enabled, the vertices of large draw calls are shaded in parallel, triangles are binned into screen tiles as they are drawn, and the tiles are then
+     * rasterized in parallel by the rendering threads. Vertex and fragment shaders will be called from multiple threads at once, and must not keep any per-vertex or per-fragment state in their
+     * fields, as described by {@link ShaderImplementation#main(InBuffer, OutBuffer)}.
+     *
+     * @param enabled Whether or not to use tiled rendering
+     */
+    public void setTiledRendering(boolean enabled) {
+        renderer.setTiledRendering(enabled);
+    }
+
+    /**
+     * Sets the number of threads used for tiled rendering. Defaults to the number of available processors.
+     *
+     * @param count The number of rendering threads, greater than zero
+     */
+    public void setRenderThreadCount(int count) {
+        renderer.setRenderThreadCount(count);
+    }
+
+    /**
+     * Sets the number of color buffers of the frame: 1 to present synchronously, 2 for double buffering or 3 for triple buffering. With more than one, {@link #updateDisplay()} hands the frame to a
+     * present thread and returns once the next buffer isn't being presented anymore, so rendering overlaps presenting. Like in OpenGL, the contents of the frame are then undefined after updating the
+     * display. Defaults to 2. Headless contexts only ever use one. Changing the count replaces the frame buffers.
+     *
+     * @param count The number of color buffers, from 1 to 3
+     */
+    public void setSwapBufferCount(int count) {
+        renderer.setSwapBufferCount(count);
+    }
+
+    /**
+     * Returns the time spent rendering the last frame, from when the display was updated before it to when it was updated after it.
+     *
+     * @return The render time, in nanoseconds
+     */
+    public long getRenderTime() {
+        return renderer.getRenderTime();
+    }
+
+    /**
+     * Returns the time spent presenting the last presented frame in the window, on the present thread. Always 0 for headless contexts.
+     *
+     * @return The present time, in nanoseconds
+     */
+    public long getPresentTime() {
+        return renderer.getPresentTime();
+    }
+
     @Override
     public ByteBuffer readFrame(Rectangle size, InternalFormat format) {
-        return null;
+        checkCreated();
+        return renderer.readFrame(size, format);
     }
 
     @Override
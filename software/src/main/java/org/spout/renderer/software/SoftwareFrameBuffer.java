@@ -26,42 +26,107 @@
  */
 package org.spout.renderer.software;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 import org.spout.renderer.api.gl.FrameBuffer;
 import org.spout.renderer.api.gl.RenderBuffer;
 import org.spout.renderer.api.gl.Texture;
+import org.spout.renderer.api.util.CausticUtil;
 
 /**
- *
+ * A frame buffer for the software renderer. When bound, the renderer writes colors and depths directly into the storage of the attached textures. Since fragment shaders only have one output,
+ * only the first color attachment is written to. When unbound, the mipmaps of the attached textures are generated again. Render buffers and stencil attachments aren't supported.
  */
 public class SoftwareFrameBuffer extends FrameBuffer {
+    private final SoftwareRenderer renderer;
+    private final Map<AttachmentPoint, SoftwareTexture> attachments = new EnumMap<>(AttachmentPoint.class);
+
+    SoftwareFrameBuffer(SoftwareRenderer renderer) {
+        this.renderer = renderer;
+    }
+
     @Override
-    public void bind() {
+    public void destroy() {
+        checkCreated();
+        attachments.clear();
+        super.destroy();
+    }
 
+    @Override
+    public void bind() {
+        checkCreated();
+        if (!isComplete()) {
+            throw new IllegalStateException("Frame buffer is not complete");
+        }
+        // Use the first color attachment, in attachment point order
+        SoftwareTexture color = null;
+        for (AttachmentPoint point : attachments.keySet()) {
+            if (point.isColor()) {
+                color = attachments.get(point);
+                break;
+            }
+        }
+        SoftwareTexture depth = attachments.get(AttachmentPoint.DEPTH);
+        if (depth == null) {
+            depth = attachments.get(AttachmentPoint.DEPTH_STENCIL);
+        }
+        // All attachments have the same size, so any can be used for the target size
+        final SoftwareTexture any = color != null ? color : depth;
+        renderer.setRenderTarget(color != null ? color.getColors() : null, depth != null ? depth.getDepths() : null, any.getWidth(), any.getHeight());
     }
 
     @Override
     public void unbind() {
-
+        checkCreated();
+        renderer.resetRenderTarget();
+        // The textures were rendered to, so their mipmaps need to be generated again
+        for (SoftwareTexture texture : attachments.values()) {
+            texture.updateMipmaps();
+        }
     }
 
     @Override
     public void attach(AttachmentPoint point, Texture texture) {
-
+        checkCreated();
+        texture.checkCreated();
+        CausticUtil.checkVersion(this, texture);
+        attachments.put(point, (SoftwareTexture) texture);
     }
 
     @Override
     public void attach(AttachmentPoint point, RenderBuffer buffer) {
-
+        throw new UnsupportedOperationException("Render buffers are not supported by the software renderer");
     }
 
     @Override
     public void detach(AttachmentPoint point) {
-
+        checkCreated();
+        attachments.remove(point);
     }
 
     @Override
     public boolean isComplete() {
-        return false;
+        checkCreated();
+        if (attachments.isEmpty() || attachments.containsKey(AttachmentPoint.STENCIL)) {
+            return false;
+        }
+        int width = -1, height = -1;
+        for (Map.Entry<AttachmentPoint, SoftwareTexture> entry : attachments.entrySet()) {
+            final SoftwareTexture texture = entry.getValue();
+            // Check that the texture has storage of the right kind for the attachment point
+            if (entry.getKey().isColor() ? texture.getColors() == null : texture.getDepths() == null) {
+                return false;
+            }
+            // Check that all the attachments have the same size
+            if (width == -1) {
+                width = texture.getWidth();
+                height = texture.getHeight();
+            } else if (width != texture.getWidth() || height != texture.getHeight()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
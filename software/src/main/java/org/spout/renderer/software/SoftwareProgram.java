@@ -26,10 +26,14 @@
  */
 package org.spout.renderer.software;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -40,6 +44,10 @@ import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector3f;
 import com.flowpowered.math.vector.Vector4f;
 
+import gnu.trove.impl.Constants;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import org.spout.renderer.api.gl.Program;
 import org.spout.renderer.api.gl.Shader;
 import org.spout.renderer.api.gl.Shader.ShaderType;
@@ -49,8 +57,14 @@ import org.spout.renderer.api.util.CausticUtil;
  *
  */
 public class SoftwareProgram extends Program {
+    private static final MethodType OBJECT_SETTER = MethodType.methodType(void.class, Object.class);
     private final SoftwareRenderer renderer;
     private final Map<ShaderType, SoftwareShader> shaders = new EnumMap<>(ShaderType.class);
+    // The slot of each uniform, and the setters for the uniform fields of the shaders at each slot, resolved when linking
+    private final TObjectIntMap<String> uniforms = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+    private UniformSetter[][] uniformSetters;
+    // The shaders and their interface, resolved when linking, or null if the program can't draw
+    private ShaderPipeline pipeline;
 
     public SoftwareProgram(SoftwareRenderer renderer) {
         this.renderer = renderer;
@@ -60,23 +74,58 @@ public class SoftwareProgram extends Program {
     public void attachShader(Shader shader) {
         CausticUtil.checkVersion(this, shader);
         shaders.put(shader.getType(), (SoftwareShader) shader);
+        uniformSetters = null;
     }
 
     SoftwareShader getShader(ShaderType type) {
         return shaders.get(type);
     }
 
+    ShaderPipeline getPipeline() {
+        if (uniformSetters == null) {
+            link();
+        }
+        if (pipeline == null) {
+            throw new IllegalStateException("A program needs both a vertex and a fragment shader to draw");
+        }
+        return pipeline;
+    }
+
     @Override
     public void detachShader(Shader shader) {
         final Shader found = shaders.get(shader.getType());
         if (shader.equals(found)) {
             shaders.remove(shader.getType());
+            uniformSetters = null;
         }
     }
 
     @Override
     public void link() {
-        // Nothing to do
+        final SoftwareShader vertexShader = shaders.get(ShaderType.VERTEX);
+        final SoftwareShader fragmentShader = shaders.get(ShaderType.FRAGMENT);
+        pipeline = vertexShader != null && fragmentShader != null ? new ShaderPipeline(vertexShader, fragmentShader) : null;
+        // Give each uniform name a slot, with the setters of all the shaders that declare it
+        uniforms.clear();
+        final List<List<UniformSetter>> setters = new ArrayList<>();
+        for (SoftwareShader shader : shaders.values()) {
+            final ShaderImplementation implementation = shader.getImplementation();
+            for (String name : implementation.getUniformNames()) {
+                int slot = uniforms.get(name);
+                if (slot < 0) {
+                    slot = setters.size();
+                    uniforms.put(name, slot);
+                    setters.add(new ArrayList<UniformSetter>());
+                }
+                setters.get(slot).add(new UniformSetter(name, implementation.getUniformSetter(name)));
+            }
+        }
+        final UniformSetter[][] uniformSetters = new UniformSetter[setters.size()][];
+        for (int i = 0; i < uniformSetters.length; i++) {
+            final List<UniformSetter> slotSetters = setters.get(i);
+            uniformSetters[i] = slotSetters.toArray(new UniformSetter[slotSetters.size()]);
+        }
+        this.uniformSetters = uniformSetters;
     }
 
     @Override
@@ -86,22 +135,79 @@ public class SoftwareProgram extends Program {
 
     @Override
     public void bindSampler(int unit) {
-
+        boolean found = false;
+        for (SoftwareShader shader : shaders.values()) {
+            final String name = shader.getTextureLayouts().get(unit);
+            if (name != null) {
+                setUniform(name, (Object) renderer.getSampler(unit));
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("No texture layout has been set for the unit: " + unit);
+        }
     }
 
     @Override
     public void setUniform(String name, boolean b) {
-        setUniform(name, (Object) b);
+        final UniformSetter[] setters = getUniformSetters(name);
+        if (setters == null) {
+            return;
+        }
+        for (UniformSetter setter : setters) {
+            try {
+                if (setter.fieldType == boolean.class) {
+                    setter.setter.invokeExact(b);
+                } else {
+                    setter.objectSetter.invokeExact((Object) b);
+                }
+            } catch (Throwable throwable) {
+                throw setter.wrongType(b, throwable);
+            }
+        }
     }
 
     @Override
     public void setUniform(String name, int i) {
-        setUniform(name, (Object) i);
+        final UniformSetter[] setters = getUniformSetters(name);
+        if (setters == null) {
+            return;
+        }
+        for (UniformSetter setter : setters) {
+            try {
+                if (setter.fieldType == int.class) {
+                    setter.setter.invokeExact(i);
+                } else if (setter.sampler) {
+                    // Like in OpenGL, samplers are set to the texture unit they sample
+                    setter.objectSetter.invokeExact((Object) renderer.getSampler(i));
+                } else {
+                    setter.objectSetter.invokeExact((Object) i);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw ex;
+            } catch (Throwable throwable) {
+                throw setter.wrongType(i, throwable);
+            }
+        }
     }
 
     @Override
     public void setUniform(String name, float f) {
-        setUniform(name, (Object) f);
+        final UniformSetter[] setters = getUniformSetters(name);
+        if (setters == null) {
+            return;
+        }
+        for (UniformSetter setter : setters) {
+            try {
+                if (setter.fieldType == float.class) {
+                    setter.setter.invokeExact(f);
+                } else {
+                    setter.objectSetter.invokeExact((Object) f);
+                }
+            } catch (Throwable throwable) {
+                throw setter.wrongType(f, throwable);
+            }
+        }
     }
 
     @Override
@@ -150,9 +256,26 @@ public class SoftwareProgram extends Program {
     }
 
     private void setUniform(String name, Object o) {
-        for (SoftwareShader shader : shaders.values()) {
-            shader.getImplementation().setUniform(name, o);
+        final UniformSetter[] setters = getUniformSetters(name);
+        if (setters == null) {
+            return;
+        }
+        for (UniformSetter setter : setters) {
+            try {
+                setter.objectSetter.invokeExact(o);
+            } catch (Throwable throwable) {
+                throw setter.wrongType(o, throwable);
+            }
+        }
+    }
+
+    private UniformSetter[] getUniformSetters(String name) {
+        // Programs used to work without linking, so link on first use if needed
+        if (uniformSetters == null) {
+            link();
         }
+        final int slot = uniforms.get(name);
+        return slot < 0 ? null : uniformSetters[slot];
     }
 
     @Override
@@ -173,4 +296,29 @@ public class SoftwareProgram extends Program {
     public GLVersion getGLVersion() {
         return GLVersion.SOFTWARE;
     }
+
+    private static class UniformSetter {
+        private final String name;
+        // The setter of the field, and the same setter adapted to take any object, which is unboxed or cast as needed
+        private final MethodHandle setter;
+        private final MethodHandle objectSetter;
+        // The type of the field, which is unique, unlike method types which aren't always the same instance
+        private final Class<?> fieldType;
+        private final boolean sampler;
+
+        private UniformSetter(String name, MethodHandle setter) {
+            this.name = name;
+            this.setter = setter;
+            objectSetter = setter.asType(OBJECT_SETTER);
+            fieldType = setter.type().parameterType(0);
+            sampler = fieldType == Sampler.class;
+        }
+
+        private IllegalStateException wrongType(Object value, Throwable cause) {
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return new IllegalStateException("Uniform \"" + name + "\" is not of type \"" + (value == null ? null : value.getClass().getCanonicalName()) + "\"", cause);
+        }
+    }
 }
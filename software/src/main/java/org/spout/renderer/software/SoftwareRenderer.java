@@ -26,49 +26,79 @@
  */
 package org.spout.renderer.software;
 
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-import javax.swing.WindowConstants;
-import java.awt.BorderLayout;
-import java.awt.Canvas;
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-import java.awt.image.BufferStrategy;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.gl.Context.BlendFunction;
 import org.spout.renderer.api.gl.Context.Capability;
+import org.spout.renderer.api.gl.Context.CullFace;
+import org.spout.renderer.api.gl.Context.FrontFace;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
 import org.spout.renderer.api.util.Rectangle;
 
 /**
- *
+ * Renders into an int array of packed ARGB colors and a depth buffer, of a selectable depth format. When not headless, the frames are displayed in a {@link org.spout.renderer.software.SoftwareWindow}.
+ * Clears are deferred by a {@link FastClear}, so the buffers must only be read through the renderer.
  */
-class SoftwareRenderer extends Canvas {
-    private final JFrame frame;
+class SoftwareRenderer {
+    static final DataFormat[] FRAGMENT_OUTPUT = {new DataFormat(DataType.FLOAT, 4)};
+    static final int TEXTURE_UNITS = 32;
+    private final SoftwareWindow window;
+    private String title = "Caustic";
     private int width, height;
-    private int scale = 1;
     private boolean initialized = false;
-    private volatile boolean closeRequested = false;
     private int capabilities = 0;
     private final Rectangle viewPort = new Rectangle(width, height);
+    private final Rectangle scissor = new Rectangle(width, height);
+    private CullFace cullFace = CullFace.BACK;
+    private FrontFace frontFace = FrontFace.COUNTER_CLOCKWISE;
+    private float pointSize = 1;
     private int clearColor;
-    private BufferedImage image;
+    // The color buffers of the frame, which are presented in the window in turn, and the one being rendered to
+    private int swapBufferCount = 2;
+    private int[][] frameColors;
+    private int frameIndex;
+    // The frame buffers being rendered to, the color one being one of the above
+    private int[] framePixels;
+    private DepthBuffer frameDepths;
+    // The deferred clears of each color buffer of the frame, which are kept when rendering to frame buffers, and the one being rendered to
+    private FastClear[] frameClears;
+    private FastClear frameClear;
+    // When the frame being rendered was started, and how long rendering the last one took, in nanoseconds
+    private long frameStart;
+    private long renderTime = 0;
+    private InternalFormat depthFormat = InternalFormat.DEPTH_COMPONENT16;
+    // The buffers being rendered to, which are either the frame or the textures of a bound frame buffer
     private int[] pixels;
-    private short[] depths;
+    private DepthBuffer depths;
+    private int targetWidth, targetHeight;
+    // The deferred clears of the render target
+    private FastClear targetClear;
+    // The coarse depths of the render target, or null if it has no depth buffer
+    private DepthBounds depthBounds;
+    private boolean renderingToFrame = true;
     private boolean depthWriting = true;
+    private boolean reversedDepth = false;
+    private BlendFunction sourceBlendFunction = BlendFunction.GL_ONE;
+    private BlendFunction destinationBlendFunction = BlendFunction.GL_ZERO;
+    // The blender for the current functions, or null when blending is disabled or doesn't change the color
+    private Blender blender;
     private SoftwareProgram program;
+    // One sampler per texture unit, which samples the texture bound to the unit
+    private final Sampler[] samplers = new Sampler[TEXTURE_UNITS];
+    private int activeTextureUnit = 0;
+    private boolean tiledRendering = false;
+    private int renderThreadCount = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool renderPool;
+
+    SoftwareRenderer(boolean headless) {
+        window = headless ? null : new SoftwareWindow(title);
+    }
 
-    SoftwareRenderer() {
-        frame = new JFrame("Caustic");
-        final JPanel panel = new JPanel(new BorderLayout());
-        panel.add(this, BorderLayout.CENTER);
-        frame.setContentPane(panel);
-        frame.setResizable(false);
-        frame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
-        frame.addWindowListener(new WindowCloseListener());
+    boolean isHeadless() {
+        return window == null;
     }
 
     int getWindowHeight() {
@@ -84,23 +114,24 @@ class SoftwareRenderer extends Canvas {
             this.width = width;
             this.height = height;
             if (initialized) {
-                updateImage();
+                updateBuffers();
             }
         }
     }
 
     void setWindowTitle(String title) {
-        frame.setTitle(title);
+        this.title = title;
+        if (window != null) {
+            window.setTitle(title);
+        }
     }
 
     String getWindowTitle() {
-        return frame.getTitle();
+        return title;
     }
 
     boolean isCloseRequested() {
-        final boolean oldCloseRequested = closeRequested;
-        closeRequested = false;
-        return oldCloseRequested;
+        return window != null && window.isCloseRequested();
     }
 
     Rectangle getViewPort() {
@@ -111,12 +142,55 @@ class SoftwareRenderer extends Canvas {
         this.viewPort.set(viewPort);
     }
 
+    /**
+     * Returns the scissor rectangle, if the scissor test is enabled.
+     *
+     * @return The scissor rectangle, or null if there's nothing to test
+     */
+    Rectangle getScissor() {
+        return isEnabled(Capability.SCISSOR_TEST) ? scissor : null;
+    }
+
+    void setScissor(Rectangle scissor) {
+        this.scissor.set(scissor);
+    }
+
+    CullFace getCullFace() {
+        return cullFace;
+    }
+
+    void setCullFace(CullFace cullFace) {
+        this.cullFace = cullFace;
+    }
+
+    FrontFace getFrontFace() {
+        return frontFace;
+    }
+
+    void setFrontFace(FrontFace frontFace) {
+        this.frontFace = frontFace;
+    }
+
+    float getPointSize() {
+        return pointSize;
+    }
+
+    void setPointSize(float pointSize) {
+        if (pointSize <= 0) {
+            throw new IllegalArgumentException("Point size must be greater than zero");
+        }
+        this.pointSize = pointSize;
+    }
+
     void setCapabilityEnabled(Capability capability, boolean enabled) {
         if (enabled) {
             capabilities |= 1 << capability.ordinal();
         } else {
             capabilities &= ~(1 << capability.ordinal());
         }
+        if (capability == Capability.BLEND) {
+            updateBlender();
+        }
     }
 
     boolean isEnabled(Capability capability) {
@@ -127,10 +201,62 @@ class SoftwareRenderer extends Canvas {
         this.clearColor = clearColor;
     }
 
+    void setBlendingFunctions(BlendFunction source, BlendFunction destination) {
+        // Check that the functions are supported before changing anything
+        Blender.get(source, destination);
+        sourceBlendFunction = source;
+        destinationBlendFunction = destination;
+        updateBlender();
+    }
+
+    /**
+     * Returns the blender for the current blending functions, if blending is enabled.
+     *
+     * @return The blender, or null if colors are written unchanged
+     */
+    Blender getBlender() {
+        return blender;
+    }
+
+    private void updateBlender() {
+        blender = isEnabled(Capability.BLEND) ? Blender.get(sourceBlendFunction, destinationBlendFunction) : null;
+    }
+
+    boolean isDepthWriting() {
+        return depthWriting;
+    }
+
     void enableDepthWriting(boolean enabled) {
         depthWriting = enabled;
     }
 
+    void setDepthFormat(InternalFormat format) {
+        // Check that the format is a depth one
+        DepthBuffer.getStorageFormat(format);
+        if (depthFormat != format) {
+            depthFormat = format;
+            if (initialized) {
+                updateBuffers();
+            }
+        }
+    }
+
+    boolean isReversedDepth() {
+        return reversedDepth;
+    }
+
+    void setReversedDepth(boolean reversedDepth) {
+        if (this.reversedDepth != reversedDepth && frameClears != null) {
+            // The far depth of the cleared tiles changes
+            for (FastClear clear : frameClears) {
+                clear.invalidate();
+            }
+            targetClear.invalidate();
+        }
+        this.reversedDepth = reversedDepth;
+        updateDepthTarget();
+    }
+
     SoftwareProgram getProgram() {
         return program;
     }
@@ -139,70 +265,308 @@ class SoftwareRenderer extends Canvas {
         this.program = program;
     }
 
+    void setActiveTextureUnit(int unit) {
+        if (unit < 0 || unit >= TEXTURE_UNITS) {
+            throw new IllegalArgumentException("Texture unit must be between 0 and " + (TEXTURE_UNITS - 1));
+        }
+        activeTextureUnit = unit;
+    }
+
+    void bindTexture(SoftwareTexture texture) {
+        getSampler(activeTextureUnit).setTexture(texture);
+    }
+
+    void unbindTexture(SoftwareTexture texture) {
+        for (Sampler sampler : samplers) {
+            if (sampler != null && sampler.getTexture() == texture) {
+                sampler.setTexture(null);
+            }
+        }
+    }
+
+    Sampler getSampler(int unit) {
+        if (unit < 0 || unit >= TEXTURE_UNITS) {
+            throw new IllegalArgumentException("Texture unit must be between 0 and " + (TEXTURE_UNITS - 1));
+        }
+        Sampler sampler = samplers[unit];
+        if (sampler == null) {
+            sampler = new Sampler();
+            samplers[unit] = sampler;
+        }
+        return sampler;
+    }
+
+    boolean isTiledRendering() {
+        return tiledRendering;
+    }
+
+    void setTiledRendering(boolean tiledRendering) {
+        this.tiledRendering = tiledRendering;
+    }
+
+    void setRenderThreadCount(int renderThreadCount) {
+        if (renderThreadCount <= 0) {
+            throw new IllegalArgumentException("Render thread count must be greater than zero");
+        }
+        if (this.renderThreadCount != renderThreadCount) {
+            this.renderThreadCount = renderThreadCount;
+            // The pool will be recreated with the new thread count when needed
+            shutdownRenderPool();
+        }
+    }
+
+    ForkJoinPool getRenderPool() {
+        if (renderPool == null) {
+            renderPool = new ForkJoinPool(renderThreadCount);
+        }
+        return renderPool;
+    }
+
+    private void shutdownRenderPool() {
+        if (renderPool != null) {
+            renderPool.shutdown();
+            renderPool = null;
+        }
+    }
+
+    void setSwapBufferCount(int swapBufferCount) {
+        if (swapBufferCount < 1 || swapBufferCount > 3) {
+            throw new IllegalArgumentException("Swap buffer count must be between 1 and 3");
+        }
+        if (this.swapBufferCount != swapBufferCount) {
+            this.swapBufferCount = swapBufferCount;
+            if (initialized) {
+                updateBuffers();
+            }
+        }
+    }
+
+    long getRenderTime() {
+        return renderTime;
+    }
+
+    long getPresentTime() {
+        return window != null ? window.getPresentTime() : 0;
+    }
+
     void init() {
-        updateImage();
-        frame.setVisible(true);
-        createBufferStrategy(3);
+        updateBuffers();
+        if (window != null) {
+            window.open();
+        }
         viewPort.setSize(width, height);
+        scissor.setSize(width, height);
+        frameStart = System.nanoTime();
         initialized = true;
     }
 
-    private void updateImage() {
-        final Dimension size = new Dimension(width * scale, height * scale);
-        setSize(size);
-        setPreferredSize(size);
-        setMinimumSize(size);
-        setMaximumSize(size);
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-        depths = new short[width * height];
-        frame.pack();
-        frame.setLocationRelativeTo(null);
+    private void updateBuffers() {
+        // Only frames displayed in a window are presented while the next one is rendered
+        final int bufferCount = window != null ? swapBufferCount : 1;
+        frameColors = new int[bufferCount][width * height];
+        frameDepths = DepthBuffer.create(depthFormat, width * height);
+        frameClears = new FastClear[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            frameClears[i] = new FastClear(frameColors[i], frameDepths, width, height);
+        }
+        frameIndex = 0;
+        framePixels = frameColors[0];
+        frameClear = frameClears[0];
+        if (renderingToFrame) {
+            resetRenderTarget();
+        }
+        if (window != null) {
+            window.setPixels(frameColors, width, height);
+        }
+    }
+
+    void setRenderTarget(int[] pixels, DepthBuffer depths, int width, int height) {
+        resolveTargetClear();
+        this.pixels = pixels;
+        this.depths = depths;
+        targetWidth = width;
+        targetHeight = height;
+        // The textures might be changed while unbound, so nothing is known to be cleared
+        targetClear = new FastClear(pixels, depths, width, height);
+        renderingToFrame = false;
+        updateDepthTarget();
+    }
+
+    void resetRenderTarget() {
+        resolveTargetClear();
+        pixels = framePixels;
+        depths = frameDepths;
+        targetWidth = width;
+        targetHeight = height;
+        targetClear = frameClear;
+        renderingToFrame = true;
+        updateDepthTarget();
+    }
+
+    // The textures of frame buffers must hold their contents once unbound
+    private void resolveTargetClear() {
+        if (!renderingToFrame && targetClear != null) {
+            targetClear.resolve();
+        }
+    }
+
+    /**
+     * Called before the storage of a texture is read or changed outside of rendering, in case the texture is being rendered to.
+     *
+     * @param colors The colors of the texture, or null
+     * @param depths The depths of the texture, or null
+     */
+    void textureAccessed(int[] colors, DepthBuffer depths) {
+        if (!renderingToFrame && (colors != null && colors == pixels || depths != null && depths == this.depths)) {
+            targetClear.invalidate();
+        }
+    }
+
+    private void updateDepthTarget() {
+        if (depths == null) {
+            depthBounds = null;
+            return;
+        }
+        depths.setReversed(reversedDepth);
+        if (depthBounds != null && depthBounds.isFor(depths)) {
+            // The depths might have been changed while another target was bound, or the keys reversed
+            depthBounds.invalidate();
+        } else {
+            depthBounds = new DepthBounds(depths, targetWidth, targetHeight);
+        }
+    }
+
+    /**
+     * Returns the coarse depths of the render target, if the depth test is enabled and the target has a depth buffer.
+     *
+     * @return The coarse depths, or null if there's nothing to test
+     */
+    DepthBounds getDepthBounds() {
+        return isEnabled(Capability.DEPTH_TEST) ? depthBounds : null;
+    }
+
+    // Called when the depth buffer was written to outside of rendering
+    void depthsChanged(DepthBuffer depths) {
+        if (depthBounds != null && depthBounds.isFor(depths)) {
+            depthBounds.invalidate();
+        }
+    }
+
+    // The buffers being rendered to, either of which can be null for frame buffers
+    int[] getTargetPixels() {
+        return pixels;
+    }
+
+    DepthBuffer getTargetDepths() {
+        return depths;
+    }
+
+    FastClear getTargetClear() {
+        return targetClear;
+    }
+
+    int getTargetWidth() {
+        return targetWidth;
+    }
+
+    int getTargetHeight() {
+        return targetHeight;
     }
 
     void dispose() {
-        frame.dispose();
-        image = null;
+        if (window != null) {
+            window.dispose();
+        }
+        frameColors = null;
+        framePixels = null;
+        frameDepths = null;
+        frameClears = null;
+        frameClear = null;
+        targetClear = null;
         pixels = null;
         depths = null;
+        depthBounds = null;
+        renderingToFrame = true;
         program = null;
+        Arrays.fill(samplers, null);
+        shutdownRenderPool();
         initialized = false;
     }
 
     void render() {
-        final BufferStrategy bufferStrategy = getBufferStrategy();
-        final Graphics graphics = bufferStrategy.getDrawGraphics();
-        graphics.drawImage(image, 0, 0, width * scale, height * scale, null);
-        graphics.dispose();
-        bufferStrategy.show();
+        final long start = System.nanoTime();
+        renderTime = start - frameStart;
+        // Headless renderers have nothing to display, the frame is only read back
+        if (window != null) {
+            // Hand the frame to the present thread, and render the next one in the next buffer once it's done being presented
+            frameClear.resolve();
+            window.present(frameIndex);
+            frameIndex = (frameIndex + 1) % frameColors.length;
+            window.waitForImage(frameIndex);
+            final FastClear previousClear = frameClear;
+            framePixels = frameColors[frameIndex];
+            frameClear = frameClears[frameIndex];
+            if (frameClear != previousClear) {
+                // The buffers share the depths, which were drawn to since the next one was last used
+                frameClear.followDepths(previousClear);
+            }
+            if (renderingToFrame) {
+                pixels = framePixels;
+                targetClear = frameClear;
+            }
+        }
+        frameStart = System.nanoTime();
+    }
+
+    int[] getPixels() {
+        frameClear.resolve();
+        return framePixels;
+    }
+
+    DepthBuffer getDepths() {
+        frameClear.resolve();
+        return frameDepths;
     }
 
     void clearPixels() {
-        Arrays.fill(pixels, clearColor);
-        Arrays.fill(depths, Short.MAX_VALUE);
+        final Rectangle scissor = getScissor();
+        if (scissor != null) {
+            clearPixels(scissor);
+            return;
+        }
+        // The tiles are filled when they're first drawn to or read
+        targetClear.clear(clearColor);
+        // Frame buffers might be missing the depth attachment
+        if (depthBounds != null) {
+            depthBounds.clear();
+        }
     }
 
-    void writePixel(int x, int y, short z, int color) {
-        if (x < 0 || x >= width || y < 0 || y >= width) {
-            throw new IllegalArgumentException("(" + x + ", " + y + ") not within (0, 0) to (" + (width - 1) + ", " + (height - 1) + ")");
+    private void clearPixels(Rectangle scissor) {
+        // Only clear the rows of the scissor rectangle within the target
+        final int minX = Math.max(scissor.getX(), 0), minY = Math.max(scissor.getY(), 0);
+        final int maxX = Math.min(scissor.getX() + scissor.getWidth(), targetWidth), maxY = Math.min(scissor.getY() + scissor.getHeight(), targetHeight);
+        if (minX >= maxX || minY >= maxY) {
+            return;
         }
-        final int i = x + y * width;
-        if (isEnabled(Capability.DEPTH_TEST)) {
-            if (z < depths[i]) {
-                pixels[i] = color;
-                if (depthWriting) {
-                    depths[i] = z;
-                }
+        // Tiles which still need to be cleared are filled first, so that only the scissor rectangle gets the new clear color
+        targetClear.touch(minX, minY, maxX - 1, maxY - 1);
+        for (int y = minY; y < maxY; y++) {
+            final int row = y * targetWidth;
+            if (pixels != null) {
+                Arrays.fill(pixels, row + minX, row + maxX, clearColor);
             }
-        } else {
-            pixels[i] = color;
+            if (depths != null) {
+                depths.clear(row + minX, row + maxX);
+            }
+        }
+        if (depths != null) {
+            depthBounds.invalidate();
         }
     }
 
-    private class WindowCloseListener extends WindowAdapter {
-        @Override
-        public void windowClosing(WindowEvent event) {
-            closeRequested = true;
-        }
+    ByteBuffer readFrame(Rectangle size, InternalFormat format) {
+        frameClear.resolve();
+        return SoftwareUtil.readImage(framePixels, frameDepths, width, height, size, format);
     }
 }
@@ -26,33 +26,65 @@
  */
 package org.spout.renderer.software;
 
+import java.util.regex.Pattern;
+
+import gnu.trove.TCollections;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
 import org.spout.renderer.api.data.ShaderSource;
 import org.spout.renderer.api.gl.Shader;
 
 /**
- *
+ * A shader for the software renderer. The source is either the name of a {@link org.spout.renderer.software.ShaderImplementation} class, or GLSL, which is compiled to run on the CPU, so that the
+ * same sources can be used with the OpenGL renderers. GLSL sources must declare their type. They're interpreted, so they're slower than equivalent Java shaders.
  */
 public class SoftwareShader extends Shader {
+    private static final Pattern CLASS_NAME = Pattern.compile("\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*(\\.\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*)*");
     private Class<? extends ShaderImplementation> shaderClass;
+    // The GLSL source and its type, if the source isn't a class name
+    private String glslSource;
+    private ShaderType glslType;
     private ShaderImplementation shader;
+    private final TObjectIntMap<String> attributeLayouts = new TObjectIntHashMap<>();
+    private final TIntObjectMap<String> textureLayouts = new TIntObjectHashMap<>();
 
     @Override
     @SuppressWarnings("unchecked")
     public void setSource(ShaderSource source) {
-        try {
-            shaderClass = (Class<? extends ShaderImplementation>) Class.forName(source.getSource().toString());
-        } catch (ClassNotFoundException ex) {
-            throw new IllegalArgumentException("Shader source not found", ex);
-        } catch (ClassCastException ex) {
-            throw new IllegalArgumentException("Shader class not of type " + ShaderImplementation.class.getCanonicalName());
+        final String text = source.getSource().toString().trim();
+        if (CLASS_NAME.matcher(text).matches()) {
+            try {
+                shaderClass = (Class<? extends ShaderImplementation>) Class.forName(text);
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalArgumentException("Shader source not found", ex);
+            } catch (ClassCastException ex) {
+                throw new IllegalArgumentException("Shader class not of type " + ShaderImplementation.class.getCanonicalName());
+            }
+            glslSource = null;
+            glslType = null;
+        } else {
+            if (source.getType() == null) {
+                throw new IllegalArgumentException("GLSL shader sources must declare their type");
+            }
+            shaderClass = null;
+            glslSource = text;
+            glslType = source.getType();
         }
+        attributeLayouts.clear();
+        attributeLayouts.putAll(source.getAttributeLayouts());
+        textureLayouts.clear();
+        textureLayouts.putAll(source.getTextureLayouts());
     }
 
     @Override
     public void compile() {
+        if (glslSource != null) {
+            shader = new GLSLShader(GLSLCompiler.compile(glslSource, glslType), attributeLayouts);
+            return;
+        }
         try {
             shader = shaderClass.newInstance();
         } catch (InstantiationException | IllegalAccessException ex) {
@@ -71,22 +103,22 @@ public class SoftwareShader extends Shader {
 
     @Override
     public TObjectIntMap<String> getAttributeLayouts() {
-        return null;
+        return TCollections.unmodifiableMap(attributeLayouts);
     }
 
     @Override
     public TIntObjectMap<String> getTextureLayouts() {
-        return null;
+        return TCollections.unmodifiableMap(textureLayouts);
     }
 
     @Override
     public void setAttributeLayout(String attribute, int layout) {
-
+        attributeLayouts.put(attribute, layout);
     }
 
     @Override
     public void setTextureLayout(int unit, String sampler) {
-
+        textureLayouts.put(unit, sampler);
     }
 
     @Override
@@ -28,32 +28,63 @@ package org.spout.renderer.software;
 
 import java.nio.ByteBuffer;
 
+import com.flowpowered.math.GenericMath;
 import com.flowpowered.math.vector.Vector4f;
 
 import org.spout.renderer.api.data.VertexAttribute.DataType;
 import org.spout.renderer.api.gl.Texture;
-import org.spout.renderer.api.util.CausticUtil;
+import org.spout.renderer.api.util.Rectangle;
 
 /**
- *
+ * A texture for the software renderer. Texels are stored unpacked from the image data: colors as packed ARGB ints, and depths in a depth buffer of the internal format. Like the frame of the renderer, the top row is stored
+ * first, which lets the renderer draw directly into the texture when it's attached to a frame buffer. When the min filter needs mipmaps, a mip chain of colors is generated by averaging each
+ * 2x2 block of the previous level.
  */
 public class SoftwareTexture extends Texture {
-    private ByteBuffer data;
+    private final SoftwareRenderer renderer;
+    private Format imageFormat = Format.RGB;
+    private InternalFormat format = InternalFormat.RGB8;
     private int width, height;
-    private InternalFormat format;
+    private int[] colors;
+    private DepthBuffer depths;
+    // The mip chain, starting with the colors, or null if the min filter doesn't use mipmaps
+    private int[][] mipmaps;
+    private WrapMode horizontalWrap = WrapMode.REPEAT, verticalWrap = WrapMode.REPEAT;
+    private FilterMode minFilter = FilterMode.NEAREST_MIPMAP_LINEAR, magFilter = FilterMode.LINEAR;
+    private int borderColor = 0;
+
+    SoftwareTexture(SoftwareRenderer renderer) {
+        this.renderer = renderer;
+    }
 
     @Override
-    public void bind(int unit) {
+    public void destroy() {
+        checkCreated();
+        renderer.unbindTexture(this);
+        colors = null;
+        depths = null;
+        super.destroy();
+    }
 
+    @Override
+    public void bind(int unit) {
+        checkCreated();
+        if (unit != -1) {
+            // Activate the texture unit
+            renderer.setActiveTextureUnit(unit);
+        }
+        renderer.bindTexture(this);
     }
 
     @Override
     public void unbind() {
-
+        checkCreated();
+        renderer.bindTexture(null);
     }
 
     @Override
     public void setFormat(Format format, InternalFormat internalFormat) {
+        imageFormat = format;
         if (internalFormat != null) {
             this.format = internalFormat;
         } else {
@@ -97,12 +128,35 @@ public class SoftwareTexture extends Texture {
 
     @Override
     public void setWraps(WrapMode horizontalWrap, WrapMode verticalWrap) {
-
+        checkCreated();
+        if (horizontalWrap == null) {
+            throw new IllegalArgumentException("Horizontal wrap cannot be null");
+        }
+        if (verticalWrap == null) {
+            throw new IllegalArgumentException("Vertical wrap cannot be null");
+        }
+        this.horizontalWrap = horizontalWrap;
+        this.verticalWrap = verticalWrap;
     }
 
     @Override
     public void setFilters(FilterMode minFilter, FilterMode magFilter) {
-
+        checkCreated();
+        if (minFilter == null) {
+            throw new IllegalArgumentException("Min filter cannot be null");
+        }
+        if (magFilter == null) {
+            throw new IllegalArgumentException("Mag filter cannot be null");
+        }
+        if (magFilter.needsMipMaps()) {
+            throw new IllegalArgumentException("Mag filter cannot require mipmaps");
+        }
+        this.minFilter = minFilter;
+        this.magFilter = magFilter;
+        // Build or drop the mip chain if needed
+        if (minFilter.needsMipMaps() != (mipmaps != null)) {
+            updateMipmaps();
+        }
     }
 
     @Override
@@ -112,15 +166,82 @@ public class SoftwareTexture extends Texture {
 
     @Override
     public void setBorderColor(Vector4f borderColor) {
-
+        checkCreated();
+        if (borderColor == null) {
+            throw new IllegalArgumentException("Border color cannot be null");
+        }
+        this.borderColor = SoftwareUtil.pack(borderColor);
     }
 
     @Override
     public void setImageData(ByteBuffer imageData, int width, int height) {
         checkCreated();
+        if (width <= 0) {
+            throw new IllegalArgumentException("Width must be greater than zero");
+        }
+        if (height <= 0) {
+            throw new IllegalArgumentException("Height must be greater than zero");
+        }
+        // The texture might be rendered to, with clears that aren't done yet
+        renderer.textureAccessed(colors, depths);
         this.width = width;
         this.height = height;
-        data = SoftwareUtil.set(data, imageData, 0.5f);
+        final int size = width * height;
+        // Keep the arrays if possible, so that frame buffers using this texture stay valid
+        if (format.hasDepth()) {
+            if (depths == null || depths.size() != size || depths.getFormat() != DepthBuffer.getStorageFormat(format)) {
+                depths = DepthBuffer.create(format, size);
+            }
+            colors = null;
+        } else {
+            if (colors == null || colors.length != size) {
+                colors = new int[size];
+            }
+            depths = null;
+        }
+        if (imageData != null) {
+            readImageData(imageData);
+        }
+        if (depths != null) {
+            renderer.depthsChanged(depths);
+        }
+        updateMipmaps();
+    }
+
+    private void readImageData(ByteBuffer imageData) {
+        // Like in OpenGL, the image data is in the image format, using the component type of the internal format
+        final DataType type = format.getComponentType();
+        imageData.rewind();
+        // The image data starts at the bottom row, but the top row is stored first
+        for (int y = height - 1; y >= 0; y--) {
+            final int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (depths != null) {
+                    depths.set(row + x, SoftwareUtil.readNormalized(imageData, type));
+                } else if (type == DataType.UNSIGNED_BYTE) {
+                    colors[row + x] = readColor(imageData);
+                } else {
+                    colors[row + x] = readColor(imageData, type);
+                }
+            }
+        }
+        imageData.rewind();
+    }
+
+    private int readColor(ByteBuffer imageData) {
+        final int r = imageFormat.hasRed() ? imageData.get() & 0xFF : 0;
+        final int g = imageFormat.hasGreen() ? imageData.get() & 0xFF : 0;
+        final int b = imageFormat.hasBlue() ? imageData.get() & 0xFF : 0;
+        final int a = imageFormat.hasAlpha() ? imageData.get() & 0xFF : 0xFF;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private int readColor(ByteBuffer imageData, DataType type) {
+        final float r = imageFormat.hasRed() ? SoftwareUtil.readNormalized(imageData, type) : 0;
+        final float g = imageFormat.hasGreen() ? SoftwareUtil.readNormalized(imageData, type) : 0;
+        final float b = imageFormat.hasBlue() ? SoftwareUtil.readNormalized(imageData, type) : 0;
+        final float a = imageFormat.hasAlpha() ? SoftwareUtil.readNormalized(imageData, type) : 1;
+        return SoftwareUtil.pack(r, g, b, a);
     }
 
     @Override
@@ -129,57 +250,8 @@ public class SoftwareTexture extends Texture {
         if (format == null) {
             format = this.format;
         }
-        final ByteBuffer imageData = CausticUtil.createByteBuffer(width * height * format.getBytes());
-        final DataType sourceType = this.format.getComponentType();
-        final DataType destinationType = format.getComponentType();
-        data.rewind();
-        while (data.remaining() > 0) {
-            if (this.format.hasRed()) {
-                if (format.hasRed()) {
-                    SoftwareUtil.copy(data, sourceType, imageData, destinationType);
-                } else {
-                    SoftwareUtil.advance(data, sourceType);
-                }
-            } else {
-                if (format.hasRed()) {
-                    SoftwareUtil.write(imageData, destinationType, 0);
-                }
-            }
-            if (this.format.hasGreen()) {
-                if (format.hasGreen()) {
-                    SoftwareUtil.copy(data, sourceType, imageData, destinationType);
-                } else {
-                    SoftwareUtil.advance(data, sourceType);
-                }
-            } else {
-                if (format.hasGreen()) {
-                    SoftwareUtil.write(imageData, destinationType, 0);
-                }
-            }
-            if (this.format.hasBlue()) {
-                if (format.hasBlue()) {
-                    SoftwareUtil.copy(data, sourceType, imageData, destinationType);
-                } else {
-                    SoftwareUtil.advance(data, sourceType);
-                }
-            } else {
-                if (format.hasBlue()) {
-                    SoftwareUtil.write(imageData, destinationType, 0);
-                }
-            }
-            if (this.format.hasAlpha()) {
-                if (format.hasAlpha()) {
-                    SoftwareUtil.copy(data, sourceType, imageData, destinationType);
-                } else {
-                    SoftwareUtil.advance(data, sourceType);
-                }
-            } else {
-                if (format.hasAlpha()) {
-                    SoftwareUtil.write(imageData, destinationType, 0xFFFFFFFF);
-                }
-            }
-        }
-        return imageData;
+        renderer.textureAccessed(colors, depths);
+        return SoftwareUtil.readImage(colors, depths, width, height, new Rectangle(width, height), format);
     }
 
     @Override
@@ -192,6 +264,199 @@ public class SoftwareTexture extends Texture {
         return height;
     }
 
+    int[] getColors() {
+        return colors;
+    }
+
+    boolean hasImage() {
+        return colors != null || depths != null;
+    }
+
+    boolean isDepth() {
+        return depths != null;
+    }
+
+    void updateMipmaps() {
+        if (colors == null || !minFilter.needsMipMaps()) {
+            mipmaps = null;
+            return;
+        }
+        // Each level halves the size, down to 1x1
+        final int levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+        if (mipmaps == null || mipmaps.length != levels || mipmaps[0] != colors) {
+            mipmaps = new int[levels][];
+            mipmaps[0] = colors;
+        }
+        int levelWidth = width, levelHeight = height;
+        for (int level = 1; level < levels; level++) {
+            final int nextWidth = Math.max(levelWidth >> 1, 1), nextHeight = Math.max(levelHeight >> 1, 1);
+            if (mipmaps[level] == null) {
+                mipmaps[level] = new int[nextWidth * nextHeight];
+            }
+            downsample(mipmaps[level - 1], levelWidth, levelHeight, mipmaps[level], nextWidth, nextHeight);
+            levelWidth = nextWidth;
+            levelHeight = nextHeight;
+        }
+    }
+
+    float getLevelOfDetail(float dsdx, float dtdx, float dsdy, float dtdy) {
+        // Use the largest scale factor of the texture in x or y, squared
+        final float scaleX = square(dsdx * width) + square(dtdx * height);
+        final float scaleY = square(dsdy * width) + square(dtdy * height);
+        return fastLog2(Math.max(scaleX, scaleY)) / 2;
+    }
+
+    int sampleColor(float s, float t, float levelOfDetail) {
+        // Like in OpenGL, use the mag filter if the texture is magnified
+        if (levelOfDetail <= 0) {
+            return sampleLevel(0, s, t, magFilter == FilterMode.LINEAR);
+        }
+        final boolean linear;
+        final boolean blendLevels;
+        switch (minFilter) {
+            case NEAREST:
+                return sampleLevel(0, s, t, false);
+            case LINEAR:
+                return sampleLevel(0, s, t, true);
+            case NEAREST_MIPMAP_NEAREST:
+                linear = false;
+                blendLevels = false;
+                break;
+            case LINEAR_MIPMAP_NEAREST:
+                linear = true;
+                blendLevels = false;
+                break;
+            case NEAREST_MIPMAP_LINEAR:
+                linear = false;
+                blendLevels = true;
+                break;
+            default:
+                linear = true;
+                blendLevels = true;
+        }
+        final int maxLevel = mipmaps != null ? mipmaps.length - 1 : 0;
+        if (!blendLevels) {
+            return sampleLevel(Math.min((int) (levelOfDetail + 0.5f), maxLevel), s, t, linear);
+        }
+        // Blend the two closest levels
+        final int level = (int) levelOfDetail;
+        if (level >= maxLevel) {
+            return sampleLevel(maxLevel, s, t, linear);
+        }
+        final int weight = (int) ((levelOfDetail - level) * 256);
+        return lerpARGB(sampleLevel(level, s, t, linear), sampleLevel(level + 1, s, t, linear), weight);
+    }
+
+    private int sampleLevel(int level, float s, float t, boolean linear) {
+        final int[] texels = level == 0 ? colors : mipmaps[level];
+        final int width = Math.max(this.width >> level, 1), height = Math.max(this.height >> level, 1);
+        if (!linear) {
+            return fetchColor(texels, width, height, (int) Math.floor(s * width), (int) Math.floor(t * height));
+        }
+        // Find the four closest texels and the weights of the texels on the right and top, in 1/256ths
+        final float u = s * width - 0.5f, v = t * height - 0.5f;
+        final int x = (int) Math.floor(u), y = (int) Math.floor(v);
+        final int weightX = (int) ((u - x) * 256), weightY = (int) ((v - y) * 256);
+        final int bottom = lerpARGB(fetchColor(texels, width, height, x, y), fetchColor(texels, width, height, x + 1, y), weightX);
+        final int top = lerpARGB(fetchColor(texels, width, height, x, y + 1), fetchColor(texels, width, height, x + 1, y + 1), weightX);
+        return lerpARGB(bottom, top, weightY);
+    }
+
+    float sampleDepth(float s, float t) {
+        final int width = this.width, height = this.height;
+        if (magFilter == FilterMode.NEAREST) {
+            return fetchDepth((int) Math.floor(s * width), (int) Math.floor(t * height));
+        }
+        final float u = s * width - 0.5f, v = t * height - 0.5f;
+        final int x = (int) Math.floor(u), y = (int) Math.floor(v);
+        final float weightX = u - x, weightY = v - y;
+        final float bottom = GenericMath.lerp(fetchDepth(x, y), fetchDepth(x + 1, y), weightX);
+        final float top = GenericMath.lerp(fetchDepth(x, y + 1), fetchDepth(x + 1, y + 1), weightX);
+        return GenericMath.lerp(bottom, top, weightY);
+    }
+
+    private int fetchColor(int[] texels, int width, int height, int x, int y) {
+        x = wrap(x, width, horizontalWrap);
+        y = wrap(y, height, verticalWrap);
+        if (x < 0 || y < 0) {
+            return borderColor;
+        }
+        // The texture coordinates start at the bottom, but the top row is stored first
+        return texels[x + (height - 1 - y) * width];
+    }
+
+    private float fetchDepth(int x, int y) {
+        x = wrap(x, width, horizontalWrap);
+        y = wrap(y, height, verticalWrap);
+        if (x < 0 || y < 0) {
+            return (borderColor >> 16 & 0xFF) / 255f;
+        }
+        return depths.get(x + (height - 1 - y) * width);
+    }
+
+    // Returns the wrapped texel coordinate, or -1 for the border
+    private static int wrap(int i, int size, WrapMode mode) {
+        switch (mode) {
+            case CLAMP_TO_EDGE:
+                return i < 0 ? 0 : i >= size ? size - 1 : i;
+            case CLAMP_TO_BORDER:
+                return i < 0 || i >= size ? -1 : i;
+            case MIRRORED_REPEAT:
+                final int period = size * 2;
+                i %= period;
+                if (i < 0) {
+                    i += period;
+                }
+                return i < size ? i : period - 1 - i;
+            default:
+                i %= size;
+                return i < 0 ? i + size : i;
+        }
+    }
+
+    private static void downsample(int[] source, int sourceWidth, int sourceHeight, int[] destination, int width, int height) {
+        // Average each 2x2 block of texels, clamping to the edges for odd sizes
+        for (int y = 0; y < height; y++) {
+            // The rows are counted from the bottom, but the top row is stored first
+            final int sourceRow0 = (sourceHeight - 1 - Math.min(y * 2, sourceHeight - 1)) * sourceWidth;
+            final int sourceRow1 = (sourceHeight - 1 - Math.min(y * 2 + 1, sourceHeight - 1)) * sourceWidth;
+            final int row = (height - 1 - y) * width;
+            for (int x = 0; x < width; x++) {
+                final int x0 = Math.min(x * 2, sourceWidth - 1), x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+                destination[row + x] = averageARGB(source[sourceRow0 + x0], source[sourceRow0 + x1], source[sourceRow1 + x0], source[sourceRow1 + x1]);
+            }
+        }
+    }
+
+    // Averages four ARGB colors, two components at a time, rounding to the nearest
+    private static int averageARGB(int a, int b, int c, int d) {
+        final int redBlue = ((a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x20002) >>> 2 & 0xFF00FF;
+        final int alphaGreen = ((a >>> 8 & 0xFF00FF) + (b >>> 8 & 0xFF00FF) + (c >>> 8 & 0xFF00FF) + (d >>> 8 & 0xFF00FF) + 0x20002) >>> 2 & 0xFF00FF;
+        return alphaGreen << 8 | redBlue;
+    }
+
+    private static float square(float f) {
+        return f * f;
+    }
+
+    // Approximates log2 from the float exponent and a linear mantissa, which is precise enough to select levels
+    private static float fastLog2(float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        return (bits >> 23 & 0xFF) - 127 + (bits & 0x7FFFFF) / (float) (1 << 23);
+    }
+
+    // Interpolates two ARGB colors, two components at a time, with a weight in 1/256ths, rounding to the nearest
+    private static int lerpARGB(int a, int b, int weight) {
+        final int inverse = 256 - weight;
+        final int redBlue = ((a & 0xFF00FF) * inverse + (b & 0xFF00FF) * weight + 0x800080) >>> 8 & 0xFF00FF;
+        final int alphaGreen = ((a >>> 8 & 0xFF00FF) * inverse + (b >>> 8 & 0xFF00FF) * weight + 0x800080) & 0xFF00FF00;
+        return alphaGreen | redBlue;
+    }
+
+    DepthBuffer getDepths() {
+        return depths;
+    }
+
     @Override
     public GLVersion getGLVersion() {
         return GLVersion.SOFTWARE;
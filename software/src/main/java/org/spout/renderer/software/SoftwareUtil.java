@@ -27,6 +27,9 @@
 package org.spout.renderer.software;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 import com.flowpowered.math.GenericMath;
 import com.flowpowered.math.vector.Vector4f;
@@ -34,7 +37,9 @@ import com.flowpowered.math.vector.Vector4f;
 import org.spout.renderer.api.GLImplementation;
 import org.spout.renderer.api.GLVersioned.GLVersion;
 import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
 import org.spout.renderer.api.util.CausticUtil;
+import org.spout.renderer.api.util.Rectangle;
 
 /**
  *
@@ -45,38 +50,39 @@ public final class SoftwareUtil {
     private static final float INT_RANGE = (float) Integer.MAX_VALUE - Integer.MIN_VALUE;
     private static final int BYTE_MASK = 0xFF;
     private static final int SHORT_MASK = 0xFFFF;
+    private static final double UNSIGNED_INT_MAX = 0xFFFFFFFFL;
     public static final GLImplementation SOFT_IMPL = new GLImplementation(GLVersion.SOFTWARE, SoftwareContext.class.getName());
+    public static final GLImplementation HEADLESS_SOFT_IMPL = new GLImplementation(GLVersion.SOFTWARE, HeadlessSoftwareContext.class.getName());
 
     private SoftwareUtil() {
     }
 
-    static ByteBuffer create(ByteBuffer buffer, int newCapacity, float threshold) {
-        final int oldCapacity = buffer != null ? buffer.capacity() : 0;
-        if (buffer == null || newCapacity > oldCapacity || newCapacity <= oldCapacity * threshold) {
-            return CausticUtil.createByteBuffer(newCapacity);
-        } else {
-            buffer.clear();
-            return buffer;
+    static int[] create(int[] array, int newLength, float threshold) {
+        final int oldLength = array != null ? array.length : 0;
+        if (array == null || newLength > oldLength || newLength <= oldLength * threshold) {
+            return new int[newLength];
         }
+        return array;
     }
 
-    static ByteBuffer set(ByteBuffer buffer, ByteBuffer newData, float threshold) {
-        final int newCapacity = newData.remaining();
-        buffer = create(buffer, newCapacity, threshold);
-        buffer.put(newData);
-        buffer.flip();
-        return buffer;
+    static int[] setAsInt(int[] array, ByteBuffer newData, DataType type, float threshold) {
+        final int elementCount = newData.remaining() / type.getByteSize();
+        array = create(array, elementCount, threshold);
+        for (int i = 0; i < elementCount; i++) {
+            // Here conversion from byte and short to int is implicit
+            array[i] = read(newData, type);
+        }
+        return array;
     }
 
-    static ByteBuffer setAsFloat(ByteBuffer buffer, ByteBuffer newData, DataType type, float threshold, boolean normalize) {
+    static int[] setAsFloat(int[] array, ByteBuffer newData, DataType type, float threshold, boolean normalize) {
         final int elementCount = newData.remaining() / type.getByteSize();
-        final int newCapacity = elementCount << DataType.FLOAT.getMultiplyShift();
-        buffer = create(buffer, newCapacity, threshold);
+        array = create(array, elementCount, threshold);
         for (int i = 0; i < elementCount; i++) {
-            buffer.putFloat(toFloat(type, read(newData, type), normalize));
+            // Store the raw float bits, which is how shader buffers hold floats
+            array[i] = Float.floatToRawIntBits(toFloat(type, read(newData, type), normalize));
         }
-        buffer.flip();
-        return buffer;
+        return array;
     }
 
     static int read(ByteBuffer data, DataType type) {
@@ -143,6 +149,135 @@ public final class SoftwareUtil {
         }
     }
 
+    static void writeNormalized(ByteBuffer data, DataType type, float value) {
+        switch (type) {
+            case UNSIGNED_BYTE:
+                data.put((byte) (int) (value * BYTE_MASK + 0.5f));
+                break;
+            case UNSIGNED_SHORT:
+                data.putShort((short) (int) (value * SHORT_MASK + 0.5f));
+                break;
+            case UNSIGNED_INT:
+                data.putInt((int) (long) (value * UNSIGNED_INT_MAX + 0.5));
+                break;
+            case FLOAT:
+                data.putFloat(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + type);
+        }
+    }
+
+    static ByteBuffer readImage(int[] colors, DepthBuffer depths, int width, int height, Rectangle size, InternalFormat format) {
+        final int minX = size.getX(), minY = size.getY();
+        final int maxX = minX + size.getWidth(), maxY = minY + size.getHeight();
+        if (minX < 0 || maxX > width || minY < 0 || maxY > height) {
+            throw new IllegalArgumentException("(" + minX + ", " + minY + ") to (" + maxX + ", " + maxY + ") not within (0, 0) to (" + width + ", " + height + ")");
+        }
+        if (format.hasDepth() ? depths == null : colors == null) {
+            throw new IllegalArgumentException("Cannot read format " + format + " from this image");
+        }
+        final ByteBuffer buffer = CausticUtil.createByteBuffer(size.getArea() * format.getBytes());
+        // Like OpenGL, the origin is at the bottom left, so the rows are read from the bottom up
+        // The common formats are converted a row at a time into an array, which is then copied in bulk
+        switch (format) {
+            case RGBA8:
+                readRGBA8(colors, width, height, buffer, minX, minY, maxX, maxY);
+                break;
+            case RGB8:
+                readRGB8(colors, width, height, buffer, minX, minY, maxX, maxY);
+                break;
+            case DEPTH_COMPONENT16:
+                readDepth16(depths, width, height, buffer, minX, minY, maxX, maxY);
+                break;
+            default:
+                readConverted(colors, depths, width, height, buffer, format, minX, minY, maxX, maxY);
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static void readRGBA8(int[] colors, int width, int height, ByteBuffer buffer, int minX, int minY, int maxX, int maxY) {
+        // In big endian order, RGBA bytes are the ARGB int rotated left by one byte
+        final IntBuffer destination = buffer.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        final int[] row = new int[maxX - minX];
+        for (int y = minY; y < maxY; y++) {
+            final int start = (height - 1 - y) * width + minX;
+            for (int x = 0; x < row.length; x++) {
+                row[x] = Integer.rotateLeft(colors[start + x], 8);
+            }
+            destination.put(row);
+        }
+    }
+
+    private static void readRGB8(int[] colors, int width, int height, ByteBuffer buffer, int minX, int minY, int maxX, int maxY) {
+        final int rowWidth = maxX - minX;
+        final byte[] row = new byte[rowWidth * 3];
+        for (int y = minY; y < maxY; y++) {
+            final int start = (height - 1 - y) * width + minX;
+            for (int x = 0, i = 0; x < rowWidth; x++) {
+                final int color = colors[start + x];
+                row[i++] = (byte) (color >> 16);
+                row[i++] = (byte) (color >> 8);
+                row[i++] = (byte) color;
+            }
+            buffer.put(row);
+        }
+    }
+
+    private static void readDepth16(DepthBuffer depths, int width, int height, ByteBuffer buffer, int minX, int minY, int maxX, int maxY) {
+        final ShortBuffer destination = buffer.asShortBuffer();
+        final short[] row = new short[maxX - minX];
+        for (int y = minY; y < maxY; y++) {
+            depths.readUnsignedShorts((height - 1 - y) * width + minX, row);
+            destination.put(row);
+        }
+    }
+
+    private static void readConverted(int[] colors, DepthBuffer depths, int width, int height, ByteBuffer buffer, InternalFormat format, int minX, int minY, int maxX, int maxY) {
+        final DataType type = format.getComponentType();
+        final boolean depth = format.hasDepth();
+        final boolean red = format.hasRed(), green = format.hasGreen(), blue = format.hasBlue(), alpha = format.hasAlpha();
+        for (int y = minY; y < maxY; y++) {
+            final int row = (height - 1 - y) * width;
+            for (int x = minX; x < maxX; x++) {
+                final int i = row + x;
+                if (depth) {
+                    writeNormalized(buffer, type, depths.get(i));
+                    continue;
+                }
+                final int color = colors[i];
+                if (red) {
+                    writeNormalized(buffer, type, (color >> 16 & 0xFF) / 255f);
+                }
+                if (green) {
+                    writeNormalized(buffer, type, (color >> 8 & 0xFF) / 255f);
+                }
+                if (blue) {
+                    writeNormalized(buffer, type, (color & 0xFF) / 255f);
+                }
+                if (alpha) {
+                    writeNormalized(buffer, type, (color >>> 24) / 255f);
+                }
+            }
+        }
+    }
+
+    static float readNormalized(ByteBuffer data, DataType type) {
+        switch (type) {
+            case UNSIGNED_BYTE:
+                return (data.get() & BYTE_MASK) / (float) BYTE_MASK;
+            case UNSIGNED_SHORT:
+                return (data.getShort() & SHORT_MASK) / (float) SHORT_MASK;
+            case UNSIGNED_INT:
+                return (float) ((data.getInt() & 0xFFFFFFFFL) / UNSIGNED_INT_MAX);
+            case FLOAT:
+                return data.getFloat();
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + type);
+        }
+    }
+
     static void advance(ByteBuffer data, DataType type) {
         advance(data, type, 1);
     }
@@ -197,8 +332,9 @@ public final class SoftwareUtil {
         return f;
     }
 
+    // Rounds to the nearest, for normalized values from 0 to 1
     static short denormalizeToShort(float f) {
-        return (short) (f * SHORT_RANGE + Short.MIN_VALUE);
+        return (short) ((int) (f * SHORT_RANGE + 0.5f) + Short.MIN_VALUE);
     }
 
     static void lerp(ShaderBuffer inA, ShaderBuffer inB, float percent, int start, ShaderBuffer out) {
@@ -28,71 +28,68 @@ package org.spout.renderer.software;
 
 import java.nio.ByteBuffer;
 
-import com.flowpowered.math.GenericMath;
-
 import org.spout.renderer.api.data.VertexAttribute;
 import org.spout.renderer.api.data.VertexAttribute.DataType;
 import org.spout.renderer.api.data.VertexAttribute.UploadMode;
 import org.spout.renderer.api.data.VertexData;
-import org.spout.renderer.api.gl.Context.Capability;
-import org.spout.renderer.api.gl.Shader.ShaderType;
 import org.spout.renderer.api.gl.VertexArray;
-import org.spout.renderer.api.util.Rectangle;
 
 /**
  *
  */
 public class SoftwareVertexArray extends VertexArray {
-    private static final DataType INDICES_TYPE = DataType.INT;
-    private static final DataFormat[] FRAGMENT_OUTPUT = {new DataFormat(DataType.FLOAT, 4)};
     private final SoftwareRenderer renderer;
-    private ByteBuffer[] attributeBuffers;
+    private final VertexStage vertexStage;
+    // The attribute components of each vertex, as raw ints or float bits
+    private int[][] attributeData;
     private DataFormat[] attributeFormats;
-    private ByteBuffer indicesBuffer;
+    private int[] indices;
     private DrawingMode mode = DrawingMode.TRIANGLES;
     private int offset = 0, count = -1, totalCount = 0;
 
     public SoftwareVertexArray(SoftwareRenderer renderer) {
         this.renderer = renderer;
+        vertexStage = new VertexStage(renderer);
     }
 
     @Override
     public void setData(VertexData vertexData) {
         checkCreated();
-        // If the new count is greater than or 50% smaller than the old one, we'll reallocate the memory
-        // In the first case because we need more space, in the other to save space
-        indicesBuffer = SoftwareUtil.set(indicesBuffer, vertexData.getIndicesBuffer(), 0.5f);
         // Update the total indices count
         totalCount = vertexData.getIndicesCount();
+        // If the new count is greater than or 50% smaller than the old one, we'll reallocate the memory
+        // In the first case because we need more space, in the other to save space
+        indices = SoftwareUtil.create(indices, totalCount, 0.5f);
+        vertexData.getIndices().toArray(indices, 0, totalCount);
         // Ensure the count fits under the total one
         count = count <= 0 ? totalCount : Math.min(count, totalCount);
         // Ensure that the indices offset and count fits inside the valid part of the buffer
         offset = Math.min(offset, count - 1);
         count -= offset;
-        // Create a new array of attribute buffers of the correct size
+        // Create a new array of attribute data of the correct size
         final int attributeCount = vertexData.getAttributeCount();
-        final ByteBuffer[] newAttributeBuffers = new ByteBuffer[attributeCount];
-        // Copy all the old buffer that will fit in the new array so we can reuse them
-        if (attributeBuffers != null) {
-            System.arraycopy(attributeBuffers, 0, newAttributeBuffers, 0, Math.min(attributeBuffers.length, newAttributeBuffers.length));
+        final int[][] newAttributeData = new int[attributeCount][];
+        // Copy all the old arrays that will fit in the new array so we can reuse them
+        if (attributeData != null) {
+            System.arraycopy(attributeData, 0, newAttributeData, 0, Math.min(attributeData.length, newAttributeData.length));
         }
         // Update the arrays
-        attributeBuffers = newAttributeBuffers;
+        attributeData = newAttributeData;
         attributeFormats = new DataFormat[attributeCount];
         // Set the new vertex data
         for (int i = 0; i < attributeCount; i++) {
             final VertexAttribute attribute = vertexData.getAttribute(i);
-            final ByteBuffer attributeData = attribute.getData();
+            final ByteBuffer data = attribute.getData();
             // If the new count is greater than or 50% smaller than the old one, we'll reallocate the memory
             // Set the data, converting it to float if necessary
             final DataType type = attribute.getType();
             final UploadMode uploadMode = attribute.getUploadMode();
             switch (uploadMode) {
                 case KEEP_INT:
-                    attributeBuffers[i] = SoftwareUtil.set(attributeBuffers[i], attributeData, 0.5f);
+                    attributeData[i] = SoftwareUtil.setAsInt(attributeData[i], data, type, 0.5f);
                     break;
                 default:
-                    attributeBuffers[i] = SoftwareUtil.setAsFloat(attributeBuffers[i], attributeData, type, 0.5f, uploadMode.normalize());
+                    attributeData[i] = SoftwareUtil.setAsFloat(attributeData[i], data, type, 0.5f, uploadMode.normalize());
             }
             // Save the attribute format
             attributeFormats[i] = new DataFormat(uploadMode.toFloat() ? DataType.FLOAT : type, attribute.getSize());
@@ -109,440 +106,157 @@ public class SoftwareVertexArray extends VertexArray {
 
     @Override
     public void setIndicesOffset(int offset) {
-        offset = Math.min(offset, totalCount - 1);
-        count = Math.min(count, totalCount - offset);
+        this.offset = Math.min(offset, totalCount - 1);
+        count = Math.min(count, totalCount - this.offset);
     }
 
     @Override
     public void setIndicesCount(int count) {
         this.count = count <= 0 ? totalCount : count;
-        this.count = Math.min(count, totalCount - offset);
+        this.count = Math.min(this.count, totalCount - offset);
     }
 
     @Override
     public void draw() {
+        // Take the state used for rasterizing, which can't change during the draw
+        final RasterState state = new RasterState(renderer);
         switch (mode) {
             case POINTS:
-                drawPoints();
+                drawPoints(state);
                 break;
             case LINES:
-                drawLines();
+            case LINE_STRIP:
+            case LINE_LOOP:
+                drawLines(state);
+                break;
+            case TRIANGLES:
+            case TRIANGLES_STRIP:
+            case TRIANGLE_FAN:
+                drawTriangles(state);
                 break;
         }
     }
 
-    private void drawPoints() {
-        // Get some renderer properties
-        final Rectangle viewPort = renderer.getViewPort();
-        final boolean clampDepth = renderer.isEnabled(Capability.DEPTH_CLAMP);
+    private void drawPoints(RasterState state) {
         // Get the shader program
         final SoftwareProgram program = renderer.getProgram();
-        // Get the vertex shader implementation, and create appropriate in and out buffers
-        final ShaderImplementation vertexShader = program.getShader(ShaderType.VERTEX).getImplementation();
-        final DataFormat[] vertexOutputFormat = vertexShader.getOutputFormat();
-        final ShaderBuffer vertexIn = new ShaderBuffer(attributeFormats);
-        final ShaderBuffer vertexOut = new ShaderBuffer(vertexOutputFormat);
-        // Get the fragment shader implementation, and create appropriate in and out buffers
-        final ShaderImplementation fragmentShader = program.getShader(ShaderType.FRAGMENT).getImplementation();
-        final ShaderBuffer fragmentIn = new ShaderBuffer(vertexOutputFormat);
-        final ShaderBuffer fragmentOut = new ShaderBuffer(FRAGMENT_OUTPUT);
+        // Get the linked shaders, and create an appropriate out buffer for the vertex shader
+        final ShaderPipeline pipeline = program.getPipeline();
+        final ShaderImplementation vertexShader = pipeline.getVertexShader();
+        final ShaderBuffer vertexOut = new ShaderBuffer(pipeline.getVertexOutputFormat());
+        // Create the rasterizer for the fragment shader, configured by the state of the draw
+        final LineRasterizer rasterizer = new LineRasterizer(state, pipeline);
+        // Shade each vertex used by the draw call once
+        vertexStage.process(vertexShader, attributeData, attributeFormats, indices, offset, count);
         // For all indices that need to be drawn
         for (int i = 0; i < count; i++) {
-            // Compute the point vertex
-            readVertex(vertexShader, vertexIn, vertexOut, i);
-            // Read the first 4 floats, which is the vertex position
-            float x = Float.intBitsToFloat(vertexOut.readRaw());
-            float y = Float.intBitsToFloat(vertexOut.readRaw());
-            float z = Float.intBitsToFloat(vertexOut.readRaw());
-            float w = Float.intBitsToFloat(vertexOut.readRaw());
-            // Perform clipping, ignoring z clipping when depth clamping is active
-            if (!isInside(x, y, z, w, clampDepth)) {
-                continue;
-            }
-            // Compute the NDC coordinates
-            final float wInverse = 1 / w;
-            x *= wInverse;
-            y *= -wInverse;
-            z *= wInverse;
-            // Normalize and convert to window coordinates
-            x = (x + 1) / 2 * (viewPort.getWidth() - 1) + viewPort.getX();
-            y = (y + 1) / 2 * (viewPort.getHeight() - 1) + viewPort.getY();
-            z = SoftwareUtil.clamp((z + 1) / 2, 0, 1);
-            // Store 1/w in w to so that the fragment position vector is the same as in OpenGL
-            w = wInverse;
-            // Clear the fragment in, write the fragment position
-            // followed by the output of the vertex shader and flip the buffer
-            fragmentIn.clear();
-            fragmentIn.writeRaw(Float.floatToIntBits(x));
-            fragmentIn.writeRaw(Float.floatToIntBits(y));
-            fragmentIn.writeRaw(Float.floatToIntBits(z));
-            fragmentIn.writeRaw(Float.floatToIntBits(w));
-            fragmentIn.writeRaw(vertexOut);
-            fragmentIn.flip();
-            // Shade and write the fragment
-            writeFragment(fragmentShader, fragmentIn, fragmentOut, (int) x, (int) y, z);
+            // Read the shaded point vertex
+            vertexStage.readVertex(i, vertexOut);
+            // Clip, rasterize and shade the point
+            rasterizer.drawPoint(vertexOut);
         }
     }
 
-    private void drawLines() {
-        // Get some renderer properties
-        final Rectangle viewPort = renderer.getViewPort();
-        final boolean clampDepth = renderer.isEnabled(Capability.DEPTH_CLAMP);
+    private void drawLines(RasterState state) {
         // Get the shader program
         final SoftwareProgram program = renderer.getProgram();
-        // Get the vertex shader implementation, and create appropriate in and out buffers
-        final ShaderImplementation vertexShader = program.getShader(ShaderType.VERTEX).getImplementation();
-        final DataFormat[] vertexOutputFormat = vertexShader.getOutputFormat();
-        final ShaderBuffer vertexIn = new ShaderBuffer(attributeFormats);
+        // Get the linked shaders, and create appropriate out buffers for the vertex shader
+        final ShaderPipeline pipeline = program.getPipeline();
+        final ShaderImplementation vertexShader = pipeline.getVertexShader();
+        final DataFormat[] vertexOutputFormat = pipeline.getVertexOutputFormat();
         final ShaderBuffer vertexOut1 = new ShaderBuffer(vertexOutputFormat);
         final ShaderBuffer vertexOut2 = new ShaderBuffer(vertexOutputFormat);
-        // Get the fragment shader implementation, and create appropriate in and out buffers
-        final ShaderImplementation fragmentShader = program.getShader(ShaderType.FRAGMENT).getImplementation();
-        final ShaderBuffer fragmentIn = new ShaderBuffer(vertexOutputFormat);
-        final ShaderBuffer fragmentOut = new ShaderBuffer(FRAGMENT_OUTPUT);
-        // For all indices that need to be drawn
-        for (int i = 0; i < count; i += 2) {
-            // Compute the first point
-            readVertex(vertexShader, vertexIn, vertexOut1, i);
-            // Read the first 4 floats, which is the vertex position
-            float x1 = Float.intBitsToFloat(vertexOut1.readRaw());
-            float y1 = Float.intBitsToFloat(vertexOut1.readRaw());
-            float z1 = Float.intBitsToFloat(vertexOut1.readRaw());
-            float w1 = Float.intBitsToFloat(vertexOut1.readRaw());
-            // Compute second the point vertex
-            readVertex(vertexShader, vertexIn, vertexOut2, i + 1);
-            // Read the first 4 floats, which is the vertex position
-            float x2 = Float.intBitsToFloat(vertexOut2.readRaw());
-            float y2 = Float.intBitsToFloat(vertexOut2.readRaw());
-            float z2 = Float.intBitsToFloat(vertexOut2.readRaw());
-            float w2 = Float.intBitsToFloat(vertexOut2.readRaw());
-            // Track the percentage of the line remaining after clipping on both ends
-            float percent1 = 1, percent2 = 1;
-            // Perform clipping on the first point, ignoring z clipping when depth clamping is active
-            if (x1 < -w1) {
-                if (x2 < -w2) {
-                    continue;
-                }
-                final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                float t = (-w2 - x2) / (dx + dw);
-                y1 = t * dy + y2;
-                z1 = t * dz + z2;
-                w1 = t * dw + w2;
-                x1 = -w1;
-                percent1 *= t;
-            }
-            if (x1 > w1) {
-                if (x2 > w2) {
-                    continue;
-                }
-                final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                float t = (w2 - x2) / (dx - dw);
-                y1 = t * dy + y2;
-                z1 = t * dz + z2;
-                w1 = t * dw + w2;
-                x1 = w1;
-                percent1 *= t;
-            }
-            if (y1 < -w1) {
-                if (y2 < -w2) {
-                    continue;
-                }
-                final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                float t = (-w2 - y2) / (dy + dw);
-                x1 = t * dx + x2;
-                z1 = t * dz + z2;
-                w1 = t * dw + w2;
-                y1 = -w1;
-                percent1 *= t;
-            }
-            if (y1 > w1) {
-                if (y2 > w2) {
-                    continue;
-                }
-                final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                float t = (w2 - y2) / (dy - dw);
-                x1 = t * dx + x2;
-                z1 = t * dz + z2;
-                w1 = t * dw + w2;
-                y1 = w1;
-                percent1 *= t;
-            }
-            if (!clampDepth) {
-                if (z1 < -w1) {
-                    if (z2 < -w2) {
-                        continue;
-                    }
-                    final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                    float t = (-w2 - z2) / (dz + dw);
-                    x1 = t * dx + x2;
-                    y1 = t * dy + y2;
-                    w1 = t * dw + w2;
-                    z1 = -w1;
-                    percent1 *= t;
-                }
-                if (z1 > w1) {
-                    if (z2 > w2) {
-                        continue;
-                    }
-                    final float dx = x1 - x2, dy = y1 - y2, dz = z1 - z2, dw = w1 - w2;
-                    float t = (w2 - z2) / (dz - dw);
-                    x1 = t * dx + x2;
-                    y1 = t * dy + y2;
-                    w1 = t * dw + w2;
-                    z1 = w1;
-                    percent1 *= t;
-                }
-            }
-            // Perform clipping on the second point, ignoring z clipping when depth clamping is active
-            if (x2 < -w2) {
-                if (x1 < -w1) {
-                    continue;
-                }
-                final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                float t = (-w1 - x1) / (dx + dw);
-                y2 = t * dy + y1;
-                z2 = t * dz + z1;
-                w2 = t * dw + w1;
-                x2 = -w2;
-                percent2 *= t;
-            }
-            if (x2 > w2) {
-                if (x1 > w1) {
-                    continue;
-                }
-                final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                float t = (w1 - x1) / (dx - dw);
-                y2 = t * dy + y1;
-                z2 = t * dz + z1;
-                w2 = t * dw + w1;
-                x2 = w2;
-                percent2 *= t;
-            }
-            if (y2 < -w2) {
-                if (y1 < -w1) {
-                    continue;
-                }
-                final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                float t = (-w1 - y1) / (dy + dw);
-                x2 = t * dx + x1;
-                z2 = t * dz + z1;
-                w2 = t * dw + w1;
-                y2 = -w2;
-                percent2 *= t;
-            }
-            if (y2 > w2) {
-                if (y1 > w1) {
-                    continue;
-                }
-                final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                float t = (w1 - y1) / (dy - dw);
-                x2 = t * dx + x1;
-                z2 = t * dz + z1;
-                w2 = t * dw + w1;
-                y2 = w2;
-                percent2 *= t;
-            }
-            if (!clampDepth) {
-                if (z2 < -w2) {
-                    if (z1 < -w1) {
-                        continue;
-                    }
-                    final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                    float t = (-w1 - z1) / (dz + dw);
-                    x2 = t * dx + x1;
-                    y2 = t * dy + y1;
-                    w2 = t * dw + w1;
-                    z2 = -w2;
-                    percent2 *= t;
-                }
-                if (z2 > w2) {
-                    if (z1 > w1) {
-                        continue;
-                    }
-                    final float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1, dw = w2 - w1;
-                    float t = (w1 - z1) / (dz - dw);
-                    x2 = t * dx + x1;
-                    y2 = t * dy + y1;
-                    w2 = t * dw + w1;
-                    z2 = w2;
-                    percent2 *= t;
-                }
-            }
-            // The end percent is the percentage that was cut off times the percentage left over from clipping
-            // the first point; inverted to get the remaining amount instead of the cut amount
-            percent2 = 1 - percent1 * (1 - percent2);
-            // The start percent is what's remaining from clipping the first point
-            percent1 = 1 - percent1;
-            // Compute the NDC coordinates of the first point
-            final float wInverse1 = 1 / w1;
-            x1 *= wInverse1;
-            y1 *= -wInverse1;
-            z1 *= wInverse1;
-            // Normalize and convert to window coordinates
-            x1 = (x1 + 1) / 2 * (viewPort.getWidth() - 1) + viewPort.getX();
-            y1 = (y1 + 1) / 2 * (viewPort.getHeight() - 1) + viewPort.getY();
-            z1 = SoftwareUtil.clamp((z1 + 1) / 2, 0, 1);
-            // Store 1/w in w to so that the fragment position vector is the same as in OpenGL
-            w1 = wInverse1;
-            // Compute the NDC coordinates of the second point
-            final float wInverse2 = 1 / w2;
-            x2 *= wInverse2;
-            y2 *= -wInverse2;
-            z2 *= wInverse2;
-            // Normalize and convert to window coordinates
-            x2 = (x2 + 1) / 2 * (viewPort.getWidth() - 1) + viewPort.getX();
-            y2 = (y2 + 1) / 2 * (viewPort.getHeight() - 1) + viewPort.getY();
-            z2 = SoftwareUtil.clamp((z2 + 1) / 2, 0, 1);
-            // Store 1/w in w to so that the fragment position vector is the same as in OpenGL
-            w2 = wInverse2;
-            final float xDiff = x2 - x1;
-            final float yDiff = y2 - y1;
-            // If the two ends of the line are at the same position, use the closest
-            if (xDiff == 0 && yDiff == 0) {
-                final float x, y, z, w;
-                final ShaderBuffer vertexOut;
-                if (z1 < z2) {
-                    x = x1;
-                    y = y1;
-                    z = z1;
-                    w = w1;
-                    vertexOut = vertexOut1;
-                } else {
-                    x = x2;
-                    y = y2;
-                    z = z2;
-                    w = w2;
-                    vertexOut = vertexOut2;
-                }
-                // Clear the fragment in
-                fragmentIn.clear();
-                // Write the fragment position
-                fragmentIn.writeRaw(Float.floatToIntBits(x));
-                fragmentIn.writeRaw(Float.floatToIntBits(y));
-                fragmentIn.writeRaw(Float.floatToIntBits(z));
-                fragmentIn.writeRaw(Float.floatToIntBits(w));
-                // Write the vertex buffer output
-                fragmentIn.writeRaw(vertexOut);
-                // Flip the buffer for reading
-                fragmentIn.flip();
-                // Shade and write the fragment
-                writeFragment(fragmentShader, fragmentIn, fragmentOut, (int) x, (int) y, z);
-            } else if (Math.abs(xDiff) > Math.abs(yDiff)) {
-                final float xMin, xMax;
-                if (x1 < x2) {
-                    xMin = x1;
-                    xMax = x2;
-                } else {
-                    xMin = x2;
-                    xMax = x1;
-                }
-                // Draw line in terms of the y slope
-                final float slope = yDiff / xDiff;
-                for (float x = xMin; x <= xMax; x++) {
-                    final float dx = x - x1;
-                    final float y = y1 + dx * slope;
-                    final float percent = dx / xDiff;
-                    // Lerp the other position components
-                    final float z = GenericMath.lerp(z1, z2, percent);
-                    final float w = GenericMath.lerp(w1, w2, percent);
-                    // Clear the fragment in
-                    fragmentIn.clear();
-                    // write the fragment position
-                    fragmentIn.writeRaw(Float.floatToIntBits(x));
-                    fragmentIn.writeRaw(Float.floatToIntBits(y));
-                    fragmentIn.writeRaw(Float.floatToIntBits(z));
-                    fragmentIn.writeRaw(Float.floatToIntBits(w));
-                    // Write the vertex shader output, using lerp to compute them
-                    // Start at position 4 since we already read the position data
-                    vertexOut1.position(4);
-                    vertexOut2.position(4);
-                    SoftwareUtil.lerp(vertexOut1, vertexOut2, GenericMath.lerp(percent1, percent2, percent), 1, fragmentIn);
-                    // Flip the buffer for reading
-                    fragmentIn.flip();
-                    // Shade and write the fragment
-                    writeFragment(fragmentShader, fragmentIn, fragmentOut, (int) x, (int) y, z);
-                }
-            } else {
-                final float yMin, yMax;
-                if (y1 < y2) {
-                    yMin = y1;
-                    yMax = y2;
-                } else {
-                    yMin = y2;
-                    yMax = y1;
-                }
-                // Draw line in terms of the x slope
-                final float slope = xDiff / yDiff;
-                for (float y = yMin; y <= yMax; y++) {
-                    final float dy = y - y1;
-                    final float x = x1 + dy * slope;
-                    final float percent = dy / yDiff;
-                    // Lerp the other position components
-                    final float z = GenericMath.lerp(z1, z2, percent);
-                    final float w = GenericMath.lerp(w1, w2, percent);
-                    // Clear the fragment in
-                    fragmentIn.clear();
-                    // write the fragment position
-                    fragmentIn.writeRaw(Float.floatToIntBits(x));
-                    fragmentIn.writeRaw(Float.floatToIntBits(y));
-                    fragmentIn.writeRaw(Float.floatToIntBits(z));
-                    fragmentIn.writeRaw(Float.floatToIntBits(w));
-                    // Write the vertex shader output, using lerp to compute them
-                    // Start at position 4 since we already read the position data
-                    vertexOut1.position(4);
-                    vertexOut2.position(4);
-                    SoftwareUtil.lerp(vertexOut1, vertexOut2, GenericMath.lerp(percent1, percent2, percent), 1, fragmentIn);
-                    // Flip the buffer for reading
-                    fragmentIn.flip();
-                    // Shade and write the fragment
-                    writeFragment(fragmentShader, fragmentIn, fragmentOut, (int) x, (int) y, z);
-                }
+        // Create the rasterizer for the fragment shader, configured by the state of the draw
+        final LineRasterizer rasterizer = new LineRasterizer(state, pipeline);
+        // Shade each vertex used by the draw call once
+        vertexStage.process(vertexShader, attributeData, attributeFormats, indices, offset, count);
+        // Strips and loops share vertices between consecutive lines, and loops also join the last vertex to the first
+        final int lineCount;
+        switch (mode) {
+            case LINE_STRIP:
+                lineCount = Math.max(count - 1, 0);
+                break;
+            case LINE_LOOP:
+                lineCount = count > 1 ? count : 0;
+                break;
+            default:
+                lineCount = count / 2;
+        }
+        for (int i = 0; i < lineCount; i++) {
+            // Find the indices of the line vertices
+            final int i1, i2;
+            switch (mode) {
+                case LINE_STRIP:
+                    i1 = i;
+                    i2 = i + 1;
+                    break;
+                case LINE_LOOP:
+                    i1 = i;
+                    i2 = i + 1 < count ? i + 1 : 0;
+                    break;
+                default:
+                    i1 = i * 2;
+                    i2 = i1 + 1;
             }
+            // Read the two shaded vertices
+            vertexStage.readVertex(i1, vertexOut1);
+            vertexStage.readVertex(i2, vertexOut2);
+            // Clip, rasterize and shade the line
+            rasterizer.drawLine(vertexOut1, vertexOut2);
         }
     }
 
-    private boolean isInside(float x, float y, float z, float w, boolean clampDepth) {
-        return w != 0 && x >= -w && x <= w && y >= -w && y <= w && (clampDepth || z >= -w && z <= w);
-    }
-
-    private void readVertex(ShaderImplementation shader, ShaderBuffer in, ShaderBuffer out, int index) {
-        // Clear the vertex in buffer and write the data from the vertex array, then flip it
-        in.clear();
-        for (int i = 0; i < attributeBuffers.length; i++) {
-            final ByteBuffer buffer = attributeBuffers[i];
-            final DataFormat format = attributeFormats[i];
-            final DataType type = format.getType();
-            final int size = format.getCount();
-            for (int ii = 0; ii < size; ii++) {
-                // Here conversion from byte and short to int is implicit
-                final int x = readComponent(buffer, type, size, index, ii);
-                in.writeRaw(x);
+    private void drawTriangles(RasterState state) {
+        // Get the shader program
+        final SoftwareProgram program = renderer.getProgram();
+        // Get the linked shaders, and create appropriate in and out buffers for the vertex shader
+        final ShaderPipeline pipeline = program.getPipeline();
+        final ShaderImplementation vertexShader = pipeline.getVertexShader();
+        final DataFormat[] vertexOutputFormat = pipeline.getVertexOutputFormat();
+        final ShaderBuffer vertexOut1 = new ShaderBuffer(vertexOutputFormat);
+        final ShaderBuffer vertexOut2 = new ShaderBuffer(vertexOutputFormat);
+        final ShaderBuffer vertexOut3 = new ShaderBuffer(vertexOutputFormat);
+        // Create the rasterizer for the fragment shader, configured by the state of the draw
+        final TriangleRasterizer rasterizer = new TriangleRasterizer(state, pipeline);
+        // Shade each vertex used by the draw call once
+        vertexStage.process(vertexShader, attributeData, attributeFormats, indices, offset, count);
+        // Strips and fans share vertices between consecutive triangles, lists don't
+        final int triangleCount = mode == DrawingMode.TRIANGLES ? count / 3 : Math.max(count - 2, 0);
+        for (int i = 0; i < triangleCount; i++) {
+            // Find the indices of the triangle vertices, keeping the winding order consistent
+            final int i1, i2, i3;
+            switch (mode) {
+                case TRIANGLES_STRIP:
+                    // Every other triangle in a strip has its winding reversed
+                    if ((i & 1) == 0) {
+                        i1 = i;
+                        i2 = i + 1;
+                    } else {
+                        i1 = i + 1;
+                        i2 = i;
+                    }
+                    i3 = i + 2;
+                    break;
+                case TRIANGLE_FAN:
+                    // All triangles in a fan share the first vertex
+                    i1 = 0;
+                    i2 = i + 1;
+                    i3 = i + 2;
+                    break;
+                default:
+                    i1 = i * 3;
+                    i2 = i1 + 1;
+                    i3 = i1 + 2;
             }
+            // Read the three shaded vertices
+            vertexStage.readVertex(i1, vertexOut1);
+            vertexStage.readVertex(i2, vertexOut2);
+            vertexStage.readVertex(i3, vertexOut3);
+            // Clip, rasterize and shade the triangle
+            rasterizer.drawTriangle(vertexOut1, vertexOut2, vertexOut3);
         }
-        in.flip();
-        // Clear the out buffer, run the vertex shader, and flip the out
-        out.clear();
-        shader.main(in, out);
-        out.flip();
-    }
-
-    private void writeFragment(ShaderImplementation shader, ShaderBuffer in, ShaderBuffer out, int x, int y, float z) {
-        // Clear the out buffer, run the fragment shader, and flip the out
-        out.clear();
-        shader.main(in, out);
-        out.flip();
-        // Retrieve the fragment color vector
-        final float r = Float.intBitsToFloat(out.readRaw());
-        final float g = Float.intBitsToFloat(out.readRaw());
-        final float b = Float.intBitsToFloat(out.readRaw());
-        final float a = Float.intBitsToFloat(out.readRaw());
-        // Write at the fragment coordinates and depth (converted from [0, 1] to the full short range)
-        // the output color packed into an int
-        renderer.writePixel(x, y, SoftwareUtil.denormalizeToShort(z), SoftwareUtil.pack(r, g, b, a));
-    }
-
-    private int readComponent(ByteBuffer buffer, DataType type, int attributeSize, int index, int offset) {
-        return SoftwareUtil.read(buffer, type, SoftwareUtil.read(indicesBuffer, INDICES_TYPE, index + this.offset) * attributeSize + offset);
+        // Rasterize any triangles left in the tiles
+        rasterizer.flush();
     }
 
     @Override
@@ -0,0 +1,254 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.WindowConstants;
+import java.awt.BorderLayout;
+import java.awt.Canvas;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * The AWT window in which the frames of a {@link org.spout.renderer.software.SoftwareRenderer} are displayed. The displayed images are backed directly by the color buffers of the frame, and are
+ * drawn to the window by a dedicated present thread, so that the renderer can start on the next frame in another buffer while the last one is being presented.
+ */
+class SoftwareWindow extends Canvas {
+    private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+    private final JFrame frame;
+    private int width, height;
+    private int scale = 1;
+    private volatile boolean closeRequested = false;
+    private BufferedImage[] images;
+    // The image waiting to be presented and the one being presented, or -1 if none
+    private int pendingImage = -1, presentingImage = -1;
+    private Thread presentThread;
+    private boolean stopped = false;
+    // The exception which stopped the present thread, if any
+    private RuntimeException presentFailure;
+    // The time taken to present the last frame, in nanoseconds
+    private volatile long presentTime = 0;
+
+    SoftwareWindow(String title) {
+        frame = new JFrame(title);
+        final JPanel panel = new JPanel(new BorderLayout());
+        panel.add(this, BorderLayout.CENTER);
+        frame.setContentPane(panel);
+        frame.setResizable(false);
+        frame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        frame.addWindowListener(new WindowCloseListener());
+    }
+
+    void setTitle(String title) {
+        frame.setTitle(title);
+    }
+
+    boolean isCloseRequested() {
+        final boolean oldCloseRequested = closeRequested;
+        closeRequested = false;
+        return oldCloseRequested;
+    }
+
+    void setPixels(int[][] buffers, int width, int height) {
+        final BufferedImage[] images = new BufferedImage[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            // Wrap the pixels in an image without copying them, the alpha is ignored
+            final int[] pixels = buffers[i];
+            final WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width, RGB_MASKS, null);
+            images[i] = new BufferedImage(RGB_MODEL, raster, false, null);
+        }
+        synchronized (this) {
+            // The old images can't be replaced while they're used
+            boolean interrupted = false;
+            while (pendingImage >= 0 || presentingImage >= 0) {
+                interrupted |= await();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            this.images = images;
+            this.width = width;
+            this.height = height;
+        }
+        final Dimension size = new Dimension(width * scale, height * scale);
+        setSize(size);
+        setPreferredSize(size);
+        setMinimumSize(size);
+        setMaximumSize(size);
+        frame.pack();
+        frame.setLocationRelativeTo(null);
+    }
+
+    void open() {
+        frame.setVisible(true);
+        createBufferStrategy(3);
+        synchronized (this) {
+            stopped = false;
+            presentFailure = null;
+        }
+        presentThread = new Thread(new PresentLoop(), "Caustic present");
+        presentThread.setDaemon(true);
+        presentThread.start();
+    }
+
+    /**
+     * Queues the image for presenting, waiting if another one is already queued.
+     *
+     * @param image The index of the image, which is that of its color buffer
+     */
+    synchronized void present(int image) {
+        boolean interrupted = false;
+        while (pendingImage >= 0) {
+            interrupted |= await();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pendingImage = image;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the image is neither queued nor being presented, after which its color buffer can be rendered to.
+     *
+     * @param image The index of the image
+     */
+    synchronized void waitForImage(int image) {
+        boolean interrupted = false;
+        while (pendingImage == image || presentingImage == image) {
+            interrupted |= await();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getPresentTime() {
+        return presentTime;
+    }
+
+    // Waits for the present thread, returning true if interrupted, since the images can't be given up on
+    private boolean await() {
+        if (presentFailure != null) {
+            throw new IllegalStateException("Presenting failed", presentFailure);
+        }
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException ex) {
+            return true;
+        }
+    }
+
+    void dispose() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        if (presentThread != null) {
+            try {
+                presentThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            presentThread = null;
+        }
+        synchronized (this) {
+            // Drop the frame that wasn't presented
+            pendingImage = -1;
+            presentingImage = -1;
+        }
+        frame.dispose();
+        images = null;
+    }
+
+    private class PresentLoop implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                final BufferedImage image;
+                final int width, height;
+                synchronized (SoftwareWindow.this) {
+                    while (pendingImage < 0 && !stopped) {
+                        try {
+                            SoftwareWindow.this.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    presentingImage = pendingImage;
+                    pendingImage = -1;
+                    image = images[presentingImage];
+                    width = SoftwareWindow.this.width * scale;
+                    height = SoftwareWindow.this.height * scale;
+                    SoftwareWindow.this.notifyAll();
+                }
+                final long start = System.nanoTime();
+                try {
+                    final BufferStrategy bufferStrategy = getBufferStrategy();
+                    final Graphics graphics = bufferStrategy.getDrawGraphics();
+                    graphics.drawImage(image, 0, 0, width, height, null);
+                    graphics.dispose();
+                    bufferStrategy.show();
+                } catch (RuntimeException ex) {
+                    // Let the renderer know instead of waiting forever
+                    synchronized (SoftwareWindow.this) {
+                        presentFailure = ex;
+                        presentingImage = -1;
+                        SoftwareWindow.this.notifyAll();
+                    }
+                    throw ex;
+                }
+                presentTime = System.nanoTime() - start;
+                synchronized (SoftwareWindow.this) {
+                    presentingImage = -1;
+                    SoftwareWindow.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private class WindowCloseListener extends WindowAdapter {
+        @Override
+        public void windowClosing(WindowEvent event) {
+            closeRequested = true;
+        }
+    }
+}
@@ -0,0 +1,812 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Culls triangles by their winding, clips them in homogeneous coordinates, then rasterizes them using edge functions. The depth and vertex shader outputs are interpolated for each covered pixel, and the
+ * result is shaded by the fragment shader before being written to the render target. The outputs are perspective correct: the plane equations of 1/w and of the outputs divided by w are set up once per
+ * triangle, stepped along the covered pixels of each row, and divided by the interpolated 1/w.
+ * <p/>
+ * Triangles entirely outside of the view volume are rejected, but only the near and far planes clip exactly. The sides clip against a guard band much larger than the view port, and the rest of
+ * the triangle is excluded by the rasterization bounds. Since most triangles crossing the sides of the view port don't reach the guard band, they're never clipped.
+ * <p/>
+ * Coverage is evaluated for blocks of pixels first: blocks outside of the triangle are skipped, and blocks entirely inside of it don't need per pixel tests. Fragment shaders which implement batch
+ * shading are called once per block with all of its covered fragments. When depth testing, blocks where the triangle is behind all the depths of the coarse depth buffer are also skipped, and
+ * fragments are depth tested before being shaded.
+ * <p/>
+ * When the renderer uses tiled rendering, the triangles are instead binned into screen tiles as they are set up, and the tiles are rasterized in parallel once {@link #flush()} is called. Each tile
+ * only writes to its own pixels, so no locking is needed.
+ */
+class TriangleRasterizer {
+    // A triangle clipped against seven planes has at most ten vertices
+    private static final int MAX_POLYGON_SIZE = 10;
+    // Each clipping plane introduces at most two new vertices
+    private static final int MAX_NEW_VERTICES = 14;
+    // Minimum w value when near and far clipping is disabled by depth clamping
+    private static final float W_EPSILON = 1e-5f;
+    // Clipping planes: the sides are those of the guard band
+    private static final int PLANE_LEFT = 0;
+    private static final int PLANE_RIGHT = 1;
+    private static final int PLANE_BOTTOM = 2;
+    private static final int PLANE_TOP = 3;
+    private static final int PLANE_NEAR = 4;
+    private static final int PLANE_FAR = 5;
+    private static final int PLANE_W = 6;
+    private static final int CLIP_PLANES_MASK = (1 << PLANE_W + 1) - 1;
+    // The sides of the view volume, for rejecting triangles which are entirely outside of the view port
+    private static final int VIEW_LEFT = 7;
+    private static final int VIEW_RIGHT = 8;
+    private static final int VIEW_BOTTOM = 9;
+    private static final int VIEW_TOP = 10;
+    // The guard band extends this many pixels from the center of the view port, where float window coordinates are still more precise than the sub-pixel grid
+    private static final float GUARD_BAND_SIZE = 1 << 14;
+    // Window x, y, z and 1/w for each of the three vertices
+    private static final int POSITIONS_SIZE = 12;
+    // Tiles are 64 by 64 pixels
+    static final int TILE_SHIFT = 6;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int INITIAL_TRIANGLE_CAPACITY = 64;
+    // Window coordinates are snapped to 1/256 of a pixel
+    private static final int SUB_PIXEL_BITS = 8;
+    private static final float SUB_PIXEL_SCALE = 1 << SUB_PIXEL_BITS;
+    private static final long HALF_PIXEL = 1 << SUB_PIXEL_BITS - 1;
+    // Coverage is first tested for aligned blocks of 8 by 8 pixels, which are also shaded together
+    private static final int BLOCK_SHIFT = DepthBounds.BLOCK_SHIFT;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    private final RasterState state;
+    private final ShaderPipeline pipeline;
+    private final ShaderImplementation fragmentShader;
+    private final int clipPlanes;
+    // The sides of the guard band in normalized device coordinates
+    private final float guardBandX, guardBandY;
+    // Which windings are culled, counter clockwise being the positive area in normalized device coordinates
+    private final boolean cullCounterClockwise, cullClockwise;
+    // Whether clip space z is mapped from 0 to w to the depths, instead of from -w to w
+    private final boolean reversedDepth;
+    // View port transform
+    private final float viewPortX, viewPortY, viewPortWidth, viewPortHeight;
+    // Rasterization bounds (inclusive), the view port restricted to the render target and the scissor rectangle
+    private final int minX, minY, maxX, maxY;
+    // The coarse depths of the render target, or null when not depth testing
+    private final DepthBounds depthBounds;
+    // Polygon vertices during clipping, double buffered
+    private ShaderBuffer[] polygon = new ShaderBuffer[MAX_POLYGON_SIZE];
+    private ShaderBuffer[] clipped = new ShaderBuffer[MAX_POLYGON_SIZE];
+    // Storage for the vertices created by clipping, reused for every triangle
+    private final ShaderBuffer[] newVertices = new ShaderBuffer[MAX_NEW_VERTICES];
+    // Window coordinates of the polygon vertices
+    private final float[] windowX = new float[MAX_POLYGON_SIZE];
+    private final float[] windowY = new float[MAX_POLYGON_SIZE];
+    private final float[] windowZ = new float[MAX_POLYGON_SIZE];
+    private final float[] windowW = new float[MAX_POLYGON_SIZE];
+    // Set up triangles: the positions of the vertices, and the plane equations of 1/w and of the vertex shader outputs excluding the position
+    private final int outputsSize;
+    private final int planesSize;
+    private float[] trianglePositions;
+    private float[] trianglePlanes;
+    private int triangleCount = 0;
+    // The tiles, or null if rasterizing immediately
+    private final ForkJoinPool pool;
+    private final int tilesX, tilesY;
+    private final TIntList[] bins;
+    private final RasterBuffers buffers;
+    private final ThreadLocal<RasterBuffers> threadBuffers;
+
+    TriangleRasterizer(RasterState state, ShaderPipeline pipeline) {
+        this.state = state;
+        this.pipeline = pipeline;
+        fragmentShader = pipeline.getFragmentShader();
+        final DataFormat[] vertexOutputFormat = pipeline.getVertexOutputFormat();
+        for (int i = 0; i < MAX_NEW_VERTICES; i++) {
+            newVertices[i] = new ShaderBuffer(vertexOutputFormat);
+        }
+        // The raw values after the position
+        outputsSize = pipeline.getOutputsSize();
+        // Each plane is its value at the first vertex, and its change for one pixel in x and in y
+        planesSize = (outputsSize + 1) * 3;
+        // When clamping depth we don't clip against the near and far planes, but we still need to remove w <= 0
+        clipPlanes = state.isClampDepth() ? 1 << PLANE_LEFT | 1 << PLANE_RIGHT | 1 << PLANE_BOTTOM | 1 << PLANE_TOP | 1 << PLANE_W
+                : 1 << PLANE_LEFT | 1 << PLANE_RIGHT | 1 << PLANE_BOTTOM | 1 << PLANE_TOP | 1 << PLANE_NEAR | 1 << PLANE_FAR;
+        reversedDepth = state.isReversedDepth();
+        viewPortX = state.getViewPortX();
+        viewPortY = state.getViewPortY();
+        viewPortWidth = state.getViewPortWidth();
+        viewPortHeight = state.getViewPortHeight();
+        guardBandX = Math.max(GUARD_BAND_SIZE * 2 / Math.max(viewPortWidth, 1), 1);
+        guardBandY = Math.max(GUARD_BAND_SIZE * 2 / Math.max(viewPortHeight, 1), 1);
+        minX = state.getMinX();
+        minY = state.getMinY();
+        maxX = state.getMaxX();
+        maxY = state.getMaxY();
+        cullCounterClockwise = state.isCullCounterClockwise();
+        cullClockwise = state.isCullClockwise();
+        depthBounds = state.getDepthBounds();
+        pool = state.getRenderPool();
+        if (pool != null) {
+            // Triangles are kept until flushed, and each rendering thread gets its own buffers
+            tilesX = (state.getTargetWidth() + TILE_SIZE - 1) >> TILE_SHIFT;
+            tilesY = (state.getTargetHeight() + TILE_SIZE - 1) >> TILE_SHIFT;
+            bins = new TIntList[tilesX * tilesY];
+            trianglePositions = new float[POSITIONS_SIZE * INITIAL_TRIANGLE_CAPACITY];
+            trianglePlanes = new float[planesSize * INITIAL_TRIANGLE_CAPACITY];
+            buffers = null;
+            threadBuffers = new ThreadLocal<RasterBuffers>() {
+                @Override
+                protected RasterBuffers initialValue() {
+                    return new RasterBuffers(vertexOutputFormat);
+                }
+            };
+        } else {
+            // Triangles are rasterized as soon as they are set up, so we only ever store one
+            tilesX = 0;
+            tilesY = 0;
+            bins = null;
+            trianglePositions = new float[POSITIONS_SIZE];
+            trianglePlanes = new float[planesSize];
+            buffers = new RasterBuffers(vertexOutputFormat);
+            threadBuffers = null;
+        }
+    }
+
+    void drawTriangle(ShaderBuffer vertex0, ShaderBuffer vertex1, ShaderBuffer vertex2) {
+        // Compute the clip codes of each vertex: a bit is set for each plane the vertex is outside of
+        final int code0 = clipCode(vertex0);
+        final int code1 = clipCode(vertex1);
+        final int code2 = clipCode(vertex2);
+        // If all vertices are outside of the same plane of the view volume or guard band, the triangle is invisible
+        if ((code0 & code1 & code2) != 0) {
+            return;
+        }
+        // Cull before clipping when all vertices are in front of the eye, where the winding of the homogeneous coordinates is the one of the projected triangle
+        final boolean culling = cullCounterClockwise || cullClockwise;
+        final boolean inFront = getW(vertex0) > 0 && getW(vertex1) > 0 && getW(vertex2) > 0;
+        if (culling && inFront && isCulled(homogeneousArea(vertex0, vertex1, vertex2))) {
+            return;
+        }
+        polygon[0] = vertex0;
+        polygon[1] = vertex1;
+        polygon[2] = vertex2;
+        int size = 3;
+        // Only clip against the planes that at least one vertex is outside of
+        final int planes = (code0 | code1 | code2) & CLIP_PLANES_MASK;
+        if (planes != 0) {
+            int newVertexCount = 0;
+            for (int plane = PLANE_LEFT; plane <= PLANE_W; plane++) {
+                if ((planes & 1 << plane) == 0) {
+                    continue;
+                }
+                // Sutherland-Hodgman clipping of the polygon against the plane
+                int clippedSize = 0;
+                for (int i = 0; i < size; i++) {
+                    final ShaderBuffer current = polygon[i];
+                    final ShaderBuffer next = polygon[(i + 1) % size];
+                    final float currentDistance = distance(plane, current);
+                    final float nextDistance = distance(plane, next);
+                    if (currentDistance >= 0) {
+                        clipped[clippedSize++] = current;
+                    }
+                    // If the edge crosses the plane, add the intersection
+                    if (currentDistance >= 0 != nextDistance >= 0) {
+                        final ShaderBuffer intersection = newVertices[newVertexCount++];
+                        final float t = currentDistance / (currentDistance - nextDistance);
+                        intersection.clear();
+                        current.position(0);
+                        next.position(0);
+                        SoftwareUtil.lerp(current, next, t, 0, intersection);
+                        intersection.flip();
+                        clipped[clippedSize++] = intersection;
+                    }
+                }
+                // Swap the polygon buffers
+                final ShaderBuffer[] swap = polygon;
+                polygon = clipped;
+                clipped = swap;
+                size = clippedSize;
+                if (size < 3) {
+                    return;
+                }
+            }
+        }
+        // Convert the polygon vertices to window coordinates
+        for (int i = 0; i < size; i++) {
+            final ShaderBuffer vertex = polygon[i];
+            final float wInverse = 1 / getW(vertex);
+            // Compute the NDC coordinates, normalize and convert to window coordinates
+            // Like in OpenGL, the view port edges are on pixel edges, and pixels are sampled at their centers
+            windowX[i] = (getX(vertex) * wInverse + 1) / 2 * viewPortWidth + viewPortX;
+            windowY[i] = (-getY(vertex) * wInverse + 1) / 2 * viewPortHeight + viewPortY;
+            final float z = getZ(vertex) * wInverse;
+            windowZ[i] = SoftwareUtil.clamp(reversedDepth ? z : (z + 1) / 2, 0, 1);
+            // Store 1/w in w to so that the fragment position vector is the same as in OpenGL
+            windowW[i] = wInverse;
+        }
+        // Otherwise cull the clipped polygon from its window coordinates, which are flipped vertically
+        if (culling && !inFront && isCulled(-windowArea(size))) {
+            return;
+        }
+        // Triangulate the convex polygon as a fan and set up each triangle
+        for (int i = 1; i < size - 1; i++) {
+            setup(0, i, i + 1);
+        }
+    }
+
+    private boolean isCulled(float area) {
+        return area > 0 ? cullCounterClockwise : area < 0 && cullClockwise;
+    }
+
+    // The determinant of the x, y and w coordinates, which has the sign of the projected area when all w are positive
+    private static float homogeneousArea(ShaderBuffer vertex0, ShaderBuffer vertex1, ShaderBuffer vertex2) {
+        final float x0 = getX(vertex0), y0 = getY(vertex0), w0 = getW(vertex0);
+        final float x1 = getX(vertex1), y1 = getY(vertex1), w1 = getW(vertex1);
+        final float x2 = getX(vertex2), y2 = getY(vertex2), w2 = getW(vertex2);
+        return x0 * (y1 * w2 - y2 * w1) - y0 * (x1 * w2 - x2 * w1) + w0 * (x1 * y2 - x2 * y1);
+    }
+
+    // Twice the signed area of the polygon in window coordinates
+    private float windowArea(int size) {
+        float area = 0;
+        for (int i = 0, j = size - 1; i < size; j = i++) {
+            area += windowX[j] * windowY[i] - windowX[i] * windowY[j];
+        }
+        return area;
+    }
+
+    void flush() {
+        if (pool == null || triangleCount <= 0) {
+            return;
+        }
+        // Create a task for each tile that has triangles in it
+        final List<TileTask> tiles = new ArrayList<>();
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                final TIntList bin = bins[tileX + tileY * tilesX];
+                if (bin != null) {
+                    tiles.add(new TileTask(bin, tileX << TILE_SHIFT, tileY << TILE_SHIFT));
+                }
+            }
+        }
+        // Rasterize all the tiles in parallel and wait for completion
+        for (TileTask tile : tiles) {
+            pool.execute(tile);
+        }
+        for (TileTask tile : tiles) {
+            tile.join();
+        }
+        triangleCount = 0;
+    }
+
+    private void setup(int i0, int i1, int i2) {
+        final float x0 = windowX[i0], y0 = windowY[i0];
+        float x1 = windowX[i1], y1 = windowY[i1];
+        float x2 = windowX[i2], y2 = windowY[i2];
+        // Twice the signed area of the triangle, which is also the value of the first edge function at the third vertex
+        final float area = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+        if (!(area != 0)) {
+            // Degenerate or not a number
+            return;
+        }
+        // Ensure a consistent winding so that the edge functions are positive inside the triangle
+        if (area < 0) {
+            final int swapIndex = i1;
+            i1 = i2;
+            i2 = swapIndex;
+            x1 = windowX[i1];
+            y1 = windowY[i1];
+            x2 = windowX[i2];
+            y2 = windowY[i2];
+        }
+        // Compute the bounding box of the triangle, restricted to the rasterization bounds
+        final int boxMinX = Math.max((int) Math.floor(Math.min(x0, Math.min(x1, x2))), minX);
+        final int boxMinY = Math.max((int) Math.floor(Math.min(y0, Math.min(y1, y2))), minY);
+        final int boxMaxX = Math.min((int) Math.floor(Math.max(x0, Math.max(x1, x2))), maxX);
+        final int boxMaxY = Math.min((int) Math.floor(Math.max(y0, Math.max(y1, y2))), maxY);
+        if (boxMinX > boxMaxX || boxMinY > boxMaxY) {
+            return;
+        }
+        // Store the triangle, growing the storage if needed
+        final int triangle = triangleCount;
+        if ((triangle + 1) * POSITIONS_SIZE > trianglePositions.length) {
+            final float[] newPositions = new float[trianglePositions.length * 2];
+            System.arraycopy(trianglePositions, 0, newPositions, 0, trianglePositions.length);
+            trianglePositions = newPositions;
+            final float[] newPlanes = new float[trianglePlanes.length * 2];
+            System.arraycopy(trianglePlanes, 0, newPlanes, 0, trianglePlanes.length);
+            trianglePlanes = newPlanes;
+        }
+        storeVertex(triangle, 0, i0);
+        storeVertex(triangle, 1, i1);
+        storeVertex(triangle, 2, i2);
+        // The winding is now counter clockwise, so the area is positive
+        storePlanes(triangle, i0, i1, i2, Math.abs(area));
+        if (pool == null) {
+            // Rasterize it right away, after finishing the clear of the pixels
+            state.touch(boxMinX, boxMinY, boxMaxX, boxMaxY);
+            rasterize(triangle, boxMinX, boxMinY, boxMaxX, boxMaxY, buffers);
+            return;
+        }
+        triangleCount++;
+        // Add the triangle to the bins of all the tiles its bounding box overlaps
+        for (int tileY = boxMinY >> TILE_SHIFT; tileY <= boxMaxY >> TILE_SHIFT; tileY++) {
+            for (int tileX = boxMinX >> TILE_SHIFT; tileX <= boxMaxX >> TILE_SHIFT; tileX++) {
+                final int tile = tileX + tileY * tilesX;
+                TIntList bin = bins[tile];
+                if (bin == null) {
+                    bins[tile] = bin = new TIntArrayList();
+                }
+                bin.add(triangle);
+            }
+        }
+    }
+
+    private void storeVertex(int triangle, int vertex, int polygonIndex) {
+        final int positionOffset = triangle * POSITIONS_SIZE + vertex * 4;
+        trianglePositions[positionOffset] = windowX[polygonIndex];
+        trianglePositions[positionOffset + 1] = windowY[polygonIndex];
+        trianglePositions[positionOffset + 2] = windowZ[polygonIndex];
+        trianglePositions[positionOffset + 3] = windowW[polygonIndex];
+    }
+
+    // Unlike the vertex shader outputs, their values divided by w are linear in window coordinates, as is 1/w, so they're interpolated by plane equations
+    private void storePlanes(int triangle, int i0, int i1, int i2, float area) {
+        final float areaInverse = 1 / area;
+        final float x10 = windowX[i1] - windowX[i0], y10 = windowY[i1] - windowY[i0];
+        final float x20 = windowX[i2] - windowX[i0], y20 = windowY[i2] - windowY[i0];
+        final float w0 = windowW[i0], w1 = windowW[i1], w2 = windowW[i2];
+        int offset = triangle * planesSize;
+        storePlane(offset, w0, w1, w2, x10, y10, x20, y20, areaInverse);
+        // Skip the position, which is the first 4 values
+        final int[] outputs0 = polygon[i0].array(), outputs1 = polygon[i1].array(), outputs2 = polygon[i2].array();
+        for (int i = 0, ii = 4; i < outputsSize; i++, ii++) {
+            offset += 3;
+            if (pipeline.isFloatOutput(i)) {
+                storePlane(offset, Float.intBitsToFloat(outputs0[ii]) * w0, Float.intBitsToFloat(outputs1[ii]) * w1, Float.intBitsToFloat(outputs2[ii]) * w2,
+                        x10, y10, x20, y20, areaInverse);
+            } else {
+                storePlane(offset, outputs0[ii] * w0, outputs1[ii] * w1, outputs2[ii] * w2, x10, y10, x20, y20, areaInverse);
+            }
+        }
+    }
+
+    private void storePlane(int offset, float value0, float value1, float value2, float x10, float y10, float x20, float y20, float areaInverse) {
+        final float value10 = value1 - value0, value20 = value2 - value0;
+        trianglePlanes[offset] = value0;
+        trianglePlanes[offset + 1] = (value10 * y20 - value20 * y10) * areaInverse;
+        trianglePlanes[offset + 2] = (value20 * x10 - value10 * x20) * areaInverse;
+    }
+
+    private void rasterize(int triangle, int boundsMinX, int boundsMinY, int boundsMaxX, int boundsMaxY, RasterBuffers buffers) {
+        final int positionOffset = triangle * POSITIONS_SIZE;
+        final float[] positions = trianglePositions;
+        final float x0 = positions[positionOffset], y0 = positions[positionOffset + 1];
+        final float x1 = positions[positionOffset + 4], y1 = positions[positionOffset + 5];
+        final float x2 = positions[positionOffset + 8], y2 = positions[positionOffset + 9];
+        // Compute the bounding box of the triangle, restricted to the bounds
+        final int boxMinX = Math.max((int) Math.floor(Math.min(x0, Math.min(x1, x2))), boundsMinX);
+        final int boxMinY = Math.max((int) Math.floor(Math.min(y0, Math.min(y1, y2))), boundsMinY);
+        final int boxMaxX = Math.min((int) Math.floor(Math.max(x0, Math.max(x1, x2))), boundsMaxX);
+        final int boxMaxY = Math.min((int) Math.floor(Math.max(y0, Math.max(y1, y2))), boundsMaxY);
+        // Snap the vertices to sub-pixel fixed point, so the edge functions can be computed exactly with integers
+        // This makes the coverage independent from where we start stepping, which keeps tiles consistent
+        final long fixedX0 = toFixed(x0), fixedY0 = toFixed(y0);
+        final long fixedX1 = toFixed(x1), fixedY1 = toFixed(y1);
+        final long fixedX2 = toFixed(x2), fixedY2 = toFixed(y2);
+        // Edge function deltas for each edge, when stepping by one sub-pixel unit in x and in y
+        final long stepX01 = fixedY0 - fixedY1, stepY01 = fixedX1 - fixedX0;
+        final long stepX12 = fixedY1 - fixedY2, stepY12 = fixedX2 - fixedX1;
+        final long stepX20 = fixedY2 - fixedY0, stepY20 = fixedX0 - fixedX2;
+        // Twice the area of the snapped triangle, which can become degenerate
+        final long area = stepY01 * (fixedY2 - fixedY0) + stepX01 * (fixedX2 - fixedX0);
+        if (area <= 0) {
+            return;
+        }
+        // Top-left fill rule: pixels exactly on an edge are only drawn for one of the two triangles sharing it
+        // This is done by biasing the edge functions of the other edges so that zero is outside
+        final long bias01 = isTopLeft(stepX01, stepY01) ? 0 : -1;
+        final long bias12 = isTopLeft(stepX12, stepY12) ? 0 : -1;
+        final long bias20 = isTopLeft(stepX20, stepY20) ? 0 : -1;
+        // Edge function deltas when stepping by one pixel in x
+        final long pixelStepX01 = stepX01 << SUB_PIXEL_BITS;
+        final long pixelStepX12 = stepX12 << SUB_PIXEL_BITS;
+        final long pixelStepX20 = stepX20 << SUB_PIXEL_BITS;
+        // Depth at each vertex
+        final float z0 = positions[positionOffset + 2], z1 = positions[positionOffset + 6], z2 = positions[positionOffset + 10];
+        final float areaInverse = 1f / area;
+        // Set up the interpolation of the inputs: the depth from the edge functions, and the rest from the plane equations, relative to the first vertex
+        buffers.planes = trianglePlanes;
+        buffers.planesOffset = triangle * planesSize;
+        buffers.x0 = x0;
+        buffers.y0 = y0;
+        buffers.z0 = z0;
+        buffers.z1 = z1;
+        buffers.z2 = z2;
+        buffers.areaInverse = areaInverse;
+        buffers.weight0X = pixelStepX12 * areaInverse;
+        buffers.weight1X = pixelStepX20 * areaInverse;
+        buffers.weight2X = pixelStepX01 * areaInverse;
+        buffers.weight0Y = (stepY12 << SUB_PIXEL_BITS) * areaInverse;
+        buffers.weight1Y = (stepY20 << SUB_PIXEL_BITS) * areaInverse;
+        buffers.weight2Y = (stepY01 << SUB_PIXEL_BITS) * areaInverse;
+        // Edge function deltas when stepping by one pixel in y
+        final long pixelStepY01 = stepY01 << SUB_PIXEL_BITS;
+        final long pixelStepY12 = stepY12 << SUB_PIXEL_BITS;
+        final long pixelStepY20 = stepY20 << SUB_PIXEL_BITS;
+        // Change in depth for one pixel in x and in y towards the near plane, for finding the nearest depth of the triangle over a block
+        final boolean reversed = depthBounds != null && depthBounds.isReversed();
+        final float depthStepX = buffers.weight0X * z0 + buffers.weight1X * z1 + buffers.weight2X * z2;
+        final float depthStepY = buffers.weight0Y * z0 + buffers.weight1Y * z1 + buffers.weight2Y * z2;
+        final float nearStepX = reversed ? Math.max(depthStepX, 0) : Math.min(depthStepX, 0);
+        final float nearStepY = reversed ? Math.max(depthStepY, 0) : Math.min(depthStepY, 0);
+        final float depthError = DepthBounds.DEPTH_EPSILON * Math.max(z0, Math.max(z1, z2));
+        // Walk the bounding box in blocks aligned to the block grid, so tiles split them in the same way
+        for (int blockY = boxMinY & ~BLOCK_MASK; blockY <= boxMaxY; blockY += BLOCK_SIZE) {
+            final int blockMinY = Math.max(blockY, boxMinY);
+            final int blockMaxY = Math.min(blockY + BLOCK_MASK, boxMaxY);
+            final long centerY = ((long) blockMinY << SUB_PIXEL_BITS) + HALF_PIXEL;
+            final long spanY = blockMaxY - blockMinY;
+            for (int blockX = boxMinX & ~BLOCK_MASK; blockX <= boxMaxX; blockX += BLOCK_SIZE) {
+                final int blockMinX = Math.max(blockX, boxMinX);
+                final int blockMaxX = Math.min(blockX + BLOCK_MASK, boxMaxX);
+                final long centerX = ((long) blockMinX << SUB_PIXEL_BITS) + HALF_PIXEL;
+                final long spanX = blockMaxX - blockMinX;
+                // Evaluate the edge functions at the center of the first pixel of the block
+                long rowEdge01 = stepY01 * (centerY - fixedY0) + stepX01 * (centerX - fixedX0) + bias01;
+                long rowEdge12 = stepY12 * (centerY - fixedY1) + stepX12 * (centerX - fixedX1) + bias12;
+                long rowEdge20 = stepY20 * (centerY - fixedY2) + stepX20 * (centerX - fixedX2) + bias20;
+                // The edge functions are linear, so their extremes over the block are at its corners
+                final long spanX01 = pixelStepX01 * spanX, spanY01 = pixelStepY01 * spanY;
+                final long spanX12 = pixelStepX12 * spanX, spanY12 = pixelStepY12 * spanY;
+                final long spanX20 = pixelStepX20 * spanX, spanY20 = pixelStepY20 * spanY;
+                // Skip the block if it's entirely outside of any edge
+                if (rowEdge01 + Math.max(spanX01, 0) + Math.max(spanY01, 0) < 0
+                        || rowEdge12 + Math.max(spanX12, 0) + Math.max(spanY12, 0) < 0
+                        || rowEdge20 + Math.max(spanX20, 0) + Math.max(spanY20, 0) < 0) {
+                    continue;
+                }
+                // Skip the block if the nearest depth of the triangle over it is behind all the depths already in it
+                if (depthBounds != null) {
+                    final float depth = (rowEdge12 * z0 + rowEdge20 * z1 + rowEdge01 * z2) * areaInverse + nearStepX * spanX + nearStepY * spanY;
+                    if (depthBounds.isHidden(blockX >> BLOCK_SHIFT, blockY >> BLOCK_SHIFT, depth, depthError)) {
+                        continue;
+                    }
+                }
+                // If it's entirely inside of all edges, the pixels don't need to be tested
+                final boolean covered = (rowEdge01 + Math.min(spanX01, 0) + Math.min(spanY01, 0)
+                        | rowEdge12 + Math.min(spanX12, 0) + Math.min(spanY12, 0)
+                        | rowEdge20 + Math.min(spanX20, 0) + Math.min(spanY20, 0)) >= 0;
+                // Only step the planes within the block, which tiles never split, so the rounding is the same with and without them
+                buffers.planeX = Integer.MIN_VALUE;
+                buffers.planeY = Integer.MIN_VALUE;
+                for (int y = blockMinY; y <= blockMaxY; y++, rowEdge01 += pixelStepY01, rowEdge12 += pixelStepY12, rowEdge20 += pixelStepY20) {
+                    long edge01 = rowEdge01, edge12 = rowEdge12, edge20 = rowEdge20;
+                    for (int x = blockMinX; x <= blockMaxX; x++, edge01 += pixelStepX01, edge12 += pixelStepX12, edge20 += pixelStepX20) {
+                        // The pixel is inside if all the edge functions are positive or zero
+                        if (!covered && (edge01 | edge12 | edge20) < 0) {
+                            continue;
+                        }
+                        buffers.addFragment(x, y, edge01, edge12, edge20);
+                    }
+                }
+                buffers.shadeFragments();
+                // A block which was entirely drawn over has new depths, which are usually nearer
+                if (depthBounds != null && covered && spanX == BLOCK_MASK && spanY == BLOCK_MASK) {
+                    depthBounds.update(blockX >> BLOCK_SHIFT, blockY >> BLOCK_SHIFT);
+                }
+            }
+        }
+    }
+
+    private int clipCode(ShaderBuffer vertex) {
+        final float x = getX(vertex), y = getY(vertex), w = getW(vertex);
+        int code = 0;
+        if (x < -w) {
+            code |= 1 << VIEW_LEFT;
+        } else if (x > w) {
+            code |= 1 << VIEW_RIGHT;
+        }
+        if (y < -w) {
+            code |= 1 << VIEW_BOTTOM;
+        } else if (y > w) {
+            code |= 1 << VIEW_TOP;
+        }
+        // Vertices inside of the view volume sides are also inside of the guard band
+        for (int plane = code != 0 ? PLANE_LEFT : PLANE_NEAR; plane <= PLANE_W; plane++) {
+            if ((clipPlanes & 1 << plane) != 0 && distance(plane, vertex) < 0) {
+                code |= 1 << plane;
+            }
+        }
+        return code;
+    }
+
+    private float distance(int plane, ShaderBuffer vertex) {
+        final float w = getW(vertex);
+        switch (plane) {
+            case PLANE_LEFT:
+                return guardBandX * w + getX(vertex);
+            case PLANE_RIGHT:
+                return guardBandX * w - getX(vertex);
+            case PLANE_BOTTOM:
+                return guardBandY * w + getY(vertex);
+            case PLANE_TOP:
+                return guardBandY * w - getY(vertex);
+            case PLANE_NEAR:
+                return reversedDepth ? getZ(vertex) : w + getZ(vertex);
+            case PLANE_FAR:
+                return w - getZ(vertex);
+            case PLANE_W:
+                return w - W_EPSILON;
+            default:
+                throw new IllegalArgumentException("Unknown clipping plane: " + plane);
+        }
+    }
+
+    private static boolean isTopLeft(long stepX, long stepY) {
+        // Exactly one of the two opposite directions of an edge satisfies this
+        return stepX > 0 || stepX == 0 && stepY > 0;
+    }
+
+    private static long toFixed(float f) {
+        return Math.round(f * SUB_PIXEL_SCALE);
+    }
+
+    private static float getX(ShaderBuffer vertex) {
+        return Float.intBitsToFloat(vertex.readRaw(0));
+    }
+
+    private static float getY(ShaderBuffer vertex) {
+        return Float.intBitsToFloat(vertex.readRaw(1));
+    }
+
+    private static float getZ(ShaderBuffer vertex) {
+        return Float.intBitsToFloat(vertex.readRaw(2));
+    }
+
+    private static float getW(ShaderBuffer vertex) {
+        return Float.intBitsToFloat(vertex.readRaw(3));
+    }
+
+    private class RasterBuffers implements Derivatives {
+        private final ShaderBuffer fragmentIn;
+        private final ShaderBuffer fragmentOut;
+        // The fragments waiting to be shaded together when the fragment shader is batched, or null
+        private final ShaderBatch batchIn;
+        private final ShaderBatch batchOut;
+        private final int[] batchX, batchY;
+        private int batchSize = 0;
+        // The triangle being rasterized: the plane equations and where they're relative to, for the interpolation and the derivatives
+        private float[] planes;
+        private int planesOffset;
+        private float x0, y0;
+        private float z0, z1, z2;
+        private float areaInverse;
+        // Derivatives of the barycentric coordinates, which are constant over the triangle, for the depth
+        private float weight0X, weight1X, weight2X, weight0Y, weight1Y, weight2Y;
+        // The values of the plane equations at the center of the pixel of the last fragment
+        private final float[] planeValues;
+        private int planeX, planeY;
+
+        private RasterBuffers(DataFormat[] vertexOutputFormat) {
+            fragmentIn = new ShaderBuffer(vertexOutputFormat);
+            fragmentOut = new ShaderBuffer(SoftwareRenderer.FRAGMENT_OUTPUT);
+            fragmentIn.setDerivatives(this);
+            if (fragmentShader.isBatched()) {
+                batchIn = new ShaderBatch(fragmentIn.getFormat(), BLOCK_SIZE * BLOCK_SIZE);
+                batchOut = new ShaderBatch(SoftwareRenderer.FRAGMENT_OUTPUT, BLOCK_SIZE * BLOCK_SIZE);
+                batchIn.setDerivatives(this);
+                batchX = new int[BLOCK_SIZE * BLOCK_SIZE];
+                batchY = new int[BLOCK_SIZE * BLOCK_SIZE];
+            } else {
+                batchIn = null;
+                batchOut = null;
+                batchX = null;
+                batchY = null;
+            }
+            planeValues = new float[outputsSize + 1];
+        }
+
+        private void addFragment(int x, int y, long edge01, long edge12, long edge20) {
+            // Interpolate the depth from the barycentric coordinates of the pixel
+            final float weight0 = edge12 * areaInverse;
+            final float weight1 = edge20 * areaInverse;
+            final float weight2 = edge01 * areaInverse;
+            final float z = weight0 * z0 + weight1 * z1 + weight2 * z2;
+            // Fragment shaders can't change the depth, so occluded fragments are rejected before interpolating the other inputs
+            if (!state.testDepth(x, y, z)) {
+                return;
+            }
+            // The covered pixels of a row are consecutive, so the planes are usually advanced by one pixel
+            final float[] values = planeValues;
+            final int valueCount = values.length;
+            if (y == planeY && x > planeX) {
+                final int steps = x - planeX;
+                if (steps == 1) {
+                    for (int i = 0, offset = planesOffset + 1; i < valueCount; i++, offset += 3) {
+                        values[i] += planes[offset];
+                    }
+                } else {
+                    for (int i = 0, offset = planesOffset + 1; i < valueCount; i++, offset += 3) {
+                        values[i] += planes[offset] * steps;
+                    }
+                }
+            } else {
+                final float dx = x + 0.5f - x0, dy = y + 0.5f - y0;
+                for (int i = 0, offset = planesOffset; i < valueCount; i++, offset += 3) {
+                    values[i] = planes[offset] + planes[offset + 1] * dx + planes[offset + 2] * dy;
+                }
+                planeY = y;
+            }
+            planeX = x;
+            // Divide the outputs by the interpolated 1/w to get their perspective correct values
+            final float wInverse = values[0];
+            final float w = 1 / wInverse;
+            if (batchIn == null) {
+                // Clear the fragment in, write the fragment position (the pixel center)
+                fragmentIn.clear();
+                fragmentIn.writeRaw(Float.floatToIntBits(x + 0.5f));
+                fragmentIn.writeRaw(Float.floatToIntBits(y + 0.5f));
+                fragmentIn.writeRaw(Float.floatToIntBits(z));
+                fragmentIn.writeRaw(Float.floatToIntBits(wInverse));
+                // Write the rest of the vertex shader output, rounding the integers so that the error of the division by w doesn't change constant ones
+                final int[] destination = fragmentIn.array();
+                final int start = fragmentIn.position();
+                for (int i = 0; i < outputsSize; i++) {
+                    final float output = values[i + 1] * w;
+                    destination[start + i] = pipeline.isFloatOutput(i) ? Float.floatToRawIntBits(output) : Math.round(output);
+                }
+                fragmentIn.position(start + outputsSize);
+                // Flip the buffer for reading
+                fragmentIn.flip();
+                // Shade and write the fragment
+                state.writeFragment(fragmentShader, fragmentIn, fragmentOut, x, y, z);
+                return;
+            }
+            // Write the fragment to the next lane of the batch, in the same way as above
+            final int lane = batchSize++;
+            batchX[lane] = x;
+            batchY[lane] = y;
+            batchIn.getFloatLanes(0)[lane] = x + 0.5f;
+            batchIn.getFloatLanes(1)[lane] = y + 0.5f;
+            batchIn.getFloatLanes(2)[lane] = z;
+            batchIn.getFloatLanes(3)[lane] = wInverse;
+            final int componentCount = batchIn.getComponentCount();
+            for (int c = 4, i = 1; c < componentCount; c++, i++) {
+                final float[] floats = batchIn.getFloatLanes(c);
+                if (floats != null) {
+                    floats[lane] = values[i] * w;
+                } else {
+                    batchIn.getIntLanes(c)[lane] = Math.round(values[i] * w);
+                }
+            }
+            if (batchSize == batchX.length) {
+                shadeFragments();
+            }
+        }
+
+        private void shadeFragments() {
+            if (batchSize <= 0) {
+                return;
+            }
+            batchIn.setSize(batchSize);
+            batchOut.setSize(batchSize);
+            fragmentShader.main(batchIn, batchOut);
+            final float[] depths = batchIn.getFloatLanes(2);
+            final float[] r = batchOut.getFloatLanes(0), g = batchOut.getFloatLanes(1), b = batchOut.getFloatLanes(2), a = batchOut.getFloatLanes(3);
+            final boolean[] discarded = batchOut.getDiscardedLanes();
+            for (int i = 0; i < batchSize; i++) {
+                if (discarded[i]) {
+                    continue;
+                }
+                state.writePixel(batchX[i], batchY[i], depths[i], SoftwareUtil.pack(r[i], g[i], b[i], a[i]));
+            }
+            batchSize = 0;
+        }
+
+        @Override
+        public float dFdx(int index, int lane) {
+            switch (index) {
+                case 0:
+                    return 1;
+                case 1:
+                    return 0;
+                case 2:
+                    return weight0X * z0 + weight1X * z1 + weight2X * z2;
+                default:
+                    return derivative(index, lane, 1);
+            }
+        }
+
+        @Override
+        public float dFdy(int index, int lane) {
+            switch (index) {
+                case 0:
+                    return 0;
+                case 1:
+                    return 1;
+                case 2:
+                    return weight0Y * z0 + weight1Y * z1 + weight2Y * z2;
+                default:
+                    return derivative(index, lane, 2);
+            }
+        }
+
+        // The derivatives of the outputs aren't constant, so they're those of the fragment being shaded, or of the lane of the batch
+        private float derivative(int index, int lane, int direction) {
+            final float wInverse, value;
+            if (batchIn == null) {
+                final int[] inputs = fragmentIn.array();
+                wInverse = Float.intBitsToFloat(inputs[3]);
+                value = Float.intBitsToFloat(inputs[index]);
+            } else {
+                wInverse = batchIn.getFloatLanes(3)[lane];
+                value = batchIn.getFloatLanes(index)[lane];
+            }
+            // 1/w is the first plane, followed by the ones of the outputs, which are the outputs times 1/w
+            final float wInverseChange = planes[planesOffset + direction];
+            if (index == 3) {
+                return wInverseChange;
+            }
+            return (planes[planesOffset + (index - 3) * 3 + direction] - value * wInverseChange) / wInverse;
+        }
+    }
+
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final TIntList triangles;
+        private final int tileX, tileY;
+
+        private TileTask(TIntList triangles, int tileX, int tileY) {
+            this.triangles = triangles;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        protected void compute() {
+            final RasterBuffers buffers = threadBuffers.get();
+            // Restrict the tile to the rasterization bounds
+            final int tileMinX = Math.max(tileX, minX);
+            final int tileMinY = Math.max(tileY, minY);
+            final int tileMaxX = Math.min(tileX + TILE_SIZE - 1, maxX);
+            final int tileMaxY = Math.min(tileY + TILE_SIZE - 1, maxY);
+            // Only this thread writes to the tile, so it can finish clearing it
+            state.touch(tileMinX, tileMinY, tileMaxX, tileMaxY);
+            // Rasterize the triangles in submission order, so the result is the same as without tiles
+            final int size = triangles.size();
+            for (int i = 0; i < size; i++) {
+                rasterize(triangles.get(i), tileMinX, tileMinY, tileMaxX, tileMaxY, buffers);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the vertex shader once for each unique vertex referenced by the indices of a draw call, and stores the outputs in a post-transform buffer from which the primitives are assembled. With tiled
+ * rendering, the vertices are shaded in parallel by the rendering threads.
+ */
+class VertexStage {
+    // The minimum number of vertices shaded by each rendering thread
+    private static final int MIN_VERTICES_PER_TASK = 256;
+    // The number of vertices shaded at once by batched shaders
+    private static final int BATCH_SIZE = 256;
+    private final SoftwareRenderer renderer;
+    // The post-transform slot of each drawn index
+    private int[] indexSlots = new int[0];
+    // The post-transform slot of each vertex, or -1 if it isn't used by the draw call
+    private int[] vertexSlots = new int[0];
+    // The vertex stored in each post-transform slot
+    private int[] slotVertices = new int[0];
+    // The raw vertex shader outputs of each slot
+    private int[] outputs = new int[0];
+    private int outputSize;
+    private int vertexCount;
+
+    VertexStage(SoftwareRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Shades the vertices referenced by the indices in the range, which can then be read using {@link #readVertex(int, ShaderBuffer)}.
+     *
+     * @param shader The vertex shader
+     * @param attributeData The raw components of the vertex attributes
+     * @param attributeFormats The formats of the vertex attributes
+     * @param indices The vertex indices
+     * @param offset The first index to draw
+     * @param count The number of indices to draw
+     */
+    void process(ShaderImplementation shader, int[][] attributeData, DataFormat[] attributeFormats, int[] indices, int offset, int count) {
+        assignSlots(indices, offset, count);
+        // Allocate the post-transform buffer for the unique vertices
+        outputSize = new ShaderBuffer(shader.getOutputFormat()).capacity();
+        if (outputs.length < vertexCount * outputSize) {
+            outputs = new int[vertexCount * outputSize];
+        }
+        // Split the vertices between the rendering threads if there are enough of them
+        final int taskCount = renderer.isTiledRendering() ? Math.min(renderer.getRenderPool().getParallelism(), vertexCount / MIN_VERTICES_PER_TASK) : 1;
+        if (taskCount <= 1) {
+            shade(shader, attributeData, attributeFormats, 0, vertexCount);
+            return;
+        }
+        final ForkJoinPool pool = renderer.getRenderPool();
+        final List<VertexTask> tasks = new ArrayList<>(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            tasks.add(new VertexTask(shader, attributeData, attributeFormats, vertexCount * i / taskCount, vertexCount * (i + 1) / taskCount));
+        }
+        for (VertexTask task : tasks) {
+            pool.execute(task);
+        }
+        for (VertexTask task : tasks) {
+            task.join();
+        }
+    }
+
+    /**
+     * Returns the number of unique vertices shaded by the last call to {@link #process(ShaderImplementation, int[][], DataFormat[], int[], int, int)}.
+     *
+     * @return The number of shaded vertices
+     */
+    int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Writes the shaded vertex for the index into the buffer and flips it.
+     *
+     * @param index The index, relative to the drawn range
+     * @param out The buffer to write the vertex shader outputs to
+     */
+    void readVertex(int index, ShaderBuffer out) {
+        out.clear();
+        out.writeRaw(outputs, indexSlots[index] * outputSize, outputSize);
+        out.flip();
+    }
+
+    private void assignSlots(int[] indices, int offset, int count) {
+        if (indexSlots.length < count) {
+            indexSlots = new int[count];
+        }
+        // Read the indices and find the largest one
+        int maxVertex = -1;
+        for (int i = 0; i < count; i++) {
+            final int vertex = indices[i + offset];
+            indexSlots[i] = vertex;
+            maxVertex = Math.max(maxVertex, vertex);
+        }
+        if (vertexSlots.length <= maxVertex) {
+            vertexSlots = new int[maxVertex + 1];
+        }
+        Arrays.fill(vertexSlots, 0, maxVertex + 1, -1);
+        if (slotVertices.length < count) {
+            slotVertices = new int[count];
+        }
+        // Give each vertex a slot the first time it's referenced, and replace the indices by their slots
+        vertexCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int vertex = indexSlots[i];
+            int slot = vertexSlots[vertex];
+            if (slot < 0) {
+                slot = vertexCount++;
+                vertexSlots[vertex] = slot;
+                slotVertices[slot] = vertex;
+            }
+            indexSlots[i] = slot;
+        }
+    }
+
+    private void shade(ShaderImplementation shader, int[][] attributeData, DataFormat[] attributeFormats, int start, int end) {
+        if (shader.isBatched()) {
+            shadeBatches(shader, attributeData, attributeFormats, start, end);
+        } else {
+            shadeVertices(shader, attributeData, attributeFormats, start, end);
+        }
+    }
+
+    private void shadeBatches(ShaderImplementation shader, int[][] attributeData, DataFormat[] attributeFormats, int start, int end) {
+        final ShaderBatch in = new ShaderBatch(attributeFormats, BATCH_SIZE);
+        final ShaderBatch out = new ShaderBatch(shader.getOutputFormat(), BATCH_SIZE);
+        for (int first = start; first < end; first += BATCH_SIZE) {
+            final int size = Math.min(BATCH_SIZE, end - first);
+            in.setSize(size);
+            out.setSize(size);
+            // Gather the components of the vertex attributes into the input lanes
+            int component = 0;
+            for (int i = 0; i < attributeData.length; i++) {
+                final int[] data = attributeData[i];
+                final int count = attributeFormats[i].getCount();
+                for (int ii = 0; ii < count; ii++, component++) {
+                    final float[] floats = in.getFloatLanes(component);
+                    if (floats != null) {
+                        for (int lane = 0; lane < size; lane++) {
+                            floats[lane] = Float.intBitsToFloat(data[slotVertices[first + lane] * count + ii]);
+                        }
+                    } else {
+                        final int[] ints = in.getIntLanes(component);
+                        for (int lane = 0; lane < size; lane++) {
+                            ints[lane] = data[slotVertices[first + lane] * count + ii];
+                        }
+                    }
+                }
+            }
+            shader.main(in, out);
+            // Scatter the output lanes into the vertex slots
+            final int componentCount = out.getComponentCount();
+            for (int c = 0; c < componentCount; c++) {
+                final float[] floats = out.getFloatLanes(c);
+                if (floats != null) {
+                    for (int lane = 0, i = first * outputSize + c; lane < size; lane++, i += outputSize) {
+                        outputs[i] = Float.floatToRawIntBits(floats[lane]);
+                    }
+                } else {
+                    final int[] ints = out.getIntLanes(c);
+                    for (int lane = 0, i = first * outputSize + c; lane < size; lane++, i += outputSize) {
+                        outputs[i] = ints[lane];
+                    }
+                }
+            }
+        }
+    }
+
+    private void shadeVertices(ShaderImplementation shader, int[][] attributeData, DataFormat[] attributeFormats, int start, int end) {
+        final ShaderBuffer in = new ShaderBuffer(attributeFormats);
+        final ShaderBuffer out = new ShaderBuffer(shader.getOutputFormat());
+        for (int slot = start; slot < end; slot++) {
+            final int vertex = slotVertices[slot];
+            // Clear the vertex in buffer and write the data from the vertex array, then flip it
+            in.clear();
+            for (int i = 0; i < attributeData.length; i++) {
+                final int size = attributeFormats[i].getCount();
+                in.writeRaw(attributeData[i], vertex * size, size);
+            }
+            in.flip();
+            // Run the vertex shader and copy all of the outputs to the vertex slot
+            out.clear();
+            shader.main(in, out);
+            out.position(0);
+            out.readRaw(outputs, slot * outputSize, outputSize);
+        }
+    }
+
+    private class VertexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final ShaderImplementation shader;
+        private final int[][] attributeData;
+        private final DataFormat[] attributeFormats;
+        private final int start, end;
+
+        private VertexTask(ShaderImplementation shader, int[][] attributeData, DataFormat[] attributeFormats, int start, int end) {
+            this.shader = shader;
+            this.attributeData = attributeData;
+            this.attributeFormats = attributeFormats;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            shade(shader, attributeData, attributeFormats, start, end);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.software;
+
+import java.nio.ByteBuffer;
+
+import com.flowpowered.math.vector.Vector4f;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.spout.renderer.api.gl.Texture.FilterMode;
+import org.spout.renderer.api.gl.Texture.Format;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
+import org.spout.renderer.api.gl.Texture.WrapMode;
+
+public class SamplerTest {
+    private static final int RED = 0xFFFF0000, GREEN = 0xFF00FF00, BLUE = 0xFF0000FF, WHITE = 0xFFFFFFFF;
+    // The average of the four texels of the texture
+    private static final int GRAY = 0xFF808080;
+
+    @Test
+    public void testFilters() {
+        final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+        context.create();
+        final Sampler sampler = createSampler(context);
+        // Nearest returns the texel under the coordinates, with the origin at the bottom left
+        sampler.getTexture().setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f));
+        Assert.assertEquals(GREEN, sampler.sampleARGB(0.75f, 0.25f));
+        Assert.assertEquals(BLUE, sampler.sampleARGB(0.25f, 0.75f));
+        Assert.assertEquals(WHITE, sampler.sampleARGB(0.75f, 0.75f));
+        Assert.assertEquals(RED, sampler.sampleARGB(0.49f, 0.49f));
+        // Linear blends the four closest texels, which are exact on the texel centers
+        sampler.getTexture().setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
+        Assert.assertEquals(GRAY, sampler.sampleARGB(0.5f, 0.5f));
+        Assert.assertEquals(0xFF808000, sampler.sampleARGB(0.5f, 0.25f));
+        Assert.assertEquals(0xFF800080, sampler.sampleARGB(0.25f, 0.5f));
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f));
+        // The vector is the normalized color
+        final Vector4f color = sampler.sample(0.5f, 0.25f);
+        Assert.assertEquals(128 / 255f, color.getX(), 1e-6f);
+        Assert.assertEquals(128 / 255f, color.getY(), 1e-6f);
+        Assert.assertEquals(0, color.getZ(), 1e-6f);
+        Assert.assertEquals(1, color.getW(), 1e-6f);
+        context.destroy();
+    }
+
+    @Test
+    public void testWraps() {
+        final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+        context.create();
+        final Sampler sampler = createSampler(context);
+        final SoftwareTexture texture = sampler.getTexture();
+        texture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+        texture.setWraps(WrapMode.REPEAT, WrapMode.REPEAT);
+        Assert.assertEquals(RED, sampler.sampleARGB(1.25f, 0.25f));
+        Assert.assertEquals(GREEN, sampler.sampleARGB(-0.25f, 0.25f));
+        Assert.assertEquals(BLUE, sampler.sampleARGB(0.25f, -0.25f));
+        Assert.assertEquals(WHITE, sampler.sampleARGB(-1.25f, 2.75f));
+        texture.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
+        Assert.assertEquals(GREEN, sampler.sampleARGB(1.25f, 0.25f));
+        Assert.assertEquals(RED, sampler.sampleARGB(-0.25f, 0.25f));
+        Assert.assertEquals(WHITE, sampler.sampleARGB(5, 5));
+        texture.setWraps(WrapMode.MIRRORED_REPEAT, WrapMode.MIRRORED_REPEAT);
+        Assert.assertEquals(GREEN, sampler.sampleARGB(1.25f, 0.25f));
+        Assert.assertEquals(RED, sampler.sampleARGB(1.75f, 0.25f));
+        Assert.assertEquals(RED, sampler.sampleARGB(-0.25f, 0.25f));
+        Assert.assertEquals(BLUE, sampler.sampleARGB(0.25f, 1.25f));
+        // The border color defaults to transparent black
+        texture.setWraps(WrapMode.CLAMP_TO_BORDER, WrapMode.CLAMP_TO_BORDER);
+        Assert.assertEquals(0, sampler.sampleARGB(1.25f, 0.25f));
+        texture.setBorderColor(new Vector4f(0, 0, 1, 0.5f));
+        Assert.assertEquals(0x7F0000FF, sampler.sampleARGB(1.25f, 0.25f));
+        Assert.assertEquals(0x7F0000FF, sampler.sampleARGB(0.25f, -0.25f));
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f));
+        // Linear filtering blends the edge texels with the border
+        texture.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
+        Assert.assertEquals(0xBF800080, sampler.sampleARGB(0, 0.25f));
+        // The wraps are independent
+        texture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+        texture.setWraps(WrapMode.REPEAT, WrapMode.CLAMP_TO_EDGE);
+        Assert.assertEquals(BLUE, sampler.sampleARGB(1.25f, 1.25f));
+        context.destroy();
+    }
+
+    @Test
+    public void testMipmaps() {
+        final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+        context.create();
+        final Sampler sampler = createSampler(context);
+        final SoftwareTexture texture = sampler.getTexture();
+        // The derivatives select the level: one texel per pixel is the base level, two is the next
+        texture.setFilters(FilterMode.NEAREST_MIPMAP_NEAREST, FilterMode.NEAREST);
+        Assert.assertEquals(0, texture.getLevelOfDetail(0.5f, 0, 0, 0.5f), 1e-6f);
+        Assert.assertEquals(1, texture.getLevelOfDetail(1, 0, 0, 1), 1e-6f);
+        Assert.assertEquals(1, texture.getLevelOfDetail(0.5f, 0, 0, 1), 1e-6f);
+        Assert.assertEquals(-1, texture.getLevelOfDetail(0.25f, 0, 0, 0.25f), 1e-6f);
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f, 0.25f, 0, 0, 0.25f));
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f, 0.5f, 0, 0, 0.5f));
+        // The second level averages the 2x2 texels, and is the last one
+        Assert.assertEquals(GRAY, sampler.sampleARGB(0.25f, 0.25f, 1, 0, 0, 1));
+        Assert.assertEquals(GRAY, sampler.sampleARGB(0.75f, 0.75f, 8, 0, 0, 8));
+        // Blending the levels halfway between them
+        texture.setFilters(FilterMode.NEAREST_MIPMAP_LINEAR, FilterMode.NEAREST);
+        Assert.assertEquals(0.5f, texture.getLevelOfDetail(0.5f, 0.5f, 0, 0), 1e-6f);
+        Assert.assertEquals(0xFFC04040, sampler.sampleARGB(0.25f, 0.25f, 0.5f, 0.5f, 0, 0));
+        // Without mipmaps, the min filter always samples the base level
+        texture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+        Assert.assertEquals(RED, sampler.sampleARGB(0.25f, 0.25f, 8, 0, 0, 8));
+        // The mip chain is rebuilt when needed again, and when the image changes
+        texture.setFilters(FilterMode.NEAREST_MIPMAP_NEAREST, FilterMode.NEAREST);
+        Assert.assertEquals(GRAY, sampler.sampleARGB(0.25f, 0.25f, 8, 0, 0, 8));
+        texture.setImageData(createImage(RED, RED, RED, BLUE), 2, 2);
+        Assert.assertEquals(0xFFBF0040, sampler.sampleARGB(0.25f, 0.25f, 8, 0, 0, 8));
+        context.destroy();
+    }
+
+    @Test
+    public void testMissingTexture() {
+        final Sampler sampler = new Sampler();
+        Assert.assertEquals(0xFF000000, sampler.sampleARGB(0.5f, 0.5f));
+        Assert.assertEquals(new Vector4f(0, 0, 0, 1), sampler.sample(0.5f, 0.5f));
+    }
+
+    // Creates a sampler of a 2x2 texture which is red, green, blue and white, from the bottom left
+    private static Sampler createSampler(HeadlessSoftwareContext context) {
+        final SoftwareTexture texture = (SoftwareTexture) context.newTexture();
+        texture.create();
+        texture.setFormat(Format.RGBA, InternalFormat.RGBA8);
+        texture.setImageData(createImage(RED, GREEN, BLUE, WHITE), 2, 2);
+        final Sampler sampler = new Sampler();
+        sampler.setTexture(texture);
+        return sampler;
+    }
+
+    // Creates RGBA8 image data from ARGB colors, starting with the bottom row
+    private static ByteBuffer createImage(int... colors) {
+        final ByteBuffer image = ByteBuffer.allocate(colors.length * 4);
+        for (int color : colors) {
+            image.put((byte) (color >> 16)).put((byte) (color >> 8)).put((byte) color).put((byte) (color >>> 24));
+        }
+        image.flip();
+        return image;
+    }
+}
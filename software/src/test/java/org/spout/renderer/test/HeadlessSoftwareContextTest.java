@@ -0,0 +1,1158 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.math.vector.Vector4f;
+
+import gnu.trove.list.array.TFloatArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.spout.renderer.api.data.ShaderSource;
+import org.spout.renderer.api.data.VertexAttribute;
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.data.VertexData;
+import org.spout.renderer.api.gl.Context;
+import org.spout.renderer.api.gl.Context.BlendFunction;
+import org.spout.renderer.api.gl.Context.Capability;
+import org.spout.renderer.api.gl.Context.CullFace;
+import org.spout.renderer.api.gl.Context.FrontFace;
+import org.spout.renderer.api.gl.FrameBuffer;
+import org.spout.renderer.api.gl.FrameBuffer.AttachmentPoint;
+import org.spout.renderer.api.gl.Program;
+import org.spout.renderer.api.gl.Shader;
+import org.spout.renderer.api.gl.Shader.ShaderType;
+import org.spout.renderer.api.gl.Texture;
+import org.spout.renderer.api.gl.Texture.FilterMode;
+import org.spout.renderer.api.gl.Texture.Format;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
+import org.spout.renderer.api.gl.VertexArray;
+import org.spout.renderer.api.gl.VertexArray.DrawingMode;
+import org.spout.renderer.api.util.Rectangle;
+import org.spout.renderer.software.DataFormat;
+import org.spout.renderer.software.HeadlessSoftwareContext;
+import org.spout.renderer.software.InBuffer;
+import org.spout.renderer.software.OutBuffer;
+import org.spout.renderer.software.ShaderBatch;
+import org.spout.renderer.software.ShaderImplementation;
+import org.spout.renderer.software.Uniform;
+
+public class HeadlessSoftwareContextTest {
+    // Passes the vertex colors to the fragments, for the vertex arrays of createVertexArray
+    static final String COLOR_VERTEX_SHADER = "// $shader_type: vertex\n// $attrib_layout: position = 0\n// $attrib_layout: color = 1\n#version 120\n"
+            + "attribute vec4 position;\nattribute vec4 color;\nvarying vec4 fragmentColor;\n"
+            + "void main() {\n    gl_Position = position;\n    fragmentColor = color;\n}\n";
+    static final String COLOR_FRAGMENT_SHADER = "// $shader_type: fragment\n#version 120\nvarying vec4 fragmentColor;\n"
+            + "void main() {\n    gl_FragColor = fragmentColor;\n}\n";
+
+    @Test
+    public void test() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(4, 2));
+        context.create();
+        Assert.assertFalse(context.isWindowCloseRequested());
+        // Clear and read back the whole frame
+        context.setClearColor(new Vector4f(1, 0, 0.2f, 1));
+        context.clearCurrentBuffer();
+        context.updateDisplay();
+        // Nothing is presented without a window
+        Assert.assertTrue(((HeadlessSoftwareContext) context).getRenderTime() > 0);
+        Assert.assertEquals(0, ((HeadlessSoftwareContext) context).getPresentTime());
+        final ByteBuffer frame = context.readFrame(new Rectangle(0, 0, 4, 2), InternalFormat.RGBA8);
+        Assert.assertEquals(4 * 2 * 4, frame.remaining());
+        while (frame.hasRemaining()) {
+            Assert.assertEquals(255, frame.get() & 0xFF);
+            Assert.assertEquals(0, frame.get() & 0xFF);
+            Assert.assertEquals(51, frame.get() & 0xFF);
+            Assert.assertEquals(255, frame.get() & 0xFF);
+        }
+        // Read back the depths, which are cleared to the far plane
+        final ByteBuffer depths = context.readFrame(new Rectangle(1, 1, 2, 1), InternalFormat.DEPTH_COMPONENT32);
+        Assert.assertEquals(2 * 4, depths.remaining());
+        Assert.assertEquals(0xFFFFFFFF, depths.getInt());
+        context.destroy();
+    }
+
+    @Test
+    public void testGLSLShaders() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 8));
+        context.create();
+        final VertexArray vertexArray = createCenterQuad(context);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        // The basic fragment shader outputs red
+        final ByteBuffer center = context.readFrame(new Rectangle(4, 4, 1, 1), InternalFormat.RGBA8);
+        Assert.assertEquals(255, center.get() & 0xFF);
+        Assert.assertEquals(0, center.get() & 0xFF);
+        final ByteBuffer corner = context.readFrame(new Rectangle(0, 0, 1, 1), InternalFormat.RGBA8);
+        Assert.assertEquals(0, corner.get() & 0xFF);
+        context.destroy();
+    }
+
+    @Test
+    public void testCullingAndScissor() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 8));
+        context.create();
+        final VertexArray vertexArray = createCenterQuad(context);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        // The quad is counter clockwise, so it's only culled with the front faces
+        context.enableCapability(Capability.CULL_FACE);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        Assert.assertEquals(255, context.readFrame(new Rectangle(4, 4, 1, 1), InternalFormat.RGBA8).get() & 0xFF);
+        context.setCullFace(CullFace.FRONT);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        Assert.assertEquals(0, context.readFrame(new Rectangle(4, 4, 1, 1), InternalFormat.RGBA8).get() & 0xFF);
+        context.setFrontFace(FrontFace.CLOCKWISE);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        Assert.assertEquals(255, context.readFrame(new Rectangle(4, 4, 1, 1), InternalFormat.RGBA8).get() & 0xFF);
+        context.disableCapability(Capability.CULL_FACE);
+        // Only draw and clear the left half
+        context.setClearColor(new Vector4f(0, 0, 1, 1));
+        context.enableCapability(Capability.SCISSOR_TEST);
+        context.setScissor(new Rectangle(0, 0, 4, 8));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        final ByteBuffer row = context.readFrame(new Rectangle(0, 4, 8, 1), InternalFormat.RGB8);
+        final int[] expected = {0x0000FF, 0x0000FF, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0, 0};
+        for (int color : expected) {
+            Assert.assertEquals(color, (row.get() & 0xFF) << 16 | (row.get() & 0xFF) << 8 | row.get() & 0xFF);
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testLinesAndPoints() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 8));
+        context.create();
+        final VertexArray vertexArray = createCenterQuad(context);
+        // Use the corners of the quad in order, for the outline
+        final VertexData data = new VertexData();
+        final VertexAttribute positions = new VertexAttribute("position", DataType.FLOAT, 3);
+        positions.setData(new TFloatArrayList(new float[]{-1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0}));
+        data.addAttribute(0, positions);
+        data.getIndices().add(new int[]{0, 1, 2, 3});
+        vertexArray.setData(data);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        // The corners are on pixel edges, from 2 to 6, so the vertical sides cover the pixels on the right of the edges
+        // The loop closes the outline, the strip leaves the left side open
+        vertexArray.setDrawingMode(DrawingMode.LINE_LOOP);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertRow(context, 4, 0, 0, 0xFF0000, 0, 0, 0, 0xFF0000, 0);
+        vertexArray.setDrawingMode(DrawingMode.LINE_STRIP);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertRow(context, 4, 0, 0, 0, 0, 0, 0, 0xFF0000, 0);
+        // Points are squares of the point size around the corners
+        vertexArray.setDrawingMode(DrawingMode.POINTS);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertRow(context, 1, 0, 0, 0xFF0000, 0, 0, 0, 0xFF0000, 0);
+        context.setPointSize(3);
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertRow(context, 1, 0, 0xFF0000, 0xFF0000, 0xFF0000, 0, 0xFF0000, 0xFF0000, 0xFF0000);
+        // Lines are mapped to the window like triangles: a line through the pixel centers of a row of the quad covers the same pixels
+        context.clearCurrentBuffer();
+        createCenterQuad(context).draw();
+        assertRow(context, 4, 0, 0, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0, 0);
+        final VertexData lineData = new VertexData();
+        final VertexAttribute linePositions = new VertexAttribute("position", DataType.FLOAT, 3);
+        linePositions.setData(new TFloatArrayList(new float[]{-1, 0.25f, 0, 1, 0.25f, 0}));
+        lineData.addAttribute(0, linePositions);
+        lineData.getIndices().add(new int[]{0, 1});
+        final VertexArray line = context.newVertexArray();
+        line.create();
+        line.setData(lineData);
+        line.setDrawingMode(DrawingMode.LINES);
+        context.clearCurrentBuffer();
+        line.draw();
+        assertRow(context, 4, 0, 0, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0, 0);
+        assertRow(context, 3, 0, 0, 0, 0, 0, 0, 0, 0);
+        assertRow(context, 5, 0, 0, 0, 0, 0, 0, 0, 0);
+        context.destroy();
+    }
+
+    @Test
+    public void testPerspectiveCorrectInterpolation() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(64, 4));
+        context.create();
+        final Program program = context.newProgram();
+        program.create();
+        final String[] sources = {
+                "// $shader_type: vertex\n// $attrib_layout: position = 0\n// $attrib_layout: u = 1\n#version 120\n"
+                        + "attribute vec4 position;\nattribute float u;\nvarying float v;\n"
+                        + "void main() {\n    gl_Position = position;\n    v = u;\n}\n",
+                "// $shader_type: fragment\n#version 120\nvarying float v;\n"
+                        + "void main() {\n    gl_FragColor = vec4(v, 0, 0, 1);\n}\n"
+        };
+        for (String source : sources) {
+            final Shader shader = context.newShader();
+            shader.create();
+            shader.setSource(new ShaderSource(source));
+            shader.compile();
+            program.attachShader(shader);
+        }
+        program.link();
+        program.use();
+        // A quad covering the frame, three times further away on the right, where u is one
+        final VertexData data = new VertexData();
+        final VertexAttribute positions = new VertexAttribute("position", DataType.FLOAT, 4);
+        positions.setData(new TFloatArrayList(new float[]{-1, -1, 0, 1, 3, -3, 0, 3, 3, 3, 0, 3, -1, 1, 0, 1}));
+        data.addAttribute(0, positions);
+        final VertexAttribute u = new VertexAttribute("u", DataType.FLOAT, 1);
+        u.setData(new TFloatArrayList(new float[]{0, 1, 1, 0}));
+        data.addAttribute(1, u);
+        data.getIndices().add(new int[]{0, 1, 2, 0, 2, 3});
+        final VertexArray vertexArray = context.newVertexArray();
+        vertexArray.create();
+        vertexArray.setData(data);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        final ByteBuffer row = context.readFrame(new Rectangle(0, 1, 64, 1), InternalFormat.RGBA8);
+        for (int x = 0; x < 64; x++) {
+            // u is linear in the clip coordinates, not in the window ones
+            final float fraction = (x + 0.5f) / 64;
+            final float expected = fraction / 3 / (1 - fraction + fraction / 3);
+            Assert.assertEquals(expected * 255, row.get(x * 4) & 0xFF, 1);
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testDeferredClear() {
+        // Large enough for several clear tiles
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(256, 128));
+        context.create();
+        final VertexArray vertexArray = createCenterQuad(context);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertPixels(context, 64, 0, 0, 0xFF0000, 0xFF0000, 0);
+        // Clearing to the same color again refills the drawn tiles, changing it refills all of them
+        context.clearCurrentBuffer();
+        assertPixels(context, 64, 0, 0, 0, 0, 0);
+        context.setClearColor(new Vector4f(0, 0, 1, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        assertPixels(context, 64, 0x0000FF, 0x0000FF, 0xFF0000, 0xFF0000, 0x0000FF);
+        // A scissored clear keeps the previous clear outside of the rectangle, even in tiles that weren't filled yet
+        context.setClearColor(new Vector4f(0, 1, 0, 1));
+        context.clearCurrentBuffer();
+        context.setClearColor(new Vector4f(1, 1, 1, 1));
+        context.enableCapability(Capability.SCISSOR_TEST);
+        context.setScissor(new Rectangle(32, 0, 64, 128));
+        context.clearCurrentBuffer();
+        context.disableCapability(Capability.SCISSOR_TEST);
+        assertPixels(context, 64, 0x00FF00, 0xFFFFFF, 0xFFFFFF, 0x00FF00, 0x00FF00);
+        context.destroy();
+    }
+
+    @Test
+    public void testBlending() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(4, 4));
+        context.create();
+        createProgram(context, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+        final Vector4f blue = new Vector4f(0, 0, 1, 1);
+        // Without blending, the source is written unchanged
+        assertBlend(context, blue, new Vector4f(1, 0, 0, 0.5f), 255, 0, 0, 127);
+        context.enableCapability(Capability.BLEND);
+        // The specialized blenders
+        context.setBlendingFunctions(BlendFunction.GL_SRC_ALPHA, BlendFunction.GL_ONE_MINUS_SRC_ALPHA);
+        assertBlend(context, blue, new Vector4f(1, 0, 0, 0.5f), 127, 0, 128, 191);
+        context.setBlendingFunctions(BlendFunction.GL_ONE, BlendFunction.GL_ONE_MINUS_SRC_ALPHA);
+        assertBlend(context, blue, new Vector4f(0.5f, 0, 0, 0.5f), 127, 0, 128, 255);
+        context.setBlendingFunctions(BlendFunction.GL_ONE, BlendFunction.GL_ONE);
+        assertBlend(context, new Vector4f(1, 0, 1, 1), new Vector4f(0.5f, 0.5f, 0, 1), 255, 127, 255, 255);
+        context.setBlendingFunctions(BlendFunction.GL_SRC_ALPHA, BlendFunction.GL_ONE);
+        assertBlend(context, blue, new Vector4f(1, 0, 0, 0.5f), 127, 0, 255, 255);
+        // Any other pair evaluates the functions, here multiplying the colors
+        context.setBlendingFunctions(BlendFunction.GL_ZERO, BlendFunction.GL_SRC_COLOR);
+        assertBlend(context, new Vector4f(1, 0.5f, 1, 1), new Vector4f(0.5f, 1, 0, 1), 127, 127, 0, 255);
+        // Dual source blending isn't supported
+        for (BlendFunction function : new BlendFunction[]{BlendFunction.GL_SRC1_COLOR, BlendFunction.GL_ONE_MINUS_SRC1_COLOR, BlendFunction.GL_SRC1_ALPHA, BlendFunction.GL_ONE_MINUS_SRC1_ALPHA}) {
+            try {
+                context.setBlendingFunctions(BlendFunction.GL_ONE, function);
+                Assert.fail("Expected an UnsupportedOperationException for " + function);
+            } catch (UnsupportedOperationException ex) {
+                // Expected
+            }
+        }
+        // The functions are left unchanged
+        assertBlend(context, new Vector4f(1, 0.5f, 1, 1), new Vector4f(0.5f, 1, 0, 1), 127, 127, 0, 255);
+        context.destroy();
+    }
+
+    // Clears to the destination color, draws the source color over the whole frame, and checks the RGBA bytes of a pixel
+    private void assertBlend(Context context, Vector4f destination, Vector4f source, int... expected) {
+        context.setClearColor(destination);
+        context.clearCurrentBuffer();
+        createQuad(context, -1, -1, 1, 1, 0, source).draw();
+        final ByteBuffer pixel = context.readFrame(new Rectangle(1, 1, 1, 1), InternalFormat.RGBA8);
+        for (int component : expected) {
+            Assert.assertEquals(component, pixel.get() & 0xFF);
+        }
+    }
+
+    @Test
+    public void testDepthFormats() {
+        final Vector4f red = new Vector4f(1, 0, 0, 1), green = new Vector4f(0, 1, 0, 1);
+        for (InternalFormat format : new InternalFormat[]{InternalFormat.DEPTH_COMPONENT16, InternalFormat.DEPTH_COMPONENT24, InternalFormat.DEPTH_COMPONENT32,
+                InternalFormat.DEPTH_COMPONENT32F}) {
+            for (boolean reversed : new boolean[]{false, true}) {
+                final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+                context.setWindowSize(new Vector2i(4, 4));
+                context.setDepthFormat(format);
+                context.setReversedDepth(reversed);
+                context.create();
+                createProgram(context, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+                context.enableCapability(Capability.DEPTH_TEST);
+                context.setClearColor(new Vector4f(0, 0, 0, 1));
+                // Normally the depth is (z + 1) / 2, and the near quad is at 0.6 and the far one at 0.8
+                // Reversed, the depth is z, and the near quad is at 0.8 and the far one at 0.6
+                final float nearZ = reversed ? 0.8f : 0.2f, farZ = 0.6f;
+                final VertexArray near = createQuad(context, -1, -1, 1, 1, nearZ, red);
+                final VertexArray far = createQuad(context, -1, -1, 1, 1, farZ, green);
+                // The near quad must win whatever the order
+                for (VertexArray[] order : new VertexArray[][]{{near, far}, {far, near}}) {
+                    context.clearCurrentBuffer();
+                    order[0].draw();
+                    order[1].draw();
+                    final String message = format + (reversed ? " reversed" : "");
+                    assertRow(context, 1, message, 0xFF0000, 0xFF0000);
+                    final ByteBuffer depth = context.readFrame(new Rectangle(1, 1, 1, 1), InternalFormat.DEPTH_COMPONENT32F);
+                    Assert.assertEquals(message, reversed ? 0.8f : 0.6f, depth.getFloat(), 1e-4f);
+                }
+                context.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void testPartialDepthOverwrites() {
+        // The farthest depth of each block of 8x8 pixels is tracked to reject hidden triangles, which mustn't reject the visible parts of a farther quad drawn after the near one
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(32, 16));
+        context.create();
+        createProgram(context, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+        context.enableCapability(Capability.DEPTH_TEST);
+        final VertexArray near = createQuad(context, -1, -1, 1, 1, -0.5f, new Vector4f(1, 0, 0, 1));
+        final VertexArray far = createQuad(context, -1, -1, 1, 1, 0.5f, new Vector4f(0, 1, 0, 1));
+        // Clearing part of the blocks after they were covered
+        context.clearCurrentBuffer();
+        near.draw();
+        context.setScissor(new Rectangle(4, 0, 8, 16));
+        context.enableCapability(Capability.SCISSOR_TEST);
+        context.clearCurrentBuffer();
+        context.disableCapability(Capability.SCISSOR_TEST);
+        far.draw();
+        assertSpan(context, "Scissored clear", 4, 12);
+        // Covering only part of a block
+        context.clearCurrentBuffer();
+        createQuad(context, -1, -1, -0.25f, 1, -0.5f, new Vector4f(1, 0, 0, 1)).draw();
+        far.draw();
+        assertSpan(context, "Partially covered block", 12, 32);
+        // Covering the blocks without writing the depths
+        context.clearCurrentBuffer();
+        context.setDepthMask(false);
+        near.draw();
+        context.setDepthMask(true);
+        far.draw();
+        assertSpan(context, "Depth writing disabled", 0, 32);
+        context.destroy();
+    }
+
+    // Checks that the rows are green from the minimum x to the maximum one, and red elsewhere
+    private void assertSpan(Context context, String message, int minX, int maxX) {
+        final int[] expected = new int[context.getWindowWidth()];
+        for (int x = 0; x < expected.length; x++) {
+            expected[x] = x >= minX && x < maxX ? 0x00FF00 : 0xFF0000;
+        }
+        for (int y = 0; y < context.getWindowHeight(); y++) {
+            assertRow(context, y, message, expected);
+        }
+    }
+
+    @Test
+    public void testGuardBandClipping() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 8));
+        context.create();
+        createProgram(context, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+        context.setClearColor(new Vector4f(0, 0, 1, 1));
+        // Triangles crossing all the sides of the view port, within the guard band and beyond it, which is a few thousand view ports wide
+        for (float size : new float[]{2, 1e4f}) {
+            for (float w : new float[]{1, 3}) {
+                final String message = "Size " + size + ", w " + w;
+                final VertexArray triangle = createGradientTriangle(context, size, w);
+                context.clearCurrentBuffer();
+                triangle.draw();
+                assertGradient(context, message, new Rectangle(0, 0, 8, 8));
+                // With a smaller view port, which has a smaller guard band, nothing is drawn outside of it
+                context.setViewPort(new Rectangle(2, 2, 4, 4));
+                context.clearCurrentBuffer();
+                triangle.draw();
+                context.setViewPort(new Rectangle(0, 0, 8, 8));
+                assertGradient(context, message, new Rectangle(2, 2, 4, 4));
+            }
+        }
+        // Floats can't hold a gradient over a triangle this large, but it must still cover the view port exactly
+        final VertexArray triangle = createVertexArray(context, new TFloatArrayList(new float[]{-1e7f, -1e7f, 0, 1, 3e7f, -1e7f, 0, 1, -1e7f, 3e7f, 0, 1}),
+                new TFloatArrayList(new float[]{1, 0, 0, 1, 1, 0, 0, 1, 1, 0, 0, 1}));
+        context.clearCurrentBuffer();
+        triangle.draw();
+        for (int y = 0; y < 8; y++) {
+            assertRow(context, y, "Size 1e7", 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000);
+        }
+        context.setViewPort(new Rectangle(2, 2, 4, 4));
+        context.clearCurrentBuffer();
+        triangle.draw();
+        for (int y = 0; y < 8; y++) {
+            final int inside = y >= 2 && y < 6 ? 0xFF0000 : 0x0000FF;
+            assertRow(context, y, "Size 1e7", 0x0000FF, 0x0000FF, inside, inside, inside, inside, 0x0000FF, 0x0000FF);
+        }
+        context.destroy();
+    }
+
+    // Checks that the red and green are the normalized device coordinates mapped to 0 to 1 at the pixel centers of the view port, give or take a step for the float error of such large triangles,
+    // and that the rest of the frame is blue
+    private void assertGradient(Context context, String message, Rectangle viewPort) {
+        final ByteBuffer frame = context.readFrame(new Rectangle(0, 0, 8, 8), InternalFormat.RGB8);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                final int red = frame.get() & 0xFF, green = frame.get() & 0xFF, blue = frame.get() & 0xFF;
+                final float s = (x - viewPort.getX() + 0.5f) / viewPort.getWidth(), t = (y - viewPort.getY() + 0.5f) / viewPort.getHeight();
+                if (s < 0 || s > 1 || t < 0 || t > 1) {
+                    Assert.assertEquals(message, 0x0000FF, red << 16 | green << 8 | blue);
+                    continue;
+                }
+                Assert.assertEquals(message, s * 255, red, 1);
+                Assert.assertEquals(message, t * 255, green, 1);
+                Assert.assertEquals(message, 0, blue);
+            }
+        }
+    }
+
+    // Creates a triangle containing the view volume, with red and green going from 0 to 1 from the left to the right and the bottom to the top of it
+    private VertexArray createGradientTriangle(Context context, float size, float w) {
+        final float[][] corners = {{-size, -size}, {size * 3, -size}, {-size, size * 3}};
+        final TFloatArrayList positions = new TFloatArrayList();
+        final TFloatArrayList colors = new TFloatArrayList();
+        for (float[] corner : corners) {
+            positions.add(new float[]{corner[0] * w, corner[1] * w, 0, w});
+            colors.add(new float[]{(corner[0] + 1) / 2, (corner[1] + 1) / 2, 0, 1});
+        }
+        return createVertexArray(context, positions, colors);
+    }
+
+    @Test
+    public void testRenderToTexture() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 8));
+        context.create();
+        final VertexArray vertexArray = createCenterQuad(context);
+        context.setClearColor(new Vector4f(0, 0, 1, 1));
+        context.clearCurrentBuffer();
+        final Texture texture = context.newTexture();
+        texture.create();
+        texture.setFormat(Format.RGBA, InternalFormat.RGBA8);
+        texture.setImageData(null, 8, 8);
+        final FrameBuffer frameBuffer = context.newFrameBuffer();
+        frameBuffer.create();
+        Assert.assertFalse(frameBuffer.isComplete());
+        frameBuffer.attach(AttachmentPoint.COLOR0, texture);
+        Assert.assertTrue(frameBuffer.isComplete());
+        // Draw the quad into the texture only
+        frameBuffer.bind();
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        frameBuffer.unbind();
+        final ByteBuffer image = texture.getImageData(InternalFormat.RGBA8);
+        Assert.assertEquals(8 * 8 * 4, image.remaining());
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                final boolean inside = x >= 2 && x < 6 && y >= 2 && y < 6;
+                final int offset = (x + y * 8) * 4;
+                Assert.assertEquals(inside ? 255 : 0, image.get(offset) & 0xFF);
+                Assert.assertEquals(0, image.get(offset + 2) & 0xFF);
+                Assert.assertEquals(255, image.get(offset + 3) & 0xFF);
+            }
+        }
+        // The frame kept its clear color
+        assertRow(context, 4, 0x0000FF, 0x0000FF, 0x0000FF, 0x0000FF, 0x0000FF, 0x0000FF, 0x0000FF, 0x0000FF);
+        // And is drawn to again once the frame buffer is unbound
+        vertexArray.draw();
+        assertRow(context, 4, 0x0000FF, 0x0000FF, 0xFF0000, 0xFF0000, 0xFF0000, 0xFF0000, 0x0000FF, 0x0000FF);
+        context.destroy();
+    }
+
+    @Test
+    public void testMinifiedTexture() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(4, 4));
+        context.create();
+        // A checkerboard of single black and white texels, four times the size of the frame
+        final ByteBuffer image = ByteBuffer.allocate(16 * 16 * 4);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                final byte value = (byte) ((x + y & 1) == 0 ? 0 : 255);
+                image.put(value).put(value).put(value).put((byte) 255);
+            }
+        }
+        image.flip();
+        final Texture texture = context.newTexture();
+        texture.create();
+        texture.setFormat(Format.RGBA, InternalFormat.RGBA8);
+        texture.setFilters(FilterMode.NEAREST_MIPMAP_NEAREST, FilterMode.NEAREST);
+        texture.setImageData(image, 16, 16);
+        texture.bind(0);
+        // The texture coordinates are passed as the colors
+        final Program program = createProgram(context, COLOR_VERTEX_SHADER, "// $shader_type: fragment\n// $texture_layout: diffuse = 0\n#version 120\n"
+                + "uniform sampler2D diffuse;\nvarying vec4 fragmentColor;\n"
+                + "void main() {\n    gl_FragColor = texture2D(diffuse, fragmentColor.xy);\n}\n");
+        program.bindSampler(0);
+        final VertexArray vertexArray = createVertexArray(context, new TFloatArrayList(new float[]{-1, -1, 0, 1, 1, -1, 0, 1, 1, 1, 0, 1, -1, -1, 0, 1, 1, 1, 0, 1, -1, 1, 0, 1}),
+                new TFloatArrayList(new float[]{0, 0, 0, 1, 1, 0, 0, 1, 1, 1, 0, 1, 0, 0, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1}));
+        // Each pixel covers 4x4 texels, so the third level is used, where they're all averaged to gray
+        vertexArray.draw();
+        for (int y = 0; y < 4; y++) {
+            assertRow(context, y, 0x808080, 0x808080, 0x808080, 0x808080);
+        }
+        // Without mipmaps, each pixel is a single black or white texel
+        texture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+        vertexArray.draw();
+        final ByteBuffer frame = context.readFrame(new Rectangle(0, 0, 4, 4), InternalFormat.RGB8);
+        while (frame.hasRemaining()) {
+            final int value = frame.get() & 0xFF;
+            Assert.assertTrue(value == 0 || value == 255);
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testTiledRendering() {
+        // Tiles are rasterized from their own edges by each thread, but the result must be exactly the same
+        for (boolean depthTest : new boolean[]{false, true}) {
+            final byte[] expected = renderRandomTriangles(depthTest, false, 1);
+            Assert.assertArrayEquals(expected, renderRandomTriangles(depthTest, true, 1));
+            Assert.assertArrayEquals(expected, renderRandomTriangles(depthTest, true, 4));
+        }
+    }
+
+    @Test
+    public void testReadFrameFormats() {
+        final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(320, 200));
+        context.create();
+        createProgram(context, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+        drawRandomTriangles(context, true);
+        // The RGBA8, RGB8 and DEPTH_COMPONENT16 formats are read row by row, which must match the generic conversion of the wider formats
+        final Rectangle size = new Rectangle(37, 21, 150, 90);
+        final ByteBuffer rgba8 = context.readFrame(size, InternalFormat.RGBA8);
+        final ByteBuffer rgb8 = context.readFrame(size, InternalFormat.RGB8);
+        final ByteBuffer rgba16 = context.readFrame(size, InternalFormat.RGBA16);
+        final ByteBuffer depth16 = context.readFrame(size, InternalFormat.DEPTH_COMPONENT16);
+        final ByteBuffer depth32f = context.readFrame(size, InternalFormat.DEPTH_COMPONENT32F);
+        Assert.assertEquals(size.getArea() * 4, rgba8.remaining());
+        Assert.assertEquals(size.getArea() * 3, rgb8.remaining());
+        Assert.assertEquals(size.getArea() * 2, depth16.remaining());
+        for (int i = 0; i < size.getArea(); i++) {
+            for (int c = 0; c < 4; c++) {
+                // The upper byte of a 16 bit component is the 8 bit one
+                final int component = rgba8.get();
+                Assert.assertEquals(component, rgba16.getShort() >> 8);
+                if (c < 3) {
+                    Assert.assertEquals(component, rgb8.get());
+                }
+            }
+            Assert.assertEquals(Math.round(depth32f.getFloat() * 65535), depth16.getShort() & 0xFFFF);
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testSharedIndices() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(64, 64));
+        context.create();
+        createProgram(context, CountingColorVertexShader.class.getName(), ColorFragmentShader.class.getName());
+        context.enableCapability(Capability.DEPTH_TEST);
+        // A grid of 5x5 vertices, followed by some which are never drawn
+        final Random random = new Random(7);
+        final TFloatArrayList positions = new TFloatArrayList();
+        final TFloatArrayList colors = new TFloatArrayList();
+        for (int i = 0; i < 5 * 5 + 5; i++) {
+            positions.add(new float[]{(i % 5) * 0.45f - 0.9f, (i / 5 % 5) * 0.45f - 0.9f, random.nextFloat() * 2 - 1, 1});
+            colors.add(new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat(), 1});
+        }
+        // Two triangles per cell, sharing their vertices with the neighbouring cells, in a random order
+        final List<int[]> triangles = new ArrayList<>();
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                final int i = y * 5 + x;
+                triangles.add(new int[]{i, i + 1, i + 6});
+                triangles.add(new int[]{i + 6, i + 5, i});
+            }
+        }
+        Collections.shuffle(triangles, random);
+        final VertexData data = new VertexData();
+        final VertexAttribute positionAttribute = new VertexAttribute("position", DataType.FLOAT, 4);
+        positionAttribute.setData(positions);
+        data.addAttribute(0, positionAttribute);
+        final VertexAttribute colorAttribute = new VertexAttribute("color", DataType.FLOAT, 4);
+        colorAttribute.setData(colors);
+        data.addAttribute(1, colorAttribute);
+        final TFloatArrayList expandedPositions = new TFloatArrayList();
+        final TFloatArrayList expandedColors = new TFloatArrayList();
+        for (int[] triangle : triangles) {
+            for (int index : triangle) {
+                data.getIndices().add(index);
+                expandedPositions.add(positions.toArray(index * 4, 4));
+                expandedColors.add(colors.toArray(index * 4, 4));
+            }
+        }
+        final VertexArray indexed = context.newVertexArray();
+        indexed.create();
+        indexed.setData(data);
+        final VertexArray expanded = createVertexArray(context, expandedPositions, expandedColors);
+        // Each referenced vertex is shaded once, and reused by all the triangles sharing it
+        CountingColorVertexShader.INVOCATIONS.set(0);
+        context.clearCurrentBuffer();
+        indexed.draw();
+        Assert.assertEquals(5 * 5, CountingColorVertexShader.INVOCATIONS.get());
+        final ByteBuffer expected = context.readFrame(new Rectangle(0, 0, 64, 64), InternalFormat.RGBA8);
+        CountingColorVertexShader.INVOCATIONS.set(0);
+        context.clearCurrentBuffer();
+        expanded.draw();
+        Assert.assertEquals(32 * 3, CountingColorVertexShader.INVOCATIONS.get());
+        Assert.assertEquals(expected, context.readFrame(new Rectangle(0, 0, 64, 64), InternalFormat.RGBA8));
+        // Only the vertices in the drawn range of indices are shaded, which the previous draw mustn't affect
+        final Set<Integer> vertices = new HashSet<>();
+        for (int i = 8 * 3; i < 20 * 3; i++) {
+            vertices.add(data.getIndices().get(i));
+        }
+        CountingColorVertexShader.INVOCATIONS.set(0);
+        indexed.setIndicesOffset(8 * 3);
+        indexed.setIndicesCount(12 * 3);
+        indexed.draw();
+        Assert.assertEquals(vertices.size(), CountingColorVertexShader.INVOCATIONS.get());
+        context.destroy();
+    }
+
+    @Test
+    public void testIntegerInterpolation() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(8, 2));
+        context.create();
+        createProgram(context, IntegerVertexShader.class.getName(), IntegerFragmentShader.class.getName());
+        // A quad over the frame, three times further on the right, with an integer going from 0 to 8 and a constant one of 200
+        final VertexArray vertexArray = createVertexArray(context, new TFloatArrayList(new float[]{-1, -1, 0, 1, 3, -3, 0, 3, 3, 3, 0, 3, -1, -1, 0, 1, 3, 3, 0, 3, -1, 1, 0, 1}),
+                new TFloatArrayList(new float[]{0, 200, 0, 0, 8, 200, 0, 0, 8, 200, 0, 0, 0, 200, 0, 0, 8, 200, 0, 0, 0, 200, 0, 0}));
+        vertexArray.draw();
+        // Integers are interpolated with perspective like floats and then rounded, and constant ones stay exact
+        for (int y = 0; y < 2; y++) {
+            assertRow(context, y, 0x00C800, 0x01C800, 0x01C800, 0x02C800, 0x02C800, 0x03C800, 0x05C800, 0x07C800);
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testJavaShaderUniforms() {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(4, 1));
+        context.create();
+        final Program program = createProgram(context, ColorVertexShader.class.getName(), UniformFragmentShader.class.getName());
+        final VertexArray quad = createQuad(context, -1, -1, 1, 1, 0, new Vector4f(1, 1, 1, 1));
+        // The primitive fields are set directly, and the others through the object setter
+        program.setUniform("enabled", true);
+        program.setUniform("green", 64);
+        program.setUniform("scale", 0.5f);
+        program.setUniform("tint", new Vector4f(1, 0, 0.5f, 1));
+        // Like in OpenGL, unknown uniforms are ignored
+        program.setUniform("missing", 1f);
+        program.setUniform("missing", new Vector4f(1, 1, 1, 1));
+        quad.draw();
+        assertRow(context, 0, 0x7F403F, 0x7F403F, 0x7F403F, 0x7F403F);
+        program.setUniform("enabled", false);
+        quad.draw();
+        assertRow(context, 0, 0x004000, 0x004000, 0x004000, 0x004000);
+        // Values of the wrong type are rejected, for primitive and object fields
+        for (Runnable wrongType : new Runnable[]{
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        program.setUniform("enabled", 1);
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        program.setUniform("tint", 1f);
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        program.setUniform("enabled", new Vector4f(1, 1, 1, 1));
+                    }
+                }
+        }) {
+            try {
+                wrongType.run();
+                Assert.fail("Expected the uniform to be rejected");
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        }
+        context.destroy();
+    }
+
+    @Test
+    public void testBatchedShaders() {
+        // Batched shaders, and the default batch main which runs the shader for each lane, must match the single invocation ones
+        final byte[] expected = renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), ColorFragmentShader.class.getName());
+        Assert.assertArrayEquals(expected, renderRandomTriangles(true, false, 1, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER));
+        final String[][] programs = {
+                {BatchedColorVertexShader.class.getName(), ColorFragmentShader.class.getName()},
+                {ColorVertexShader.class.getName(), BatchedColorFragmentShader.class.getName()},
+                {BatchedColorVertexShader.class.getName(), BatchedColorFragmentShader.class.getName()},
+                {LaneColorVertexShader.class.getName(), LaneColorFragmentShader.class.getName()}
+        };
+        for (String[] program : programs) {
+            Assert.assertArrayEquals(program[0] + ", " + program[1], expected, renderRandomTriangles(true, false, 1, program));
+            Assert.assertArrayEquals(program[0] + ", " + program[1], expected, renderRandomTriangles(true, true, 4, program));
+        }
+    }
+
+    @Test
+    public void testBatchedDiscard() {
+        // Batched shaders can discard single lanes, like the default batch main when the single invocation main discards
+        final byte[] expected = renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), DiscardFragmentShader.class.getName());
+        Assert.assertFalse(Arrays.equals(expected, renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), ColorFragmentShader.class.getName())));
+        for (String shader : new String[]{BatchedDiscardFragmentShader.class.getName(), LaneDiscardFragmentShader.class.getName()}) {
+            Assert.assertArrayEquals(shader, expected, renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), shader));
+            Assert.assertArrayEquals(shader, expected, renderRandomTriangles(true, true, 4, ColorVertexShader.class.getName(), shader));
+        }
+    }
+
+    @Test
+    public void testBatchedDerivatives() {
+        // The derivatives of perspective correct inputs differ between the fragments of a batch, so they must be those of each lane
+        final byte[] expected = renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), DerivativeFragmentShader.class.getName());
+        for (String shader : new String[]{BatchedDerivativeFragmentShader.class.getName(), LaneDerivativeFragmentShader.class.getName()}) {
+            Assert.assertArrayEquals(shader, expected, renderRandomTriangles(true, false, 1, ColorVertexShader.class.getName(), shader));
+            Assert.assertArrayEquals(shader, expected, renderRandomTriangles(true, true, 4, ColorVertexShader.class.getName(), shader));
+        }
+    }
+
+    private byte[] renderRandomTriangles(boolean depthTest, boolean tiled, int threads) {
+        return renderRandomTriangles(depthTest, tiled, threads, COLOR_VERTEX_SHADER, COLOR_FRAGMENT_SHADER);
+    }
+
+    private byte[] renderRandomTriangles(boolean depthTest, boolean tiled, int threads, String... shaders) {
+        final HeadlessSoftwareContext context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(320, 200));
+        context.create();
+        context.setTiledRendering(tiled);
+        context.setRenderThreadCount(threads);
+        createProgram(context, shaders);
+        drawRandomTriangles(context, depthTest);
+        final ByteBuffer frame = context.readFrame(new Rectangle(0, 0, 320, 200), InternalFormat.RGBA8);
+        final byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        context.destroy();
+        return bytes;
+    }
+
+    // Draws overlapping triangles with interpolated colors and alphas, and perspective, over several tiles, using the current program
+    private void drawRandomTriangles(Context context, boolean depthTest) {
+        final Random random = new Random(42);
+        final TFloatArrayList positions = new TFloatArrayList();
+        final TFloatArrayList colors = new TFloatArrayList();
+        for (int i = 0; i < 2000 * 3; i++) {
+            final float w = 1 + random.nextFloat() * 2;
+            positions.add(new float[]{(random.nextFloat() * 2.4f - 1.2f) * w, (random.nextFloat() * 2.4f - 1.2f) * w, (random.nextFloat() * 2 - 1) * w, w});
+            colors.add(new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat(), random.nextFloat()});
+        }
+        final VertexArray vertexArray = createVertexArray(context, positions, colors);
+        if (depthTest) {
+            context.enableCapability(Capability.DEPTH_TEST);
+        }
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+    }
+
+    // Checks the pixels of the row at x = 0, 63, 64, 128 and 255, which are in different clear tiles
+    private void assertPixels(Context context, int y, int... expected) {
+        final int[] xs = {0, 63, 64, 128, 255};
+        for (int i = 0; i < expected.length; i++) {
+            final ByteBuffer pixel = context.readFrame(new Rectangle(xs[i], y, 1, 1), InternalFormat.RGB8);
+            Assert.assertEquals(expected[i], (pixel.get() & 0xFF) << 16 | (pixel.get() & 0xFF) << 8 | pixel.get() & 0xFF);
+        }
+    }
+
+    private void assertRow(Context context, int y, int... expected) {
+        assertRow(context, y, null, expected);
+    }
+
+    private void assertRow(Context context, int y, String message, int... expected) {
+        final ByteBuffer row = context.readFrame(new Rectangle(0, y, expected.length, 1), InternalFormat.RGB8);
+        for (int color : expected) {
+            Assert.assertEquals(message, color, (row.get() & 0xFF) << 16 | (row.get() & 0xFF) << 8 | row.get() & 0xFF);
+        }
+    }
+
+    private Program createProgram(Context context, String... sources) {
+        final Program program = context.newProgram();
+        program.create();
+        for (String source : sources) {
+            final Shader shader = context.newShader();
+            shader.create();
+            shader.setSource(new ShaderSource(source));
+            shader.compile();
+            program.attachShader(shader);
+        }
+        program.link();
+        program.use();
+        return program;
+    }
+
+    // Creates a triangle list from positions with four components, and colors with four components
+    private VertexArray createVertexArray(Context context, TFloatArrayList positions, TFloatArrayList colors) {
+        final VertexData data = new VertexData();
+        final VertexAttribute positionAttribute = new VertexAttribute("position", DataType.FLOAT, 4);
+        positionAttribute.setData(positions);
+        data.addAttribute(0, positionAttribute);
+        final VertexAttribute colorAttribute = new VertexAttribute("color", DataType.FLOAT, 4);
+        colorAttribute.setData(colors);
+        data.addAttribute(1, colorAttribute);
+        for (int i = 0; i < positions.size() / 4; i++) {
+            data.getIndices().add(i);
+        }
+        final VertexArray vertexArray = context.newVertexArray();
+        vertexArray.create();
+        vertexArray.setData(data);
+        return vertexArray;
+    }
+
+    // Creates a quad of a single color, from the minimum to the maximum normalized device coordinates, at the depth
+    private VertexArray createQuad(Context context, float minX, float minY, float maxX, float maxY, float z, Vector4f color) {
+        final TFloatArrayList positions = new TFloatArrayList(new float[]{minX, minY, z, 1, maxX, minY, z, 1, maxX, maxY, z, 1, minX, minY, z, 1, maxX, maxY, z, 1, minX, maxY, z, 1});
+        final TFloatArrayList colors = new TFloatArrayList();
+        for (int i = 0; i < 6; i++) {
+            colors.add(new float[]{color.getX(), color.getY(), color.getZ(), color.getW()});
+        }
+        return createVertexArray(context, positions, colors);
+    }
+
+    // Creates a quad over the center half of the frame, drawn using the basic shaders
+    private VertexArray createCenterQuad(Context context) {
+        // The same shader sources as the OpenGL renderers
+        final Program program = context.newProgram();
+        program.create();
+        for (String name : new String[]{"basic.vert", "basic.frag"}) {
+            final Shader shader = context.newShader();
+            shader.create();
+            shader.setSource(new ShaderSource(getClass().getResourceAsStream("/shaders/glsl120/" + name)));
+            shader.compile();
+            program.attachShader(shader);
+        }
+        program.link();
+        program.use();
+        program.setUniform("modelMatrix", Matrix4f.IDENTITY);
+        program.setUniform("viewMatrix", Matrix4f.createScaling(0.5f, 0.5f, 1, 1));
+        program.setUniform("projectionMatrix", Matrix4f.IDENTITY);
+        final VertexData data = new VertexData();
+        final VertexAttribute positions = new VertexAttribute("position", DataType.FLOAT, 3);
+        positions.setData(new TFloatArrayList(new float[]{-1, -1, 0, 1, -1, 0, 1, 1, 0, -1, 1, 0}));
+        data.addAttribute(0, positions);
+        data.getIndices().add(new int[]{0, 1, 2, 0, 2, 3});
+        final VertexArray vertexArray = context.newVertexArray();
+        vertexArray.create();
+        vertexArray.setData(data);
+        return vertexArray;
+    }
+
+    // The shaders below do the same as the color shaders, a single invocation or a whole batch at a time
+    public static class ColorVertexShader extends ShaderImplementation {
+        public ColorVertexShader() {
+            super(new DataFormat[]{new DataFormat(DataType.FLOAT, 4), new DataFormat(DataType.FLOAT, 4)});
+        }
+
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            out.writeVector4f(in.readVector4f());
+            out.writeVector4f(in.readVector4f());
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.VERTEX;
+        }
+    }
+
+    public static class BatchedColorVertexShader extends ColorVertexShader {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            throw new AssertionError("Batched shader called for a single vertex");
+        }
+
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            for (int slot = 0; slot < 2; slot++) {
+                for (int component = 0; component < 4; component++) {
+                    System.arraycopy(in.getFloats(slot, component), 0, out.getFloats(slot, component), 0, in.size());
+                }
+            }
+        }
+    }
+
+    public static class LaneColorVertexShader extends ColorVertexShader {
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            super.main(in, out);
+        }
+    }
+
+    public static class CountingColorVertexShader extends ColorVertexShader {
+        private static final AtomicInteger INVOCATIONS = new AtomicInteger();
+
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            INVOCATIONS.incrementAndGet();
+            super.main(in, out);
+        }
+    }
+
+    // Passes the first two color components as integers
+    public static class IntegerVertexShader extends ShaderImplementation {
+        public IntegerVertexShader() {
+            super(new DataFormat[]{new DataFormat(DataType.FLOAT, 4), new DataFormat(DataType.INT, 2)});
+        }
+
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            out.writeVector4f(in.readVector4f());
+            final Vector4f color = in.readVector4f();
+            out.writeVector2i((int) color.getX(), (int) color.getY());
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.VERTEX;
+        }
+    }
+
+    // Writes the integers as the red and green components, from 0 to 255
+    public static class IntegerFragmentShader extends ShaderImplementation {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            in.skip();
+            final Vector2i values = in.readVector2i();
+            out.writeVector4f((values.getX() + 0.5f) / 255, (values.getY() + 0.5f) / 255, 0, 1);
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.FRAGMENT;
+        }
+    }
+
+    // Writes the tint times the scale when enabled, with the green from an integer
+    public static class UniformFragmentShader extends ShaderImplementation {
+        @Uniform
+        private boolean enabled;
+        @Uniform
+        private int green;
+        @Uniform
+        private float scale;
+        @Uniform
+        private Vector4f tint;
+
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            final Vector4f color = enabled ? tint.mul(scale) : Vector4f.ZERO;
+            out.writeVector4f(color.getX(), (green + 0.5f) / 255, color.getZ(), 1);
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.FRAGMENT;
+        }
+    }
+
+    public static class ColorFragmentShader extends ShaderImplementation {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            in.skip();
+            out.writeVector4f(in.readVector4f());
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.FRAGMENT;
+        }
+    }
+
+    public static class BatchedColorFragmentShader extends ColorFragmentShader {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            throw new AssertionError("Batched shader called for a single fragment");
+        }
+
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            for (int component = 0; component < 4; component++) {
+                System.arraycopy(in.getFloats(1, component), 0, out.getFloats(0, component), 0, in.size());
+            }
+        }
+    }
+
+    public static class LaneColorFragmentShader extends ColorFragmentShader {
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            super.main(in, out);
+        }
+    }
+
+    // Discards the fragments on a checkerboard of pixels
+    public static class DiscardFragmentShader extends ShaderImplementation {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            final Vector4f position = in.readVector4f();
+            if (isDiscarded(position.getX(), position.getY())) {
+                out.discard();
+                return;
+            }
+            out.writeVector4f(in.readVector4f());
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.FRAGMENT;
+        }
+
+        static boolean isDiscarded(float x, float y) {
+            return ((int) x + (int) y & 1) != 0;
+        }
+    }
+
+    public static class BatchedDiscardFragmentShader extends DiscardFragmentShader {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            throw new AssertionError("Batched shader called for a single fragment");
+        }
+
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            final float[] x = in.getFloats(0, 0), y = in.getFloats(0, 1);
+            for (int lane = 0; lane < in.size(); lane++) {
+                if (isDiscarded(x[lane], y[lane])) {
+                    out.discard(lane);
+                }
+            }
+            for (int component = 0; component < 4; component++) {
+                System.arraycopy(in.getFloats(1, component), 0, out.getFloats(0, component), 0, in.size());
+            }
+        }
+    }
+
+    public static class LaneDiscardFragmentShader extends DiscardFragmentShader {
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            super.main(in, out);
+        }
+    }
+
+    // Writes the derivatives of the red and green of the color, scaled by 64
+    public static class DerivativeFragmentShader extends ShaderImplementation {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            out.writeVector4f(derivative(in.dFdx(1, 0)), derivative(in.dFdy(1, 0)), derivative(in.dFdx(1, 1)), 1);
+        }
+
+        @Override
+        public ShaderType getType() {
+            return ShaderType.FRAGMENT;
+        }
+
+        static float derivative(float value) {
+            return Math.abs(value) * 64;
+        }
+    }
+
+    public static class BatchedDerivativeFragmentShader extends DerivativeFragmentShader {
+        @Override
+        public void main(InBuffer in, OutBuffer out) {
+            throw new AssertionError("Batched shader called for a single fragment");
+        }
+
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            final float[] r = out.getFloats(0, 0), g = out.getFloats(0, 1), b = out.getFloats(0, 2), a = out.getFloats(0, 3);
+            for (int lane = 0; lane < in.size(); lane++) {
+                r[lane] = derivative(in.dFdx(1, 0, lane));
+                g[lane] = derivative(in.dFdy(1, 0, lane));
+                b[lane] = derivative(in.dFdx(1, 1, lane));
+                a[lane] = 1;
+            }
+        }
+    }
+
+    public static class LaneDerivativeFragmentShader extends DerivativeFragmentShader {
+        @Override
+        public void main(ShaderBatch in, ShaderBatch out) {
+            super.main(in, out);
+        }
+    }
+}
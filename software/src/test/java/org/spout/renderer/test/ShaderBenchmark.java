@@ -0,0 +1,111 @@
+/*
+ * This file is part of Caustic Software.
+ *
+ * Copyright (c) 2013 Spout LLC <http://www.spout.org/>
+ * Caustic Software is licensed under the Spout License Version 1.
+ *
+ * Caustic Software is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * In addition, 180 days after any changes are published, you can use the
+ * software, incorporating those changes, under the terms of the MIT license,
+ * as described in the Spout License Version 1.
+ *
+ * Caustic Software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License,
+ * the MIT license and the Spout License Version 1 along with this program.
+ * If not, see <http://www.gnu.org/licenses/> for the GNU Lesser General Public
+ * License and see <http://spout.in/licensev1> for the full license, including
+ * the MIT license.
+ */
+package org.spout.renderer.test;
+
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.math.vector.Vector4f;
+
+import gnu.trove.list.array.TFloatArrayList;
+
+import org.spout.renderer.api.data.ShaderSource;
+import org.spout.renderer.api.data.VertexAttribute;
+import org.spout.renderer.api.data.VertexAttribute.DataType;
+import org.spout.renderer.api.data.VertexData;
+import org.spout.renderer.api.gl.Context;
+import org.spout.renderer.api.gl.Program;
+import org.spout.renderer.api.gl.Shader;
+import org.spout.renderer.api.gl.Texture.InternalFormat;
+import org.spout.renderer.api.gl.VertexArray;
+import org.spout.renderer.api.util.Rectangle;
+import org.spout.renderer.software.HeadlessSoftwareContext;
+
+/**
+ * Measures the time to draw a quad covering a 640x480 frame with the color shaders, as Java shaders, batched Java shaders and interpreted GLSL. This isn't run with the tests, but as a main class.
+ */
+public class ShaderBenchmark {
+    private static final int WARM_UP_FRAMES = 100;
+    private static final int FRAMES = 200;
+
+    public static void main(String[] args) {
+        final String[][] programs = {
+                {HeadlessSoftwareContextTest.ColorVertexShader.class.getName(), HeadlessSoftwareContextTest.ColorFragmentShader.class.getName()},
+                {HeadlessSoftwareContextTest.BatchedColorVertexShader.class.getName(), HeadlessSoftwareContextTest.BatchedColorFragmentShader.class.getName()},
+                {HeadlessSoftwareContextTest.COLOR_VERTEX_SHADER, HeadlessSoftwareContextTest.COLOR_FRAGMENT_SHADER}
+        };
+        final String[] names = {"Java", "Batched Java", "GLSL"};
+        for (int i = 0; i < programs.length; i++) {
+            System.out.printf("%s: %.2f ms per frame%n", names[i], benchmark(programs[i]));
+        }
+    }
+
+    private static double benchmark(String[] shaders) {
+        final Context context = new HeadlessSoftwareContext();
+        context.setWindowSize(new Vector2i(640, 480));
+        context.create();
+        final Program program = context.newProgram();
+        program.create();
+        for (String source : shaders) {
+            final Shader shader = context.newShader();
+            shader.create();
+            shader.setSource(new ShaderSource(source));
+            shader.compile();
+            program.attachShader(shader);
+        }
+        program.link();
+        program.use();
+        // A quad covering the frame, with a different color at each corner
+        final VertexData data = new VertexData();
+        final VertexAttribute positions = new VertexAttribute("position", DataType.FLOAT, 4);
+        positions.setData(new TFloatArrayList(new float[]{-1, -1, 0, 1, 1, -1, 0, 1, 1, 1, 0, 1, -1, 1, 0, 1}));
+        data.addAttribute(0, positions);
+        final VertexAttribute colors = new VertexAttribute("color", DataType.FLOAT, 4);
+        colors.setData(new TFloatArrayList(new float[]{1, 0, 0, 1, 0, 1, 0, 1, 0, 0, 1, 1, 1, 1, 1, 1}));
+        data.addAttribute(1, colors);
+        data.getIndices().add(new int[]{0, 1, 2, 0, 2, 3});
+        final VertexArray vertexArray = context.newVertexArray();
+        vertexArray.create();
+        vertexArray.setData(data);
+        context.setClearColor(new Vector4f(0, 0, 0, 1));
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            drawFrame(context, vertexArray);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            drawFrame(context, vertexArray);
+        }
+        final double time = (System.nanoTime() - start) / 1e6 / FRAMES;
+        context.destroy();
+        return time;
+    }
+
+    private static void drawFrame(Context context, VertexArray vertexArray) {
+        context.clearCurrentBuffer();
+        vertexArray.draw();
+        // Reading a pixel waits for the deferred clear and the draw to be done
+        context.readFrame(new Rectangle(0, 0, 1, 1), InternalFormat.RGBA8);
+    }
+}